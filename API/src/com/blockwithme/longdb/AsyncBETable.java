@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/** An asynchronous view of a back-end table. Each operation is sent at once,
+ * and returns a future of its result, so that one thread can have many
+ * requests in flight. Callbacks can be attached with
+ * Futures.addCallback(). The results have the same meaning as in BETable, but
+ * the returned objects are never reused by the table.
+ *
+ * The number of outstanding requests is bounded: when the limit is reached, a
+ * new request blocks the calling thread until an earlier one completes. The
+ * parameters of a request (Columns, LongArrayList, long[], LongObjectOpenHashMap)
+ * must not be modified until its future is done.
+ *
+ * Ordering: requests are not guaranteed to complete in the order they were
+ * sent. A request that depends on the result of another one must wait for it.
+ *
+ * @see BETable#async(int) */
+@ParametersAreNonnullByDefault
+public interface AsyncBETable {
+
+    /** Waits for all outstanding requests, and releases the resources of this
+     * view. The table itself stays open. No request is possible after this
+     * call. */
+    void close();
+
+    /** Returns a complete row; all it's columns. Null if the row is missing.
+     *
+     * @param theKey
+     *        the row ID
+     * @return the future of the row */
+    @Nonnull
+    ListenableFuture<Columns> get(long theKey);
+
+    /** Returns a row, filtered by a list of column IDs. Null if the row is
+     * missing.
+     *
+     * @param theKey
+     *        the row ID
+     * @param theColumns
+     *        the column IDs
+     * @return the future of the columns */
+    @Nonnull
+    ListenableFuture<Columns> get(long theKey, LongArrayList theColumns);
+
+    /** Returns a row, filtered by a range of column IDs. Null if the row is
+     * missing.
+     *
+     * @param theKey
+     *        the row ID
+     * @param theColumns
+     *        the range of column IDs
+     * @return the future of the columns */
+    @Nonnull
+    ListenableFuture<Columns> get(long theKey, Range theColumns);
+
+    /** Returns the maximum number of outstanding requests.
+     *
+     * @return the maximum number of outstanding requests */
+    int maxOutstanding();
+
+    /** Returns many rows, filtered by a list of column IDs. Missing rows are
+     * absent from the result.
+     *
+     * @param theKeys
+     *        the row IDs
+     * @param theColumns
+     *        the column IDs
+     * @return the future of the columns, mapped by row ID */
+    @Nonnull
+    ListenableFuture<LongObjectOpenHashMap<Columns>> multiGet(long[] theKeys,
+            LongArrayList theColumns);
+
+    /** Returns many rows, filtered by a range of column IDs. Missing rows are
+     * absent from the result.
+     *
+     * @param theKeys
+     *        the row IDs
+     * @param theColumns
+     *        the range of column IDs
+     * @return the future of the columns, mapped by row ID */
+    @Nonnull
+    ListenableFuture<LongObjectOpenHashMap<Columns>> multiGet(long[] theKeys,
+            Range theColumns);
+
+    /** Returns the number of requests sent, but not completed yet.
+     *
+     * @return the number of outstanding requests */
+    int outstanding();
+
+    /** Removes a complete row.
+     *
+     * @param theKey
+     *        the row ID
+     * @return the future of the completion */
+    @Nonnull
+    ListenableFuture<Void> remove(long theKey);
+
+    /** Removes some columns of a row.
+     *
+     * @param theKey
+     *        the row ID
+     * @param theRemoveIds
+     *        the column IDs to be removed
+     * @return the future of the completion */
+    @Nonnull
+    ListenableFuture<Void> remove(long theKey, LongArrayList theRemoveIds);
+
+    /** Removes a range of columns of a row.
+     *
+     * @param theKey
+     *        the row ID
+     * @param theRemoveIdRange
+     *        the range of column IDs to be removed
+     * @return the future of the completion */
+    @Nonnull
+    ListenableFuture<Void> remove(long theKey, Range theRemoveIdRange);
+
+    /** Saves some Columns in a row. Other pre-existing columns are unaffected.
+     *
+     * @param theKey
+     *        the row ID
+     * @param theInsertOrUpdate
+     *        the columns to be inserted or updated
+     * @return the future of the completion */
+    @Nonnull
+    ListenableFuture<Void> set(long theKey, Columns theInsertOrUpdate);
+
+    /** Saves some Columns in a row, and removes others, atomically.
+     *
+     * @param theKey
+     *        the row ID
+     * @param theInsertOrUpdate
+     *        the columns to be inserted or updated
+     * @param theRemoveIds
+     *        the column IDs to be removed
+     * @return the future of the completion */
+    @Nonnull
+    ListenableFuture<Void> set(long theKey, Columns theInsertOrUpdate,
+            LongArrayList theRemoveIds);
+
+    /** Saves some Columns in a row, and removes a range of others, atomically.
+     *
+     * @param theKey
+     *        the row ID
+     * @param theInsertOrUpdate
+     *        the columns to be inserted or updated
+     * @param theRemoveRange
+     *        the range of column IDs to be removed
+     * @return the future of the completion */
+    @Nonnull
+    ListenableFuture<Void> set(long theKey, Columns theInsertOrUpdate,
+            Range theRemoveRange);
+
+    /** Saves some Columns in many rows at once.
+     *
+     * @param theRows
+     *        the columns to be inserted or updated, mapped by row ID
+     * @return the future of the completion */
+    @Nonnull
+    ListenableFuture<Void> setAll(LongObjectOpenHashMap<Columns> theRows);
+
+    /** Returns the *approximate* number of rows stored.
+     *
+     * @return the future of the number of rows */
+    @Nonnull
+    ListenableFuture<Long> size();
+
+    /** Returns the synchronous table behind this view.
+     *
+     * @return the table */
+    @Nonnull
+    BETable table();
+}
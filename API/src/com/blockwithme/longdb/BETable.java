@@ -24,6 +24,8 @@ import javax.annotation.ParametersAreNonnullByDefault;
 import com.blockwithme.longdb.entities.Base36;
 import com.blockwithme.longdb.entities.LongHolder;
 import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 
 /** A back-end table. This is where the data is stored. Each individual
  * modification is atomic. There are no other transactional guarantees. The
@@ -38,10 +40,31 @@ import com.carrotsearch.hppc.LongArrayList;
  * he sizes become incorrect, due to parallel access to the same row from two
  * processes, there should also be a refresh function that recalculate the
  * sizes, and logs if it finds any difference. In the worst case, this might
- * involve loading all columns, so better use an iterator. */
+ * involve loading all columns, so better use an iterator.
+ * 
+ * Thread-safety: if threadSafe() returns true, a single table instance can be
+ * shared by any number of threads, and each individual modification remains
+ * atomic under concurrent access. Otherwise, the table must be confined to one
+ * thread at a time. In both cases, the objects returned by a table (Columns,
+ * LongArrayList, iterators and LongHolder) are not thread-safe themselves, and
+ * "until the next call" restrictions apply per thread. */
 @ParametersAreNonnullByDefault
 public interface BETable {
 
+    /** Returns an asynchronous view of this table, that lets one thread have
+     * many requests in flight. Backends with a non-blocking client send the
+     * requests directly; the others run them on a small pool of threads (a
+     * single one, if the table is not thread-safe, in which case the table
+     * must not be used directly until the view is closed). Each call returns
+     * a new view, which must be closed after use.
+     * 
+     * @param theMaxOutstanding
+     *        the maximum number of outstanding requests; a new request blocks
+     *        until an earlier one completes once the limit is reached
+     * @return the asynchronous view */
+    @Nonnull
+    AsyncBETable async(int theMaxOutstanding);
+
     /** Closes the table. No DB operation on this table is possible after this
      * call. */
     void close();
@@ -153,6 +176,21 @@ public interface BETable {
     @CheckForNull
     Columns get(long theKey, Range theColumns);
 
+    /** Streams some Columns of a row to a visitor, without building a Columns
+     * object. The values are passed straight from the cursor, result set or
+     * reply of the backend, so this is cheaper than get() when the values
+     * are only aggregated or forwarded. The columns are visited in the table
+     * order, if the table supports it. The visitor can stop the read early.
+     * 
+     * @param theKey
+     *        the row ID
+     * @param theColumns
+     *        range of column Ids
+     * @param theVisitor
+     *        the visitor
+     * @return the number of columns visited; 0 if the row is missing */
+    int get(long theKey, Range theColumns, ColumnVisitor theVisitor);
+
     /** Returns the first N Columns, where first depends on the sort order, *if
      * any*. Null if the row is missing. The unselected columns will NOT be
      * available. The returned Columns object can only be used until the next
@@ -176,6 +214,45 @@ public interface BETable {
     @Nonnull
     Iterator<LongHolder> keys();
 
+    /** Returns the keys of the rows in a range. The backends that keep their
+     * rows sorted return them in ascending key order, reading only the range;
+     * the others filter all the keys. Same restrictions as keys().
+     * 
+     * @param theRows
+     *        range of row IDs
+     * @return the iterator */
+    @Nonnull
+    Iterator<LongHolder> keys(Range theRows);
+
+    /** Returns some Columns of many rows at once. Missing rows, and rows
+     * without any of the selected columns, are not part of the result. The
+     * unselected columns will NOT be available. Unlike get(), the returned
+     * Columns objects remain valid after the next call. This is much cheaper
+     * than calling get() once per row, since the per-call overhead (cursor,
+     * statement or RPC) is paid only once for all the rows.
+     *
+     * @param theKeys
+     *        the row IDs
+     * @param theColumns
+     *        the list of column Ids
+     * @return the columns, mapped by row ID */
+    @Nonnull
+    LongObjectOpenHashMap<Columns> multiGet(long[] theKeys,
+            LongArrayList theColumns);
+
+    /** Returns some Columns of many rows at once. Missing rows, and rows
+     * without any column in the range, are not part of the result. The
+     * unselected columns will NOT be available. Unlike get(), the returned
+     * Columns objects remain valid after the next call.
+     *
+     * @param theKeys
+     *        the row IDs
+     * @param theColumns
+     *        range of column Ids
+     * @return the columns, mapped by row ID */
+    @Nonnull
+    LongObjectOpenHashMap<Columns> multiGet(long[] theKeys, Range theColumns);
+
     /** Removes a complete row.
      * 
      * @param theKey
@@ -217,6 +294,22 @@ public interface BETable {
      * @return true, if yes */
     boolean reverseSupported();
 
+    /** Returns the rows in a range, with some of their columns, in a single
+     * pass over the table. The backends that keep their rows sorted return
+     * them in ascending key order. Rows without any column in theColumns are
+     * skipped. This is much cheaper than iterating keys() and calling get()
+     * once per row. References to the returned cursor must not be held, but
+     * the Columns objects remain valid after the next call. This operation is
+     * only reliable when the table is not being modified!
+     * 
+     * @param theRows
+     *        range of row IDs
+     * @param theColumns
+     *        range of column Ids
+     * @return the iterator over the row IDs and their columns */
+    @Nonnull
+    Iterator<LongObjectCursor<Columns>> scan(Range theRows, Range theColumns);
+
     /** Saves some Columns. Other pre-existing columns are unaffected. This
      * operation is atomic.
      * 
@@ -259,14 +352,44 @@ public interface BETable {
      *        the range of columns to be removed */
     void set(long theKey, Columns theInsertOrUpdate, Range theRemoveRange);
 
+    /** Saves some Columns in many rows at once. Other pre-existing columns are
+     * unaffected. Each row is modified atomically; backends that support it
+     * also apply the whole batch atomically. This is much cheaper than calling
+     * set() once per row, since the per-call overhead (transaction, cursor,
+     * statement or RPC) is paid only once for the whole batch.
+     * 
+     * @param theRows
+     *        the columns to be inserted or updated, mapped by row ID */
+    void setAll(LongObjectOpenHashMap<Columns> theRows);
+
     /** Returns the *approximate* number of rows stored.
      * 
      * @return the number of rows */
     long size();
 
+    /** Splits the key space of the table into disjoint ranges of rows, so that
+     * table-wide jobs can run in parallel, one range per thread, with
+     * keys(Range) or scan(Range, Range). The ranges are in ascending order,
+     * and cover all possible keys. The split points come from the estimates
+     * of the backend, so the ranges only hold *approximately* the same
+     * number of rows. Each thread must use its own table instance, unless
+     * the table is thread-safe.
+     * 
+     * @param theParts
+     *        the wanted number of ranges
+     * @return at most theParts ranges; a single full range if the table
+     *         cannot be split */
+    @Nonnull
+    Range[] splitKeys(int theParts);
+
     /** Returns the ID/name of this table in the database.
      * 
      * @return the table name */
     Base36 table();
 
+    /** Can this table instance be used concurrently by many threads?.
+     * 
+     * @return true, if the table is thread-safe */
+    boolean threadSafe();
+
 }
@@ -36,9 +36,24 @@ public class BETableProfile {
         UpdateMostly
     };
 
+    /** The possible eviction policies of the row cache. */
+    public static enum Eviction {
+        /** Evicts the least frequently used rows. */
+        LFU,
+        /** Evicts the least recently used rows. */
+        LRU
+    };
+
     /** The expected access pattern. */
     private final Access access = Access.Balanced;
 
+    /** The eviction policy of the row cache. */
+    private Eviction cacheEviction = Eviction.LRU;
+
+    /** Maximum number of bytes of rows cached in memory. 0 disables the
+     * cache. */
+    private long cacheSize;
+
     /** Expected average number of columns per rows, after the usage stabilizes. */
     private int expectedNumberOfColumns = -1;
 
@@ -64,6 +79,33 @@ public class BETableProfile {
         return access;
     }
 
+    /** @return the cacheEviction */
+    public Eviction cacheEviction() {
+        return cacheEviction;
+    }
+
+    /** @param theCacheEviction
+     *        the cacheEviction to set */
+    public BETableProfile cacheEviction(final Eviction theCacheEviction) {
+        this.cacheEviction = theCacheEviction;
+        return this;
+    }
+
+    /** @return the cacheSize */
+    public long cacheSize() {
+        return cacheSize;
+    }
+
+    /** Maximum number of bytes of rows cached in memory, when the table is
+     * opened through a CachingBackend. 0 disables the cache.
+     * 
+     * @param theCacheSize
+     *        the cacheSize to set */
+    public BETableProfile cacheSize(final long theCacheSize) {
+        this.cacheSize = theCacheSize;
+        return this;
+    }
+
     /** @return the expectedNumberOfColumns */
     public int expectedNumberOfColumns() {
         return expectedNumberOfColumns;
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/** Receives the columns of a row, one at a time, from a streaming read. The
+ * value is passed as a slice of an array owned by the backend, which is only
+ * valid during the call; it must be copied if it is to be kept. The visitor
+ * must not modify the table it is reading from, since the backend may hold a
+ * cursor or a lock on the row during the read.
+ * 
+ * @see BETable#get(long, Range, ColumnVisitor) */
+@ParametersAreNonnullByDefault
+public interface ColumnVisitor {
+
+    /** Visits one column.
+     * 
+     * @param theColumn
+     *        the column ID
+     * @param theData
+     *        the array containing the value
+     * @param theOffset
+     *        the start of the value in theData
+     * @param theLength
+     *        the length of the value
+     * @return true to continue, false to stop the read */
+    boolean visit(long theColumn, byte[] theData, int theOffset, int theLength);
+}
@@ -20,6 +20,7 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import com.blockwithme.longdb.entities.Bytes;
@@ -45,6 +46,11 @@ public class Columns implements Iterable<LongHolder> {
     /** Reverse order? */
     private final boolean reverse;
 
+    /** The column IDs, in sorted (possibly reverse) order, computed on demand,
+     * and dropped when a column is added or removed. Never modified in place,
+     * so iterators can keep using it after a modification. */
+    private long[] sorted;
+
     /** The timestamp, if any. */
     private Long timestamp;
 
@@ -67,6 +73,18 @@ public class Columns implements Iterable<LongHolder> {
         bmap = new LongObjectOpenHashMap<Bytes>(theInitialCapacity);
     }
 
+    /** Creates a Columns without a map. Only used by PackedColumns, which
+     * stores the columns itself, and overrides every accessor.
+     * 
+     * @param theReverse
+     *        if reverse sorting is applicable.
+     * @param theNoMap
+     *        always null */
+    Columns(final boolean theReverse, @Nullable final Void theNoMap) {
+        this.reverse = theReverse;
+        bmap = null;
+    }
+
     /** Copies the content of the given Columns.
      * 
      * @param theRow
@@ -95,7 +113,7 @@ public class Columns implements Iterable<LongHolder> {
             // Makes a safe copy from Bytes, in case the array in Bytes gets
             // changed by the caller later.
             final Bytes value = cursor.value.copy();
-            bmap.put(col, value);
+            putBytes(col, value);
         }
     }
 
@@ -115,6 +133,13 @@ public class Columns implements Iterable<LongHolder> {
         this.timestamp = theTimestamp;
     }
 
+    /** Returns true if the columns are sorted in reverse order.
+     * 
+     * @return true, if reverse */
+    boolean reverse() {
+        return reverse;
+    }
+
     /** Iterates over the bytes. Sort order is random.
      * 
      * @return the iterator */
@@ -122,6 +147,21 @@ public class Columns implements Iterable<LongHolder> {
         return bmap.iterator();
     }
 
+    /** Returns the total length of the values, in bytes. Does not allocate,
+     * so it can be used on every read and write.
+     * 
+     * @return the total length */
+    public long bytesLength() {
+        long result = 0;
+        final boolean[] allocated = bmap.allocated;
+        final Object[] values = bmap.values;
+        for (int i = 0; i < allocated.length; i++) {
+            if (allocated[i] && (values[i] != null))
+                result += ((Bytes) values[i]).length();
+        }
+        return result;
+    }
+
     /** Returns the columns in sorted order.
      * 
      * @return the column ids array */
@@ -135,24 +175,54 @@ public class Columns implements Iterable<LongHolder> {
      *        if sorting is needed
      * @return the column Ids array */
     public long[] columns(final boolean theSorted) {
-        final long[] columns = bmap.keys().toArray();
         if (theSorted) {
-            final int count = columns.length;
-            Arrays.sort(columns);
+            return sortedColumns().clone();
+        }
+        return bmap.keys().toArray();
+    }
+
+    /** Returns the column ID at the given position, in sorted order. Together
+     * with size(), this gives allocation-free cursors over the columns:
+     * iterate from 0 to size() - 1 for the sorted order, and from size() - 1
+     * down to 0 for the opposite order. The sort is done once, and reused
+     * until a column is added or removed.
+     * 
+     * @param theIndex
+     *        the position, between 0 and size() - 1
+     * @return the column ID */
+    public long columnAt(final int theIndex) {
+        return sortedColumns()[theIndex];
+    }
+
+    /** Drops the cached sorted column IDs. Must be called when a column is
+     * added or removed. */
+    private void columnsChanged() {
+        sorted = null;
+    }
+
+    /** Returns the sorted column IDs. The returned array must not be
+     * modified, and can be shared.
+     * 
+     * @return the sorted column IDs */
+    long[] sortedColumns() {
+        long[] result = sorted;
+        if (result == null) {
+            result = bmap.keys().toArray();
+            final int count = result.length;
+            Arrays.sort(result);
             if (reverse && (count > 1)) {
-                // TODO This is crazy! There must be a reverse() function
-                // somewhere. Guava?
                 final int stop = count / 2;
                 final int top = count - 1;
                 for (int i = 0; i < stop; i++) {
-                    final long tmp = columns[i];
+                    final long tmp = result[i];
                     final int other = top - i;
-                    columns[i] = columns[other];
-                    columns[other] = tmp;
+                    result[i] = result[other];
+                    result[other] = tmp;
                 }
             }
+            sorted = result;
         }
-        return columns;
+        return result;
     }
 
     /** Returns true if we contain the column.
@@ -195,7 +265,7 @@ public class Columns implements Iterable<LongHolder> {
      *        if sorting is needed
      * @return the iterator */
     public Iterator<LongHolder> iterator(final boolean isSorted) {
-        final long[] columns = columns(isSorted);
+        final long[] columns = isSorted ? sortedColumns() : columns(false);
         final int count = columns.length;
         return new Iterator<LongHolder>() {
             /** The LongHolder */
@@ -256,7 +326,16 @@ public class Columns implements Iterable<LongHolder> {
      * @param theRow
      *        the row */
     public final void putAll(final Columns theRow) {
-        putAll(theRow.bmap);
+        if (theRow.bmap != null) {
+            putAll2(theRow.bmap);
+        } else {
+            final Iterator<LongObjectCursor<Bytes>> iter = theRow
+                    .bytesIterator();
+            while (iter.hasNext()) {
+                final LongObjectCursor<Bytes> cursor = iter.next();
+                putBytes(cursor.key, cursor.value.copy());
+            }
+        }
     }
 
     /** Copies the content of the map.
@@ -265,7 +344,8 @@ public class Columns implements Iterable<LongHolder> {
      *        the map */
     public void putAll(final LongLongOpenHashMap theMap) {
         for (final LongLongCursor cursor : theMap) {
-            bmap.put(cursor.key, new Bytes(cursor.value));
+            if (bmap.put(cursor.key, new Bytes(cursor.value)) == null)
+                columnsChanged();
         }
     }
 
@@ -287,7 +367,10 @@ public class Columns implements Iterable<LongHolder> {
      *         value */
     @CheckForNull
     public Bytes putBytes(final long theColumn, final Bytes theValue) {
-        return bmap.put(theColumn, theValue);
+        final Bytes previous = bmap.put(theColumn, theValue);
+        if (previous == null)
+            columnsChanged();
+        return previous;
     }
 
     /** Removes the column.
@@ -296,6 +379,7 @@ public class Columns implements Iterable<LongHolder> {
      *        the column */
     public void remove(final long theColumn) {
         bmap.remove(theColumn);
+        columnsChanged();
     }
 
     /** Sets a primitive value as long.
@@ -306,6 +390,7 @@ public class Columns implements Iterable<LongHolder> {
      *         value */
     @CheckForNull
     public Bytes removeBytes(final long theColumn) {
+        columnsChanged();
         return bmap.remove(theColumn);
     }
 
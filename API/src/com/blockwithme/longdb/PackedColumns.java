@@ -0,0 +1,434 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.entities.Bytes;
+import com.carrotsearch.hppc.LongLongOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongLongCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+
+/** A compact Columns. The column IDs are kept in a sorted long[], and all the
+ * values are stored one after the other in a single byte[], with an int[] of
+ * offsets, instead of one Bytes object, and one array, per column. The Bytes
+ * returned by getBytes() are views on that byte[], created on demand. Since
+ * the byte[] is never modified in place, they remain valid.
+ * 
+ * This is meant for the rows returned by the backends, which can fill it with
+ * append() directly from their cursors, in column order. Reads are O(log(n)),
+ * and appending in order is O(1); any other modification copies the whole
+ * row. */
+@ParametersAreNonnullByDefault
+public class PackedColumns extends Columns {
+
+    /** The initial number of value bytes, per column. */
+    private static final int BYTES_PER_COLUMN = 64;
+
+    /** The value of empty columns. */
+    private static final byte[] EMPTY = new byte[0];
+
+    /** The value bytes. */
+    private byte[] arena;
+
+    /** The number of columns. */
+    private int count;
+
+    /** The sorted column IDs. */
+    private long[] ids;
+
+    /** The start of each value in the arena. The value of column i ends at
+     * offsets[i+1]. */
+    private int[] offsets;
+
+    /** Creates an empty PackedColumns.
+     * 
+     * @param theReverse
+     *        if reverse sorting is applicable. */
+    public PackedColumns(final boolean theReverse) {
+        this(theReverse, DEFAULT_CAPACITY, DEFAULT_CAPACITY * BYTES_PER_COLUMN);
+    }
+
+    /** Creates an empty PackedColumns, with initial capacity.
+     * 
+     * @param theReverse
+     *        if reverse sorting is applicable.
+     * @param theColumns
+     *        the initial number of columns
+     * @param theBytes
+     *        the initial number of value bytes, for all columns */
+    public PackedColumns(final boolean theReverse, final int theColumns,
+            final int theBytes) {
+        super(theReverse, (Void) null);
+        ids = new long[Math.max(1, theColumns)];
+        offsets = new int[ids.length + 1];
+        arena = new byte[Math.max(0, theBytes)];
+    }
+
+    /** Copies the content of the given Columns.
+     * 
+     * @param theRow
+     *        the row */
+    public PackedColumns(final Columns theRow) {
+        super(theRow.reverse(), (Void) null);
+        if (theRow instanceof PackedColumns) {
+            final PackedColumns other = (PackedColumns) theRow;
+            count = other.count;
+            ids = Arrays.copyOf(other.ids, Math.max(1, count));
+            offsets = Arrays.copyOf(other.offsets, ids.length + 1);
+            arena = Arrays.copyOf(other.arena, other.offsets[count]);
+        } else {
+            final long[] cols = theRow.columns(false);
+            Arrays.sort(cols);
+            int bytes = 0;
+            for (final long col : cols) {
+                bytes += (int) theRow.getBytes(col).length();
+            }
+            ids = new long[Math.max(1, cols.length)];
+            offsets = new int[ids.length + 1];
+            arena = new byte[bytes];
+            for (final long col : cols) {
+                append(col, theRow.getBytes(col));
+            }
+        }
+    }
+
+    /** Appends a column. Appending columns in increasing ID order is cheap;
+     * an out of order, or an already present, column is handled as by
+     * putBytes(), at the cost of a copy of the whole row.
+     * 
+     * @param theColumn
+     *        the column ID
+     * @param theData
+     *        the array containing the value; it is copied
+     * @param theStart
+     *        the start of the value in theData
+     * @param theLength
+     *        the length of the value */
+    public void append(final long theColumn, final byte[] theData,
+            final int theStart, final int theLength) {
+        if (count > 0 && theColumn <= ids[count - 1]) {
+            putBytes(theColumn, new Bytes(Arrays.copyOfRange(theData,
+                    theStart, theStart + theLength)));
+            return;
+        }
+        final int end = reserve(theLength);
+        System.arraycopy(theData, theStart, arena, end, theLength);
+        ids[count] = theColumn;
+        count++;
+        offsets[count] = end + theLength;
+    }
+
+    /** Appends a column. See append(long, byte[], int, int).
+     * 
+     * @param theColumn
+     *        the column ID
+     * @param theData
+     *        the value; it is copied */
+    public void append(final long theColumn, final byte[] theData) {
+        append(theColumn, theData, 0, theData.length);
+    }
+
+    /** Appends a column. See append(long, byte[], int, int).
+     * 
+     * @param theColumn
+     *        the column ID
+     * @param theValue
+     *        the value; it is copied */
+    public void append(final long theColumn, final Bytes theValue) {
+        if (count > 0 && theColumn <= ids[count - 1]) {
+            putBytes(theColumn, theValue.copy());
+            return;
+        }
+        final int length = (int) theValue.length();
+        final int end = reserve(length);
+        if (length > 0)
+            theValue.copyTo(arena, end, length, 0L);
+        ids[count] = theColumn;
+        count++;
+        offsets[count] = end + length;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#bytesIterator()
+     */
+    @Override
+    public Iterator<LongObjectCursor<Bytes>> bytesIterator() {
+        return new Iterator<LongObjectCursor<Bytes>>() {
+            /** The cursor */
+            private final LongObjectCursor<Bytes> cursor = new LongObjectCursor<Bytes>();
+
+            /** The next column. */
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return (next < count);
+            }
+
+            @Override
+            public LongObjectCursor<Bytes> next() {
+                if (next < count) {
+                    cursor.index = next;
+                    cursor.key = ids[next];
+                    cursor.value = value(next);
+                    next++;
+                    return cursor;
+                }
+                throw new NoSuchElementException("No more values.");
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Returns the total length of the values, in bytes, which is the used
+     * length of the packed buffer.
+     * 
+     * @return the total length */
+    @Override
+    public long bytesLength() {
+        return offsets[count];
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#columns(boolean)
+     */
+    @Override
+    public long[] columns(final boolean theSorted) {
+        final long[] columns = Arrays.copyOf(ids, count);
+        if (theSorted && reverse()) {
+            final int stop = count / 2;
+            final int top = count - 1;
+            for (int i = 0; i < stop; i++) {
+                final long tmp = columns[i];
+                columns[i] = columns[top - i];
+                columns[top - i] = tmp;
+            }
+        }
+        return columns;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#columnAt(int)
+     */
+    @Override
+    public long columnAt(final int theIndex) {
+        if (theIndex < 0 || theIndex >= count)
+            throw new ArrayIndexOutOfBoundsException(theIndex);
+        return ids[reverse() ? count - 1 - theIndex : theIndex];
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#containsColumn(long)
+     */
+    @Override
+    public boolean containsColumn(final long theColumn) {
+        return indexOf(theColumn) >= 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#copy()
+     */
+    @Override
+    public Columns copy() {
+        return new PackedColumns(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#getBytes(long)
+     */
+    @Override
+    @CheckForNull
+    public Bytes getBytes(final long theColumn) {
+        final int index = indexOf(theColumn);
+        return (index < 0) ? null : value(index);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#sortedColumns()
+     */
+    @Override
+    long[] sortedColumns() {
+        return columns(true);
+    }
+
+    /** Returns the index of a column, or a negative value if missing. */
+    private int indexOf(final long theColumn) {
+        return Arrays.binarySearch(ids, 0, count, theColumn);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.blockwithme.longdb.Columns#putAll(com.carrotsearch.hppc.LongLongOpenHashMap
+     * )
+     */
+    @Override
+    public void putAll(final LongLongOpenHashMap theMap) {
+        for (final LongLongCursor cursor : theMap) {
+            putBytes(cursor.key, new Bytes(cursor.value));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#putBytes(long,
+     * com.blockwithme.longdb.entities.Bytes)
+     */
+    @Override
+    @CheckForNull
+    public Bytes putBytes(final long theColumn, final Bytes theValue) {
+        final int index = indexOf(theColumn);
+        if (index < 0 && -index - 1 == count) {
+            append(theColumn, theValue);
+            return null;
+        }
+        final Bytes previous = (index < 0) ? null : value(index);
+        final int at = (index < 0) ? -index - 1 : index;
+        final int removedLength = (index < 0) ? 0 : offsets[index + 1]
+                - offsets[index];
+        rebuild(at, (index < 0) ? 0 : 1, theColumn, theValue, removedLength);
+        return previous;
+    }
+
+    /** Replaces the columns [theIndex, theIndex + theRemoved) with the given
+     * column, if theValue is not null. Always uses a new arena, so that the
+     * views returned so far remain valid. */
+    private void rebuild(final int theIndex, final int theRemoved,
+            final long theColumn, @CheckForNull final Bytes theValue,
+            final int theRemovedLength) {
+        final int added = (theValue == null) ? 0 : 1;
+        final int addedLength = (theValue == null) ? 0 : (int) theValue
+                .length();
+        final int newCount = count - theRemoved + added;
+        final int used = offsets[count];
+        final int tailStart = offsets[theIndex + theRemoved];
+        final int tailLength = used - tailStart;
+        final int delta = addedLength - theRemovedLength;
+
+        final long[] newIds = new long[Math.max(ids.length, newCount)];
+        final int[] newOffsets = new int[newIds.length + 1];
+        final byte[] newArena = new byte[used + delta];
+
+        System.arraycopy(ids, 0, newIds, 0, theIndex);
+        System.arraycopy(offsets, 0, newOffsets, 0, theIndex + 1);
+        System.arraycopy(arena, 0, newArena, 0, offsets[theIndex]);
+        if (theValue != null) {
+            newIds[theIndex] = theColumn;
+            if (addedLength > 0)
+                theValue.copyTo(newArena, offsets[theIndex], addedLength, 0L);
+            newOffsets[theIndex + 1] = offsets[theIndex] + addedLength;
+        }
+        final int tailIndex = theIndex + theRemoved;
+        System.arraycopy(ids, tailIndex, newIds, theIndex + added, count
+                - tailIndex);
+        for (int i = tailIndex + 1; i <= count; i++) {
+            newOffsets[i - theRemoved + added] = offsets[i] + delta;
+        }
+        System.arraycopy(arena, tailStart, newArena, tailStart + delta,
+                tailLength);
+        ids = newIds;
+        offsets = newOffsets;
+        arena = newArena;
+        count = newCount;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#remove(long)
+     */
+    @Override
+    public void remove(final long theColumn) {
+        removeBytes(theColumn);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#removeBytes(long)
+     */
+    @Override
+    @CheckForNull
+    public Bytes removeBytes(final long theColumn) {
+        final int index = indexOf(theColumn);
+        if (index < 0)
+            return null;
+        final Bytes previous = value(index);
+        rebuild(index, 1, 0L, null, offsets[index + 1] - offsets[index]);
+        return previous;
+    }
+
+    /** Makes room for one more column, and theLength more value bytes, and
+     * returns the end of the values. */
+    private int reserve(final int theLength) {
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+            offsets = Arrays.copyOf(offsets, ids.length + 1);
+        }
+        final int end = offsets[count];
+        if (arena.length - end < theLength) {
+            arena = Arrays.copyOf(arena,
+                    Math.max(arena.length * 2, end + theLength));
+        }
+        return end;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.Columns#size()
+     */
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /** Returns the value at the given index, as a view on the arena. */
+    private Bytes value(final int theIndex) {
+        final int start = offsets[theIndex];
+        if (start == offsets[theIndex + 1])
+            return new Bytes(EMPTY);
+        // copyOnWrite, so that the arena cannot be modified through the view.
+        return new Bytes(arena, start, offsets[theIndex + 1] - start, true,
+                null);
+    }
+}
@@ -182,6 +182,17 @@ public class BackendClient {
         return this;
     }
 
+    /** Counts the rows of a particular table again, repairing the row count
+     * maintained by the backend. This is a full table scan.
+     * 
+     * @param theTableName
+     *        Table name
+     * @return number of rows in the table. */
+    public long tableRecount(final String theTableName) throws Exception {
+        Preconditions.checkNotNull(theTableName, "tableName is null");
+        return sourceDB.tableRecount(theTableName);
+    }
+
     /** Returns approximate row count for a particular table.
      * 
      * @param theTableName
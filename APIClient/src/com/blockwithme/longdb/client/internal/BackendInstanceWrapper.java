@@ -29,6 +29,7 @@ import com.blockwithme.longdb.BEDatabase;
 import com.blockwithme.longdb.BETable;
 import com.blockwithme.longdb.BETableProfile;
 import com.blockwithme.longdb.Backend;
+import com.blockwithme.longdb.base.AbstractTable;
 import com.blockwithme.longdb.client.entities.RowFilter;
 import com.blockwithme.longdb.client.io.DataInput;
 import com.blockwithme.longdb.client.io.DataOutput;
@@ -395,6 +396,28 @@ public class BackendInstanceWrapper {
         }
     }
 
+    /** Counts the rows of a table again, and repairs the row count maintained
+     * by the backend, if any.
+     * 
+     * @param theTableName
+     *        the table name
+     * @return Number of rows in a table */
+    public long tableRecount(final String theTableName) throws Exception {
+        Backend be = null;
+        BEDatabase dbInstance = null;
+        try {
+            be = connect();
+            dbInstance = openDB(this.database, be);
+            final BETable table = table(dbInstance, theTableName, true);
+            if (table instanceof AbstractTable)
+                return ((AbstractTable<?, ?, ?>) table).recount();
+            return table.size();
+        } finally {
+            close(dbInstance);
+            close(be);
+        }
+    }
+
     /** Returns Number of rows in a table.
      * 
      * @param theTableName
@@ -16,7 +16,7 @@
 package com.blockwithme.longdb.client.io.db;
 
 import java.io.PrintStream;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -28,8 +28,9 @@ import com.blockwithme.longdb.Range;
 import com.blockwithme.longdb.client.entities.Row;
 import com.blockwithme.longdb.client.entities.RowFilter;
 import com.blockwithme.longdb.client.io.DataInput;
-import com.blockwithme.longdb.entities.LongHolder;
-import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 
 // TODO: Auto-generated Javadoc
 /** Provides DataInput (Row iterator) based on a BETable. Filtered Iterator can
@@ -38,11 +39,80 @@ import com.carrotsearch.hppc.cursors.LongCursor;
 @ParametersAreNonnullByDefault
 public class TableDataInput implements DataInput {
 
+    /** Iterates the rows of a list of keys, in key order. The rows are read
+     * with multiGet(), one page of keys at a time, instead of checking each
+     * key separately. */
+    private final class InListIterator implements
+            Iterator<LongObjectCursor<Columns>> {
+
+        /** The cursor. */
+        private final LongObjectCursor<Columns> cursor = new LongObjectCursor<Columns>();
+
+        /** The sorted keys. */
+        private final long[] keys;
+
+        /** The end of the current page. */
+        private int pageEnd;
+
+        /** The position of the next key. */
+        private int position;
+
+        /** The rows of the current page. */
+        private LongObjectOpenHashMap<Columns> rows;
+
+        /** Instantiates a new in-list iterator.
+         * 
+         * @param theKeys the row keys */
+        InListIterator(final LongArrayList theKeys) {
+            keys = theKeys.toArray();
+            Arrays.sort(keys);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (true) { // $codepro.audit.disable constantConditionalExpression
+                while (position < pageEnd) {
+                    if (rows.containsKey(keys[position])
+                            && (position == 0 || keys[position] != keys[position - 1]))
+                        return true;
+                    position++;
+                }
+                if (pageEnd == keys.length)
+                    return false;
+                pageEnd = Math.min(pageEnd + PAGE_SIZE, keys.length);
+                rows = table.multiGet(
+                        Arrays.copyOfRange(keys, position, pageEnd),
+                        FULL_RANGE);
+            }
+        }
+
+        @Override
+        public LongObjectCursor<Columns> next() {
+            if (!hasNext())
+                throw new NoSuchElementException("No more elements.");
+            cursor.index = position;
+            cursor.key = keys[position++];
+            cursor.value = rows.get(cursor.key);
+            return cursor;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove not supported!");
+        }
+    }
+
+    /** The full range. */
+    private static final Range FULL_RANGE = Range.fullRange();
+
+    /** The number of keys read per multiGet(). */
+    private static final int PAGE_SIZE = 500;
+
     /** The filter. */
     private RowFilter filter;
 
     /** The row iterator. */
-    private Iterator<LongHolder> rowIterator;
+    private Iterator<LongObjectCursor<Columns>> rowIterator;
 
     /** The table. */
     private final BETable table;
@@ -93,118 +163,15 @@ public class TableDataInput implements DataInput {
 
     /* (non-Javadoc)
      * @see java.util.Iterator#hasNext() */
-    @SuppressWarnings("unchecked")
     @Override
     public boolean hasNext() {
-        // TODO This method is MUCH too long. We have to split it.
         if (rowIterator == null) {
-
             if (filter == null)
-                rowIterator = table.keys(); // All keys in the table.
-
-            else if (filter.inList() != null) {
-                /* TODO - remove this workaround when API allows filtering on
-                 * rowIds. The following inner class iterates filter.inList()
-                 * and for each element in list checks if the table has that
-                 * row. */
-                rowIterator = new Iterator<LongHolder>() {
-                    Iterator<LongCursor> itr;
-
-                    LongHolder nextVal;
-                    {
-                        // TODO sort this list first.
-                        // TODO Isn't the next IF always true, since we checked
-                        // it already?
-                        if (filter != null && filter.inList() != null) {
-                            itr = filter.inList().iterator();
-                        } else
-                            itr = Collections.EMPTY_SET.iterator();
-                    }
-
-                    @Override
-                    public boolean hasNext() {
-                        if (nextVal != null)
-                            return true;
-                        while (itr.hasNext()) {
-                            final LongHolder v = new LongHolder();
-                            v.value(itr.next().value);
-                            if (table.exists(v.value())) {
-                                nextVal = v;
-                                return true;
-                            }
-                        }
-                        return false;
-                    }
-
-                    @Override
-                    public LongHolder next() {
-                        if (!hasNext())
-                            throw new NoSuchElementException(
-                                    "No more elements.");
-                        final LongHolder currVal = nextVal;
-                        nextVal = null;
-                        return currVal;
-                    }
-
-                    @Override
-                    public void remove() {
-                        throw new UnsupportedOperationException(
-                                "Remove not supported!");
-                    }
-                };
-            } else
-
-                /* TODO - remove this workaround when API allows filtering on
-                 * rowIds - ranges. The following inner class iterates
-                 * tables.keys() and checks rowId is within range. */
-                rowIterator = new Iterator<LongHolder>() {
-                    boolean endRange;
-
-                    Iterator<LongHolder> itr = table.keys();
-
-                    LongHolder nextVal;
-
-                    Range rng = filter.range();
-
-                    @Override
-                    public boolean hasNext() {
-
-                        if (nextVal != null)
-                            return true;
-
-                        if (endRange)
-                            return false;
-
-                        while (itr.hasNext()) {
-                            final LongHolder v = itr.next();
-                            if (rng.start() <= v.value()
-                                    && rng.end() >= v.value()) {
-                                nextVal = v;
-                                return true;
-                            } else if (v.value() > rng.end()) {
-                                endRange = true;
-                                break;
-                            }
-                        }
-                        return false;
-                    }
-
-                    @Override
-                    public LongHolder next() {
-                        if (!hasNext())
-                            throw new NoSuchElementException(
-                                    "No more elements.");
-                        final LongHolder currVal = nextVal;
-                        nextVal = null;
-                        return currVal;
-                    }
-
-                    @Override
-                    public void remove() {
-                        throw new UnsupportedOperationException(
-                                "Remove not supported!");
-                    }
-                };
+                rowIterator = table.scan(FULL_RANGE, FULL_RANGE);
+            else if (filter.inList() != null)
+                rowIterator = new InListIterator(filter.inList());
+            else
+                rowIterator = table.scan(filter.range(), FULL_RANGE);
         }
         return rowIterator.hasNext();
     }
@@ -215,15 +182,8 @@ public class TableDataInput implements DataInput {
     public Row next() {
         if (!hasNext())
             throw new NoSuchElementException("No more rows available.");
-        final LongHolder ridHldr = rowIterator.next();
-        final Columns cols = table.get(ridHldr.value());
-        if (cols == null) {
-            // This is the case where rowId without columns exists.
-            // this should never happen ideally, but if it happens the row
-            // will be ignored
-            return next();
-        }
-        return new Row(ridHldr.value(), cols);
+        final LongObjectCursor<Columns> row = rowIterator.next();
+        return new Row(row.key, row.value);
     }
 
     /** Method not implemented throws exception. */
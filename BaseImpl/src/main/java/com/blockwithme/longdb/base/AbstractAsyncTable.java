@@ -0,0 +1,453 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.AsyncBETable;
+import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.exception.DBException;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/** Abstract base class of all asynchronous tables. The public methods are
+ * final; they take a permit for each request, so that no more than
+ * maxOutstanding() requests are ever in flight, and release it when the
+ * future of the request is done. The *Internal methods must send the request,
+ * and complete the given future once the response arrives. They are allowed
+ * to throw, in which case the future fails with the exception.
+ *
+ * @param <T> the type of Table. */
+@ParametersAreNonnullByDefault
+public abstract class AbstractAsyncTable<T extends BETable> implements
+        AsyncBETable {
+
+    /** The empty column range. */
+    private static final Range EMPTY_RANGE = new Range(0, -1);
+
+    /** The full column range. */
+    private static final Range FULL_RANGE = Range.fullRange();
+
+    /** How long a request waits for a permit before checking again whether
+     * the table was closed, in milliseconds. */
+    private static final long PERMIT_POLL_MILLIS = 100;
+
+    /** Releases one permit. */
+    private final Runnable release = new Runnable() {
+        @Override
+        public void run() {
+            permits.release();
+        }
+    };
+
+    /** Are we closed?. */
+    private volatile boolean closed;
+
+    /** The maximum number of outstanding requests. */
+    private final int maxOutstanding;
+
+    /** One permit per request that can still be sent. */
+    private final Semaphore permits;
+
+    /** The table. */
+    protected final T table;
+
+    /** Protected Constructor.
+     *
+     * @param theTable the table instance
+     * @param theMaxOutstanding the maximum number of outstanding requests */
+    protected AbstractAsyncTable(final T theTable, final int theMaxOutstanding) {
+        Preconditions.checkNotNull(theTable, "table is null");
+        Preconditions.checkArgument(theMaxOutstanding > 0,
+                "maxOutstanding must be positive");
+        this.table = theTable;
+        this.maxOutstanding = theMaxOutstanding;
+        this.permits = new Semaphore(theMaxOutstanding);
+    }
+
+    /** Creates the future of a new request, waiting for a permit if too many
+     * requests are outstanding. The wait ends with an IllegalStateException
+     * if the table gets closed meanwhile, since close() then keeps all the
+     * permits. */
+    private <V> SettableFuture<V> newFuture() {
+        try {
+            do {
+                if (closed) {
+                    throw new IllegalStateException("Closed!");
+                }
+            } while (!permits.tryAcquire(PERMIT_POLL_MILLIS,
+                    TimeUnit.MILLISECONDS));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException("Interrupted while waiting for a request "
+                    + "to complete", e);
+        }
+        if (closed) {
+            // close() ran while we acquired the permit; it waits for it.
+            permits.release();
+            throw new IllegalStateException("Closed!");
+        }
+        final SettableFuture<V> result = SettableFuture.create();
+        result.addListener(release, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    /** Called once all outstanding requests are done, when the view is
+     * closed. */
+    protected abstract void closeInternal();
+
+    /** The database specific implementation of
+     * {@link AbstractAsyncTable#get(long, LongArrayList)}.
+     *
+     * @param theKey the row key
+     * @param theColumns the list of column ids to be retrieved
+     * @param theResult receives the columns, or null */
+    protected abstract void getInternal(final long theKey,
+            final LongArrayList theColumns,
+            final SettableFuture<Columns> theResult) throws Exception;
+
+    /** The database specific implementation of
+     * {@link AbstractAsyncTable#get(long, Range)}.
+     *
+     * @param theKey the row key
+     * @param theColumns the range of column ids to be retrieved
+     * @param theResult receives the columns, or null */
+    protected abstract void getInternal(final long theKey,
+            final Range theColumns, final SettableFuture<Columns> theResult)
+            throws Exception;
+
+    /** The database specific implementation of
+     * {@link AbstractAsyncTable#multiGet(long[], LongArrayList)}.
+     *
+     * @param theKeys the row keys
+     * @param theColumns the list of column ids to be retrieved
+     * @param theResult receives the columns, mapped by row key */
+    protected abstract void multiGetInternal(final long[] theKeys,
+            final LongArrayList theColumns,
+            final SettableFuture<LongObjectOpenHashMap<Columns>> theResult)
+            throws Exception;
+
+    /** The database specific implementation of
+     * {@link AbstractAsyncTable#multiGet(long[], Range)}.
+     *
+     * @param theKeys the row keys
+     * @param theColumns the range of column ids to be retrieved
+     * @param theResult receives the columns, mapped by row key */
+    protected abstract void multiGetInternal(final long[] theKeys,
+            final Range theColumns,
+            final SettableFuture<LongObjectOpenHashMap<Columns>> theResult)
+            throws Exception;
+
+    /** The database specific implementation of
+     * {@link AbstractAsyncTable#remove(long, LongArrayList)}.
+     *
+     * @param theKey the row key
+     * @param theRemoveCols the list of column ids to be removed
+     * @param theResult completed once the columns are removed */
+    protected abstract void removeInternal(final long theKey,
+            final LongArrayList theRemoveCols,
+            final SettableFuture<Void> theResult) throws Exception;
+
+    /** The database specific implementation of
+     * {@link AbstractAsyncTable#remove(long, Range)}.
+     *
+     * @param theKey the row key
+     * @param theRemoveCols the range of column ids to be removed
+     * @param theResult completed once the columns are removed */
+    protected abstract void removeInternal(final long theKey,
+            final Range theRemoveCols, final SettableFuture<Void> theResult)
+            throws Exception;
+
+    /** The database specific implementation of
+     * {@link AbstractAsyncTable#set(long, Columns, LongArrayList)}.
+     *
+     * @param theKey the row key
+     * @param theInsertUpdateColumns the columns to be inserted or updated
+     * @param theRemoveCols the list of column ids to be removed
+     * @param theResult completed once the row is modified */
+    protected abstract void setInternal(final long theKey,
+            final Columns theInsertUpdateColumns,
+            final LongArrayList theRemoveCols,
+            final SettableFuture<Void> theResult) throws Exception;
+
+    /** The database specific implementation of
+     * {@link AbstractAsyncTable#set(long, Columns, Range)}.
+     *
+     * @param theKey the row key
+     * @param theInsertUpdateColumns the columns to be inserted or updated
+     * @param theRemoveCols the range of column ids to be removed
+     * @param theResult completed once the row is modified */
+    protected abstract void setInternal(final long theKey,
+            final Columns theInsertUpdateColumns, final Range theRemoveCols,
+            final SettableFuture<Void> theResult) throws Exception;
+
+    /** The database specific implementation of
+     * {@link AbstractAsyncTable#setAll(LongObjectOpenHashMap)}.
+     *
+     * @param theRows the columns to be inserted or updated, mapped by row key
+     * @param theResult completed once the rows are modified */
+    protected abstract void setAllInternal(
+            final LongObjectOpenHashMap<Columns> theRows,
+            final SettableFuture<Void> theResult) throws Exception;
+
+    /** The database specific implementation of
+     * {@link AbstractAsyncTable#size()}.
+     *
+     * @param theResult receives the number of rows */
+    protected abstract void sizeInternal(final SettableFuture<Long> theResult)
+            throws Exception;
+
+    /** Closes the view. New requests fail, and so do the requests waiting for
+     * a permit; the outstanding requests are waited for, and then
+     * closeInternal() is called. */
+    @Override
+    public final void close() {
+        if (!closed) {
+            synchronized (this) {
+                if (!closed) {
+                    closed = true;
+                    permits.acquireUninterruptibly(maxOutstanding);
+                    closeInternal();
+                }
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#get(long) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Columns> get(final long theKey) {
+        return get(theKey, FULL_RANGE);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#get(long,
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Columns> get(final long theKey,
+            final LongArrayList theColumns) {
+        final SettableFuture<Columns> result = newFuture();
+        try {
+            getInternal(theKey, theColumns, result);
+        } catch (final Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#get(long,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Columns> get(final long theKey,
+            final Range theColumns) {
+        final SettableFuture<Columns> result = newFuture();
+        try {
+            getInternal(theKey, theColumns, result);
+        } catch (final Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#maxOutstanding() */
+    @Override
+    public final int maxOutstanding() {
+        return maxOutstanding;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#multiGet(long[],
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<LongObjectOpenHashMap<Columns>> multiGet(
+            final long[] theKeys, final LongArrayList theColumns) {
+        if ((theKeys.length == 0) || theColumns.isEmpty())
+            return Futures.immediateFuture(new LongObjectOpenHashMap<Columns>());
+        final SettableFuture<LongObjectOpenHashMap<Columns>> result = newFuture();
+        try {
+            multiGetInternal(theKeys, theColumns, result);
+        } catch (final Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#multiGet(long[],
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<LongObjectOpenHashMap<Columns>> multiGet(
+            final long[] theKeys, final Range theColumns) {
+        if ((theKeys.length == 0) || theColumns.empty())
+            return Futures.immediateFuture(new LongObjectOpenHashMap<Columns>());
+        final SettableFuture<LongObjectOpenHashMap<Columns>> result = newFuture();
+        try {
+            multiGetInternal(theKeys, theColumns, result);
+        } catch (final Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#outstanding() */
+    @Override
+    public final int outstanding() {
+        return closed ? 0 : maxOutstanding - permits.availablePermits();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#remove(long) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Void> remove(final long theKey) {
+        return remove(theKey, FULL_RANGE);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#remove(long,
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Void> remove(final long theKey,
+            final LongArrayList theRemoveCols) {
+        final SettableFuture<Void> result = newFuture();
+        try {
+            removeInternal(theKey, theRemoveCols, result);
+        } catch (final Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#remove(long,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Void> remove(final long theKey,
+            final Range theRemoveCols) {
+        final SettableFuture<Void> result = newFuture();
+        try {
+            removeInternal(theKey, theRemoveCols, result);
+        } catch (final Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#set(long,
+     * com.blockwithme.longdb.Columns) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Void> set(final long theKey,
+            final Columns theInsertUpdateColumns) {
+        return set(theKey, theInsertUpdateColumns, EMPTY_RANGE);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#set(long,
+     * com.blockwithme.longdb.Columns, com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Void> set(final long theKey,
+            final Columns theInsertUpdateColumns,
+            final LongArrayList theRemoveCols) {
+        final SettableFuture<Void> result = newFuture();
+        try {
+            setInternal(theKey, theInsertUpdateColumns, theRemoveCols, result);
+        } catch (final Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#set(long,
+     * com.blockwithme.longdb.Columns, com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Void> set(final long theKey,
+            final Columns theInsertUpdateColumns, final Range theRemoveCols) {
+        final SettableFuture<Void> result = newFuture();
+        try {
+            setInternal(theKey, theInsertUpdateColumns, theRemoveCols, result);
+        } catch (final Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.AsyncBETable#setAll(com.carrotsearch.hppc.
+     * LongObjectOpenHashMap) */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Void> setAll(
+            final LongObjectOpenHashMap<Columns> theRows) {
+        if (theRows.isEmpty())
+            return Futures.immediateFuture(null);
+        final SettableFuture<Void> result = newFuture();
+        try {
+            setAllInternal(theRows, result);
+        } catch (final Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#size() */
+    @Override
+    @Nonnull
+    public final ListenableFuture<Long> size() {
+        final SettableFuture<Long> result = newFuture();
+        try {
+            sizeInternal(result);
+        } catch (final Exception e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.AsyncBETable#table() */
+    @Override
+    @Nonnull
+    public final BETable table() {
+        return table;
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.entities.LongHolder;
+import com.carrotsearch.hppc.LongArrayList;
+import com.google.common.base.Preconditions;
+
+/** Abstract implementation of a column Id iterator. The column Ids of a row
+ * are read one page at a time, without the column values, so that neither
+ * the values nor all the Ids of a wide row are ever loaded, and no cursor,
+ * statement or connection has to be kept open between two calls. Each page
+ * starts after the last column Id of the previous page.
+ *
+ * @param <E>
+ *        the type of Table on which the scanner is implemented. */
+@ParametersAreNonnullByDefault
+public abstract class AbstractColumnScanner<E extends BETable> implements
+        Iterator<LongHolder> {
+
+    /** The default number of column Ids read per page. */
+    public static final int PAGE_SIZE = 500;
+
+    /** The column Ids of the current page. */
+    private final LongArrayList ids = new LongArrayList();
+
+    /** Did we call next? */
+    private boolean first = true;
+
+    /** The LongHolder */
+    private final LongHolder holder = new LongHolder();
+
+    /** The last column Id of the previous pages. */
+    private long last;
+
+    /** Are there more pages?. */
+    private boolean more = true;
+
+    /** Position of the next column Id in the current page. */
+    private int position;
+
+    /** Did we read the first page? */
+    private boolean started;
+
+    /** Did we remove the last column? */
+    private boolean removed;
+
+    /** The row key. */
+    protected final long key;
+
+    /** The table. */
+    protected final E table;
+
+    /** Protected Constructor.
+     *
+     * @param theTable
+     *        the table instance on which the scanner is implemented.
+     * @param theKey
+     *        the row key */
+    protected AbstractColumnScanner(final E theTable, final long theKey) {
+        Preconditions.checkNotNull(theTable, "table is null");
+        this.table = theTable;
+        this.key = theKey;
+    }
+
+    /** Returns the column Ids that come after the last column Id of the
+     * previous pages, in table order.
+     *
+     * @param isFirst
+     *        true, if the first page is being read
+     * @param theLast
+     *        the last column Id of the previous pages
+     * @return the range of column Ids, in ascending order; null if no
+     *         column Id can come after theLast */
+    @CheckForNull
+    protected final Range remaining(final boolean isFirst, final long theLast) {
+        if (isFirst)
+            return Range.fullRange();
+        if (table.reverse())
+            return (theLast == Long.MIN_VALUE) ? null : new Range(
+                    Long.MIN_VALUE, theLast - 1);
+        return (theLast == Long.MAX_VALUE) ? null : new Range(theLast + 1,
+                Long.MAX_VALUE);
+    }
+
+    /** Reads the next page. At most PAGE_SIZE column Ids of the row, that
+     * come after theLast, are added to theIds, in table order. The column
+     * values are not read.
+     *
+     * @param isFirst
+     *        true, if the first page is read; theLast is then meaningless
+     * @param theLast
+     *        the last column Id of the previous pages
+     * @param theIds
+     *        receives the column Ids of the page
+     * @return true, if there may be more pages */
+    protected abstract boolean nextPage(boolean isFirst, long theLast,
+            LongArrayList theIds);
+
+    /** Returns this scanner, unless the row has no column. Reads the first
+     * page.
+     *
+     * @return this scanner, or null if the row is missing */
+    @CheckForNull
+    public Iterator<LongHolder> orNull() {
+        return hasNext() ? this : null;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Iterator#hasNext() */
+    @Override
+    public boolean hasNext() {
+        while (position >= ids.size()) {
+            if (!more)
+                return false;
+            if (!ids.isEmpty())
+                last = ids.get(ids.size() - 1);
+            ids.clear();
+            position = 0;
+            more = nextPage(!started, last, ids) && !ids.isEmpty();
+            started = true;
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Iterator#next() */
+    @Override
+    public LongHolder next() {
+        if (!hasNext())
+            throw new NoSuchElementException("No more columns");
+        holder.value(ids.get(position++));
+        removed = false;
+        first = false;
+        return holder;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Iterator#remove() */
+    @Override
+    public void remove() {
+        if (first) {
+            throw new IllegalStateException("next() was never called");
+        }
+        if (removed) {
+            throw new IllegalStateException("element already removed!");
+        }
+        table.remove(key, holder.value());
+        removed = true;
+    }
+}
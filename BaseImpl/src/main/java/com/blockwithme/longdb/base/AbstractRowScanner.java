@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.entities.LongHolder;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+import com.google.common.base.Preconditions;
+
+/** Abstract implementation of a row scanner. The rows are read one page at a
+ * time, so that no cursor, statement or connection has to be kept open
+ * between two calls. Each page is read in table order (key order, if the
+ * table keeps its rows sorted), starting after the last row of the previous
+ * page.
+ *
+ * @param <E>
+ *        the type of Table on which the scanner is implemented. */
+@ParametersAreNonnullByDefault
+public abstract class AbstractRowScanner<E extends BETable> implements
+        Iterator<LongObjectCursor<Columns>> {
+
+    /** The default number of rows read per page. */
+    public static final int PAGE_SIZE = 500;
+
+    /** Key iterator on top of a row scanner. */
+    private static final class Keys extends AbstractKeyIterator<BETable> {
+
+        /** The scanner. */
+        private final AbstractRowScanner<?> scanner;
+
+        /** Instantiates a new key iterator. */
+        Keys(final AbstractRowScanner<?> theScanner) {
+            super(theScanner.table);
+            this.scanner = theScanner;
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.longdb.base.AbstractKeyIterator#hasNext() */
+        @Override
+        public boolean hasNext() {
+            return scanner.hasNext();
+        }
+
+        /* (non-Javadoc)
+         * @see com.blockwithme.longdb.base.AbstractKeyIterator#nextKey() */
+        @Override
+        protected long nextKey() {
+            return scanner.next().key;
+        }
+    }
+
+    /** The cursor */
+    private final LongObjectCursor<Columns> cursor = new LongObjectCursor<Columns>();
+
+    /** The keys of the current page, in key order. */
+    private final LongArrayList keys = new LongArrayList();
+
+    /** Did we call next? */
+    private boolean first = true;
+
+    /** Are there more pages?. */
+    private boolean more = true;
+
+    /** Position of the next key in the current page. */
+    private int position;
+
+    /** Did we remove the last row? */
+    private boolean removed;
+
+    /** The columns of the current page, mapped by row key. */
+    private final LongObjectOpenHashMap<Columns> rows = new LongObjectOpenHashMap<Columns>();
+
+    /** The selected columns. Null when only the keys are scanned. */
+    @CheckForNull
+    protected final Range columns;
+
+    /** The table. */
+    protected final E table;
+
+    /** Protected Constructor.
+     *
+     * @param theTable
+     *        the table instance on which the scanner is implemented.
+     * @param theColumns
+     *        the range of column Ids; null to scan the keys only */
+    protected AbstractRowScanner(final E theTable,
+            @CheckForNull final Range theColumns) {
+        Preconditions.checkNotNull(theTable, "table is null");
+        this.table = theTable;
+        this.columns = theColumns;
+    }
+
+    /** Moves the start of a range of rows after the last key of a page.
+     *
+     * @param theRows
+     *        the range of rows being scanned
+     * @param theKeys
+     *        the keys of the page, in key order
+     * @return false, if there is no row left in the range */
+    protected static boolean advance(final Range theRows,
+            final LongArrayList theKeys) {
+        if (theKeys.isEmpty())
+            return false;
+        final long last = theKeys.get(theKeys.size() - 1);
+        if (last >= theRows.end())
+            return false;
+        theRows.start(last + 1);
+        return true;
+    }
+
+    /** Reads the next page. The keys of the rows are added in table order to
+     * theKeys and, unless only the keys are scanned, their columns to theRows.
+     * Rows without any selected column can be added to theKeys, but not to
+     * theRows; they are skipped.
+     *
+     * @param theKeys
+     *        receives the keys of the page
+     * @param theRows
+     *        receives the columns of the page, mapped by row key
+     * @return true, if there may be more pages */
+    protected abstract boolean nextPage(LongArrayList theKeys,
+            LongObjectOpenHashMap<Columns> theRows);
+
+    /** Returns a key iterator that reads the keys through this scanner. Only
+     * useful when the scanner was created without columns.
+     *
+     * @return the key iterator */
+    public Iterator<LongHolder> keys() {
+        return new Keys(this);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Iterator#hasNext() */
+    @Override
+    public boolean hasNext() {
+        while (true) {
+            while (position < keys.size()) {
+                if (columns == null || rows.containsKey(keys.get(position)))
+                    return true;
+                position++;
+            }
+            if (!more)
+                return false;
+            keys.clear();
+            rows.clear();
+            position = 0;
+            more = nextPage(keys, rows);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Iterator#next() */
+    @Override
+    public LongObjectCursor<Columns> next() {
+        if (!hasNext())
+            throw new NoSuchElementException("No more rows");
+        cursor.index = position;
+        cursor.key = keys.get(position++);
+        cursor.value = (columns == null) ? null : rows.get(cursor.key);
+        removed = false;
+        first = false;
+        return cursor;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Iterator#remove() */
+    @Override
+    public void remove() {
+        if (first) {
+            throw new IllegalStateException("next() was never called");
+        }
+        if (removed) {
+            throw new IllegalStateException("element already removed!");
+        }
+        table.remove(cursor.key);
+        removed = true;
+    }
+}
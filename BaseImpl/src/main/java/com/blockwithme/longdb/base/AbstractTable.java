@@ -15,24 +15,36 @@
  ******************************************************************************/
 package com.blockwithme.longdb.base;
 
+import java.math.BigInteger;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.ParametersAreNonnullByDefault;
 
+import com.blockwithme.longdb.AsyncBETable;
 import com.blockwithme.longdb.BEDatabase;
 import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.ColumnVisitor;
 import com.blockwithme.longdb.Columns;
 import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.base.TableMetrics.Operation;
 import com.blockwithme.longdb.entities.Base36;
 import com.blockwithme.longdb.entities.LongHolder;
 import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 import com.google.common.base.Preconditions;
 
 /** Abstract base class of all tables. The methods implemented here are final to
  * force the implementation of the abstract methods to consider all possible
- * inputs. Use AbstractKeyIterator to implement the iterator method.
+ * inputs. Use AbstractKeyIterator to implement the iterator method. This class
+ * keeps no shared mutable state between calls; the scratch buffers used to
+ * wrap long[] parameters are confined to the calling thread. Thread-safe
+ * backends should override threadSafe(). Unless switched off, the calls are
+ * recorded in the TableMetrics of the table.
  * 
  * @param <B> the type of Backend.
  * @param <D> the type of Database
@@ -47,11 +59,26 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     /** The full key range. */
     private static final Range FULL_RANGE = Range.fullRange();
 
-    /** Wrapper for long[]. */
-    protected final LongArrayList array = new LongArrayList(1);
+    /** Per-thread wrapper for long[]. */
+    private static final ThreadLocal<LongArrayList> ARRAY = new ThreadLocal<LongArrayList>() {
+        @Override
+        protected LongArrayList initialValue() {
+            return new LongArrayList(1);
+        }
+    };
+
+    /** Per-thread single long. Do not change the size of buffer! */
+    private static final ThreadLocal<LongArrayList> ONE = new ThreadLocal<LongArrayList>() {
+        @Override
+        protected LongArrayList initialValue() {
+            final LongArrayList one = new LongArrayList(1);
+            one.add(0);
+            return one;
+        }
+    };
 
     /** Are we closed?. */
-    protected boolean closed;
+    protected volatile boolean closed;
 
     /** The database. */
     protected final D database;
@@ -59,11 +86,12 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     /** Do we detect collisions?. */
     protected final boolean detectCollisions;
 
-    /** One single long. Do not change the size of buffer! */
-    protected final LongArrayList one = new LongArrayList(1);
+    /** The metrics; null if switched off. */
+    @CheckForNull
+    private final TableMetrics metrics;
 
     /** Are we opened?. */
-    protected boolean opened;
+    protected volatile boolean opened;
 
     /** Reverse column order?. */
     protected final boolean reverse;
@@ -85,7 +113,29 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
         this.table = theTable;
         this.reverse = theReverse;
         this.detectCollisions = theDetectCollisions;
-        one.add(0);
+        this.metrics = TableMetrics.ENABLED ? new TableMetrics(theDatabase
+                .backend().getClass().getSimpleName(),
+                theDatabase.database(), theTable.toString()) : null;
+    }
+
+    /** Returns the start time of a call, for the metrics. */
+    private long start() {
+        return (metrics == null) ? 0 : System.nanoTime();
+    }
+
+    /** The database specific implementation of
+     * {@link AbstractTable#async(int)}. The default implementation runs the
+     * requests on a pool of threads calling this table: one thread per
+     * available processor if the table is thread-safe, otherwise a single
+     * one. Backends with a non-blocking client should override it.
+     * 
+     * @param theMaxOutstanding the maximum number of outstanding requests
+     * @return the asynchronous view */
+    @Nonnull
+    protected AsyncBETable asyncInternal(final int theMaxOutstanding) {
+        final int threads = threadSafe() ? Math.min(theMaxOutstanding, Runtime
+                .getRuntime().availableProcessors()) : 1;
+        return new ExecutorAsyncTable(this, threads, theMaxOutstanding);
     }
 
     /** The database specific implementation of {@link AbstractTable#close()} */
@@ -115,6 +165,17 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     protected abstract Iterator<LongHolder> columnsIteratorInternal(
             final long theKey);
 
+    /** The database specific implementation of
+     * {@link AbstractTable#exists(long)}. The default implementation counts
+     * the columns of the row; backends should override it with a probe that
+     * stops at the first column.
+     * 
+     * @param theKey the row key
+     * @return true, if the row exists */
+    protected boolean existsInternal(final long theKey) {
+        return (columnsCountInternal(theKey) > 0);
+    }
+
     /** The database specific implementation of {@link AbstractTable#get(long)}
      * 
      * @param theKey the row key
@@ -135,15 +196,132 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     protected abstract Columns getInternal(final long theKey,
             final Range theColumns);
 
+    /** The database specific implementation of
+     * {@link AbstractTable#get(long, Range, ColumnVisitor)}. The default
+     * implementation reads the columns with getInternal(), and then visits
+     * them; backends should override it, to visit the values straight from
+     * their cursors.
+     * 
+     * @param theKey the row key
+     * @param theColumns the range of column Ids
+     * @param theVisitor the visitor
+     * @return the number of columns visited */
+    protected int getInternal(final long theKey, final Range theColumns,
+            final ColumnVisitor theVisitor) {
+        final Columns cols = getInternal(theKey, theColumns);
+        if (cols == null)
+            return 0;
+        final int size = cols.size();
+        int count = 0;
+        while (count < size) {
+            final long col = cols.columnAt(count++);
+            final byte[] data = cols.getBytes(col).toArray(false);
+            if (!theVisitor.visit(col, data, 0, data.length))
+                break;
+        }
+        return count;
+    }
+
     /** The database specific implementation of {@link AbstractTable#keys()}
      * 
      * @return the iterator */
     @Nonnull
     protected abstract Iterator<LongHolder> keysInternal();
 
+    /** The database specific implementation of
+     * {@link AbstractTable#keys(Range)}. The default implementation filters
+     * keysInternal(); backends that keep their rows sorted should override it,
+     * to only read the range.
+     * 
+     * @param theRows the range of row keys, not empty
+     * @return the iterator */
+    @Nonnull
+    protected Iterator<LongHolder> keysInternal(final Range theRows) {
+        final Iterator<LongHolder> keys = keysInternal();
+        return new AbstractKeyIterator<BETable>(this) {
+            /** Is the next key already found? */
+            private boolean found;
+
+            /** The next key. */
+            private long next;
+
+            @Override
+            public boolean hasNext() {
+                while (!found && keys.hasNext()) {
+                    next = keys.next().value();
+                    found = theRows.contains(next);
+                }
+                return found;
+            }
+
+            @Override
+            protected long nextKey() {
+                if (!hasNext())
+                    throw new NoSuchElementException("No more values");
+                found = false;
+                return next;
+            }
+        };
+    }
+
+    /** The database specific implementation of
+     * {@link AbstractTable#multiGet(long[], LongArrayList)}. The default
+     * implementation calls getInternal() once per row; backends that can read
+     * many rows in a single query should override it.
+     *
+     * @param theKeys the row keys
+     * @param theColumns the list of column Ids
+     * @return the columns, mapped by row key */
+    @Nonnull
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final LongArrayList theColumns) {
+        final LongObjectOpenHashMap<Columns> result = new LongObjectOpenHashMap<Columns>();
+        for (final long key : theKeys) {
+            final Columns cols = getInternal(key, theColumns);
+            if ((cols != null) && (cols.size() > 0))
+                result.put(key, cols);
+        }
+        return result;
+    }
+
+    /** The database specific implementation of
+     * {@link AbstractTable#multiGet(long[], Range)}. The default
+     * implementation calls getInternal() once per row; backends that can read
+     * many rows in a single query should override it.
+     *
+     * @param theKeys the row keys
+     * @param theColumns the range of column Ids
+     * @return the columns, mapped by row key */
+    @Nonnull
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final Range theColumns) {
+        final LongObjectOpenHashMap<Columns> result = new LongObjectOpenHashMap<Columns>();
+        for (final long key : theKeys) {
+            final Columns cols = getInternal(key, theColumns);
+            if ((cols != null) && (cols.size() > 0))
+                result.put(key, cols);
+        }
+        return result;
+    }
+
     /** * The database specific implementation of {@link AbstractTable#open()} */
     protected abstract void openInternal();
 
+    /** The database specific implementation of {@link AbstractTable#recount()}.
+     * Backends that maintain a row count should store the new count. The
+     * default implementation counts the keys.
+     * 
+     * @return the number of rows in this table */
+    protected long recountInternal() {
+        long count = 0;
+        final Iterator<LongHolder> itr = keysInternal();
+        while (itr.hasNext()) {
+            itr.next();
+            count++;
+        }
+        return count;
+    }
+
     /** The database specific implementation of
      * {@link AbstractTable#remove(long, LongArrayList)}
      * 
@@ -179,20 +357,121 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     protected abstract void setInternal(final long theKey,
             final Columns theInsertUpdateColumns, final Range theRemoveCols);
 
+    /** The database specific implementation of
+     * {@link AbstractTable#setAll(LongObjectOpenHashMap)}. The default
+     * implementation calls setInternal() once per row; backends that can batch
+     * many rows in a single write should override it.
+     * 
+     * @param theRows the columns to be inserted or updated, mapped by row ID */
+    protected void setAllInternal(final LongObjectOpenHashMap<Columns> theRows) {
+        for (final LongObjectCursor<Columns> row : theRows) {
+            setInternal(row.key, row.value, EMPTY_RANGE);
+        }
+    }
+
+    /** The database specific implementation of
+     * {@link AbstractTable#scan(Range, Range)}. The default implementation
+     * reads the keys with keysInternal(Range), one page at a time, and the
+     * columns of each page with multiGetInternal(); backends that can read the
+     * rows and their columns with the same cursor or query should override
+     * it.
+     * 
+     * @param theRows the range of row keys, not empty
+     * @param theColumns the range of column Ids, not empty
+     * @return the iterator */
+    @Nonnull
+    protected Iterator<LongObjectCursor<Columns>> scanInternal(
+            final Range theRows, final Range theColumns) {
+        final Iterator<LongHolder> keys = keysInternal(theRows);
+        return new AbstractRowScanner<BETable>(this, theColumns) {
+            @Override
+            protected boolean nextPage(final LongArrayList theKeys,
+                    final LongObjectOpenHashMap<Columns> theResult) {
+                while (theKeys.size() < PAGE_SIZE && keys.hasNext()) {
+                    theKeys.add(keys.next().value());
+                }
+                if (!theKeys.isEmpty())
+                    theResult.putAll(multiGetInternal(theKeys.toArray(),
+                            theColumns));
+                return keys.hasNext();
+            }
+        };
+    }
+
     /** The database specific implementation of {@link AbstractTable#size()}
      * 
      * @return the approximate number of rows in this table. */
     protected abstract long sizeInternal();
 
+    /** Splits the range from theMin to theMax in theParts ranges of the same
+     * width. The first range is extended down to Long.MIN_VALUE, and the last
+     * one up to Long.MAX_VALUE, so that the ranges cover all possible keys.
+     * 
+     * @param theMin the lowest key to split on
+     * @param theMax the highest key to split on
+     * @param theParts the number of ranges
+     * @return the ranges, in ascending order */
+    protected static Range[] split(final long theMin, final long theMax,
+            final int theParts) {
+        if (theMin >= theMax || theParts < 2)
+            return new Range[] { Range.fullRange() };
+        final BigInteger min = BigInteger.valueOf(theMin);
+        final BigInteger span = BigInteger.valueOf(theMax).subtract(min);
+        final int parts = (span.compareTo(BigInteger.valueOf(theParts)) < 0) ? span
+                .intValue() + 1 : theParts;
+        final Range[] result = new Range[parts];
+        long start = Long.MIN_VALUE;
+        for (int i = 1; i < parts; i++) {
+            final long next = min.add(
+                    span.multiply(BigInteger.valueOf(i)).divide(
+                            BigInteger.valueOf(parts))).longValue() + 1;
+            result[i - 1] = new Range(start, next - 1);
+            start = next;
+        }
+        result[parts - 1] = new Range(start, Long.MAX_VALUE);
+        return result;
+    }
+
+    /** The database specific implementation of
+     * {@link AbstractTable#splitKeys(int)}. The default implementation splits
+     * the whole key space in ranges of the same width, which only gives
+     * ranges of about the same size when the keys are evenly distributed.
+     * Backends that can estimate the distribution of their keys should
+     * override it.
+     * 
+     * @param theParts the wanted number of ranges, at least 2
+     * @return the ranges, in ascending order */
+    @Nonnull
+    protected Range[] splitKeysInternal(final int theParts) {
+        return split(Long.MIN_VALUE, Long.MAX_VALUE, theParts);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#async(int) */
+    @Override
+    @Nonnull
+    public final AsyncBETable async(final int theMaxOutstanding) {
+        Preconditions.checkArgument(theMaxOutstanding > 0,
+                "maxOutstanding must be positive");
+        open();
+        return asyncInternal(theMaxOutstanding);
+    }
+
     /* (non-Javadoc)
      * @see com.blockwithme.longdb.BETable#close() */
     @Override
     public final void close() {
         if (!closed) {
-            closed = true;
-            if (opened) {
-                opened = false;
-                closeInternal();
+            synchronized (this) {
+                if (!closed) {
+                    closed = true;
+                    if (opened) {
+                        opened = false;
+                        if (metrics != null)
+                            metrics.unregister();
+                        closeInternal();
+                    }
+                }
             }
         }
     }
@@ -210,7 +489,11 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     @Override
     public final LongArrayList columns(final long theKey) {
         open();
-        return columnsInternal(theKey);
+        final long start = start();
+        final LongArrayList result = columnsInternal(theKey);
+        if (metrics != null)
+            metrics.call(Operation.COLUMNS, start);
+        return result;
     }
 
     /* (non-Javadoc)
@@ -218,7 +501,11 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     @Override
     public final long columnsCount(final long theKey) {
         open();
-        return columnsCountInternal(theKey);
+        final long start = start();
+        final long result = columnsCountInternal(theKey);
+        if (metrics != null)
+            metrics.call(Operation.COLUMNS, start);
+        return result;
     }
 
     /* (non-Javadoc)
@@ -226,7 +513,11 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     @Override
     public final Iterator<LongHolder> columnsIterator(final long theKey) {
         open();
-        return columnsIteratorInternal(theKey);
+        final long start = start();
+        final Iterator<LongHolder> result = columnsIteratorInternal(theKey);
+        if (metrics != null)
+            metrics.call(Operation.COLUMNS, start);
+        return result;
     }
 
     /* (non-Javadoc)
@@ -246,8 +537,13 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     /* (non-Javadoc)
      * @see com.blockwithme.longdb.BETable#exists(long) */
     @Override
-    public boolean exists(final long theKey) {
-        return (columnsCount(theKey) > 0);
+    public final boolean exists(final long theKey) {
+        open();
+        final long start = start();
+        final boolean result = existsInternal(theKey);
+        if (metrics != null)
+            metrics.call(Operation.EXISTS, start);
+        return result;
     }
 
     /* (non-Javadoc)
@@ -263,6 +559,7 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     @Override
     @CheckForNull
     public final Columns get(final long theKey, final long theCol) {
+        final LongArrayList one = ONE.get();
         one.buffer[0] = theCol;
         return get(theKey, one);
     }
@@ -274,6 +571,7 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     public final Columns get(final long theKey, final long... theColumns) {
         if (theColumns == null)
             return null;
+        final LongArrayList array = ARRAY.get();
         array.elementsCount = theColumns.length;
         array.buffer = theColumns;
         try {
@@ -291,7 +589,11 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     @CheckForNull
     public final Columns get(final long theKey, final LongArrayList theColumns) {
         open();
-        return getInternal(theKey, theColumns);
+        final long start = start();
+        final Columns result = getInternal(theKey, theColumns);
+        if (metrics != null)
+            metrics.read(Operation.GET, start, result);
+        return result;
     }
 
     /* (non-Javadoc)
@@ -301,7 +603,25 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     @CheckForNull
     public final Columns get(final long theKey, final Range theColumns) {
         open();
-        return getInternal(theKey, theColumns);
+        final long start = start();
+        final Columns result = getInternal(theKey, theColumns);
+        if (metrics != null)
+            metrics.read(Operation.GET, start, result);
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long,
+     * com.blockwithme.longdb.Range, com.blockwithme.longdb.ColumnVisitor) */
+    @Override
+    public final int get(final long theKey, final Range theColumns,
+            final ColumnVisitor theVisitor) {
+        open();
+        final long start = start();
+        final int result = getInternal(theKey, theColumns, theVisitor);
+        if (metrics != null)
+            metrics.read(Operation.GET, start, result);
+        return result;
     }
 
     /* (non-Javadoc)
@@ -310,7 +630,70 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     @Nonnull
     public final Iterator<LongHolder> keys() {
         open();
-        return keysInternal();
+        final long start = start();
+        final Iterator<LongHolder> result = keysInternal();
+        if (metrics != null)
+            metrics.call(Operation.KEYS, start);
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#keys(com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public final Iterator<LongHolder> keys(final Range theRows) {
+        if (theRows.empty())
+            return Collections.<LongHolder> emptyIterator();
+        open();
+        final long start = start();
+        final Iterator<LongHolder> result = keysInternal(theRows);
+        if (metrics != null)
+            metrics.call(Operation.KEYS, start);
+        return result;
+    }
+
+    /** Returns the metrics of the table.
+     * 
+     * @return the metrics; null if they are switched off */
+    @CheckForNull
+    public final TableMetrics metrics() {
+        return metrics;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#multiGet(long[],
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @Nonnull
+    public final LongObjectOpenHashMap<Columns> multiGet(final long[] theKeys,
+            final LongArrayList theColumns) {
+        if ((theKeys.length == 0) || theColumns.isEmpty())
+            return new LongObjectOpenHashMap<Columns>();
+        open();
+        final long start = start();
+        final LongObjectOpenHashMap<Columns> result = multiGetInternal(
+                theKeys, theColumns);
+        if (metrics != null)
+            metrics.read(Operation.MULTI_GET, start, result);
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#multiGet(long[],
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public final LongObjectOpenHashMap<Columns> multiGet(final long[] theKeys,
+            final Range theColumns) {
+        if ((theKeys.length == 0) || theColumns.empty())
+            return new LongObjectOpenHashMap<Columns>();
+        open();
+        final long start = start();
+        final LongObjectOpenHashMap<Columns> result = multiGetInternal(
+                theKeys, theColumns);
+        if (metrics != null)
+            metrics.read(Operation.MULTI_GET, start, result);
+        return result;
     }
 
     /** Opens the table. */
@@ -319,11 +702,35 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
             throw new IllegalStateException("Closed!");
         }
         if (!opened) {
-            opened = true;
-            openInternal();
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Closed!");
+                }
+                if (!opened) {
+                    openInternal();
+                    opened = true;
+                    if (metrics != null)
+                        metrics.register();
+                }
+            }
         }
     }
 
+    /** Counts the rows of the table again, by visiting all the keys, and
+     * repairs the row count maintained by the backend, if any, so that
+     * size() returns the exact count again. This is a full table scan, meant
+     * for maintenance only.
+     * 
+     * @return the number of rows in this table */
+    public final long recount() {
+        open();
+        final long start = start();
+        final long result = recountInternal();
+        if (metrics != null)
+            metrics.call(Operation.SIZE, start);
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see com.blockwithme.longdb.BETable#remove(long) */
     @Override
@@ -335,6 +742,7 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
      * @see com.blockwithme.longdb.BETable#remove(long, long[]) */
     @Override
     public final void remove(final long theKey, final long... theRemoveIds) {
+        final LongArrayList array = ARRAY.get();
         array.elementsCount = theRemoveIds.length;
         array.buffer = theRemoveIds;
         try {
@@ -352,7 +760,10 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     public final void remove(final long theKey,
             final LongArrayList theRemoveCols) {
         open();
+        final long start = start();
         removeInternal(theKey, theRemoveCols);
+        if (metrics != null)
+            metrics.write(Operation.REMOVE, start, null, theRemoveCols.size());
     }
 
     /* (non-Javadoc)
@@ -361,7 +772,10 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     @Override
     public final void remove(final long theKey, final Range theRemoveCols) {
         open();
+        final long start = start();
         removeInternal(theKey, theRemoveCols);
+        if (metrics != null)
+            metrics.write(Operation.REMOVE, start, null, 1);
     }
 
     /* (non-Javadoc)
@@ -371,6 +785,24 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
         return reverse;
     }
 
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#scan(com.blockwithme.longdb.Range,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public final Iterator<LongObjectCursor<Columns>> scan(final Range theRows,
+            final Range theColumns) {
+        if (theRows.empty() || theColumns.empty())
+            return Collections.<LongObjectCursor<Columns>> emptyIterator();
+        open();
+        final long start = start();
+        final Iterator<LongObjectCursor<Columns>> result = scanInternal(
+                theRows, theColumns);
+        if (metrics != null)
+            metrics.call(Operation.SCAN, start);
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see com.blockwithme.longdb.BETable#set(long,
      * com.blockwithme.longdb.Columns) */
@@ -386,6 +818,7 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     @Override
     public final void set(final long theKey,
             final Columns theInsertUpdateColumns, final long... theRemoveIds) {
+        final LongArrayList array = ARRAY.get();
         array.elementsCount = theRemoveIds.length;
         array.buffer = theRemoveIds;
         try {
@@ -404,7 +837,11 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
             final Columns theInsertUpdateColumns,
             final LongArrayList theRemoveCols) {
         open();
+        final long start = start();
         setInternal(theKey, theInsertUpdateColumns, theRemoveCols);
+        if (metrics != null)
+            metrics.write(Operation.SET, start, theInsertUpdateColumns,
+                    theRemoveCols.size());
     }
 
     /* (non-Javadoc)
@@ -414,7 +851,26 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     public final void set(final long theKey,
             final Columns theInsertUpdateColumns, final Range theRemoveCols) {
         open();
+        final long start = start();
         setInternal(theKey, theInsertUpdateColumns, theRemoveCols);
+        if (metrics != null)
+            metrics.write(Operation.SET, start, theInsertUpdateColumns,
+                    theRemoveCols.empty() ? 0 : 1);
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.BETable#setAll(com.carrotsearch.hppc.
+     * LongObjectOpenHashMap) */
+    @Override
+    public final void setAll(final LongObjectOpenHashMap<Columns> theRows) {
+        if (theRows.isEmpty())
+            return;
+        open();
+        final long start = start();
+        setAllInternal(theRows);
+        if (metrics != null)
+            metrics.write(Operation.SET_ALL, start, theRows);
     }
 
     /* (non-Javadoc)
@@ -422,7 +878,23 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     @Override
     public final long size() {
         open();
-        return sizeInternal();
+        final long start = start();
+        final long result = sizeInternal();
+        if (metrics != null)
+            metrics.call(Operation.SIZE, start);
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#splitKeys(int) */
+    @Override
+    @Nonnull
+    public final Range[] splitKeys(final int theParts) {
+        Preconditions.checkArgument(theParts > 0, "parts must be positive");
+        open();
+        if (theParts == 1)
+            return new Range[] { Range.fullRange() };
+        return splitKeysInternal(theParts);
     }
 
     /* (non-Javadoc)
@@ -432,4 +904,12 @@ public abstract class AbstractTable<B extends AbstractBackend<B, D, T>, D extend
     public final Base36 table() {
         return table;
     }
+
+    /* (non-Javadoc) Assumes that the backend is not thread-safe unless
+     * specified otherwise. *
+     * @see com.blockwithme.longdb.BETable#threadSafe() */
+    @Override
+    public boolean threadSafe() {
+        return false;
+    }
 }
@@ -0,0 +1,572 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.blockwithme.longdb.AsyncBETable;
+import com.blockwithme.longdb.BEDatabase;
+import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.BETableProfile;
+import com.blockwithme.longdb.ColumnVisitor;
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.entities.Base36;
+import com.blockwithme.longdb.entities.LongHolder;
+import com.blockwithme.longdb.exception.DBException;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+import com.google.common.base.Preconditions;
+
+/** A Bloom filter of the row keys in front of another table. Reads of rows
+ * that certainly do not exist are answered without calling the table, which
+ * makes lookups of mostly absent keys cheap.
+ *
+ * The keys are added to the filter before being written to the table, and
+ * again after, for a rebuild that may have started meanwhile. Keys
+ * cannot be removed from a Bloom filter, so removed rows stay in it, and only
+ * cost a table lookup; rebuild() drops them. Modifications made to the table
+ * without going through this instance are NOT seen, and rows created that way
+ * would be reported as missing: all the writers of the table must use the same
+ * instance.
+ *
+ * The filter can be persisted in a file. It is saved by close() and save(),
+ * and loaded when this table is created; the file is deleted once loaded, so
+ * that a filter is never trusted after a crash, but rebuilt by scanning the
+ * keys of the table. This table is thread-safe if the filtered table is. */
+@ParametersAreNonnullByDefault
+public class BloomFilterBETable implements BETable {
+
+    /** The default false positive rate. */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    /** Logger for this class */
+    private static final Logger LOG = LoggerFactory
+            .getLogger(BloomFilterBETable.class);
+
+    /** The minimum number of rows the filter is sized for. */
+    private static final long MIN_EXPECTED_ROWS = 1024;
+
+    /** The expected number of rows; 0 to size the filter from the table. */
+    private final long expectedRows;
+
+    /** The false positive rate. */
+    private final double falsePositiveRate;
+
+    /** The file where the filter is persisted; null if it is not. */
+    @CheckForNull
+    private final File file;
+
+    /** The filter. */
+    private volatile LongBloomFilter filter;
+
+    /** The filter being rebuilt, if any. */
+    @CheckForNull
+    private volatile LongBloomFilter rebuilt;
+
+    /** The number of lookups answered by the filter. */
+    private final AtomicLong skipped = new AtomicLong();
+
+    /** The filtered table. */
+    private final BETable table;
+
+    /** Instantiates a new Bloom filter table, sized from the expected number
+     * of rows of a table profile.
+     *
+     * @param theTable the filtered table
+     * @param theProfile the profile of the table
+     * @param theFile the file where the filter is persisted; null if it is
+     *        not */
+    public BloomFilterBETable(final BETable theTable,
+            final BETableProfile theProfile, @Nullable final File theFile) {
+        this(theTable, Math.max(0, theProfile.expectedNumberOfRows()),
+                DEFAULT_FALSE_POSITIVE_RATE, theFile);
+    }
+
+    /** Instantiates a new Bloom filter table. The filter is loaded from the
+     * file if it exists, and otherwise built from the keys of the table.
+     *
+     * @param theTable the filtered table
+     * @param theExpectedRows the expected number of rows; 0 to use twice the
+     *        current size of the table
+     * @param theFalsePositiveRate the false positive rate, when the table
+     *        holds the expected number of rows
+     * @param theFile the file where the filter is persisted; null if it is
+     *        not */
+    public BloomFilterBETable(final BETable theTable,
+            final long theExpectedRows, final double theFalsePositiveRate,
+            @Nullable final File theFile) {
+        Preconditions.checkNotNull(theTable, "table is null");
+        Preconditions.checkArgument(theExpectedRows >= 0,
+                "expectedRows must not be negative");
+        Preconditions.checkArgument(theFalsePositiveRate > 0
+                && theFalsePositiveRate < 1,
+                "falsePositiveRate must be between 0 and 1");
+        this.table = theTable;
+        this.expectedRows = theExpectedRows;
+        this.falsePositiveRate = theFalsePositiveRate;
+        this.file = theFile;
+        final LongBloomFilter loaded = load();
+        if (loaded == null)
+            rebuild();
+        else
+            filter = loaded;
+    }
+
+    /** Records a row key. Called before the row is written, so that the
+     * filter never misses a row that readers can see, and again after, since
+     * a rebuild that started meanwhile may have scanned the keys before the
+     * row was written, and would then miss it. */
+    private void added(final long theKey) {
+        filter.put(theKey);
+        final LongBloomFilter building = rebuilt;
+        if (building != null)
+            building.put(theKey);
+    }
+
+    /** Loads the filter from the file, and deletes the file. Returns null if
+     * there is no file, or if it cannot be read. */
+    @CheckForNull
+    private LongBloomFilter load() {
+        if (file == null || !file.isFile())
+            return null;
+        LongBloomFilter result = null;
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                result = LongBloomFilter.readFrom(in);
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            LOG.warn("Could not load the Bloom filter " + file
+                    + "; rebuilding it", e);
+        }
+        if (!file.delete()) {
+            LOG.warn("Could not delete the Bloom filter " + file
+                    + "; rebuilding it");
+            return null;
+        }
+        return result;
+    }
+
+    /** Is the row possibly in the table? Counts the lookups answered by the
+     * filter. */
+    private boolean mightExist(final long theKey) {
+        if (filter.mightContain(theKey))
+            return true;
+        skipped.incrementAndGet();
+        return false;
+    }
+
+    /** Returns the keys of multiGet() that might exist. */
+    private long[] mightExist(final long[] theKeys) {
+        final LongArrayList result = new LongArrayList(theKeys.length);
+        for (final long key : theKeys) {
+            if (mightExist(key))
+                result.add(key);
+        }
+        return result.toArray();
+    }
+
+    /** Rebuilds the filter from the keys of the table. Removed rows are
+     * dropped from the filter, and it is sized again if no expected number of
+     * rows was given. The old filter is used until the new one is complete. */
+    public synchronized void rebuild() {
+        final long rows = (expectedRows > 0) ? expectedRows : Math.max(
+                MIN_EXPECTED_ROWS, 2 * table.size());
+        final LongBloomFilter result = new LongBloomFilter(rows,
+                falsePositiveRate);
+        rebuilt = result;
+        try {
+            final Iterator<LongHolder> keys = table.keys();
+            while (keys.hasNext()) {
+                result.put(keys.next().value());
+            }
+            filter = result;
+        } finally {
+            rebuilt = null;
+        }
+    }
+
+    /** Saves the filter in its file, if it has one. The file is written
+     * under a temporary name first, so a failed save leaves no partial
+     * filter behind. */
+    public synchronized void save() {
+        if (file == null)
+            return;
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                filter.writeTo(out);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            LOG.error("Exception Occurred in - save() of " + file, e);
+            throw new DBException("Error saving the Bloom filter: " + file, e);
+        }
+    }
+
+    /** Returns the number of lookups answered by the filter, without
+     * calling the table.
+     *
+     * @return the number of lookups */
+    public long skipped() {
+        return skipped.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#async(int) */
+    @Override
+    @Nonnull
+    public AsyncBETable async(final int theMaxOutstanding) {
+        final int threads = threadSafe() ? Math.min(theMaxOutstanding, Runtime
+                .getRuntime().availableProcessors()) : 1;
+        return new ExecutorAsyncTable(this, threads, theMaxOutstanding);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#close() */
+    @Override
+    public void close() {
+        try {
+            save();
+        } finally {
+            table.close();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columnOrdering() */
+    @Override
+    public boolean columnOrdering() {
+        return table.columnOrdering();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columns(long) */
+    @Override
+    @CheckForNull
+    public LongArrayList columns(final long theKey) {
+        return mightExist(theKey) ? table.columns(theKey) : null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columnsCount(long) */
+    @Override
+    public long columnsCount(final long theKey) {
+        return mightExist(theKey) ? table.columnsCount(theKey) : 0;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columnsIterator(long) */
+    @Override
+    @CheckForNull
+    public Iterator<LongHolder> columnsIterator(final long theKey) {
+        return mightExist(theKey) ? table.columnsIterator(theKey) : null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#database() */
+    @Override
+    public BEDatabase database() {
+        return table.database();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#detectCollisions() */
+    @Override
+    public boolean detectCollisions() {
+        return table.detectCollisions();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#exists(long) */
+    @Override
+    public boolean exists(final long theKey) {
+        return mightExist(theKey) && table.exists(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey) {
+        return mightExist(theKey) ? table.get(theKey) : null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long, long) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey, final long theColumn) {
+        return mightExist(theKey) ? table.get(theKey, theColumn) : null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long, long[]) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey, final long... theColumns) {
+        return mightExist(theKey) ? table.get(theKey, theColumns) : null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long,
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey, final LongArrayList theColumns) {
+        return mightExist(theKey) ? table.get(theKey, theColumns) : null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey, final Range theColumns) {
+        return mightExist(theKey) ? table.get(theKey, theColumns) : null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long,
+     * com.blockwithme.longdb.Range, com.blockwithme.longdb.ColumnVisitor) */
+    @Override
+    public int get(final long theKey, final Range theColumns,
+            final ColumnVisitor theVisitor) {
+        return mightExist(theKey) ? table.get(theKey, theColumns, theVisitor)
+                : 0;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#getLimited(long, int) */
+    @Override
+    @CheckForNull
+    public Columns getLimited(final long theKey, final int theCount) {
+        return mightExist(theKey) ? table.getLimited(theKey, theCount) : null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#keys() */
+    @Override
+    @Nonnull
+    public Iterator<LongHolder> keys() {
+        return table.keys();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#keys(com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public Iterator<LongHolder> keys(final Range theRows) {
+        return table.keys(theRows);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#multiGet(long[],
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @Nonnull
+    public LongObjectOpenHashMap<Columns> multiGet(final long[] theKeys,
+            final LongArrayList theColumns) {
+        return table.multiGet(mightExist(theKeys), theColumns);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#multiGet(long[],
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public LongObjectOpenHashMap<Columns> multiGet(final long[] theKeys,
+            final Range theColumns) {
+        return table.multiGet(mightExist(theKeys), theColumns);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long) */
+    @Override
+    public void remove(final long theKey) {
+        table.remove(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long, long[]) */
+    @Override
+    public void remove(final long theKey, final long... theRemoveIds) {
+        table.remove(theKey, theRemoveIds);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long,
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    public void remove(final long theKey, final LongArrayList theRemoveIds) {
+        table.remove(theKey, theRemoveIds);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    public void remove(final long theKey, final Range theRemoveIdRange) {
+        table.remove(theKey, theRemoveIdRange);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#reverse() */
+    @Override
+    public boolean reverse() {
+        return table.reverse();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#reverseSupported() */
+    @Override
+    public boolean reverseSupported() {
+        return table.reverseSupported();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#scan(com.blockwithme.longdb.Range,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public Iterator<LongObjectCursor<Columns>> scan(final Range theRows,
+            final Range theColumns) {
+        return table.scan(theRows, theColumns);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns) */
+    @Override
+    public void set(final long theKey, final Columns theInsertOrUpdate) {
+        added(theKey);
+        table.set(theKey, theInsertOrUpdate);
+        added(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns, long[]) */
+    @Override
+    public void set(final long theKey, final Columns theInsertOrUpdate,
+            final long... theRemoveIds) {
+        added(theKey);
+        table.set(theKey, theInsertOrUpdate, theRemoveIds);
+        added(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns, com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    public void set(final long theKey, final Columns theInsertOrUpdate,
+            final LongArrayList theRemoveIds) {
+        added(theKey);
+        table.set(theKey, theInsertOrUpdate, theRemoveIds);
+        added(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns, com.blockwithme.longdb.Range) */
+    @Override
+    public void set(final long theKey, final Columns theInsertOrUpdate,
+            final Range theRemoveRange) {
+        added(theKey);
+        table.set(theKey, theInsertOrUpdate, theRemoveRange);
+        added(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.BETable#setAll(com.carrotsearch.hppc.
+     * LongObjectOpenHashMap) */
+    @Override
+    public void setAll(final LongObjectOpenHashMap<Columns> theRows) {
+        for (final LongObjectCursor<Columns> cursor : theRows) {
+            added(cursor.key);
+        }
+        table.setAll(theRows);
+        for (final LongObjectCursor<Columns> cursor : theRows) {
+            added(cursor.key);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#size() */
+    @Override
+    public long size() {
+        return table.size();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#splitKeys(int) */
+    @Override
+    @Nonnull
+    public Range[] splitKeys(final int theParts) {
+        return table.splitKeys(theParts);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#table() */
+    @Override
+    public Base36 table() {
+        return table.table();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#threadSafe() */
+    @Override
+    public boolean threadSafe() {
+        return table.threadSafe();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString() */
+    @Override
+    public String toString() {
+        return "BloomFilterBETable(" + table + ")";
+    }
+}
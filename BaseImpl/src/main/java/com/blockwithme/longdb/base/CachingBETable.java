@@ -0,0 +1,629 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.util.Iterator;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.AsyncBETable;
+import com.blockwithme.longdb.BEDatabase;
+import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.BETableProfile.Eviction;
+import com.blockwithme.longdb.ColumnVisitor;
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.entities.Base36;
+import com.blockwithme.longdb.entities.Bytes;
+import com.blockwithme.longdb.entities.LongHolder;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+
+/** A read-through row cache in front of another table. Rows are cached whole.
+ * Reading a whole row, with get(long), loads it into the cache; reading some
+ * columns of a row is answered from the cache when the row is there, and
+ * otherwise goes to the table without loading the row, since reading a wide
+ * row could cost much more than the requested columns. Missing rows are
+ * cached too, so repeated lookups of absent keys are cheap.
+ *
+ * Every modification is first applied to the table, and then invalidates the
+ * row, including removals through the iterators. Modifications made to the
+ * table without going through this instance are NOT seen until the row is
+ * evicted; all the writers of a cached table must use the same instance.
+ *
+ * The returned Columns are copies, which the caller may keep and modify. This
+ * table is thread-safe if the cached table is. */
+@ParametersAreNonnullByDefault
+public class CachingBETable implements BETable {
+
+    /** Invalidates a row when an element is removed through an iterator.
+     *
+     * @param <E> the type of the elements */
+    private abstract class InvalidatingIterator<E> implements Iterator<E> {
+
+        /** The iterator of the table. */
+        private final Iterator<E> iter;
+
+        /** The last element returned. */
+        private E last;
+
+        /** Instantiates a new invalidating iterator. */
+        InvalidatingIterator(final Iterator<E> theIterator) {
+            this.iter = theIterator;
+        }
+
+        /** Returns the key of the row of an element. */
+        protected abstract long key(E theElement);
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#hasNext() */
+        @Override
+        public boolean hasNext() {
+            return iter.hasNext();
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#next() */
+        @Override
+        public E next() {
+            last = iter.next();
+            return last;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#remove() */
+        @Override
+        public void remove() {
+            iter.remove();
+            cache.invalidate(key(last));
+        }
+    }
+
+    /** The cache. */
+    private final RowCache cache;
+
+    /** The database. */
+    private final BEDatabase database;
+
+    /** The cached table. */
+    private final BETable table;
+
+    /** Instantiates a new caching table.
+     *
+     * @param theTable the cached table
+     * @param theCacheSize the maximum number of bytes cached
+     * @param theEviction the eviction policy */
+    public CachingBETable(final BETable theTable, final long theCacheSize,
+            final Eviction theEviction) {
+        this(theTable.database(), theTable, theCacheSize, theEviction);
+    }
+
+    /** Instantiates a new caching table.
+     *
+     * @param theDatabase the database returned by database()
+     * @param theTable the cached table
+     * @param theCacheSize the maximum number of bytes cached
+     * @param theEviction the eviction policy */
+    public CachingBETable(final BEDatabase theDatabase, final BETable theTable,
+            final long theCacheSize, final Eviction theEviction) {
+        Preconditions.checkNotNull(theDatabase, "database is null");
+        Preconditions.checkNotNull(theTable, "table is null");
+        this.database = theDatabase;
+        this.table = theTable;
+        this.cache = new RowCache(theCacheSize, theEviction);
+    }
+
+    /** Returns a copy of a cached row, filtered by a list of columns. */
+    @CheckForNull
+    private Columns select(@Nullable final Columns theRow,
+            final LongArrayList theColumns) {
+        if (theRow == null)
+            return null;
+        final Columns result = new Columns(table.reverse(), theColumns.size());
+        for (final LongCursor cursor : theColumns) {
+            final Bytes value = theRow.getBytes(cursor.value);
+            if (value != null)
+                result.putBytes(cursor.value, value);
+        }
+        return (result.size() == 0) ? null : result;
+    }
+
+    /** Returns a copy of a cached row, filtered by a range of columns. */
+    @CheckForNull
+    private Columns select(@Nullable final Columns theRow,
+            final Range theColumns) {
+        if (theRow == null)
+            return null;
+        final Columns result = new Columns(table.reverse());
+        final int size = theRow.size();
+        for (int i = 0; i < size; i++) {
+            final long col = theRow.columnAt(i);
+            if (theColumns.contains(col))
+                result.putBytes(col, theRow.getBytes(col));
+        }
+        return (result.size() == 0) ? null : result;
+    }
+
+    /** Returns the rows of multiGet() that are cached, and collects the keys of
+     * the others. */
+    private LongObjectOpenHashMap<RowCache.Entry> cached(final long[] theKeys,
+            final LongArrayList theMissing) {
+        final LongObjectOpenHashMap<RowCache.Entry> result = new LongObjectOpenHashMap<RowCache.Entry>();
+        for (final long key : theKeys) {
+            final RowCache.Entry entry = cache.get(key);
+            if (entry == null)
+                theMissing.add(key);
+            else
+                result.put(key, entry);
+        }
+        return result;
+    }
+
+    /** Removes all the rows from the cache. */
+    public void clear() {
+        cache.clear();
+    }
+
+    /** Returns the number of rows currently cached.
+     *
+     * @return the number of rows */
+    public int cachedRows() {
+        return cache.size();
+    }
+
+    /** Returns the number of bytes currently cached.
+     *
+     * @return the weight of the cache */
+    public long cacheWeight() {
+        return cache.weight();
+    }
+
+    /** Returns the hit, miss, load and eviction counts of the cache.
+     *
+     * @return the statistics */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#async(int) */
+    @Override
+    @Nonnull
+    public AsyncBETable async(final int theMaxOutstanding) {
+        final int threads = threadSafe() ? Math.min(theMaxOutstanding, Runtime
+                .getRuntime().availableProcessors()) : 1;
+        return new ExecutorAsyncTable(this, threads, theMaxOutstanding);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#close() */
+    @Override
+    public void close() {
+        cache.clear();
+        table.close();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columnOrdering() */
+    @Override
+    public boolean columnOrdering() {
+        return table.columnOrdering();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columns(long) */
+    @Override
+    @CheckForNull
+    public LongArrayList columns(final long theKey) {
+        final RowCache.Entry entry = cache.get(theKey);
+        if (entry == null)
+            return table.columns(theKey);
+        if (entry.row == null)
+            return null;
+        final int size = entry.row.size();
+        final LongArrayList result = new LongArrayList(size);
+        for (int i = 0; i < size; i++) {
+            result.add(entry.row.columnAt(i));
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columnsCount(long) */
+    @Override
+    public long columnsCount(final long theKey) {
+        final RowCache.Entry entry = cache.get(theKey);
+        if (entry == null)
+            return table.columnsCount(theKey);
+        return (entry.row == null) ? 0 : entry.row.size();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columnsIterator(long) */
+    @Override
+    @CheckForNull
+    public Iterator<LongHolder> columnsIterator(final long theKey) {
+        final Iterator<LongHolder> iter = table.columnsIterator(theKey);
+        if (iter == null)
+            return null;
+        return new InvalidatingIterator<LongHolder>(iter) {
+            @Override
+            protected long key(final LongHolder theElement) {
+                return theKey;
+            }
+        };
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#database() */
+    @Override
+    public BEDatabase database() {
+        return database;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#detectCollisions() */
+    @Override
+    public boolean detectCollisions() {
+        return table.detectCollisions();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#exists(long) */
+    @Override
+    public boolean exists(final long theKey) {
+        final RowCache.Entry entry = cache.get(theKey);
+        if (entry == null)
+            return table.exists(theKey);
+        return entry.row != null;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey) {
+        final RowCache.Entry entry = cache.get(theKey);
+        if (entry != null)
+            return (entry.row == null) ? null : entry.row.copy();
+        final long stamp = cache.stamp(theKey);
+        final Columns result = table.get(theKey);
+        cache.put(theKey, (result == null) ? null : result.copy(), stamp);
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long, long) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey, final long theColumn) {
+        final RowCache.Entry entry = cache.get(theKey);
+        if (entry == null)
+            return table.get(theKey, theColumn);
+        final Bytes value = (entry.row == null) ? null : entry.row
+                .getBytes(theColumn);
+        if (value == null)
+            return null;
+        final Columns result = new Columns(table.reverse(), 1);
+        result.putBytes(theColumn, value);
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long, long[]) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey, final long... theColumns) {
+        final RowCache.Entry entry = cache.get(theKey);
+        if (entry == null)
+            return table.get(theKey, theColumns);
+        return select(entry.row, LongArrayList.from(theColumns));
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long,
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey, final LongArrayList theColumns) {
+        final RowCache.Entry entry = cache.get(theKey);
+        if (entry == null)
+            return table.get(theKey, theColumns);
+        return select(entry.row, theColumns);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey, final Range theColumns) {
+        if (theColumns.equals(Range.fullRange()))
+            return get(theKey);
+        final RowCache.Entry entry = cache.get(theKey);
+        if (entry == null)
+            return table.get(theKey, theColumns);
+        return select(entry.row, theColumns);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long,
+     * com.blockwithme.longdb.Range, com.blockwithme.longdb.ColumnVisitor) */
+    @Override
+    public int get(final long theKey, final Range theColumns,
+            final ColumnVisitor theVisitor) {
+        final RowCache.Entry entry = cache.get(theKey);
+        if (entry == null)
+            return table.get(theKey, theColumns, theVisitor);
+        if (entry.row == null)
+            return 0;
+        final int size = entry.row.size();
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            final long col = entry.row.columnAt(i);
+            if (theColumns.contains(col)) {
+                count++;
+                final byte[] data = entry.row.getBytes(col).toArray(false);
+                if (!theVisitor.visit(col, data, 0, data.length))
+                    break;
+            }
+        }
+        return count;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#getLimited(long, int) */
+    @Override
+    @CheckForNull
+    public Columns getLimited(final long theKey, final int theCount) {
+        final RowCache.Entry entry = cache.get(theKey);
+        if (entry == null)
+            return table.getLimited(theKey, theCount);
+        if (entry.row == null || theCount <= 0)
+            return null;
+        final int count = Math.min(theCount, entry.row.size());
+        final Columns result = new Columns(table.reverse(), count);
+        for (int i = 0; i < count; i++) {
+            final long col = entry.row.columnAt(i);
+            result.putBytes(col, entry.row.getBytes(col));
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#keys() */
+    @Override
+    @Nonnull
+    public Iterator<LongHolder> keys() {
+        return new InvalidatingIterator<LongHolder>(table.keys()) {
+            @Override
+            protected long key(final LongHolder theElement) {
+                return theElement.value();
+            }
+        };
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#keys(com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public Iterator<LongHolder> keys(final Range theRows) {
+        return new InvalidatingIterator<LongHolder>(table.keys(theRows)) {
+            @Override
+            protected long key(final LongHolder theElement) {
+                return theElement.value();
+            }
+        };
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#multiGet(long[],
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @Nonnull
+    public LongObjectOpenHashMap<Columns> multiGet(final long[] theKeys,
+            final LongArrayList theColumns) {
+        final LongArrayList missing = new LongArrayList();
+        final LongObjectOpenHashMap<RowCache.Entry> cached = cached(theKeys,
+                missing);
+        final LongObjectOpenHashMap<Columns> result = missing.isEmpty() ? new LongObjectOpenHashMap<Columns>()
+                : table.multiGet(missing.toArray(), theColumns);
+        for (final LongObjectCursor<RowCache.Entry> cursor : cached) {
+            final Columns row = select(cursor.value.row, theColumns);
+            if (row != null)
+                result.put(cursor.key, row);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#multiGet(long[],
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public LongObjectOpenHashMap<Columns> multiGet(final long[] theKeys,
+            final Range theColumns) {
+        final LongArrayList missing = new LongArrayList();
+        final LongObjectOpenHashMap<RowCache.Entry> cached = cached(theKeys,
+                missing);
+        final LongObjectOpenHashMap<Columns> result = missing.isEmpty() ? new LongObjectOpenHashMap<Columns>()
+                : table.multiGet(missing.toArray(), theColumns);
+        for (final LongObjectCursor<RowCache.Entry> cursor : cached) {
+            final Columns row = select(cursor.value.row, theColumns);
+            if (row != null)
+                result.put(cursor.key, row);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long) */
+    @Override
+    public void remove(final long theKey) {
+        table.remove(theKey);
+        cache.invalidate(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long, long[]) */
+    @Override
+    public void remove(final long theKey, final long... theRemoveIds) {
+        table.remove(theKey, theRemoveIds);
+        cache.invalidate(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long,
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    public void remove(final long theKey, final LongArrayList theRemoveIds) {
+        table.remove(theKey, theRemoveIds);
+        cache.invalidate(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    public void remove(final long theKey, final Range theRemoveIdRange) {
+        table.remove(theKey, theRemoveIdRange);
+        cache.invalidate(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#reverse() */
+    @Override
+    public boolean reverse() {
+        return table.reverse();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#reverseSupported() */
+    @Override
+    public boolean reverseSupported() {
+        return table.reverseSupported();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#scan(com.blockwithme.longdb.Range,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public Iterator<LongObjectCursor<Columns>> scan(final Range theRows,
+            final Range theColumns) {
+        return new InvalidatingIterator<LongObjectCursor<Columns>>(table.scan(
+                theRows, theColumns)) {
+            @Override
+            protected long key(final LongObjectCursor<Columns> theElement) {
+                return theElement.key;
+            }
+        };
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns) */
+    @Override
+    public void set(final long theKey, final Columns theInsertOrUpdate) {
+        table.set(theKey, theInsertOrUpdate);
+        cache.invalidate(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns, long[]) */
+    @Override
+    public void set(final long theKey, final Columns theInsertOrUpdate,
+            final long... theRemoveIds) {
+        table.set(theKey, theInsertOrUpdate, theRemoveIds);
+        cache.invalidate(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns, com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    public void set(final long theKey, final Columns theInsertOrUpdate,
+            final LongArrayList theRemoveIds) {
+        table.set(theKey, theInsertOrUpdate, theRemoveIds);
+        cache.invalidate(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns, com.blockwithme.longdb.Range) */
+    @Override
+    public void set(final long theKey, final Columns theInsertOrUpdate,
+            final Range theRemoveRange) {
+        table.set(theKey, theInsertOrUpdate, theRemoveRange);
+        cache.invalidate(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.BETable#setAll(com.carrotsearch.hppc.
+     * LongObjectOpenHashMap) */
+    @Override
+    public void setAll(final LongObjectOpenHashMap<Columns> theRows) {
+        table.setAll(theRows);
+        for (final LongObjectCursor<Columns> cursor : theRows) {
+            cache.invalidate(cursor.key);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#size() */
+    @Override
+    public long size() {
+        return table.size();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#splitKeys(int) */
+    @Override
+    @Nonnull
+    public Range[] splitKeys(final int theParts) {
+        return table.splitKeys(theParts);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#table() */
+    @Override
+    public Base36 table() {
+        return table.table();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#threadSafe() */
+    @Override
+    public boolean threadSafe() {
+        return table.threadSafe();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString() */
+    @Override
+    public String toString() {
+        return "CachingBETable(" + table + ")";
+    }
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.BEDatabase;
+import com.blockwithme.longdb.BETableProfile;
+import com.blockwithme.longdb.Backend;
+import com.google.common.base.Preconditions;
+
+/** A backend that puts a row cache in front of the tables of another backend.
+ * The cache of each table is configured by the BETableProfile used to create
+ * it; tables that are opened without being created in this session use the
+ * default profile given here. A default profile without cache size only
+ * caches the tables created with one. The same CachingDatabase is returned
+ * for a database every time; the methods that look up or change them are
+ * synchronized.
+ *
+ * @see CachingBETable */
+@ParametersAreNonnullByDefault
+public class CachingBackend implements Backend {
+
+    /** The wrapped backend. */
+    private final Backend backend;
+
+    /** The databases returned so far. */
+    private final Map<String, CachingDatabase> databases = new HashMap<String, CachingDatabase>();
+
+    /** The profile of the tables that are only opened. */
+    private final BETableProfile defaultProfile;
+
+    /** Instantiates a new caching backend.
+     *
+     * @param theBackend the wrapped backend
+     * @param theDefaultProfile the profile of the tables that are opened
+     *        without being created first */
+    public CachingBackend(final Backend theBackend,
+            final BETableProfile theDefaultProfile) {
+        Preconditions.checkNotNull(theBackend, "backend is null");
+        Preconditions.checkNotNull(theDefaultProfile, "defaultProfile is null");
+        this.backend = theBackend;
+        this.defaultProfile = theDefaultProfile;
+    }
+
+    /** Wraps a database of the wrapped backend. */
+    @CheckForNull
+    private synchronized BEDatabase wrap(
+            @CheckForNull final BEDatabase theDatabase) {
+        if (theDatabase == null)
+            return null;
+        final String name = theDatabase.database();
+        CachingDatabase result = databases.get(name);
+        if (result == null) {
+            result = new CachingDatabase(this, theDatabase);
+            databases.put(name, result);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.Backend#closed() */
+    @Override
+    public boolean closed() {
+        return backend.closed();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.Backend#createDatabase(java.lang.String) */
+    @Override
+    public BEDatabase createDatabase(final String theDatabase) {
+        return wrap(backend.createDatabase(theDatabase));
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.Backend#databases() */
+    @Override
+    public Collection<String> databases() {
+        return backend.databases();
+    }
+
+    /** Returns the profile of the tables that are opened without being
+     * created first.
+     *
+     * @return the default profile */
+    public BETableProfile defaultProfile() {
+        return defaultProfile;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.Backend#dropDatabase(java.lang.String) */
+    @Override
+    public synchronized boolean dropDatabase(final String theDatabase) {
+        databases.remove(theDatabase.toLowerCase());
+        return backend.dropDatabase(theDatabase);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.Backend#openDatabase(java.lang.String) */
+    @Override
+    @CheckForNull
+    public BEDatabase openDatabase(final String theDatabase) {
+        return wrap(backend.openDatabase(theDatabase));
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.Backend#shutdown() */
+    @Override
+    public synchronized void shutdown() {
+        databases.clear();
+        backend.shutdown();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString() */
+    @Override
+    public String toString() {
+        return "CachingBackend(" + backend + ")";
+    }
+}
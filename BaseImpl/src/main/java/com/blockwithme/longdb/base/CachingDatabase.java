@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.BEDatabase;
+import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.BETableProfile;
+import com.blockwithme.longdb.Backend;
+import com.blockwithme.longdb.entities.Base36;
+import com.google.common.base.Preconditions;
+
+/** A database of a CachingBackend. Tables created with a profile that has a
+ * cache size are wrapped in a CachingBETable; tables that are only opened use
+ * the default profile of the backend, since the profiles are not stored. The
+ * same wrapper is returned every time, so that all the writers of a table go
+ * through its cache; the methods that look up or change the wrappers are
+ * synchronized, so that concurrent callers never get two wrappers. */
+@ParametersAreNonnullByDefault
+public class CachingDatabase implements BEDatabase {
+
+    /** The backend. */
+    private final CachingBackend backend;
+
+    /** The wrapped database. */
+    private final BEDatabase database;
+
+    /** The tables returned so far. */
+    private final Map<Base36, BETable> tables = new HashMap<Base36, BETable>();
+
+    /** Instantiates a new caching database.
+     *
+     * @param theBackend the caching backend
+     * @param theDatabase the wrapped database */
+    protected CachingDatabase(final CachingBackend theBackend,
+            final BEDatabase theDatabase) {
+        Preconditions.checkNotNull(theBackend, "backend is null");
+        Preconditions.checkNotNull(theDatabase, "database is null");
+        this.backend = theBackend;
+        this.database = theDatabase;
+    }
+
+    /** Wraps a table of the wrapped database. */
+    private BETable wrap(final BETable theTable, final BETableProfile theProfile) {
+        if (theProfile.cacheSize() <= 0)
+            return theTable;
+        return new CachingBETable(this, theTable, theProfile.cacheSize(),
+                theProfile.cacheEviction());
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BEDatabase#backend() */
+    @Override
+    public Backend backend() {
+        return backend;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BEDatabase#close() */
+    @Override
+    public synchronized void close() {
+        tables.clear();
+        database.close();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BEDatabase#closed() */
+    @Override
+    public boolean closed() {
+        return database.closed();
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.BEDatabase#create(com.blockwithme.longdb.entities
+     * .Base36, com.blockwithme.longdb.BETableProfile) */
+    @Override
+    public synchronized BETable create(final Base36 theTable,
+            final BETableProfile theProfile) {
+        final BETable result = wrap(database.create(theTable, theProfile),
+                theProfile);
+        tables.put(theTable, result);
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BEDatabase#database() */
+    @Override
+    public String database() {
+        return database.database();
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.BEDatabase#drop(com.blockwithme.longdb.entities
+     * .Base36) */
+    @Override
+    public synchronized boolean drop(final Base36 theTable) {
+        tables.remove(theTable);
+        return database.drop(theTable);
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.BEDatabase#get(com.blockwithme.longdb.entities
+     * .Base36) */
+    @Override
+    @CheckForNull
+    public synchronized BETable get(final Base36 theTable) {
+        final BETable table = database.get(theTable);
+        if (table == null) {
+            tables.remove(theTable);
+            return null;
+        }
+        BETable result = tables.get(theTable);
+        if (result == null) {
+            result = wrap(table, backend.defaultProfile());
+            tables.put(theTable, result);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BEDatabase#tables() */
+    @Override
+    public Collection<Base36> tables() {
+        return database.tables();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString() */
+    @Override
+    public String toString() {
+        return "CachingDatabase(" + database + ")";
+    }
+}
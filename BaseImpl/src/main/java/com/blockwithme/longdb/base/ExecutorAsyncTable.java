@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.Range;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/** Asynchronous view of a blocking table. The requests are run by a fixed pool
+ * of threads, calling the synchronous table. Since no more than
+ * maxOutstanding() requests are ever in flight, the queue of the pool is
+ * bounded too. A table that is not thread-safe must be given a single thread;
+ * its requests then run one at a time, in the order they were sent. */
+@ParametersAreNonnullByDefault
+public class ExecutorAsyncTable extends AbstractAsyncTable<BETable> {
+
+    /** A request, run by one of the threads. */
+    private abstract static class Request<V> implements Runnable {
+
+        /** The future of the request. */
+        private final SettableFuture<V> result;
+
+        /** Instantiates a new request. */
+        Request(final SettableFuture<V> theResult) {
+            this.result = theResult;
+        }
+
+        /** Calls the synchronous table. */
+        protected abstract V call();
+
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run() */
+        @Override
+        public final void run() {
+            try {
+                result.set(call());
+            } catch (final Throwable e) { // $codepro.audit.disable caughtExceptions
+                result.setException(e);
+            }
+        }
+    }
+
+    /** The threads. */
+    private final ExecutorService executor;
+
+    /** Instantiates a new executor based asynchronous table.
+     *
+     * @param theTable the table instance
+     * @param theThreads the number of threads; must be 1 if the table is not
+     *        thread-safe
+     * @param theMaxOutstanding the maximum number of outstanding requests */
+    public ExecutorAsyncTable(final BETable theTable, final int theThreads,
+            final int theMaxOutstanding) {
+        super(theTable, theMaxOutstanding);
+        Preconditions.checkArgument(theThreads > 0,
+                "threads must be positive");
+        Preconditions.checkArgument(theThreads == 1 || theTable.threadSafe(),
+                "table is not thread-safe");
+        this.executor = Executors.newFixedThreadPool(theThreads,
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("async-" + theTable.table() + "-%d")
+                        .build());
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#closeInternal() */
+    @Override
+    protected void closeInternal() {
+        executor.shutdown();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#getInternal(long,
+     * com.carrotsearch.hppc.LongArrayList,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void getInternal(final long theKey,
+            final LongArrayList theColumns,
+            final SettableFuture<Columns> theResult) {
+        executor.execute(new Request<Columns>(theResult) {
+            @Override
+            protected Columns call() {
+                return table.get(theKey, theColumns);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#getInternal(long,
+     * com.blockwithme.longdb.Range,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void getInternal(final long theKey, final Range theColumns,
+            final SettableFuture<Columns> theResult) {
+        executor.execute(new Request<Columns>(theResult) {
+            @Override
+            protected Columns call() {
+                return table.get(theKey, theColumns);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.base.AbstractAsyncTable#multiGetInternal(long[],
+     * com.carrotsearch.hppc.LongArrayList,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void multiGetInternal(final long[] theKeys,
+            final LongArrayList theColumns,
+            final SettableFuture<LongObjectOpenHashMap<Columns>> theResult) {
+        executor.execute(new Request<LongObjectOpenHashMap<Columns>>(theResult) {
+            @Override
+            protected LongObjectOpenHashMap<Columns> call() {
+                return table.multiGet(theKeys, theColumns);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.base.AbstractAsyncTable#multiGetInternal(long[],
+     * com.blockwithme.longdb.Range,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void multiGetInternal(final long[] theKeys,
+            final Range theColumns,
+            final SettableFuture<LongObjectOpenHashMap<Columns>> theResult) {
+        executor.execute(new Request<LongObjectOpenHashMap<Columns>>(theResult) {
+            @Override
+            protected LongObjectOpenHashMap<Columns> call() {
+                return table.multiGet(theKeys, theColumns);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#removeInternal(long,
+     * com.carrotsearch.hppc.LongArrayList,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void removeInternal(final long theKey,
+            final LongArrayList theRemoveCols,
+            final SettableFuture<Void> theResult) {
+        executor.execute(new Request<Void>(theResult) {
+            @Override
+            protected Void call() {
+                table.remove(theKey, theRemoveCols);
+                return null;
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#removeInternal(long,
+     * com.blockwithme.longdb.Range,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void removeInternal(final long theKey,
+            final Range theRemoveCols, final SettableFuture<Void> theResult) {
+        executor.execute(new Request<Void>(theResult) {
+            @Override
+            protected Void call() {
+                table.remove(theKey, theRemoveCols);
+                return null;
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#setInternal(long,
+     * com.blockwithme.longdb.Columns, com.carrotsearch.hppc.LongArrayList,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void setInternal(final long theKey,
+            final Columns theInsertUpdateColumns,
+            final LongArrayList theRemoveCols,
+            final SettableFuture<Void> theResult) {
+        executor.execute(new Request<Void>(theResult) {
+            @Override
+            protected Void call() {
+                table.set(theKey, theInsertUpdateColumns, theRemoveCols);
+                return null;
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#setInternal(long,
+     * com.blockwithme.longdb.Columns, com.blockwithme.longdb.Range,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void setInternal(final long theKey,
+            final Columns theInsertUpdateColumns, final Range theRemoveCols,
+            final SettableFuture<Void> theResult) {
+        executor.execute(new Request<Void>(theResult) {
+            @Override
+            protected Void call() {
+                table.set(theKey, theInsertUpdateColumns, theRemoveCols);
+                return null;
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.base.AbstractAsyncTable#setAllInternal(com.carrotsearch
+     * .hppc.LongObjectOpenHashMap,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void setAllInternal(final LongObjectOpenHashMap<Columns> theRows,
+            final SettableFuture<Void> theResult) {
+        executor.execute(new Request<Void>(theResult) {
+            @Override
+            protected Void call() {
+                table.setAll(theRows);
+                return null;
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.base.AbstractAsyncTable#sizeInternal(com.google
+     * .common.util.concurrent.SettableFuture) */
+    @Override
+    protected void sizeInternal(final SettableFuture<Long> theResult) {
+        executor.execute(new Request<Long>(theResult) {
+            @Override
+            protected Long call() {
+                return table.size();
+            }
+        });
+    }
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.google.common.base.Preconditions;
+
+/** A Bloom filter of long keys. Each key sets a few bits, derived from two
+ * hashes of the key (double hashing), so that mightContain() never returns
+ * false for a key that was put, and returns true for a key that was not put
+ * with the configured probability.
+ *
+ * The bits are stored in an AtomicLongArray, so that put() and mightContain()
+ * are thread-safe, lock-free, and do not allocate. */
+@ParametersAreNonnullByDefault
+final class LongBloomFilter {
+
+    /** The format version, written first by writeTo(). */
+    private static final int VERSION = 1;
+
+    /** The bits. */
+    private final AtomicLongArray bits;
+
+    /** The number of bits. */
+    private final long bitCount;
+
+    /** The number of bits set per key. */
+    private final int hashes;
+
+    /** Instantiates a new filter, from its bits. */
+    private LongBloomFilter(final AtomicLongArray theBits, final int theHashes) {
+        this.bits = theBits;
+        this.bitCount = 64L * theBits.length();
+        this.hashes = theHashes;
+    }
+
+    /** Instantiates a new, empty, filter.
+     *
+     * @param theExpectedKeys the expected number of keys
+     * @param theFalsePositiveRate the wanted false positive rate, when the
+     *        filter holds the expected number of keys */
+    LongBloomFilter(final long theExpectedKeys,
+            final double theFalsePositiveRate) {
+        Preconditions.checkArgument(theFalsePositiveRate > 0
+                && theFalsePositiveRate < 1,
+                "falsePositiveRate must be between 0 and 1");
+        final long keys = Math.max(1, theExpectedKeys);
+        final double ln2 = Math.log(2);
+        final long optimal = (long) Math.ceil(-keys
+                * Math.log(theFalsePositiveRate) / (ln2 * ln2));
+        final long words = Math.min(Integer.MAX_VALUE, (optimal + 63) / 64);
+        this.bits = new AtomicLongArray((int) Math.max(1, words));
+        this.bitCount = 64L * bits.length();
+        this.hashes = (int) Math.max(1,
+                Math.round((double) optimal / keys * ln2));
+    }
+
+    /** Mixes the bits of a key (the MurmurHash3 finalizer). */
+    private static long mix(final long theKey) {
+        long h = theKey;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** Reads a filter written with writeTo().
+     *
+     * @param theInput the input
+     * @return the filter
+     * @throws IOException if the input cannot be read, or is not a filter */
+    static LongBloomFilter readFrom(final DataInput theInput)
+            throws IOException {
+        final int version = theInput.readInt();
+        if (version != VERSION)
+            throw new IOException("Unknown Bloom filter version: " + version);
+        final int hashes = theInput.readInt();
+        final int words = theInput.readInt();
+        if (hashes <= 0 || words <= 0)
+            throw new IOException("Corrupted Bloom filter");
+        final AtomicLongArray bits = new AtomicLongArray(words);
+        for (int i = 0; i < words; i++) {
+            bits.set(i, theInput.readLong());
+        }
+        return new LongBloomFilter(bits, hashes);
+    }
+
+    /** Could the key have been put in the filter?
+     *
+     * @param theKey the key
+     * @return false if the key was certainly not put */
+    boolean mightContain(final long theKey) {
+        final long hash1 = mix(theKey);
+        final long hash2 = mix(hash1) | 1;
+        long combined = hash1;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bitCount;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+            combined += hash2;
+        }
+        return true;
+    }
+
+    /** Puts a key in the filter.
+     *
+     * @param theKey the key */
+    void put(final long theKey) {
+        final long hash1 = mix(theKey);
+        final long hash2 = mix(hash1) | 1;
+        long combined = hash1;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bitCount;
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+            long old = bits.get(word);
+            while ((old & mask) == 0
+                    && !bits.compareAndSet(word, old, old | mask)) {
+                old = bits.get(word);
+            }
+            combined += hash2;
+        }
+    }
+
+    /** Writes the filter. Keys put concurrently may or may not be written.
+     *
+     * @param theOutput the output
+     * @throws IOException if the output cannot be written */
+    void writeTo(final DataOutput theOutput) throws IOException {
+        theOutput.writeInt(VERSION);
+        theOutput.writeInt(hashes);
+        theOutput.writeInt(bits.length());
+        for (int i = 0; i < bits.length(); i++) {
+            theOutput.writeLong(bits.get(i));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/** The call count and latency histogram of one type of table operation.
+ * Recording a call is lock-free and does not allocate. The histogram has
+ * logarithmic buckets, each power of two being split in 8 linear buckets, so
+ * it covers the whole long range with 488 counters and an error of at most
+ * 1/8 of the value.
+ *
+ * The percentiles are computed from a non-atomic view of the counters, which
+ * is good enough for monitoring. */
+@ParametersAreNonnullByDefault
+public final class OperationMetrics implements OperationMetricsMBean {
+
+    /** The number of bits of the linear buckets. */
+    private static final int SUB_BITS = 3;
+
+    /** The number of linear buckets per power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** The values below this are counted exactly. */
+    private static final int EXACT = 2 * SUB_BUCKETS;
+
+    /** The number of buckets. */
+    private static final int BUCKETS = EXACT + (62 - SUB_BITS) * SUB_BUCKETS;
+
+    /** Nanoseconds per microsecond. */
+    private static final long NANOS_PER_MICRO = 1000;
+
+    /** The buckets. */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /** The number of calls. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** The maximum latency, in nanoseconds. */
+    private final AtomicLong max = new AtomicLong();
+
+    /** The time of the last reset, in nanoseconds. */
+    private volatile long since = System.nanoTime();
+
+    /** The sum of the latencies, in nanoseconds. */
+    private final AtomicLong total = new AtomicLong();
+
+    /** Returns the bucket of a latency. */
+    static int bucket(final long theNanos) {
+        if (theNanos < EXACT)
+            return (int) theNanos;
+        final int exp = 63 - Long.numberOfLeadingZeros(theNanos);
+        return EXACT + (exp - SUB_BITS - 1) * SUB_BUCKETS
+                + (int) ((theNanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /** Returns the highest latency counted in a bucket. */
+    static long highest(final int theBucket) {
+        if (theBucket < EXACT)
+            return theBucket;
+        final int exp = (theBucket - EXACT) / SUB_BUCKETS + SUB_BITS + 1;
+        final int sub = (theBucket - EXACT) % SUB_BUCKETS;
+        final long width = 1L << (exp - SUB_BITS);
+        return (SUB_BUCKETS + sub) * width + width - 1;
+    }
+
+    /** Returns a percentile of the latency, in microseconds. */
+    private long percentile(final double theFraction) {
+        final long[] counts = new long[BUCKETS];
+        long sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            sum += counts[i];
+        }
+        if (sum == 0)
+            return 0;
+        final long rank = Math.max(1, (long) Math.ceil(sum * theFraction));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highest(i), max.get()) / NANOS_PER_MICRO;
+        }
+        return max.get() / NANOS_PER_MICRO;
+    }
+
+    /** Records a call.
+     *
+     * @param theNanos the latency of the call, in nanoseconds */
+    public void record(final long theNanos) {
+        final long nanos = Math.max(0, theNanos);
+        buckets.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.OperationMetricsMBean#getCount() */
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.OperationMetricsMBean#getMaxMicros() */
+    @Override
+    public long getMaxMicros() {
+        return max.get() / NANOS_PER_MICRO;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.OperationMetricsMBean#getMeanMicros() */
+    @Override
+    public double getMeanMicros() {
+        final long calls = count.get();
+        return (calls == 0) ? 0 : total.get()
+                / (double) (calls * NANOS_PER_MICRO);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.OperationMetricsMBean#getP50Micros() */
+    @Override
+    public long getP50Micros() {
+        return percentile(0.5);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.OperationMetricsMBean#getP90Micros() */
+    @Override
+    public long getP90Micros() {
+        return percentile(0.9);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.OperationMetricsMBean#getP999Micros() */
+    @Override
+    public long getP999Micros() {
+        return percentile(0.999);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.OperationMetricsMBean#getP99Micros() */
+    @Override
+    public long getP99Micros() {
+        return percentile(0.99);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.OperationMetricsMBean#getThroughput() */
+    @Override
+    public double getThroughput() {
+        final long elapsed = System.nanoTime() - since;
+        return (elapsed <= 0) ? 0 : count.get() * 1e9 / elapsed;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.OperationMetricsMBean#reset() */
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+        since = System.nanoTime();
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+/** The JMX view of the metrics of one type of table operation. The latencies
+ * are in microseconds, and the percentiles are accurate to 1/8 of their
+ * value. All values are counted since the last reset. */
+public interface OperationMetricsMBean {
+
+    /** Returns the number of calls.
+     *
+     * @return the number of calls */
+    long getCount();
+
+    /** Returns the maximum latency.
+     *
+     * @return the maximum latency, in microseconds */
+    long getMaxMicros();
+
+    /** Returns the mean latency.
+     *
+     * @return the mean latency, in microseconds */
+    double getMeanMicros();
+
+    /** Returns the median latency.
+     *
+     * @return the median latency, in microseconds */
+    long getP50Micros();
+
+    /** Returns the 90th percentile of the latency.
+     *
+     * @return the latency, in microseconds */
+    long getP90Micros();
+
+    /** Returns the 99th percentile of the latency.
+     *
+     * @return the latency, in microseconds */
+    long getP99Micros();
+
+    /** Returns the 99.9th percentile of the latency.
+     *
+     * @return the latency, in microseconds */
+    long getP999Micros();
+
+    /** Returns the number of calls per second.
+     *
+     * @return the throughput */
+    double getThroughput();
+
+    /** Resets the metrics. */
+    void reset();
+}
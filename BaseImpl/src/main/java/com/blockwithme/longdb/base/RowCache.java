@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.BETableProfile.Eviction;
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.entities.Bytes;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+
+/** A cache of complete rows, bounded by the number of bytes of the cached
+ * values. Eviction is approximated by sampling: a few random entries are
+ * compared, and the least recently (LRU) or the least frequently (LFU) used
+ * one is evicted, so that no ordering has to be maintained on every hit. For
+ * LFU, the use counts are halved regularly, so that rows that were hot a
+ * long time ago do not stay forever.
+ *
+ * Each row key belongs to a stripe with a modification stamp. A reader takes
+ * the stamp before loading a row from the table, and the row is only cached
+ * if no write invalidated the stripe in the meantime; otherwise, a row read
+ * before a concurrent write could be cached after it.
+ *
+ * All methods are synchronized. The cached Columns are never modified; they
+ * must be copied before being returned to the user. */
+@ParametersAreNonnullByDefault
+final class RowCache {
+
+    /** A cached row. */
+    static final class Entry {
+
+        /** The row; null if the row is missing. */
+        @CheckForNull
+        final Columns row;
+
+        /** The weight of the entry, in bytes. */
+        private final long weight;
+
+        /** The use count, for LFU. */
+        private int hits;
+
+        /** The time of the last use, for LRU. */
+        private long tick;
+
+        /** Instantiates a new entry. */
+        Entry(@Nullable final Columns theRow, final long theWeight) {
+            this.row = theRow;
+            this.weight = theWeight;
+        }
+    }
+
+    /** The number of aging periods per cached row, for LFU. */
+    private static final int AGING_PERIOD = 16;
+
+    /** The estimated weight of a column, in addition to its value. */
+    private static final int COLUMN_OVERHEAD = 48;
+
+    /** The estimated weight of a row, in addition to its columns. */
+    private static final int ROW_OVERHEAD = 96;
+
+    /** The number of entries compared on each eviction. */
+    private static final int SAMPLES = 8;
+
+    /** The number of invalidation stripes. Must be a power of two. */
+    private static final int STRIPES = 64;
+
+    /** Number of uses since the use counts were last halved. */
+    private long accesses;
+
+    /** The logical time. */
+    private long clock;
+
+    /** The entries. */
+    private final LongObjectOpenHashMap<Entry> entries = new LongObjectOpenHashMap<Entry>();
+
+    /** The eviction policy. */
+    private final Eviction eviction;
+
+    /** The number of evicted entries. */
+    private long evictionCount;
+
+    /** The number of hits. */
+    private long hitCount;
+
+    /** The number of loaded rows that were cached. */
+    private long loadCount;
+
+    /** The maximum weight of a single entry. */
+    private final long maxEntryWeight;
+
+    /** The maximum total weight. */
+    private final long maxWeight;
+
+    /** The number of misses. */
+    private long missCount;
+
+    /** Picks the sampled entries. */
+    private final Random random = new Random();
+
+    /** The modification stamps of the stripes. */
+    private final long[] stamps = new long[STRIPES];
+
+    /** The current total weight. */
+    private long weight;
+
+    /** Instantiates a new row cache.
+     *
+     * @param theMaxWeight the maximum number of bytes cached
+     * @param theEviction the eviction policy */
+    RowCache(final long theMaxWeight, final Eviction theEviction) {
+        Preconditions.checkArgument(theMaxWeight > 0,
+                "maxWeight must be positive");
+        Preconditions.checkNotNull(theEviction, "eviction is null");
+        this.maxWeight = theMaxWeight;
+        // A single wide row must not flush the whole cache.
+        this.maxEntryWeight = theMaxWeight / 8;
+        this.eviction = theEviction;
+    }
+
+    /** Returns the stripe of a row key. */
+    private static int stripe(final long theKey) {
+        return (int) (theKey ^ (theKey >>> 32)) & (STRIPES - 1);
+    }
+
+    /** Estimates the weight of a row, in bytes. */
+    private static long weigh(@Nullable final Columns theRow) {
+        long result = ROW_OVERHEAD;
+        if (theRow != null) {
+            final Iterator<LongObjectCursor<Bytes>> iter = theRow
+                    .bytesIterator();
+            while (iter.hasNext()) {
+                result += COLUMN_OVERHEAD + iter.next().value.length();
+            }
+        }
+        return result;
+    }
+
+    /** Is the first entry a better eviction candidate than the second? */
+    private boolean colder(final Entry theFirst, final Entry theSecond) {
+        if (eviction == Eviction.LFU && theFirst.hits != theSecond.hits)
+            return theFirst.hits < theSecond.hits;
+        return theFirst.tick < theSecond.tick;
+    }
+
+    /** Evicts entries until the total weight fits in the cache. */
+    private void evict() {
+        while (weight > maxWeight && !entries.isEmpty()) {
+            final boolean[] allocated = entries.allocated;
+            long victimKey = 0;
+            Entry victim = null;
+            int sampled = 0;
+            while (sampled < SAMPLES) {
+                final int slot = random.nextInt(allocated.length);
+                if (allocated[slot]) {
+                    sampled++;
+                    final long key = entries.keys[slot];
+                    final Entry entry = entries.get(key);
+                    if (victim == null || colder(entry, victim)) {
+                        victim = entry;
+                        victimKey = key;
+                    }
+                }
+            }
+            entries.remove(victimKey);
+            weight -= victim.weight;
+            evictionCount++;
+        }
+    }
+
+    /** Removes an entry, if present. */
+    private void remove(final long theKey) {
+        final Entry old = entries.remove(theKey);
+        if (old != null)
+            weight -= old.weight;
+    }
+
+    /** Records the use of an entry. */
+    private void touch(final Entry theEntry) {
+        theEntry.tick = ++clock;
+        if (eviction == Eviction.LFU) {
+            theEntry.hits++;
+            if (++accesses > AGING_PERIOD * (long) entries.size()) {
+                accesses = 0;
+                for (final LongObjectCursor<Entry> cursor : entries) {
+                    cursor.value.hits >>>= 1;
+                }
+            }
+        }
+    }
+
+    /** Removes all the entries. */
+    synchronized void clear() {
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i]++;
+        }
+        entries.clear();
+        weight = 0;
+    }
+
+    /** Returns the cached entry of a row, and counts a hit or a miss.
+     *
+     * @param theKey the row key
+     * @return the entry, null if the row is not cached */
+    @CheckForNull
+    synchronized Entry get(final long theKey) {
+        final Entry result = entries.get(theKey);
+        if (result == null) {
+            missCount++;
+        } else {
+            hitCount++;
+            touch(result);
+        }
+        return result;
+    }
+
+    /** Removes a row, after it was modified in the table.
+     *
+     * @param theKey the row key */
+    synchronized void invalidate(final long theKey) {
+        stamps[stripe(theKey)]++;
+        remove(theKey);
+    }
+
+    /** Caches a row loaded from the table, unless it was invalidated since
+     * the stamp was taken. The row must not be modified afterwards.
+     *
+     * @param theKey the row key
+     * @param theRow the row; null if the row is missing
+     * @param theStamp the stamp taken before loading the row */
+    void put(final long theKey, @Nullable final Columns theRow,
+            final long theStamp) {
+        final long rowWeight = weigh(theRow);
+        if (rowWeight > maxEntryWeight)
+            return;
+        if (theRow != null && theRow.size() > 0) {
+            // Sorts the columns now, since the row is then shared.
+            theRow.columnAt(0);
+        }
+        synchronized (this) {
+            if (stamps[stripe(theKey)] != theStamp)
+                return;
+            remove(theKey);
+            final Entry entry = new Entry(theRow, rowWeight);
+            touch(entry);
+            entries.put(theKey, entry);
+            weight += rowWeight;
+            loadCount++;
+            evict();
+        }
+    }
+
+    /** Returns the number of cached rows.
+     *
+     * @return the number of cached rows */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** Returns the modification stamp of a row, to be taken before loading it.
+     *
+     * @param theKey the row key
+     * @return the stamp */
+    synchronized long stamp(final long theKey) {
+        return stamps[stripe(theKey)];
+    }
+
+    /** Returns the statistics of the cache.
+     *
+     * @return the statistics */
+    synchronized CacheStats stats() {
+        return new CacheStats(hitCount, missCount, loadCount, 0, 0,
+                evictionCount);
+    }
+
+    /** Returns the current weight of the cache, in bytes.
+     *
+     * @return the weight */
+    synchronized long weight() {
+        return weight;
+    }
+}
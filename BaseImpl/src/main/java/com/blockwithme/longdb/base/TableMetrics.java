@@ -0,0 +1,357 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.blockwithme.longdb.Columns;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+
+/** The metrics of a table: the latency of each operation, and the volume of
+ * data read and written. AbstractTable records them in its public methods;
+ * the iterators returned by keys(), scan() and columnsIterator() are lazy, so
+ * only their creation is timed. Recording does not lock nor allocate.
+ *
+ * The metrics are published as MBeans while the table is open, under
+ * "com.blockwithme.longdb:type=Table,backend=...,database=...,table=...",
+ * with one additional MBean per operation. Setting the system property
+ * "longdb.metrics" to false switches them off entirely: the tables then
+ * have no metrics, and do not even read the clock. */
+@ParametersAreNonnullByDefault
+public final class TableMetrics implements TableMetricsMBean {
+
+    /** The instrumented table operations. */
+    public enum Operation {
+        /** columns(), columnsCount() and columnsIterator(). */
+        COLUMNS,
+        /** exists(). */
+        EXISTS,
+        /** get(), except the multi-row variants. */
+        GET,
+        /** keys(). */
+        KEYS,
+        /** multiGet(). */
+        MULTI_GET,
+        /** remove(). */
+        REMOVE,
+        /** scan(). */
+        SCAN,
+        /** set(). */
+        SET,
+        /** setAll(). */
+        SET_ALL,
+        /** size(). */
+        SIZE
+    }
+
+    /** The system property that switches the metrics off, when false. */
+    public static final String ENABLED_PROPERTY = "longdb.metrics";
+
+    /** Are the metrics enabled? */
+    public static final boolean ENABLED = !"false"
+            .equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+
+    /** The JMX domain. */
+    private static final String DOMAIN = "com.blockwithme.longdb";
+
+    /** Logger for this class */
+    private static final Logger LOG = LoggerFactory
+            .getLogger(TableMetrics.class);
+
+    /** The number of value bytes read. */
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /** The number of value bytes written. */
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /** The number of columns read. */
+    private final AtomicLong columnsRead = new AtomicLong();
+
+    /** The number of columns written. */
+    private final AtomicLong columnsWritten = new AtomicLong();
+
+    /** The JMX name, without the operation. */
+    private final String name;
+
+    /** The metrics of each operation, by ordinal. */
+    private final OperationMetrics[] operations;
+
+    /** Are the MBeans registered? */
+    private boolean registered;
+
+    /** The number of rows read. */
+    private final AtomicLong rowsRead = new AtomicLong();
+
+    /** The number of rows written. */
+    private final AtomicLong rowsWritten = new AtomicLong();
+
+    /** Instantiates the metrics of a table.
+     *
+     * @param theBackend the backend name
+     * @param theDatabase the database name
+     * @param theTable the table name */
+    public TableMetrics(final String theBackend, final String theDatabase,
+            final String theTable) {
+        this.name = DOMAIN + ":type=Table,backend="
+                + ObjectName.quote(theBackend) + ",database="
+                + ObjectName.quote(theDatabase) + ",table="
+                + ObjectName.quote(theTable);
+        final Operation[] values = Operation.values();
+        operations = new OperationMetrics[values.length];
+        for (int i = 0; i < values.length; i++) {
+            operations[i] = new OperationMetrics();
+        }
+    }
+
+    /** Registers an MBean, replacing the one of a table with the same name
+     * that was not closed. */
+    private static void register(final MBeanServer theServer,
+            final Object theBean, final String theName) throws JMException {
+        final ObjectName objectName = new ObjectName(theName);
+        if (theServer.isRegistered(objectName))
+            theServer.unregisterMBean(objectName);
+        theServer.registerMBean(theBean, objectName);
+    }
+
+    /** Returns the JMX name of an operation. */
+    private String name(final Operation theOperation) {
+        return name + ",operation=" + theOperation.name().toLowerCase();
+    }
+
+    /** Records a call that transferred no data.
+     *
+     * @param theOperation the operation
+     * @param theStart the System.nanoTime() at the start of the call */
+    public void call(final Operation theOperation, final long theStart) {
+        operations[theOperation.ordinal()].record(System.nanoTime()
+                - theStart);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.TableMetricsMBean#getBytesRead() */
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.TableMetricsMBean#getBytesWritten() */
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.TableMetricsMBean#getColumnsRead() */
+    @Override
+    public long getColumnsRead() {
+        return columnsRead.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.TableMetricsMBean#getColumnsWritten() */
+    @Override
+    public long getColumnsWritten() {
+        return columnsWritten.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.TableMetricsMBean#getRowsRead() */
+    @Override
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.TableMetricsMBean#getRowsWritten() */
+    @Override
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    /** Returns the metrics of an operation.
+     *
+     * @param theOperation the operation
+     * @return the metrics */
+    public OperationMetrics operation(final Operation theOperation) {
+        return operations[theOperation.ordinal()];
+    }
+
+    /** Records a call that read some columns of a row.
+     *
+     * @param theOperation the operation
+     * @param theStart the System.nanoTime() at the start of the call
+     * @param theColumns the columns read; null if the row is missing */
+    public void read(final Operation theOperation, final long theStart,
+            @CheckForNull final Columns theColumns) {
+        call(theOperation, theStart);
+        if (theColumns != null) {
+            rowsRead.incrementAndGet();
+            columnsRead.addAndGet(theColumns.size());
+            bytesRead.addAndGet(theColumns.bytesLength());
+        }
+    }
+
+    /** Records a call that visited some columns of a row, without returning
+     * them.
+     *
+     * @param theOperation the operation
+     * @param theStart the System.nanoTime() at the start of the call
+     * @param theColumns the number of columns visited */
+    public void read(final Operation theOperation, final long theStart,
+            final int theColumns) {
+        call(theOperation, theStart);
+        if (theColumns > 0) {
+            rowsRead.incrementAndGet();
+            columnsRead.addAndGet(theColumns);
+        }
+    }
+
+    /** Records a call that read some rows.
+     *
+     * @param theOperation the operation
+     * @param theStart the System.nanoTime() at the start of the call
+     * @param theRows the rows read */
+    public void read(final Operation theOperation, final long theStart,
+            final LongObjectOpenHashMap<Columns> theRows) {
+        call(theOperation, theStart);
+        rowsRead.addAndGet(theRows.size());
+        long columns = 0;
+        long bytes = 0;
+        final boolean[] allocated = theRows.allocated;
+        final Object[] values = theRows.values;
+        for (int i = 0; i < allocated.length; i++) {
+            if (allocated[i]) {
+                final Columns row = (Columns) values[i];
+                columns += row.size();
+                bytes += row.bytesLength();
+            }
+        }
+        columnsRead.addAndGet(columns);
+        bytesRead.addAndGet(bytes);
+    }
+
+    /** Registers the MBeans, if they are not registered yet. Failures are
+     * logged, since the table works without them. */
+    public synchronized void register() {
+        if (registered)
+            return;
+        registered = true;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, this, name);
+            for (final Operation operation : Operation.values()) {
+                register(server, operation(operation), name(operation));
+            }
+        } catch (final JMException e) {
+            LOG.warn("Could not register the metrics " + name, e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.TableMetricsMBean#reset() */
+    @Override
+    public void reset() {
+        bytesRead.set(0);
+        bytesWritten.set(0);
+        columnsRead.set(0);
+        columnsWritten.set(0);
+        rowsRead.set(0);
+        rowsWritten.set(0);
+        for (final OperationMetrics operation : operations) {
+            operation.reset();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString() */
+    @Override
+    public String toString() {
+        return "TableMetrics(" + name + ")";
+    }
+
+    /** Unregisters the MBeans, if they are registered. */
+    public synchronized void unregister() {
+        if (!registered)
+            return;
+        registered = false;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (final Operation operation : Operation.values()) {
+                final ObjectName objectName = new ObjectName(name(operation));
+                if (server.isRegistered(objectName))
+                    server.unregisterMBean(objectName);
+            }
+            final ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (final JMException e) {
+            LOG.warn("Could not unregister the metrics " + name, e);
+        }
+    }
+
+    /** Records a call that wrote or removed some columns of a row.
+     *
+     * @param theOperation the operation
+     * @param theStart the System.nanoTime() at the start of the call
+     * @param theColumns the columns written; null if none
+     * @param theRemoved the number of columns or ranges removed */
+    public void write(final Operation theOperation, final long theStart,
+            @CheckForNull final Columns theColumns, final int theRemoved) {
+        call(theOperation, theStart);
+        rowsWritten.incrementAndGet();
+        if (theColumns == null) {
+            columnsWritten.addAndGet(theRemoved);
+        } else {
+            columnsWritten.addAndGet(theColumns.size() + theRemoved);
+            bytesWritten.addAndGet(theColumns.bytesLength());
+        }
+    }
+
+    /** Records a call that wrote some rows.
+     *
+     * @param theOperation the operation
+     * @param theStart the System.nanoTime() at the start of the call
+     * @param theRows the rows written */
+    public void write(final Operation theOperation, final long theStart,
+            final LongObjectOpenHashMap<Columns> theRows) {
+        call(theOperation, theStart);
+        rowsWritten.addAndGet(theRows.size());
+        long columns = 0;
+        long bytes = 0;
+        final boolean[] allocated = theRows.allocated;
+        final Object[] values = theRows.values;
+        for (int i = 0; i < allocated.length; i++) {
+            if (allocated[i]) {
+                final Columns row = (Columns) values[i];
+                columns += row.size();
+                bytes += row.bytesLength();
+            }
+        }
+        columnsWritten.addAndGet(columns);
+        bytesWritten.addAndGet(bytes);
+    }
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+/** The JMX view of the data volume metrics of a table. The latencies of each
+ * operation are published separately, as OperationMetricsMBean. All values
+ * are counted since the last reset. */
+public interface TableMetricsMBean {
+
+    /** Returns the number of value bytes read.
+     *
+     * @return the number of bytes */
+    long getBytesRead();
+
+    /** Returns the number of value bytes written.
+     *
+     * @return the number of bytes */
+    long getBytesWritten();
+
+    /** Returns the number of columns read.
+     *
+     * @return the number of columns */
+    long getColumnsRead();
+
+    /** Returns the number of columns written or removed. A removed range
+     * counts as one column.
+     *
+     * @return the number of columns */
+    long getColumnsWritten();
+
+    /** Returns the number of rows read.
+     *
+     * @return the number of rows */
+    long getRowsRead();
+
+    /** Returns the number of rows written or removed.
+     *
+     * @return the number of rows */
+    long getRowsWritten();
+
+    /** Resets the metrics of the table and of all its operations. */
+    void reset();
+}
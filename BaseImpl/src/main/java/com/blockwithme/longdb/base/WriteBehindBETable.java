@@ -0,0 +1,694 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.base;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.blockwithme.longdb.AsyncBETable;
+import com.blockwithme.longdb.BEDatabase;
+import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.ColumnVisitor;
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.entities.Base36;
+import com.blockwithme.longdb.entities.Bytes;
+import com.blockwithme.longdb.entities.LongHolder;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.LongOpenHashSet;
+import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/** A write-behind buffer in front of another table. The modifications are
+ * not written at once, but coalesced per row: the last value written to a
+ * column wins, and removing columns cancels their pending values. The buffer
+ * is flushed when it holds too many rows, periodically, on flush(), and
+ * before operations that cannot be answered from it (keys(), scan(), size(),
+ * ...). Rows that only have new values are written together with a single
+ * setAll(); the others are written one by one.
+ *
+ * The reads see the pending modifications (read-your-writes): the row is
+ * read from the table, and the pending modifications are applied to it.
+ *
+ * A row is written with one or two table calls, so each row stays atomic
+ * only as long as it does not mix removed ranges with removed columns. A
+ * modification is lost if the process dies before it is flushed. All access
+ * to the table is serialized by this instance, which is therefore
+ * thread-safe; the table must not be used directly while this instance is
+ * open. */
+@ParametersAreNonnullByDefault
+public class WriteBehindBETable implements BETable {
+
+    /** The pending modifications of a row. The removes are applied before
+     * the sets. */
+    private static final class Pending {
+
+        /** The removed ranges of columns. */
+        private final List<Range> ranges = new ArrayList<Range>(1);
+
+        /** The removed columns. */
+        private final LongOpenHashSet removes = new LongOpenHashSet();
+
+        /** The new values. */
+        private final LongObjectOpenHashMap<Bytes> sets = new LongObjectOpenHashMap<Bytes>();
+
+        /** Was the whole row removed? */
+        boolean removedAll() {
+            return ranges.size() == 1 && ranges.get(0).full();
+        }
+
+        /** Records the removal of some columns. Their new values are always
+         * cancelled, even if the whole row was removed before. */
+        void remove(final LongArrayList theColumns) {
+            final boolean removedAll = removedAll();
+            for (final LongCursor cursor : theColumns) {
+                sets.remove(cursor.value);
+                if (!removedAll)
+                    removes.add(cursor.value);
+            }
+        }
+
+        /** Records the removal of a range of columns. Their new values are
+         * always cancelled, even if the whole row was removed before. */
+        void remove(final Range theColumns) {
+            if (theColumns.empty())
+                return;
+            for (final long col : sets.keys().toArray()) {
+                if (theColumns.contains(col))
+                    sets.remove(col);
+            }
+            if (removedAll())
+                return;
+            for (final long col : removes.toArray()) {
+                if (theColumns.contains(col))
+                    removes.remove(col);
+            }
+            if (theColumns.full())
+                ranges.clear();
+            ranges.add(new Range(theColumns.start(), theColumns.end()));
+        }
+
+        /** Records new values. */
+        void set(final Columns theColumns) {
+            final Iterator<LongObjectCursor<Bytes>> iter = theColumns
+                    .bytesIterator();
+            while (iter.hasNext()) {
+                final LongObjectCursor<Bytes> cursor = iter.next();
+                sets.put(cursor.key, cursor.value.copy());
+            }
+        }
+
+        /** Does this row only have new values? */
+        boolean setsOnly() {
+            return ranges.isEmpty() && removes.isEmpty();
+        }
+    }
+
+    /** The full column range. */
+    private static final Range FULL_RANGE = Range.fullRange();
+
+    /** Logger for this class */
+    private static final Logger LOG = LoggerFactory
+            .getLogger(WriteBehindBETable.class);
+
+    /** Flushes the buffer periodically; null if there is no maximum delay. */
+    @CheckForNull
+    private final ScheduledExecutorService flusher;
+
+    /** The maximum number of rows buffered. */
+    private final int maxPendingRows;
+
+    /** The pending modifications, mapped by row key. */
+    private final LongObjectOpenHashMap<Pending> pending = new LongObjectOpenHashMap<Pending>();
+
+    /** The buffered table. */
+    private final BETable table;
+
+    /** Instantiates a new write-behind table.
+     *
+     * @param theTable the buffered table
+     * @param theMaxPendingRows the number of buffered rows that triggers a
+     *        flush
+     * @param theMaxDelay the maximum time, in milliseconds, a modification
+     *        stays in the buffer; 0 to only flush on size and on demand */
+    public WriteBehindBETable(final BETable theTable,
+            final int theMaxPendingRows, final long theMaxDelay) {
+        Preconditions.checkNotNull(theTable, "table is null");
+        Preconditions.checkArgument(theMaxPendingRows > 0,
+                "maxPendingRows must be positive");
+        Preconditions.checkArgument(theMaxDelay >= 0,
+                "maxDelay must not be negative");
+        this.table = theTable;
+        this.maxPendingRows = theMaxPendingRows;
+        if (theMaxDelay > 0) {
+            flusher = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat(
+                                    "write-behind-" + theTable.table() + "-%d")
+                            .build());
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (final Exception e) {
+                        LOG.error("Exception Occurred in - flush() of "
+                                + table, e);
+                    }
+                }
+            }, theMaxDelay, theMaxDelay, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /** Flushes the buffer, if it holds too many rows. */
+    private void flushIfFull() {
+        if (pending.size() >= maxPendingRows)
+            flush();
+    }
+
+    /** Writes the pending modifications of a row, if any. */
+    private void flush(final long theKey) {
+        final Pending row = pending.get(theKey);
+        if (row != null) {
+            write(theKey, row);
+            pending.remove(theKey);
+        }
+    }
+
+    /** Applies the pending modifications of a row to the columns read from
+     * the table. Only the columns in theRange or theColumns, if given, are
+     * added. */
+    @CheckForNull
+    private Columns overlay(final long theKey, @Nullable final Columns theRow,
+            @Nullable final Range theRange,
+            @Nullable final LongArrayList theColumns) {
+        final Pending row = pending.get(theKey);
+        if (row == null)
+            return theRow;
+        Columns result = theRow;
+        if (result != null) {
+            for (final long col : result.columns(false)) {
+                if (row.removes.contains(col)) {
+                    result.remove(col);
+                } else {
+                    for (final Range range : row.ranges) {
+                        if (range.contains(col)) {
+                            result.remove(col);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        for (final LongObjectCursor<Bytes> cursor : row.sets) {
+            if ((theRange == null || theRange.contains(cursor.key))
+                    && (theColumns == null || theColumns.contains(cursor.key))) {
+                if (result == null)
+                    result = new Columns(table.reverse());
+                result.putBytes(cursor.key, cursor.value);
+            }
+        }
+        return (result == null || result.size() == 0) ? null : result;
+    }
+
+    /** Returns the pending modifications of a row, creating them if needed. */
+    private Pending pending(final long theKey) {
+        Pending result = pending.get(theKey);
+        if (result == null) {
+            result = new Pending();
+            pending.put(theKey, result);
+        }
+        return result;
+    }
+
+    /** Does the table still have to be read, to answer a read of the row? */
+    private boolean readTable(final long theKey) {
+        final Pending row = pending.get(theKey);
+        return row == null || !row.removedAll();
+    }
+
+    /** Returns the new values of a row, as Columns. */
+    private Columns values(final Pending theRow) {
+        final Columns result = new Columns(table.reverse(),
+                theRow.sets.size());
+        for (final LongObjectCursor<Bytes> cursor : theRow.sets) {
+            result.putBytes(cursor.key, cursor.value);
+        }
+        return result;
+    }
+
+    /** Writes the pending modifications of a row that removes columns. */
+    private void write(final long theKey, final Pending theRow) {
+        final Columns values = values(theRow);
+        final LongArrayList removes = LongArrayList.from(theRow.removes
+                .toArray());
+        if (theRow.ranges.isEmpty()) {
+            if (values.size() == 0)
+                table.remove(theKey, removes);
+            else
+                table.set(theKey, values, removes);
+            return;
+        }
+        if (!removes.isEmpty())
+            table.remove(theKey, removes);
+        final int last = theRow.ranges.size() - 1;
+        for (int i = 0; i < last; i++) {
+            table.remove(theKey, theRow.ranges.get(i));
+        }
+        if (values.size() == 0)
+            table.remove(theKey, theRow.ranges.get(last));
+        else
+            table.set(theKey, values, theRow.ranges.get(last));
+    }
+
+    /** Writes all the pending modifications to the table. If a write fails,
+     * the rows that were not written yet stay in the buffer. */
+    public synchronized void flush() {
+        if (pending.isEmpty())
+            return;
+        final LongObjectOpenHashMap<Columns> batch = new LongObjectOpenHashMap<Columns>();
+        for (final long key : pending.keys().toArray()) {
+            final Pending row = pending.get(key);
+            if (row.setsOnly()) {
+                if (row.sets.isEmpty())
+                    pending.remove(key);
+                else
+                    batch.put(key, values(row));
+            } else {
+                write(key, row);
+                pending.remove(key);
+            }
+        }
+        if (!batch.isEmpty()) {
+            table.setAll(batch);
+            for (final LongObjectCursor<Columns> cursor : batch) {
+                pending.remove(cursor.key);
+            }
+        }
+    }
+
+    /** Returns the number of rows with pending modifications.
+     *
+     * @return the number of rows */
+    public synchronized int pendingRows() {
+        return pending.size();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#async(int) */
+    @Override
+    @Nonnull
+    public AsyncBETable async(final int theMaxOutstanding) {
+        return new ExecutorAsyncTable(this, 1, theMaxOutstanding);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#close() */
+    @Override
+    public synchronized void close() {
+        if (flusher != null)
+            flusher.shutdown();
+        try {
+            flush();
+        } finally {
+            table.close();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columnOrdering() */
+    @Override
+    public boolean columnOrdering() {
+        return table.columnOrdering();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columns(long) */
+    @Override
+    @CheckForNull
+    public synchronized LongArrayList columns(final long theKey) {
+        flush(theKey);
+        return table.columns(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columnsCount(long) */
+    @Override
+    public synchronized long columnsCount(final long theKey) {
+        flush(theKey);
+        return table.columnsCount(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#columnsIterator(long) */
+    @Override
+    @CheckForNull
+    public synchronized Iterator<LongHolder> columnsIterator(final long theKey) {
+        flush(theKey);
+        return table.columnsIterator(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#database() */
+    @Override
+    public BEDatabase database() {
+        return table.database();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#detectCollisions() */
+    @Override
+    public boolean detectCollisions() {
+        return table.detectCollisions();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#exists(long) */
+    @Override
+    public synchronized boolean exists(final long theKey) {
+        final Pending row = pending.get(theKey);
+        if (row != null && !row.sets.isEmpty())
+            return true;
+        flush(theKey);
+        return table.exists(theKey);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long) */
+    @Override
+    @CheckForNull
+    public synchronized Columns get(final long theKey) {
+        return overlay(theKey, readTable(theKey) ? table.get(theKey) : null,
+                null, null);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long, long) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey, final long theColumn) {
+        return get(theKey, LongArrayList.from(theColumn));
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long, long[]) */
+    @Override
+    @CheckForNull
+    public Columns get(final long theKey, final long... theColumns) {
+        return get(theKey, LongArrayList.from(theColumns));
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long,
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @CheckForNull
+    public synchronized Columns get(final long theKey,
+            final LongArrayList theColumns) {
+        return overlay(theKey,
+                readTable(theKey) ? table.get(theKey, theColumns) : null,
+                null, theColumns);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @CheckForNull
+    public synchronized Columns get(final long theKey, final Range theColumns) {
+        return overlay(theKey,
+                readTable(theKey) ? table.get(theKey, theColumns) : null,
+                theColumns, null);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#get(long,
+     * com.blockwithme.longdb.Range, com.blockwithme.longdb.ColumnVisitor) */
+    @Override
+    public synchronized int get(final long theKey, final Range theColumns,
+            final ColumnVisitor theVisitor) {
+        flush(theKey);
+        return table.get(theKey, theColumns, theVisitor);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#getLimited(long, int) */
+    @Override
+    @CheckForNull
+    public synchronized Columns getLimited(final long theKey,
+            final int theCount) {
+        flush(theKey);
+        return table.getLimited(theKey, theCount);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#keys() */
+    @Override
+    @Nonnull
+    public synchronized Iterator<LongHolder> keys() {
+        flush();
+        return table.keys();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#keys(com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public synchronized Iterator<LongHolder> keys(final Range theRows) {
+        flush();
+        return table.keys(theRows);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#multiGet(long[],
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    @Nonnull
+    public synchronized LongObjectOpenHashMap<Columns> multiGet(
+            final long[] theKeys, final LongArrayList theColumns) {
+        final LongObjectOpenHashMap<Columns> result = table.multiGet(theKeys,
+                theColumns);
+        for (final long key : theKeys) {
+            if (pending.containsKey(key)) {
+                final Columns row = overlay(key,
+                        readTable(key) ? result.get(key) : null, null,
+                        theColumns);
+                if (row == null)
+                    result.remove(key);
+                else
+                    result.put(key, row);
+            }
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#multiGet(long[],
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public synchronized LongObjectOpenHashMap<Columns> multiGet(
+            final long[] theKeys, final Range theColumns) {
+        final LongObjectOpenHashMap<Columns> result = table.multiGet(theKeys,
+                theColumns);
+        for (final long key : theKeys) {
+            if (pending.containsKey(key)) {
+                final Columns row = overlay(key,
+                        readTable(key) ? result.get(key) : null, theColumns,
+                        null);
+                if (row == null)
+                    result.remove(key);
+                else
+                    result.put(key, row);
+            }
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long) */
+    @Override
+    public void remove(final long theKey) {
+        remove(theKey, FULL_RANGE);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long, long[]) */
+    @Override
+    public void remove(final long theKey, final long... theRemoveIds) {
+        remove(theKey, LongArrayList.from(theRemoveIds));
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long,
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    public synchronized void remove(final long theKey,
+            final LongArrayList theRemoveIds) {
+        if (theRemoveIds.isEmpty())
+            return;
+        pending(theKey).remove(theRemoveIds);
+        flushIfFull();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#remove(long,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    public synchronized void remove(final long theKey,
+            final Range theRemoveIdRange) {
+        if (theRemoveIdRange.empty())
+            return;
+        pending(theKey).remove(theRemoveIdRange);
+        flushIfFull();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#reverse() */
+    @Override
+    public boolean reverse() {
+        return table.reverse();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#reverseSupported() */
+    @Override
+    public boolean reverseSupported() {
+        return table.reverseSupported();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#scan(com.blockwithme.longdb.Range,
+     * com.blockwithme.longdb.Range) */
+    @Override
+    @Nonnull
+    public synchronized Iterator<LongObjectCursor<Columns>> scan(
+            final Range theRows, final Range theColumns) {
+        flush();
+        return table.scan(theRows, theColumns);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns) */
+    @Override
+    public synchronized void set(final long theKey,
+            final Columns theInsertOrUpdate) {
+        pending(theKey).set(theInsertOrUpdate);
+        flushIfFull();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns, long[]) */
+    @Override
+    public void set(final long theKey, final Columns theInsertOrUpdate,
+            final long... theRemoveIds) {
+        set(theKey, theInsertOrUpdate, LongArrayList.from(theRemoveIds));
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns, com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    public synchronized void set(final long theKey,
+            final Columns theInsertOrUpdate, final LongArrayList theRemoveIds) {
+        final Pending row = pending(theKey);
+        row.remove(theRemoveIds);
+        row.set(theInsertOrUpdate);
+        flushIfFull();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#set(long,
+     * com.blockwithme.longdb.Columns, com.blockwithme.longdb.Range) */
+    @Override
+    public synchronized void set(final long theKey,
+            final Columns theInsertOrUpdate, final Range theRemoveRange) {
+        final Pending row = pending(theKey);
+        row.remove(theRemoveRange);
+        row.set(theInsertOrUpdate);
+        flushIfFull();
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.BETable#setAll(com.carrotsearch.hppc.
+     * LongObjectOpenHashMap) */
+    @Override
+    public synchronized void setAll(final LongObjectOpenHashMap<Columns> theRows) {
+        for (final LongObjectCursor<Columns> cursor : theRows) {
+            pending(cursor.key).set(cursor.value);
+        }
+        flushIfFull();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#size() */
+    @Override
+    public synchronized long size() {
+        flush();
+        return table.size();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#splitKeys(int) */
+    @Override
+    @Nonnull
+    public synchronized Range[] splitKeys(final int theParts) {
+        flush();
+        return table.splitKeys(theParts);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#table() */
+    @Override
+    public Base36 table() {
+        return table.table();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.BETable#threadSafe() */
+    @Override
+    public boolean threadSafe() {
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString() */
+    @Override
+    public String toString() {
+        return "WriteBehindBETable(" + table + ")";
+    }
+}
@@ -23,4 +23,11 @@ public interface BDBConstants {
 
     /** The project home. */
     String PROJECT_NAME = "BerkeleyDBImpl";
+
+    /** The suffix of the BDB database name of a reverse table. */
+    String REVERSE_SUFFIX = ".reverse";
+
+    /** The name of the BDB database of the row counts of the tables. It is
+     * not a valid table name. */
+    String ROW_COUNTS = "$rowcounts";
 }
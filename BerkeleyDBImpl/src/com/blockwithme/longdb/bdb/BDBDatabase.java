@@ -15,6 +15,10 @@
  ******************************************************************************/
 package com.blockwithme.longdb.bdb;
 
+import static com.blockwithme.longdb.bdb.BDBConstants.REVERSE_SUFFIX;
+import static com.blockwithme.longdb.bdb.BDBConstants.ROW_COUNTS;
+
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 
@@ -27,7 +31,9 @@ import com.blockwithme.longdb.BETableProfile;
 import com.blockwithme.longdb.base.AbstractDatabase;
 import com.blockwithme.longdb.entities.Base36;
 import com.blockwithme.longdb.exception.DBException;
+import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.Transaction;
 import com.sleepycat.je.TransactionConfig;
@@ -45,6 +51,9 @@ public class BDBDatabase extends
     /** DB Environment Represents the Database entity */
     private final Environment dbEnvironment;
 
+    /** The row counts of the tables, opened on first use. */
+    private Database rowCounts;
+
     /** Instantiates a new bDB database.
      * 
      * @param theBackend the Backend instance
@@ -64,6 +73,29 @@ public class BDBDatabase extends
         return dbEnvironment;
     }
 
+    /** Returns the key of the row count of a table.
+     * 
+     * @param theDBName the BDB database name of the table
+     * @return the key */
+    static DatabaseEntry rowCountKey(final String theDBName) {
+        return new DatabaseEntry(theDBName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Returns the BDB database that holds the row count of each table,
+     * under rowCountKey(). The counts are updated in the transactions of the
+     * writes, so they are as durable as the data.
+     * 
+     * @return the row counts database */
+    synchronized Database rowCounts() {
+        if (rowCounts == null) {
+            final DatabaseConfig dbConf = new DatabaseConfig();
+            dbConf.setTransactional(backend.config().transactional());
+            dbConf.setAllowCreate(true);
+            rowCounts = dbEnvironment.openDatabase(null, ROW_COUNTS, dbConf);
+        }
+        return rowCounts;
+    }
+
     /** Closes all the tables and the DB environment. */
     @Override
     protected void closeInternal() {
@@ -77,6 +109,11 @@ public class BDBDatabase extends
             }
         } finally {
             try {
+                synchronized (this) {
+                    if (rowCounts != null)
+                        rowCounts.close();
+                    rowCounts = null;
+                }
                 dbEnvironment.close();
             } catch (final Exception e) {
                 LOG.warn("exception ignored - closeInternal()", e);
@@ -93,12 +130,10 @@ public class BDBDatabase extends
     protected BDBTable createInternal(final Base36 theTable,
             final BETableProfile theProfile) {
         try {
-            /* TODO Setting ReverseKeyComparator is allowed, The issue is while
-             * fetching Table Meta-data BDB doesn't tell which key comparator
-             * was set - workaround could be to find any other meta-data field
-             * where this info could be stored.
-             * (profile.reverseColumnsOrder)config.setBtreeComparator(
-             * ReverseKeyComparator.class); */
+            /* The columns are always stored in ascending order, and read
+             * backward in reverse tables. BDB doesn't tell which key comparator
+             * was set when the table is opened again, so the column order is
+             * kept in the BDB database name instead, see REVERSE_SUFFIX. */
             final BDBTable t = new BDBTable(this, theTable.toFixedString(),
                     theProfile.reverseColumnsOrder());
             t.open();
@@ -134,8 +169,9 @@ public class BDBDatabase extends
         theTable.dropped();
         final Transaction txn = env().beginTransaction(null,
                 TransactionConfig.DEFAULT);
-        env().truncateDatabase(txn, theTable.table().toFixedString(), false);
+        env().removeDatabase(txn, theTable.dbName());
         txn.commit();
+        rowCounts().delete(null, rowCountKey(theTable.dbName()));
     }
 
     /* (non-Javadoc)
@@ -146,7 +182,14 @@ public class BDBDatabase extends
         theTables.clear();
         final List<String> dbNames = dbEnvironment.getDatabaseNames();
         for (final String dbn : dbNames) {
-            theTables.put(Base36.get(dbn), new BDBTable(this, dbn, false));
+            if (dbn.equals(ROW_COUNTS))
+                continue;
+            if (dbn.endsWith(REVERSE_SUFFIX)) {
+                final String name = dbn.substring(0, dbn.length()
+                        - REVERSE_SUFFIX.length());
+                theTables.put(Base36.get(name), new BDBTable(this, name, true));
+            } else
+                theTables.put(Base36.get(dbn), new BDBTable(this, dbn, false));
         }
     }
 }
@@ -15,6 +15,10 @@
  ******************************************************************************/
 package com.blockwithme.longdb.bdb;
 
+import static com.blockwithme.longdb.bdb.BDBConstants.REVERSE_SUFFIX;
+import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES;
+import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES_X_2;
+
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -25,8 +29,11 @@ import javax.annotation.ParametersAreNonnullByDefault;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.blockwithme.longdb.ColumnVisitor;
 import com.blockwithme.longdb.Columns;
 import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.base.AbstractColumnScanner;
+import com.blockwithme.longdb.base.AbstractRowScanner;
 import com.blockwithme.longdb.base.AbstractTable;
 import com.blockwithme.longdb.entities.Base36;
 import com.blockwithme.longdb.entities.Bytes;
@@ -35,6 +42,7 @@ import com.blockwithme.longdb.exception.DBException;
 import com.carrotsearch.hppc.LongArrayList;
 import com.carrotsearch.hppc.LongObjectOpenHashMap;
 import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
@@ -43,7 +51,10 @@ import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
 import com.sleepycat.je.TransactionConfig;
 
-/** The BerkeleyDB implementation of BETable interface. */
+/** The BerkeleyDB implementation of BETable interface. The number of rows is
+ * maintained in a separate BDB database, see BDBDatabase.rowCounts(), and
+ * updated in the transaction of every mutation that creates or empties a
+ * row, so size() needs no scan. */
 @ParametersAreNonnullByDefault
 @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "CD_CIRCULAR_DEPENDENCY", justification = "This is our base class design")
 public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
@@ -76,8 +87,8 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
      *        order */
     protected BDBTable(final BDBDatabase theDB, final String theDataName,
             final boolean isReverse) {
-        super(theDB, Base36.get(theDataName), false, false);
-        dbName = theDataName;
+        super(theDB, Base36.get(theDataName), isReverse, false);
+        dbName = isReverse ? theDataName + REVERSE_SUFFIX : theDataName;
         final BDBConfig config = theDB.backend().config();
         lm = config.lockMode();
         transactional = config.transactional();
@@ -103,6 +114,25 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         }
     }
 
+    /** Adds to the row count of the table, within the transaction of the
+     * mutation that changed the number of rows.
+     * 
+     * @param theDelta the change of the number of rows
+     * @param theTransaction the transaction object */
+    private void addRows(final long theDelta,
+            @Nullable final Transaction theTransaction) {
+        if (theDelta == 0)
+            return;
+        final Database counts = database.rowCounts();
+        final DatabaseEntry key = BDBDatabase.rowCountKey(dbName);
+        final DatabaseEntry value = new DatabaseEntry();
+        final long count = (counts.get(theTransaction, key, value,
+                LockMode.RMW) == SUCCESS) ? DataConversionUtil.toLong(value
+                .getData()) : 0;
+        counts.put(theTransaction, key,
+                DataConversionUtil.longtoEntry(count + theDelta));
+    }
+
     /** Checks search status and if current cursor key is less or equal to end
      * range key */
     private boolean checkSearch(final OperationStatus theStatus,
@@ -146,6 +176,18 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         }
     }
 
+    /** Updates the row count, if a mutation created or emptied a row.
+     * 
+     * @param theKey the row key
+     * @param isExisting true, if the row had columns before the mutation
+     * @param theTransaction the transaction object of the mutation */
+    private void countRow(final long theKey, final boolean isExisting,
+            @Nullable final Transaction theTransaction) {
+        final boolean exists = rowExists(theKey, theTransaction);
+        if (exists != isExisting)
+            addRows(exists ? 1 : -1, theTransaction);
+    }
+
     /** Deletes data. */
     private void deleteData(final long theKey, final Cursor theCursor,
             final Transaction theTransaction, final long theColumnId) {
@@ -241,6 +283,317 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
             return null;
     }
 
+    /** Reads a page of the column Ids of a row from its row header, whose
+     * duplicates are the column Ids, so that no column value is read. Each
+     * page is read with its own short-lived cursor, starting after the last
+     * column Id of the previous page. The Ids come in the order of the
+     * duplicates, or in the opposite order in a reverse table, like in
+     * columnsInternal().
+     * 
+     * @param theKey the row key
+     * @param isFirst true, if the first page is read
+     * @param theLast the last column Id of the previous pages
+     * @param theColIds receives the column Ids
+     * @param theLimit the maximum number of column Ids
+     * @return true, if the row may have more columns than theLimit */
+    private boolean readColumnIds(final long theKey, final boolean isFirst,
+            final long theLast, final LongArrayList theColIds,
+            final int theLimit) {
+        final DatabaseEntry rowEntry = entry(theKey, null);
+        final DatabaseEntry colEntry = isFirst ? new DatabaseEntry() : entry(
+                null, theLast);
+        final Transaction txn = newTransaction();
+        final Cursor cur = newCursor(txn);
+        try {
+            OperationStatus s;
+            if (isFirst) {
+                s = reverse ? searchLastDup(cur, theKey, rowEntry, colEntry)
+                        : cur.getSearchKey(rowEntry, colEntry, lm);
+            } else {
+                // Finds theLast, or the first column Id after it, if it was
+                // removed in the meantime.
+                s = cur.getSearchBothRange(rowEntry, colEntry, lm);
+                if (reverse) {
+                    s = (s == SUCCESS) ? cur.getPrevDup(rowEntry, colEntry, lm)
+                            : searchLastDup(cur, theKey, rowEntry, colEntry);
+                } else if (s == SUCCESS
+                        && DataConversionUtil.toLong(colEntry.getData()) == theLast) {
+                    s = cur.getNextDup(rowEntry, colEntry, lm);
+                }
+            }
+            int count = 0;
+            while (s == SUCCESS) {
+                theColIds.add(DataConversionUtil.toLong(colEntry.getData()));
+                if (++count == theLimit)
+                    return true;
+                s = reverse ? cur.getPrevDup(rowEntry, colEntry, lm) : cur
+                        .getNextDup(rowEntry, colEntry, lm);
+            }
+            return false;
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - readColumnIds(long key="
+                    + theKey + ", boolean first=" + isFirst + ", long last="
+                    + theLast + ")", e);
+            abortClose(txn, cur);
+            throw new DBException("Error performing Column Id Search.", e);
+        } finally {
+            commitClose(txn, cur);
+        }
+    }
+
+    /** Reads some columns of a row, using an already opened cursor.
+     * 
+     * @param theKey the row key
+     * @param theSortedColumns the column Ids, in ascending order
+     * @param theCursor the cursor
+     * @param theMap the map receiving the column values */
+    private void readInList(final long theKey, final long[] theSortedColumns,
+            final Cursor theCursor, final LongObjectOpenHashMap<Bytes> theMap) {
+        final DatabaseEntry dataEntry = new DatabaseEntry();
+        for (final long colID : theSortedColumns) {
+            final DatabaseEntry currentEntry = entry(theKey, colID);
+            final OperationStatus s = theCursor.getSearchKey(currentEntry,
+                    dataEntry, lm);
+            if (s == OperationStatus.SUCCESS) {
+                final long columnId = DataConversionUtil
+                        .splitColumn(currentEntry.getData());
+                theMap.put(columnId, new Bytes(dataEntry.getData()));
+            }
+        }
+    }
+
+    /** Reads a range of columns of a row, using an already opened cursor.
+     * 
+     * @param theKey the row key
+     * @param theRange the range of column Ids
+     * @param theCursor the cursor
+     * @param theMap the map receiving the column values */
+    private void readInRange(final long theKey, final Range theRange,
+            final Cursor theCursor, final LongObjectOpenHashMap<Bytes> theMap) {
+        long currentColumn = theRange.start();
+        final DatabaseEntry endEntry = entry(theKey, theRange.end());
+        final DatabaseEntry dataEntry = new DatabaseEntry();
+
+        while (true) { // $codepro.audit.disable
+                       // constantConditionalExpression
+            final DatabaseEntry currentEntry = entry(theKey, currentColumn);
+            final OperationStatus s = theCursor.getSearchKeyRange(
+                    currentEntry, dataEntry, lm);
+            if (checkSearch(s, theCursor.getDatabase(), currentEntry, endEntry)) {
+                final long columnId = DataConversionUtil
+                        .splitColumn(currentEntry.getData());
+                theMap.put(columnId, new Bytes(dataEntry.getData()));
+                if (columnId == Long.MAX_VALUE)
+                    break;
+                currentColumn = columnId + 1;
+            } else {
+                break;
+            }
+        }
+    }
+
+    /** Reads a page of the rows in a range, with a single cursor, in ascending
+     * key order. Each row is found by searching its row header, and its
+     * columns in theColumns, unless it is null, are read with the same
+     * cursor. The keys of the rows are added to theKeys, and their columns to
+     * theResult.
+     * 
+     * @param theRows the range of row keys
+     * @param theColumns the range of column Ids; null to read the keys only
+     * @param theKeys receives the keys of the rows
+     * @param theResult receives the columns, mapped by row key
+     * @param theLimit the maximum number of rows
+     * @return true, if the range may contain more rows than theLimit */
+    private boolean readRange(final Range theRows,
+            @Nullable final Range theColumns, final LongArrayList theKeys,
+            final LongObjectOpenHashMap<Columns> theResult, final int theLimit) {
+        final Transaction txn = newTransaction();
+        final Cursor cur = newCursor(txn);
+        try {
+            final DatabaseEntry dataEntry = new DatabaseEntry();
+            long row = theRows.start();
+            while (true) { // $codepro.audit.disable
+                           // constantConditionalExpression
+                final DatabaseEntry keyEntry = entry(row, null);
+                if (cur.getSearchKeyRange(keyEntry, dataEntry, lm) != SUCCESS)
+                    return false;
+                row = DataConversionUtil.splitRow(keyEntry.getData());
+                if (row > theRows.end())
+                    return false;
+                if (theKeys.size() == theLimit)
+                    return true;
+                theKeys.add(row);
+                if (theColumns != null) {
+                    final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
+                    readInRange(row, theColumns, cur, map);
+                    if (map.size() > 0)
+                        theResult.put(row, new Columns(map, reverse));
+                }
+                if (row == theRows.end())
+                    return false;
+                row++;
+            }
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - readRange(Range rows=" + theRows
+                    + ", Range cols=" + theColumns + ", int limit=" + theLimit
+                    + ")", e);
+            abortClose(txn, cur);
+            throw new DBException("Error performing Range Scan.", e);
+        } finally {
+            commitClose(txn, cur);
+        }
+    }
+
+    /** Creates a scanner over a range of rows, reading one page at a time
+     * with readRange(). Only the keys are read when theColumns is null.
+     * 
+     * @param theRows the range of row keys
+     * @param theColumns the range of column Ids, or null
+     * @return the scanner */
+    private AbstractRowScanner<BDBTable> scanner(final Range theRows,
+            @Nullable final Range theColumns) {
+        final Range rows = new Range(theRows.start(), theRows.end());
+        return new AbstractRowScanner<BDBTable>(this, theColumns) {
+            @Override
+            protected boolean nextPage(final LongArrayList theKeys,
+                    final LongObjectOpenHashMap<Columns> theResult) {
+                return readRange(rows, columns, theKeys, theResult,
+                        BDBConstants.ITERATOR_LIMIT) && advance(rows, theKeys);
+            }
+        };
+    }
+
+    /** Checks if the cursor key is a row-column pair of the given row.
+     * 
+     * @param theKeyEntry the cursor key
+     * @param theKey the row key
+     * @return true, if the key is a column of the row */
+    private static boolean isColumnOf(final DatabaseEntry theKeyEntry,
+            final long theKey) {
+        return theKeyEntry.getSize() == LONG_BYTES_X_2
+                && DataConversionUtil.splitRow(theKeyEntry.getData()) == theKey;
+    }
+
+    /** Moves the cursor to the last entry lower or equal to a row-column
+     * pair, so that the columns of the row can be read backward with
+     * getPrev().
+     * 
+     * @param theCursor the cursor
+     * @param theKey the row key
+     * @param theColumn the column Id
+     * @param theKeyEntry the key entry will get populated with the key found
+     * @param theDataEntry the data entry will get populated with the data
+     * @return operation status */
+    private OperationStatus searchLast(final Cursor theCursor,
+            final long theKey, final long theColumn,
+            final DatabaseEntry theKeyEntry, final DatabaseEntry theDataEntry) {
+        final byte[] target = DataConversionUtil.combine(theKey, theColumn);
+        theKeyEntry.setData(target);
+        final OperationStatus s = theCursor.getSearchKeyRange(theKeyEntry,
+                theDataEntry, lm);
+        if (s != SUCCESS)
+            return theCursor.getLast(theKeyEntry, theDataEntry, lm);
+        if (KeyComparator.cmp(theKeyEntry.getData(), target) > 0)
+            return theCursor.getPrev(theKeyEntry, theDataEntry, lm);
+        return s;
+    }
+
+    /** Moves the cursor to the last duplicate of a row header, that is the
+     * last column Id of the row in the order of the duplicates. The header is
+     * followed by the row-column pairs of the row, so the cursor moves to the
+     * first one, and then back.
+     * 
+     * @param theCursor the cursor
+     * @param theKey the row key
+     * @param theKeyEntry the key entry will get populated with the row header
+     * @param theDataEntry the data entry will get populated with the column Id
+     * @return operation status */
+    private OperationStatus searchLastDup(final Cursor theCursor,
+            final long theKey, final DatabaseEntry theKeyEntry,
+            final DatabaseEntry theDataEntry) {
+        theKeyEntry.setData(DataConversionUtil.toByta(theKey));
+        OperationStatus s = theCursor.getSearchKey(theKeyEntry, theDataEntry,
+                lm);
+        if (s != SUCCESS)
+            return s;
+        final DatabaseEntry next = new DatabaseEntry();
+        final DatabaseEntry nextData = new DatabaseEntry();
+        nextData.setPartial(0, 0, true);
+        s = theCursor.getNextNoDup(next, nextData, lm);
+        s = (s == SUCCESS) ? theCursor.getPrev(theKeyEntry, theDataEntry, lm)
+                : theCursor.getLast(theKeyEntry, theDataEntry, lm);
+        if (s == SUCCESS
+                && (theKeyEntry.getSize() != LONG_BYTES || DataConversionUtil
+                        .toLong(theKeyEntry.getData()) != theKey))
+            return OperationStatus.NOTFOUND;
+        return s;
+    }
+
+    /** Visits a range of columns of a row, in descending order, using an
+     * already opened cursor.
+     * 
+     * @param theKey the row key
+     * @param theRange the range of column Ids
+     * @param theCursor the cursor
+     * @param theVisitor the visitor
+     * @return the number of columns visited */
+    private int visitDescending(final long theKey, final Range theRange,
+            final Cursor theCursor, final ColumnVisitor theVisitor) {
+        final DatabaseEntry keyEntry = new DatabaseEntry();
+        final DatabaseEntry dataEntry = new DatabaseEntry();
+        int count = 0;
+        OperationStatus s = searchLast(theCursor, theKey, theRange.end(),
+                keyEntry, dataEntry);
+        while (s == SUCCESS && isColumnOf(keyEntry, theKey)) {
+            final long columnId = DataConversionUtil.splitColumn(keyEntry
+                    .getData());
+            if (columnId < theRange.start())
+                break;
+            count++;
+            if (!theVisitor.visit(columnId, dataEntry.getData(),
+                    dataEntry.getOffset(), dataEntry.getSize()))
+                break;
+            s = theCursor.getPrev(keyEntry, dataEntry, lm);
+        }
+        return count;
+    }
+
+    /** Visits a range of columns of a row, in table order, using an already
+     * opened cursor.
+     * 
+     * @param theKey the row key
+     * @param theRange the range of column Ids
+     * @param theCursor the cursor
+     * @param theVisitor the visitor
+     * @return the number of columns visited */
+    private int visitInRange(final long theKey, final Range theRange,
+            final Cursor theCursor, final ColumnVisitor theVisitor) {
+        if (reverse)
+            return visitDescending(theKey, theRange, theCursor, theVisitor);
+        long currentColumn = theRange.start();
+        final DatabaseEntry endEntry = entry(theKey, theRange.end());
+        final DatabaseEntry dataEntry = new DatabaseEntry();
+        int count = 0;
+        while (true) { // $codepro.audit.disable
+                       // constantConditionalExpression
+            final DatabaseEntry currentEntry = entry(theKey, currentColumn);
+            final OperationStatus s = theCursor.getSearchKeyRange(
+                    currentEntry, dataEntry, lm);
+            if (!checkSearch(s, theCursor.getDatabase(), currentEntry,
+                    endEntry))
+                break;
+            final long columnId = DataConversionUtil.splitColumn(currentEntry
+                    .getData());
+            count++;
+            if (!theVisitor.visit(columnId, dataEntry.getData(),
+                    dataEntry.getOffset(), dataEntry.getSize())
+                    || columnId == Long.MAX_VALUE)
+                break;
+            currentColumn = columnId + 1;
+        }
+        return count;
+    }
+
     /** Removes the in list.
      * 
      * @param theKey the key
@@ -294,46 +647,73 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         }
     }
 
+    /** Checks if a row has columns, by reading its row header only.
+     * 
+     * @param theKey the row key
+     * @param theTransaction the transaction object
+     * @return true, if the row has columns */
+    private boolean rowExists(final long theKey,
+            @Nullable final Transaction theTransaction) {
+        final DatabaseEntry data = new DatabaseEntry();
+        data.setPartial(0, 0, true);
+        return dbInstance.get(theTransaction, entry(theKey, null), data,
+                lm) == SUCCESS;
+    }
+
+    /** Writes the columns of one row, using an already opened cursor. The
+     * transaction is neither committed nor aborted here.
+     * 
+     * @param theKey the key
+     * @param theInsertUpdateColumns the insert or update
+     * @param theTransaction the transaction object
+     * @param theCursor the cursor */
+    private void putColumns(final long theKey,
+            final Columns theInsertUpdateColumns,
+            final Transaction theTransaction, final Cursor theCursor) {
+        final int size = theInsertUpdateColumns.size();
+        for (int i = 0; i < size; i++) {
+            final long colId = theInsertUpdateColumns.columnAt(i);
+            final DatabaseEntry keyEntry = entry(theKey, colId);
+            final Bytes byts = theInsertUpdateColumns.getBytes(colId);
+            assert (byts != null);
+            final DatabaseEntry valueEntry = new DatabaseEntry(
+                    byts.toArray(false));
+
+            final OperationStatus s = theCursor.getSearchKey(keyEntry,
+                    new DatabaseEntry(), lm);
+
+            if (s == SUCCESS) {
+                // this means row/column combination already exists.
+                theCursor.delete(); // delete is necessary to ensure duplicate
+                // is not inserted.
+                theCursor.put(keyEntry, valueEntry);
+            } else {
+                // this means we have to create a new row/column
+                // combination.
+                // insert row_col_combination => blob (duplicates allowed)
+                theCursor.put(keyEntry, valueEntry);
+                // insert rowId => col_id (duplicates allowed)
+                final DatabaseEntry keyOnly = entry(theKey, null);
+                final DatabaseEntry colIDOnly = entry(null, colId);
+                dbInstance.put(theTransaction, keyOnly, colIDOnly);
+            }
+        }
+    }
+
     /* Method for update/insert row-column combination */
     /** Sets the only.
      * 
      * @param theKey the key
      * @param theInsertUpdateColumns the insert or update
+     * @param isExisting true, if the row had columns before the mutation
      * @param theTransaction the transaction object */
     private void setOnly(final long theKey,
-            final Columns theInsertUpdateColumns,
+            final Columns theInsertUpdateColumns, final boolean isExisting,
             final Transaction theTransaction) {
         final Cursor cur = newCursor(theTransaction);
         try {
-
-            for (final LongHolder longCursor : theInsertUpdateColumns) {
-                final DatabaseEntry keyEntry = entry(theKey, longCursor.value());
-                final Bytes byts = theInsertUpdateColumns.getBytes(longCursor
-                        .value());
-                assert (byts != null);
-                final DatabaseEntry valueEntry = new DatabaseEntry(
-                        byts.toArray(false));
-
-                final OperationStatus s = cur.getSearchKey(keyEntry,
-                        new DatabaseEntry(), lm);
-
-                if (s == SUCCESS) {
-                    // this means row/column combination already exists.
-                    cur.delete(); // delete is necessary to ensure duplicate is
-                    // not inserted.
-                    cur.put(keyEntry, valueEntry);
-                } else {
-                    // this means we have to create a new row/column
-                    // combination.
-                    // insert row_col_combination => blob (duplicates allowed)
-                    cur.put(keyEntry, valueEntry);
-                    // insert rowId => col_id (duplicates allowed)
-                    final DatabaseEntry keyOnly = entry(theKey, null);
-                    final DatabaseEntry colIDOnly = entry(null,
-                            longCursor.value());
-                    dbInstance.put(theTransaction, keyOnly, colIDOnly);
-                }
-            }
+            putColumns(theKey, theInsertUpdateColumns, theTransaction, cur);
+            countRow(theKey, isExisting, theTransaction);
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - setOnly(long key=" + theKey
                     + ", Columns insertOrUpdate=" + theInsertUpdateColumns
@@ -398,6 +778,15 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
                 cols.add(columnId);
                 s = getNext(cur, rowEntry, ve, true);
             }
+            if (reverse) {
+                // the duplicates are sorted in ascending order.
+                final long[] buffer = cols.buffer;
+                for (int i = 0, j = cols.size() - 1; i < j; i++, j--) {
+                    final long tmp = buffer[i];
+                    buffer[i] = buffer[j];
+                    buffer[j] = tmp;
+                }
+            }
             if (cols.size() > 0)
                 return cols;
         } catch (final Exception e) {
@@ -417,33 +806,27 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
     @Override
     @CheckForNull
     protected Iterator<LongHolder> columnsIteratorInternal(final long theKey) {
-        final LongArrayList list = columnsInternal(theKey);
-        if (list != null)
-            return new Iterator<LongHolder>() {
-                /** The LongHolder */
-                private final LongHolder holder = new LongHolder();
-
-                /** The real iterator. */
-                private final Iterator<LongCursor> iter = list.iterator();
-
-                @Override
-                public boolean hasNext() {
-                    return iter.hasNext();
-                }
-
-                @Override
-                public final LongHolder next() {
-                    final LongCursor next = iter.next();
-                    holder.value(next.value);
-                    return holder;
-                }
+        return new AbstractColumnScanner<BDBTable>(this, theKey) {
+            @Override
+            protected boolean nextPage(final boolean isFirst,
+                    final long theLast, final LongArrayList theIds) {
+                return readColumnIds(key, isFirst, theLast, theIds, PAGE_SIZE);
+            }
+        }.orNull();
+    }
 
-                @Override
-                public void remove() {
-                    iter.remove();
-                }
-            };
-        return null;
+    /* (non-Javadoc) Reads no data: the partial entry only positions on the
+     * first column of the row. *
+     * @see com.blockwithme.longdb.base.AbstractTable#existsInternal(long) */
+    @Override
+    protected boolean existsInternal(final long theKey) {
+        try {
+            return rowExists(theKey, null);
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - existsInternal(long key="
+                    + theKey + ")", e);
+            throw new DBException("Error performing Exists", e);
+        }
     }
 
     /* (non-Javadoc)
@@ -470,18 +853,7 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         final Transaction txn = newTransaction();
         final Cursor cur = newCursor(txn);
         try {
-            final DatabaseEntry dataEntry = new DatabaseEntry();
-            for (final long colID : colIDs) {
-                final DatabaseEntry currentEntry = entry(theKey, colID);
-                final OperationStatus s = cur.getSearchKey(currentEntry,
-                        dataEntry, lm);
-                if (s == OperationStatus.SUCCESS) {
-                    final long columnId = DataConversionUtil
-                            .splitColumn(currentEntry.getData());
-                    map.put(columnId, new Bytes(dataEntry.getData()));
-                }
-            }
-
+            readInList(theKey, colIDs, cur, map);
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - getInternal(long key=" + theKey
                     + ", LongArrayList cols=" + theColumns + ")", e);
@@ -490,7 +862,7 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         } finally {
             commitClose(txn, cur);
         }
-        return new Columns(map, false);
+        return new Columns(map, reverse);
     }
 
     /* (non-Javadoc)
@@ -512,26 +884,9 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         final Transaction txn = newTransaction();
         final Cursor cur = newCursor(txn);
         try {
-            long currentColumn = theRange.start();
-            final DatabaseEntry endEntry = entry(theKey, theRange.end());
-            final DatabaseEntry dataEntry = new DatabaseEntry();
-
-            while (true) { // $codepro.audit.disable
-                           // constantConditionalExpression
-                final DatabaseEntry currentEntry = entry(theKey, currentColumn);
-                final OperationStatus s = cur.getSearchKeyRange(currentEntry,
-                        dataEntry, lm);
-                if (checkSearch(s, cur.getDatabase(), currentEntry, endEntry)) {
-                    final long columnId = DataConversionUtil
-                            .splitColumn(currentEntry.getData());
-                    currentColumn = columnId + 1;
-                    map.put(columnId, new Bytes(dataEntry.getData()));
-                } else {
-                    break;
-                }
-            }
+            readInRange(theKey, theRange, cur, map);
             if (map.size() > 0)
-                return new Columns(map, false);
+                return new Columns(map, reverse);
 
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - getInternal(long key=" + theKey
@@ -544,6 +899,28 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         return null;
     }
 
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractTable#getInternal(long,
+     * com.blockwithme.longdb.Range, com.blockwithme.longdb.ColumnVisitor) */
+    @Override
+    protected int getInternal(final long theKey, final Range theRange,
+            final ColumnVisitor theVisitor) {
+        if (theRange.empty())
+            return 0;
+        final Transaction txn = newTransaction();
+        final Cursor cur = newCursor(txn);
+        try {
+            return visitInRange(theKey, theRange, cur, theVisitor);
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - getInternal(long key=" + theKey
+                    + ", Range rng=" + theRange + ", ColumnVisitor visitor="
+                    + theVisitor + ")", e);
+            throw new DBException("Error performing Select In Range Search.", e);
+        } finally {
+            commitClose(txn, cur);
+        }
+    }
+
     /* (non-Javadoc)
      * @see com.blockwithme.longdb.base.AbstractTable#keysInternal() */
     @Override
@@ -551,6 +928,86 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         return new BDBKeyIterator(this);
     }
 
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#keysInternal(com.blockwithme
+     * .longdb.Range) */
+    @Override
+    protected Iterator<LongHolder> keysInternal(final Range theRows) {
+        return scanner(theRows, null).keys();
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractTable#multiGetInternal(long[],
+     * com.carrotsearch.hppc.LongArrayList) */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final LongArrayList theColumns) {
+        /** All rows are read in ascending key order, with a single cursor. */
+        final long[] keys = theKeys.clone();
+        Arrays.sort(keys);
+        final long[] colIDs = theColumns.toArray();
+        Arrays.sort(colIDs);
+        final LongObjectOpenHashMap<Columns> result = new LongObjectOpenHashMap<Columns>();
+        final Transaction txn = newTransaction();
+        final Cursor cur = newCursor(txn);
+        try {
+            for (final long key : keys) {
+                final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
+                readInList(key, colIDs, cur, map);
+                if (map.size() > 0)
+                    result.put(key, new Columns(map, reverse));
+            }
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - multiGetInternal(long[] keys="
+                    + Arrays.toString(theKeys) + ", LongArrayList cols="
+                    + theColumns + ")", e);
+            abortClose(txn, cur);
+            throw new DBException("Error Select In List Search.", e);
+        } finally {
+            commitClose(txn, cur);
+        }
+        return result;
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractTable#multiGetInternal(long[],
+     * com.blockwithme.longdb.Range) */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final Range theRange) {
+        /** All rows are read in ascending key order, with a single cursor. */
+        final long[] keys = theKeys.clone();
+        Arrays.sort(keys);
+        final LongObjectOpenHashMap<Columns> result = new LongObjectOpenHashMap<Columns>();
+        final Transaction txn = newTransaction();
+        final Cursor cur = newCursor(txn);
+        try {
+            for (final long key : keys) {
+                final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
+                readInRange(key, theRange, cur, map);
+                if (map.size() > 0)
+                    result.put(key, new Columns(map, reverse));
+            }
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - multiGetInternal(long[] keys="
+                    + Arrays.toString(theKeys) + ", Range rng=" + theRange
+                    + ")", e);
+            abortClose(txn, cur);
+            throw new DBException("Error performing Select In Range Search.", e);
+        } finally {
+            commitClose(txn, cur);
+        }
+        return result;
+    }
+
+    /** Returns the name of the BDB database of this table.
+     * 
+     * @return the BDB database name */
+    String dbName() {
+        return dbName;
+    }
+
     /* (non-Javadoc)
      * @see com.blockwithme.longdb.base.AbstractTable#openInternal() */
     @Override
@@ -558,6 +1015,10 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         dbInstance = database.env().openDatabase(null, this.dbName,
                 database.dbConfig());
         closed = false;
+        // Older databases have no row count; it is counted once.
+        if (database.rowCounts().get(null, BDBDatabase.rowCountKey(dbName),
+                new DatabaseEntry(), lm) != SUCCESS)
+            recountInternal();
     }
 
     /* (non-Javadoc)
@@ -568,7 +1029,9 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
             final LongArrayList theRemoveCols) {
         final Transaction txn = newTransaction();
         try {
+            final boolean existed = rowExists(theKey, txn);
             removeInList(theKey, theRemoveCols, txn);
+            countRow(theKey, existed, txn);
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - removeInternal(long key="
                     + theKey + ", LongArrayList remove=" + theRemoveCols + ")",
@@ -589,7 +1052,9 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
             return;
         final Transaction txn = newTransaction();
         try {
+            final boolean existed = rowExists(theKey, txn);
             removeInRange(theKey, theRemoveCols, txn);
+            countRow(theKey, existed, txn);
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - removeInternal(long key="
                     + theKey + ", Range remove=" + theRemoveCols + ")", e);
@@ -602,6 +1067,16 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         }
     }
 
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#scanInternal(com.blockwithme
+     * .longdb.Range, com.blockwithme.longdb.Range) */
+    @Override
+    protected Iterator<LongObjectCursor<Columns>> scanInternal(
+            final Range theRows, final Range theColumns) {
+        return scanner(theRows, theColumns);
+    }
+
     /* (non-Javadoc)
      * @see com.blockwithme.longdb.base.AbstractTable#setInternal(long,
      * com.blockwithme.longdb.Columns, com.carrotsearch.hppc.LongArrayList) */
@@ -611,8 +1086,9 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
             final LongArrayList theRemoveCols) {
         final Transaction txn = newTransaction();
         try {
+            final boolean existed = rowExists(theKey, txn);
             removeInList(theKey, theRemoveCols, txn);
-            setOnly(theKey, theInsertUpdateColumns, txn);
+            setOnly(theKey, theInsertUpdateColumns, existed, txn);
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - setInternal(long key=" + theKey
                     + ", Columns insertOrUpdate=" + theInsertUpdateColumns
@@ -632,8 +1108,9 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
             final Columns theInsertUpdateColumns, final Range theRemoveCols) {
         final Transaction txn = newTransaction();
         try {
+            final boolean existed = rowExists(theKey, txn);
             removeInRange(theKey, theRemoveCols, txn);
-            setOnly(theKey, theInsertUpdateColumns, txn);
+            setOnly(theKey, theInsertUpdateColumns, existed, txn);
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - setInternal(long key=" + theKey
                     + ", Columns insertOrUpdate=" + theInsertUpdateColumns
@@ -646,23 +1123,94 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
     }
 
     /* (non-Javadoc)
-     * @see com.blockwithme.longdb.base.AbstractTable#sizeInternal() */
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#setAllInternal(com.carrotsearch
+     * .hppc.LongObjectOpenHashMap) */
     @Override
-    protected long sizeInternal() {
-        /** Iterates over keys to get number of rows. TODO: for better
-         * performance maintain special key-value pairs for row counter. */
+    protected void setAllInternal(final LongObjectOpenHashMap<Columns> theRows) {
+        /** All rows are written in a single transaction, through a single
+         * cursor. */
+        final Transaction txn = newTransaction();
+        final Cursor cur = newCursor(txn);
         try {
-            long count = 0;
-            final Iterator<LongHolder> itr = this.keys();
-            while (itr.hasNext()) {
-                itr.next();
-                count++;
+            long created = 0;
+            for (final LongObjectCursor<Columns> row : theRows) {
+                if (row.value.size() > 0 && !rowExists(row.key, txn))
+                    created++;
+                putColumns(row.key, row.value, txn, cur);
             }
+            addRows(created, txn);
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - setAllInternal("
+                    + "LongObjectOpenHashMap<Columns> rows=" + theRows + ")", e);
+            abortClose(txn, cur);
+            throw new DBException("Exception while updating data.", e);
+        } finally {
+            commitClose(txn, cur);
+        }
+    }
+
+    /** Counts the keys, and stores the row count.
+     * 
+     * @return the number of rows */
+    @Override
+    protected long recountInternal() {
+        try {
+            final long count = super.recountInternal();
+            database.rowCounts().put(null, BDBDatabase.rowCountKey(dbName),
+                    DataConversionUtil.longtoEntry(count));
             return count;
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - recountInternal()", e);
+            throw new DBException("Error counting rows.", e);
+        }
+    }
+
+    /* (non-Javadoc) Reads the maintained row count.
+     * @see com.blockwithme.longdb.base.AbstractTable#sizeInternal() */
+    @Override
+    protected long sizeInternal() {
+        final DatabaseEntry value = new DatabaseEntry();
+        try {
+            if (database.rowCounts().get(null,
+                    BDBDatabase.rowCountKey(dbName), value, lm) == SUCCESS)
+                return DataConversionUtil.toLong(value.getData());
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - sizeInternal()", e);
             throw new DBException("Error obtaining row count.", e);
         }
+        return recountInternal();
+    }
+
+    /** Splits the keys between the first and the last row key, found at both
+     * ends of the B-tree with a single cursor. Berkeley DB JE has no
+     * estimate of the number of keys within a key range, so the keys are
+     * assumed to be evenly distributed between the two.
+     * 
+     * @param theParts the wanted number of ranges
+     * @return the ranges */
+    @Override
+    protected Range[] splitKeysInternal(final int theParts) {
+        final Transaction txn = newTransaction();
+        final Cursor cur = newCursor(txn);
+        try {
+            final DatabaseEntry keyEntry = new DatabaseEntry();
+            final DatabaseEntry dataEntry = new DatabaseEntry();
+            if (cur.getFirst(keyEntry, dataEntry, lm) != SUCCESS)
+                return new Range[] { Range.fullRange() };
+            final long first = DataConversionUtil.splitRow(keyEntry.getData());
+            if (cur.getLast(keyEntry, dataEntry, lm) != SUCCESS)
+                return new Range[] { Range.fullRange() };
+            final long last = DataConversionUtil.splitRow(keyEntry.getData());
+            return split(first, last, theParts);
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - splitKeysInternal(int parts="
+                    + theParts + ")", e);
+            abortClose(txn, cur);
+            throw new DBException("Error estimating the key distribution.", e);
+        } finally {
+            commitClose(txn, cur);
+        }
     }
 
     /** Database instance. */
@@ -686,32 +1234,31 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
             return null;
         }
 
-        DatabaseEntry rowEntry = entry(theKey, null);
+        final DatabaseEntry rowEntry = new DatabaseEntry();
         final DatabaseEntry valueEntry = new DatabaseEntry();
         final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
         final Transaction txn = newTransaction();
         final Cursor cur = newCursor(txn);
-        OperationStatus s = cur.getSearchKey(rowEntry, valueEntry, lm);
         try {
-            if (s == SUCCESS) {
-                final long column = DataConversionUtil.toLong(valueEntry
-                        .getData());
-                rowEntry = entry(theKey, column);
-                int currCount = 0;
-                s = cur.getSearchKey(rowEntry, valueEntry, lm);
-                while (SUCCESS == s) {
-                    final long columnId = DataConversionUtil
-                            .splitColumn(rowEntry.getData());
-                    final long rowId = DataConversionUtil.splitRow(rowEntry
-                            .getData());
-                    if (rowId == theKey)
-                        map.put(columnId, new Bytes(valueEntry.getData()));
-                    if (++currCount >= theCount)
-                        break;
-                    getNext(cur, rowEntry, valueEntry, false);
-                }
+            // The cursor walks the row in table order, and stops after
+            // theCount columns, so only the first columns of a wide row are
+            // read.
+            OperationStatus s;
+            if (reverse) {
+                s = searchLast(cur, theKey, Long.MAX_VALUE, rowEntry,
+                        valueEntry);
+            } else {
+                rowEntry.setData(DataConversionUtil.combine(theKey,
+                        Long.MIN_VALUE));
+                s = cur.getSearchKeyRange(rowEntry, valueEntry, lm);
+            }
+            while (s == SUCCESS && map.size() < theCount
+                    && isColumnOf(rowEntry, theKey)) {
+                map.put(DataConversionUtil.splitColumn(rowEntry.getData()),
+                        new Bytes(valueEntry.getData()));
+                s = reverse ? cur.getPrev(rowEntry, valueEntry, lm) : getNext(
+                        cur, rowEntry, valueEntry, false);
             }
-
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - getLimited(long key=" + theKey
                     + ", int count=" + theCount + ")", e);
@@ -720,14 +1267,16 @@ public class BDBTable extends AbstractTable<BDBBackend, BDBDatabase, BDBTable> {
         } finally {
             commitClose(txn, cur);
         }
-        return new Columns(map, false);
+        if (map.size() > 0)
+            return new Columns(map, reverse);
+        return null;
     }
 
     /* (non-Javadoc)
      * @see com.blockwithme.longdb.BETable#reverseSupported() */
     @Override
     public boolean reverseSupported() {
-        return false;
+        return true;
     }
 
 }
@@ -26,8 +26,6 @@ import static com.blockwithme.longdb.common.constants.ByteConstants.B_TWO_BYTES;
 import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES;
 import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES_X_2;
 
-import java.util.Arrays;
-
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import com.google.common.base.Preconditions;
@@ -43,9 +41,6 @@ public class DataConversionUtil {
     /** first index */
     private static final int INDX1 = 1;
 
-    /** Sixteenth byte */
-    private static final int INDX16 = 16;
-
     /** second index */
     private static final int INDX2 = 2;
 
@@ -75,12 +70,9 @@ public class DataConversionUtil {
      *        the column id
      * @return the combined byte[] */
     public static byte[] combine(final long theRowId, final long theColumnId) {
-
         final byte[] keyBytes = new byte[LONG_BYTES_X_2];
-        final byte[] rbytes = toByta(theRowId);
-        final byte[] cbytes = toByta(theColumnId);
-        System.arraycopy(rbytes, 0, keyBytes, 0, rbytes.length);
-        System.arraycopy(cbytes, 0, keyBytes, rbytes.length, cbytes.length);
+        putLong(keyBytes, 0, theRowId);
+        putLong(keyBytes, INDX8, theColumnId);
         return keyBytes;
     }
 
@@ -101,11 +93,7 @@ public class DataConversionUtil {
      *        the combined rowID columnID bytes.
      * @return the last 8 bytes as column id. */
     public static long splitColumn(final byte[] theCombinedBytes) {
-        // TODO toLong(Arrays.copyOfRange(...)) is less then optimal...
-        // This could make a measurable speed difference if optimized,
-        // but since I suspect we're going to completely rewrite it
-        // later, we can leave it like that for now ...
-        return toLong(Arrays.copyOfRange(theCombinedBytes, INDX8, INDX16));
+        return toLong(theCombinedBytes, INDX8);
     }
 
     /** Splits column the 16 byte array and returns first 8 bytes as row id
@@ -114,11 +102,27 @@ public class DataConversionUtil {
      *        the combined rowID columnID bytes.
      * @return the first 8 bytes as row id. */
     public static long splitRow(final byte[] theCombinedBytes) {
-        // TODO toLong(Arrays.copyOfRange(...)) is less then optimal...
-        // This could make a measurable speed difference if optimized,
-        // but since I suspect we're going to completely rewrite it
-        // later, we can leave it like that for now ...
-        return toLong(Arrays.copyOfRange(theCombinedBytes, 0, INDX8));
+        return toLong(theCombinedBytes, 0);
+    }
+
+    /** Writes a long in a byte array, big-endian, without allocating.
+     * 
+     * @param theBuffer
+     *        the byte array
+     * @param theOffset
+     *        the offset of the first byte of the long
+     * @param theData
+     *        the long */
+    public static void putLong(final byte[] theBuffer, final int theOffset,
+            final long theData) {
+        theBuffer[theOffset] = (byte) (theData >> B_SEVEN_BYTES);
+        theBuffer[theOffset + INDX1] = (byte) (theData >> B_SIX_BYTES);
+        theBuffer[theOffset + INDX2] = (byte) (theData >> B_FIVE_BYTES);
+        theBuffer[theOffset + INDX3] = (byte) (theData >> B_FOUR_BYTES);
+        theBuffer[theOffset + INDX4] = (byte) (theData >> B_THREE_BYTES);
+        theBuffer[theOffset + INDX5] = (byte) (theData >> B_TWO_BYTES);
+        theBuffer[theOffset + INDX6] = (byte) (theData >> B_ONE_BYTE);
+        theBuffer[theOffset + INDX7] = (byte) theData;
     }
 
     /** Converts long to byte array
@@ -160,4 +164,27 @@ public class DataConversionUtil {
                 | (long) (BYTE_MASK & theData[INDX7]) << 0;
     }
 
+    /** Reads a long from a byte array, without copying it. This is what the
+     * key comparators use, so it must not allocate.
+     * 
+     * @param theData
+     *        the byte array
+     * @param theOffset
+     *        the offset of the first byte of the long
+     * @return the long */
+    public static long toLong(final byte[] theData, final int theOffset) {
+        if (theData.length < theOffset + LONG_BYTES)
+            throw new IllegalArgumentException("Expected length: "
+                    + (theOffset + LONG_BYTES) + " Actual length: "
+                    + theData.length);
+        return (long) (BYTE_MASK & theData[theOffset]) << B_SEVEN_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX1]) << B_SIX_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX2]) << B_FIVE_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX3]) << B_FOUR_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX4]) << B_THREE_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX5]) << B_TWO_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX6]) << B_ONE_BYTE
+                | (long) (BYTE_MASK & theData[theOffset + INDX7]) << 0;
+    }
+
 }
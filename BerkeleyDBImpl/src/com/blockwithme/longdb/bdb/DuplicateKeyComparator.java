@@ -16,7 +16,6 @@
 package com.blockwithme.longdb.bdb;
 
 import java.io.Serializable;
-import java.util.Arrays;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
@@ -38,11 +37,9 @@ public class DuplicateKeyComparator implements java.util.Comparator<byte[]>,
      */
     @Override
     public int compare(final byte[] theFirstArray, final byte[] theSecondArray) {
-        final Long r1 = DataConversionUtil.toLong(Arrays.copyOfRange(
-                theFirstArray, 0, 8));
-        final Long r2 = DataConversionUtil.toLong(Arrays.copyOfRange(
-                theSecondArray, 0, 8));
-        final int result = r1.compareTo(r2);
+        final int result = Long.compare(
+                DataConversionUtil.toLong(theFirstArray, 0),
+                DataConversionUtil.toLong(theSecondArray, 0));
         if (result != 0)
             return result;
         else if (theFirstArray.length == theSecondArray.length)
@@ -19,7 +19,6 @@ import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES;
 import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES_X_2;
 
 import java.io.Serializable;
-import java.util.Arrays;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
@@ -30,7 +29,9 @@ import javax.annotation.ParametersAreNonnullByDefault;
  * 1. If rowIDs are different, then returns the comparative values of rowIds.<br>
  * 2. If the rowIDs are same and keys don't have columnIds (i.e. 8 byte keys)
  * returns zero. <br>
- * 3. For 16 byte keys having same rowIds, it compares the columnId values. */
+ * 3. For 16 byte keys having same rowIds, it compares the columnId values. <br>
+ * The Ids are compared as signed longs, read in place, so that comparing two
+ * keys does not allocate. */
 @ParametersAreNonnullByDefault
 @SuppressWarnings("serial")
 public class KeyComparator implements java.util.Comparator<byte[]>,
@@ -53,14 +54,8 @@ public class KeyComparator implements java.util.Comparator<byte[]>,
      */
     public static int cmp(final byte[] theFirstArray,
             final byte[] theSecondArray) {
-        // TODO DataConversionUtil.toLong(Arrays.copyOfRange(...)) is less
-        // then optimal... This could make a measurable speed difference if
-        // optimized, but since I suspect we're going to completely rewrite it
-        // later, we can leave it like that for now ...
-        final long r1 = DataConversionUtil.toLong(Arrays.copyOfRange(
-                theFirstArray, 0, 8));
-        final long r2 = DataConversionUtil.toLong(Arrays.copyOfRange(
-                theSecondArray, 0, 8));
+        final long r1 = DataConversionUtil.toLong(theFirstArray, 0);
+        final long r2 = DataConversionUtil.toLong(theSecondArray, 0);
         final int result = Long.compare(r1, r2);
 
         if (result != 0
@@ -69,10 +64,10 @@ public class KeyComparator implements java.util.Comparator<byte[]>,
 
         else if (theFirstArray.length == LONG_BYTES_X_2
                 && theSecondArray.length == LONG_BYTES_X_2) {
-            final long c1 = DataConversionUtil.toLong(Arrays.copyOfRange(
-                    theFirstArray, 8, 16));
-            final long c2 = DataConversionUtil.toLong(Arrays.copyOfRange(
-                    theSecondArray, 8, 16));
+            final long c1 = DataConversionUtil.toLong(theFirstArray,
+                    LONG_BYTES);
+            final long c2 = DataConversionUtil.toLong(theSecondArray,
+                    LONG_BYTES);
             return Long.compare(c1, c2);
         } else if (theFirstArray.length == LONG_BYTES
                 && theSecondArray.length == LONG_BYTES_X_2) {
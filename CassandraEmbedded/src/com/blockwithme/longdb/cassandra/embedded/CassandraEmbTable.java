@@ -22,12 +22,14 @@ import static com.blockwithme.longdb.common.constants.ByteConstants.BLANK_STR_BY
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import me.prettyprint.cassandra.serializers.LongSerializer;
@@ -52,8 +54,10 @@ import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.blockwithme.longdb.ColumnVisitor;
 import com.blockwithme.longdb.Columns;
 import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.base.AbstractColumnScanner;
 import com.blockwithme.longdb.base.AbstractTable;
 import com.blockwithme.longdb.entities.Base36;
 import com.blockwithme.longdb.entities.Bytes;
@@ -62,6 +66,7 @@ import com.blockwithme.longdb.exception.DBException;
 import com.carrotsearch.hppc.LongArrayList;
 import com.carrotsearch.hppc.LongObjectOpenHashMap;
 import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 
 /** The Class Cassandra Embedded Table. */
 @ParametersAreNonnullByDefault
@@ -169,17 +174,13 @@ public class CassandraEmbTable
 
     /** Internal method: Constructs mutations object with the data to be
      * modified. */
-    private Mutation constructMutations(final Columns theInsertUpdateColumns,
-            final int theColumnIndex, final LongHolder theColumnId) {
-        final Bytes byts = theInsertUpdateColumns.getBytes(theColumnId.value());
-        assert (byts != null);
-        final Long columnName = theInsertUpdateColumns.columns()[theColumnIndex];
-
+    private Mutation constructMutations(final long theColumnId,
+            final Bytes theValue, final long theClock) {
         final Mutation m = new Mutation();
         final ColumnOrSuperColumn col = new ColumnOrSuperColumn();
-        final Column clmn = new Column(ByteBufferUtil.bytes(columnName));
-        clmn.setValue(byts.toArray(false));
-        clmn.setTimestamp(HFactory.createClock());
+        final Column clmn = new Column(ByteBufferUtil.bytes(theColumnId));
+        clmn.setValue(theValue.toArray(false));
+        clmn.setTimestamp(theClock);
         col.setColumn(clmn);
         m.setFieldValue(_Fields.COLUMN_OR_SUPERCOLUMN, col);
         return m;
@@ -222,13 +223,13 @@ public class CassandraEmbTable
     }
 
     /** Internal method: Constructs mutation object with the data to be removed. */
-    private Mutation constructRemoveMutations(final LongCursor theLongCur) {
+    private Mutation constructRemoveMutations(final long theColumnId,
+            final long theClock) {
         final Mutation m = new Mutation();
         final Deletion deletion = new Deletion();
-        deletion.setTimestamp(HFactory.createClock());
+        deletion.setTimestamp(theClock);
         final SlicePredicate slicePredicate = new SlicePredicate();
-        slicePredicate
-                .addToColumn_names(ByteBufferUtil.bytes(theLongCur.value));
+        slicePredicate.addToColumn_names(ByteBufferUtil.bytes(theColumnId));
         deletion.setPredicate(slicePredicate);
         m.setFieldValue(_Fields.DELETION, deletion);
         return m;
@@ -259,20 +260,8 @@ public class CassandraEmbTable
         List<ColumnOrSuperColumn> resultArray = null;
         try {
             setks();
-            final Integer mCounts = (theMaxCount == Integer.MAX_VALUE) ? null
-                    : theMaxCount;
-            final SlicePredicate predicate = new SlicePredicate();
-            // check if range and column name 'both' are not set.
-            if (checkRangeAndColumnName(theRange, theColumnNames)) {
-                predicate.setSlice_range(new SliceRange(ByteBuffer
-                        .wrap(ZERO_BYTES), ByteBuffer.wrap(ZERO_BYTES), false,
-                        theMaxCount));
-            } else if (theRange != null && !theRange.equals(FULL_RANGE))
-                predicate.setSlice_range(constructRange(theRange, mCounts));
-
-            if (theColumnNames != null)
-                predicate.setColumn_names(constructColName(theColumnNames));
-
+            final SlicePredicate predicate = slicePredicate(theRange,
+                    theMaxCount, theColumnNames);
             resultArray = server().get_slice(ByteBufferUtil.bytes(theKey),
                     getColumnParent(), predicate, DEFAULT_CONSISTENCY_LEVEL);
             if (resultArray.isEmpty()) {
@@ -288,6 +277,38 @@ public class CassandraEmbTable
         return resultArray;
     }
 
+    /** Internal method: Actually executes a multiget column query. */
+    private LongObjectOpenHashMap<Columns> executeMultigetQuery(
+            final long[] theKeys, @Nullable final Range theRange,
+            @Nullable final LongArrayList theColumnNames) {
+        final LongObjectOpenHashMap<Columns> result = new LongObjectOpenHashMap<Columns>();
+        try {
+            setks();
+            final SlicePredicate predicate = slicePredicate(theRange,
+                    Integer.MAX_VALUE, theColumnNames);
+            final List<ByteBuffer> keys = new ArrayList<ByteBuffer>(
+                    theKeys.length);
+            for (final long key : theKeys) {
+                keys.add(ByteBufferUtil.bytes(key));
+            }
+            final Map<ByteBuffer, List<ColumnOrSuperColumn>> rows = server()
+                    .multiget_slice(keys, getColumnParent(), predicate,
+                            DEFAULT_CONSISTENCY_LEVEL);
+            for (final Map.Entry<ByteBuffer, List<ColumnOrSuperColumn>> row : rows
+                    .entrySet()) {
+                final Columns cols = createColumns(row.getValue());
+                if (cols != null)
+                    result.put(ByteBufferUtil.toLong(row.getKey()), cols);
+            }
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - executeMultigetQuery(long[] keys="
+                    + Arrays.toString(theKeys) + ", Range range=" + theRange
+                    + ", LongArrayList colNames=" + theColumnNames + ")", e);
+            throw new DBException("Error performing Multiget Slice Query.", e);
+        }
+        return result;
+    }
+
     /** Internal method: Gets the column parent. */
     private ColumnParent getColumnParent() {
         final ColumnParent columnParent = new ColumnParent();
@@ -307,39 +328,95 @@ public class CassandraEmbTable
         return kRange;
     }
 
+    /** Internal method: Constructs the slice predicate of a column query. */
+    private SlicePredicate slicePredicate(@Nullable final Range theRange,
+            final int theMaxCount, @Nullable final LongArrayList theColumnNames) {
+        final Integer mCounts = (theMaxCount == Integer.MAX_VALUE) ? null
+                : theMaxCount;
+        final SlicePredicate predicate = new SlicePredicate();
+        // check if range and column name 'both' are not set.
+        if (checkRangeAndColumnName(theRange, theColumnNames)) {
+            predicate.setSlice_range(new SliceRange(ByteBuffer
+                    .wrap(ZERO_BYTES), ByteBuffer.wrap(ZERO_BYTES), false,
+                    theMaxCount));
+        } else if (theRange != null && !theRange.equals(FULL_RANGE))
+            predicate.setSlice_range(constructRange(theRange, mCounts));
+
+        if (theColumnNames != null)
+            predicate.setColumn_names(constructColName(theColumnNames));
+        return predicate;
+    }
+
     /** Internal method: get the Server object */
     private CassandraServer server() {
         return ((CassandraEmbBackend) this.database().backend()).server();
     }
 
-    /** Internal method: Sets the internal. */
-    private void setInternal(final long theKey,
-            final Columns theInsertUpdateColumns) {
+    /** Internal method: Constructs the mutations of one row. The column Ids
+     * are read once, so this is linear in the number of columns. Removed
+     * columns that are also inserted are skipped, since a deletion with the
+     * same timestamp would win over the insertion. */
+    private Map<String, List<Mutation>> rowMutations(
+            @Nullable final Columns theInsertUpdateColumns,
+            @Nullable final LongArrayList theRemoveCols, final long theClock) {
+        final List<Mutation> mutations = new ArrayList<Mutation>();
+        final Map<String, List<Mutation>> subMap = new HashMap<String, List<Mutation>>();
+        if (theRemoveCols != null) {
+            for (final LongCursor longCur : theRemoveCols) {
+                if (theInsertUpdateColumns == null
+                        || !theInsertUpdateColumns.containsColumn(longCur.value))
+                    mutations.add(constructRemoveMutations(longCur.value,
+                            theClock));
+            }
+        }
+        if (theInsertUpdateColumns != null) {
+            final int size = theInsertUpdateColumns.size();
+            for (int i = 0; i < size; i++) {
+                final long columnId = theInsertUpdateColumns.columnAt(i);
+                final Bytes byts = theInsertUpdateColumns.getBytes(columnId);
+                assert (byts != null);
+                mutations.add(constructMutations(columnId, byts, theClock));
+            }
+        }
+        subMap.put(table.toFixedString(), mutations);
+        return subMap;
+    }
 
+    /** Internal method: Applies the removals and the insertions of one row, in
+     * a single batch_mutate call. */
+    private void mutateRow(final long theKey,
+            @Nullable final Columns theInsertUpdateColumns,
+            @Nullable final LongArrayList theRemoveCols) {
         try {
             setks();
             final Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
-            int columnIndex = 0;
-            final List<Mutation> mutations = new ArrayList<Mutation>();
-            final Map<String, List<Mutation>> subMap = new HashMap<String, List<Mutation>>();
-            for (final LongHolder longHolder : theInsertUpdateColumns) {
-                final Mutation m = constructMutations(theInsertUpdateColumns,
-                        columnIndex, longHolder);
-                mutations.add(m);
-                columnIndex++;
-            }
-            subMap.put(table.toFixedString(), mutations);
-            mutationMap.put(ByteBufferUtil.bytes(theKey), subMap);
+            mutationMap.put(
+                    ByteBufferUtil.bytes(theKey),
+                    rowMutations(theInsertUpdateColumns, theRemoveCols,
+                            HFactory.createClock()));
             server().batch_mutate(mutationMap, DEFAULT_CONSISTENCY_LEVEL);
-
         } catch (final Exception e) {
-            LOG.error("Exception Occurred in - setInternal(long key=" + theKey
+            LOG.error("Exception Occurred in - mutateRow(long key=" + theKey
                     + ", Columns insertOrUpdate=" + theInsertUpdateColumns
-                    + ")", e);
-            throw new DBException("Error while inserting/updating values", e);
+                    + ", LongArrayList remove=" + theRemoveCols + ")", e);
+            throw new DBException("Error while modifying values", e);
         }
     }
 
+    /** Internal method: Returns the Ids of the columns of a row in a range,
+     * null if none. */
+    @CheckForNull
+    private LongArrayList columnsInRange(final long theKey, final Range theRange) {
+        if (theRange.empty())
+            return null;
+        final Columns cols = getInternal(theKey, theRange);
+        if (cols == null)
+            return null;
+        final LongArrayList removeList = new LongArrayList();
+        removeList.add(cols.columns(), 0, cols.size());
+        return removeList;
+    }
+
     /** Internal method: Sets key space. */
     private void setks() throws InvalidRequestException, TException {
         server().set_keyspace(this.database().database());
@@ -399,17 +476,58 @@ public class CassandraEmbTable
     }
 
     /*
-     * (non-Javadoc)
+     * (non-Javadoc) The columns are sliced one page at a time, so a wide row
+     * is never loaded at once. Thrift slices always return the values with
+     * the names, so the values of a page are read, but dropped.
      * 
      * @see com.blockwithme.longdb.base.AbstractTable#columnsIteratorInternal(long)
      */
     @Override
     @CheckForNull
     protected Iterator<LongHolder> columnsIteratorInternal(final long theKey) {
-        final Columns cols = getInternal(theKey, FULL_RANGE);
-        if (cols == null)
-            return null;
-        return cols.iterator();
+        return new AbstractColumnScanner<CassandraEmbTable>(this, theKey) {
+            @Override
+            protected boolean nextPage(final boolean isFirst,
+                    final long theLast, final LongArrayList theIds) {
+                final Range range = remaining(isFirst, theLast);
+                if (range == null)
+                    return false;
+                // The slice range is given in table order.
+                final List<ColumnOrSuperColumn> rowData = executeColumnQuery(
+                        key, reverse ? new Range(range.end(), range.start())
+                                : range, PAGE_SIZE, null);
+                if (rowData == null)
+                    return false;
+                for (final ColumnOrSuperColumn col : rowData) {
+                    theIds.add(LongSerializer.get().fromBytes(
+                            col.getColumn().getName()));
+                }
+                return rowData.size() == PAGE_SIZE;
+            }
+        }.orNull();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#existsInternal(long)
+     */
+    @Override
+    protected boolean existsInternal(final long theKey) {
+        try {
+            setks();
+            final SliceRange range = constructRange(1, Long.MIN_VALUE,
+                    Long.MAX_VALUE, true);
+            final SlicePredicate predicate = new SlicePredicate();
+            predicate.setSlice_range(range);
+            return !server().get_slice(ByteBufferUtil.bytes(theKey),
+                    getColumnParent(), predicate, DEFAULT_CONSISTENCY_LEVEL)
+                    .isEmpty();
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - existsInternal(long key="
+                    + theKey + ")", e);
+            throw new DBException("Error checking Row existence.", e);
+        }
     }
 
     /*
@@ -450,6 +568,42 @@ public class CassandraEmbTable
         return createColumns(rowData);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#getInternal(long,
+     * com.blockwithme.longdb.Range, com.blockwithme.longdb.ColumnVisitor)
+     */
+    @Override
+    protected int getInternal(final long theKey, final Range theRange,
+            final ColumnVisitor theVisitor) {
+        if (theRange.empty())
+            return 0;
+        final List<ColumnOrSuperColumn> rowData = executeColumnQuery(theKey,
+                theRange, Integer.MAX_VALUE, null);
+        if (rowData == null)
+            return 0;
+        int count = 0;
+        for (final ColumnOrSuperColumn col : rowData) {
+            final long colName = LongSerializer.get().fromBytes(
+                    col.getColumn().getName());
+            final ByteBuffer value = col.getColumn().bufferForValue();
+            count++;
+            final boolean more;
+            if (value.hasArray())
+                more = theVisitor.visit(colName, value.array(),
+                        value.arrayOffset() + value.position(),
+                        value.remaining());
+            else {
+                final byte[] colBlob = col.getColumn().getValue();
+                more = theVisitor.visit(colName, colBlob, 0, colBlob.length);
+            }
+            if (!more)
+                break;
+        }
+        return count;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -460,6 +614,30 @@ public class CassandraEmbTable
         return new CassandraEmbKeyIterator(this);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#multiGetInternal(long[],
+     * com.carrotsearch.hppc.LongArrayList)
+     */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final LongArrayList theColumns) {
+        return executeMultigetQuery(theKeys, FULL_RANGE, theColumns);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#multiGetInternal(long[],
+     * com.blockwithme.longdb.Range)
+     */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final Range theRange) {
+        return executeMultigetQuery(theKeys, theRange, null);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -479,25 +657,7 @@ public class CassandraEmbTable
     @Override
     protected void removeInternal(final long theKey,
             final LongArrayList theRemoveCols) {
-        try {
-            setks();
-            final Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
-            final List<Mutation> mutations = new ArrayList<Mutation>();
-            final Map<String, List<Mutation>> subMap = new HashMap<String, List<Mutation>>();
-            for (final LongCursor longCur : theRemoveCols) {
-                final Mutation m = constructRemoveMutations(longCur);
-                mutations.add(m);
-            }
-            subMap.put(table.toFixedString(), mutations);
-            mutationMap.put(ByteBufferUtil.bytes(theKey), subMap);
-            server().batch_mutate(mutationMap, DEFAULT_CONSISTENCY_LEVEL);
-
-        } catch (final Exception e) {
-            LOG.error("Exception Occurred in - removeInternal(long key="
-                    + theKey + ", LongArrayList remove=" + theRemoveCols + ")",
-                    e);
-            throw new DBException("Error while removing values", e);
-        }
+        mutateRow(theKey, null, theRemoveCols);
     }
 
     /*
@@ -509,14 +669,9 @@ public class CassandraEmbTable
     @Override
     @CheckForNull
     protected void removeInternal(final long theKey, final Range theRemoveCols) {
-        if (theRemoveCols.empty())
-            return;
-        final Columns cols = getInternal(theKey, theRemoveCols);
-        if (cols == null)
-            return;
-        final LongArrayList removeList = new LongArrayList();
-        removeList.add(cols.columns(), 0, cols.columns().length);
-        removeInternal(theKey, removeList);
+        final LongArrayList removeList = columnsInRange(theKey, theRemoveCols);
+        if (removeList != null)
+            mutateRow(theKey, null, removeList);
     }
 
     /*
@@ -529,8 +684,7 @@ public class CassandraEmbTable
     protected void setInternal(final long theKey,
             final Columns theInsertUpdateColumns,
             final LongArrayList theRemoveCols) {
-        removeInternal(theKey, theRemoveCols);
-        setInternal(theKey, theInsertUpdateColumns);
+        mutateRow(theKey, theInsertUpdateColumns, theRemoveCols);
     }
 
     /*
@@ -542,8 +696,33 @@ public class CassandraEmbTable
     @Override
     protected void setInternal(final long theKey,
             final Columns theInsertUpdateColumns, final Range theRemoveCols) {
-        removeInternal(theKey, theRemoveCols);
-        setInternal(theKey, theInsertUpdateColumns);
+        mutateRow(theKey, theInsertUpdateColumns,
+                columnsInRange(theKey, theRemoveCols));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#setAllInternal(com.carrotsearch
+     * .hppc.LongObjectOpenHashMap)
+     */
+    @Override
+    protected void setAllInternal(final LongObjectOpenHashMap<Columns> theRows) {
+        try {
+            setks();
+            final Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+            final long clock = HFactory.createClock();
+            for (final LongObjectCursor<Columns> row : theRows) {
+                mutationMap.put(ByteBufferUtil.bytes(row.key),
+                        rowMutations(row.value, null, clock));
+            }
+            server().batch_mutate(mutationMap, DEFAULT_CONSISTENCY_LEVEL);
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - setAllInternal("
+                    + "LongObjectOpenHashMap<Columns> rows=" + theRows + ")", e);
+            throw new DBException("Error while inserting/updating values", e);
+        }
     }
 
     /*
@@ -23,6 +23,7 @@ import static com.blockwithme.longdb.util.DBUtils.toArray;
 import java.util.Iterator;
 
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import me.prettyprint.cassandra.model.HColumnImpl;
@@ -35,19 +36,24 @@ import me.prettyprint.hector.api.beans.ColumnSlice;
 import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.beans.OrderedRows;
 import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.beans.Rows;
 import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
 import me.prettyprint.hector.api.ddl.ComparatorType;
 import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.mutation.MutationResult;
 import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
 import me.prettyprint.hector.api.query.QueryResult;
 import me.prettyprint.hector.api.query.RangeSlicesQuery;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.blockwithme.longdb.ColumnVisitor;
 import com.blockwithme.longdb.Columns;
 import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.base.AbstractColumnScanner;
+import com.blockwithme.longdb.base.AbstractRowScanner;
 import com.blockwithme.longdb.base.AbstractTable;
 import com.blockwithme.longdb.entities.Base36;
 import com.blockwithme.longdb.entities.Bytes;
@@ -55,6 +61,7 @@ import com.blockwithme.longdb.entities.LongHolder;
 import com.carrotsearch.hppc.LongArrayList;
 import com.carrotsearch.hppc.LongObjectOpenHashMap;
 import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 
 /** The Class CassandraTable. */
 @ParametersAreNonnullByDefault
@@ -62,9 +69,6 @@ import com.carrotsearch.hppc.cursors.LongCursor;
 public class CassandraTable extends
         AbstractTable<CassandraBackend, CassandraDatabase, CassandraTable> {
 
-    /** The range object with full range. */
-    private static final Range FULL_RANGE = Range.fullRange();
-
     /** The logger. */
     private static final Logger LOG = LoggerFactory
             .getLogger(CassandraTable.class);
@@ -72,6 +76,13 @@ public class CassandraTable extends
     /** The column family definition. */
     private ColumnFamilyDefinition cfDef;
 
+    /** The cached key space, created on first use. */
+    private Keyspace keyspace;
+
+    /** The reusable mutator, created on first use. Executing a mutator clears
+     * its pending mutations, so it can be used for any number of batches. */
+    private Mutator<Long> mutator;
+
     /** This constructor is used for creating a new Table. */
     protected CassandraTable(final CassandraDatabase theDB,
             final Base36 theTable, final boolean isReverse,
@@ -186,6 +197,58 @@ public class CassandraTable extends
         return result.get();
     }
 
+    /** Reads the columns of many rows, with a single multiget slice query.
+     * Only the columns in theColumns are returned, if it is not null,
+     * otherwise the columns in theRange.
+     * 
+     * @param theKeys
+     *        the row keys
+     * @param theRange
+     *        the range
+     * @param theColumns
+     *        the cols
+     * @return the columns, mapped by row key */
+    private LongObjectOpenHashMap<Columns> executeMultigetQuery(
+            final long[] theKeys, @Nullable final Range theRange,
+            @Nullable final LongArrayList theColumns) {
+        final MultigetSliceQuery<Long, Long, byte[]> query = HFactory
+                .createMultigetSliceQuery(getKeySpace(), LongSerializer.get(),
+                        LongSerializer.get(), BytesArraySerializer.get());
+        query.setColumnFamily(cfDef.getName());
+        final Long[] keys = new Long[theKeys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = theKeys[i];
+        }
+        query.setKeys(keys);
+        if (theColumns != null) {
+            query.setColumnNames(toArray(theColumns));
+        } else if (checkRange(theRange)) {
+            if (checkReverse(theRange))
+                query.setRange(theRange.start(), theRange.end(), false,
+                        Integer.MAX_VALUE);
+            else
+                query.setRange(theRange.end(), theRange.start(), false,
+                        Integer.MAX_VALUE);
+        } else
+            query.setRange(null, null, false, Integer.MAX_VALUE); // full range
+
+        final LongObjectOpenHashMap<Columns> res = new LongObjectOpenHashMap<Columns>();
+        final QueryResult<Rows<Long, Long, byte[]>> result = query.execute();
+        if (result == null || result.get() == null)
+            return res;
+        for (final Row<Long, Long, byte[]> row : result.get()) {
+            final ColumnSlice<Long, byte[]> colS = row.getColumnSlice();
+            if ((colS == null) || colS.getColumns().isEmpty())
+                continue;
+            final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
+            for (final HColumn<Long, byte[]> col : colS.getColumns()) {
+                map.put(col.getName(), new Bytes(col.getValue()));
+            }
+            res.put(row.getKey(), new Columns(map, reverse));
+        }
+        return res;
+    }
+
     /** Gets the cluster.
      * 
      * @return the cluster */
@@ -193,45 +256,119 @@ public class CassandraTable extends
         return ((CassandraBackend) database.backend()).cluster();
     }
 
-    /** Gets the key space.
+    /** Gets the key space. It is looked up once, and then cached.
      * 
      * @return the key space */
     @CheckForNull
     private Keyspace getKeySpace() {
-        final Cluster cluster = getcluster();
-        if (cluster.describeKeyspace(database.database()) == null) {
-            return null; // keyspace doesn't exist.
+        if (keyspace == null) {
+            final Cluster cluster = getcluster();
+            if (cluster.describeKeyspace(database.database()) == null) {
+                return null; // keyspace doesn't exist.
+            }
+            keyspace = HFactory.createKeyspace(database.database(), cluster);
         }
-        final Keyspace keyspace = HFactory.createKeyspace(database.database(),
-                cluster);
         return keyspace;
     }
 
-    /** Sets the internal.
+    /** Gets the reusable mutator.
+     * 
+     * @return the mutator */
+    private Mutator<Long> mutator() {
+        if (mutator == null) {
+            mutator = HFactory.createMutator(getKeySpace(),
+                    LongSerializer.get());
+        }
+        return mutator;
+    }
+
+    /** Adds the deletions of some columns of one row to a mutator. Columns
+     * that are also inserted are skipped, since the insertion overwrites them
+     * anyway, and a deletion with the same clock would win.
+     * 
+     * @param theMutator
+     *        the mutator
+     * @param theKey
+     *        the key
+     * @param theRemoveCols
+     *        the columns to be removed
+     * @param theInsertUpdateColumns
+     *        the insert or update, if any
+     * @param theClock
+     *        the clock of the mutation */
+    private void addDeletions(final Mutator<Long> theMutator,
+            final long theKey, final LongArrayList theRemoveCols,
+            @Nullable final Columns theInsertUpdateColumns, final long theClock) {
+        final String cfName = table.toFixedString();
+        for (final LongCursor longCursor : theRemoveCols) {
+            if (theInsertUpdateColumns == null
+                    || !theInsertUpdateColumns.containsColumn(longCursor.value))
+                theMutator.addDeletion(theKey, cfName, longCursor.value,
+                        LongSerializer.get(), theClock);
+        }
+    }
+
+    /** Adds the insertions of one row to a mutator. The column Ids are read
+     * once, so this is linear in the number of columns.
      * 
+     * @param theMutator
+     *        the mutator
      * @param theKey
      *        the key
      * @param theInsertUpdateColumns
-     *        the insert or update */
-    private void setInternal(final long theKey,
-            final Columns theInsertUpdateColumns) {
-        final LongSerializer bytSerializer = new LongSerializer();
-        final Keyspace keyspaceOperator = getKeySpace();
-        final Mutator<Long> mutator = HFactory.createMutator(keyspaceOperator,
-                bytSerializer);
-        int columnIndex = 0;
-        for (final LongHolder longHolder : theInsertUpdateColumns) {
-            final Bytes byts = theInsertUpdateColumns.getBytes(longHolder
-                    .value());
+     *        the insert or update
+     * @param theClock
+     *        the clock of the mutation */
+    private void addInsertions(final Mutator<Long> theMutator,
+            final long theKey, final Columns theInsertUpdateColumns,
+            final long theClock) {
+        final String cfName = table.toFixedString();
+        final int size = theInsertUpdateColumns.size();
+        for (int i = 0; i < size; i++) {
+            final long columnName = theInsertUpdateColumns.columnAt(i);
+            final Bytes byts = theInsertUpdateColumns.getBytes(columnName);
             assert (byts != null);
-            final String cfName = table.toFixedString();
-            final Long columnName = theInsertUpdateColumns.columns()[columnIndex];
-            columnIndex++;
             final HColumn<Long, byte[]> hcol = new HColumnImpl<Long, byte[]>(
-                    columnName, byts.toArray(false), HFactory.createClock());
-            mutator.addInsertion(theKey, cfName, hcol);
+                    columnName, byts.toArray(false), theClock);
+            theMutator.addInsertion(theKey, cfName, hcol);
+        }
+    }
+
+    /** Returns the Ids of the columns of a row in a range.
+     * 
+     * @param theKey
+     *        the key
+     * @param theRange
+     *        the range
+     * @return the column Ids, null if none */
+    @CheckForNull
+    private LongArrayList columnsInRange(final long theKey,
+            final Range theRange) {
+        if (theRange.empty())
+            return null;
+        final OrderedRows<Long, Long, byte[]> rows = executeColumnQuery(theKey,
+                theRange, Integer.MAX_VALUE, null);
+        if (rows == null)
+            return null;
+        final LongArrayList cols = new LongArrayList();
+        final Row<Long, Long, byte[]> row = rows.iterator().next();
+        final ColumnSlice<Long, byte[]> colS = row.getColumnSlice();
+        for (final HColumn<Long, byte[]> col : colS.getColumns()) {
+            cols.add(col.getName());
+        }
+        return cols;
+    }
+
+    /** Executes a mutator and logs the result. On failure, the pending
+     * mutations are discarded, so that the mutator can be reused. */
+    private void execute(final Mutator<Long> theMutator) {
+        final MutationResult result;
+        try {
+            result = theMutator.execute();
+        } catch (final RuntimeException e) {
+            theMutator.discardPendingMutations();
+            throw e;
         }
-        final MutationResult result = mutator.execute();
         if (LOG.isDebugEnabled()) {
             LOG.debug("Column Insertion Result > Execution Time >"
                     + result.getExecutionTimeMicro() + " Host used >"
@@ -239,6 +376,98 @@ public class CassandraTable extends
         }
     }
 
+    /** Applies the removals and the insertions of one row, as a single
+     * batch.
+     * 
+     * @param theKey
+     *        the key
+     * @param theInsertUpdateColumns
+     *        the insert or update, if any
+     * @param theRemoveCols
+     *        the columns to be removed, if any */
+    private void mutateRow(final long theKey,
+            @Nullable final Columns theInsertUpdateColumns,
+            @Nullable final LongArrayList theRemoveCols) {
+        final Mutator<Long> m = mutator();
+        final long clock = getKeySpace().createClock();
+        if (theRemoveCols != null)
+            addDeletions(m, theKey, theRemoveCols, theInsertUpdateColumns,
+                    clock);
+        if (theInsertUpdateColumns != null)
+            addInsertions(m, theKey, theInsertUpdateColumns, clock);
+        execute(m);
+    }
+
+    /** Creates a scanner over a range of rows. Each page is read with a single
+     * range slices query, which returns the keys together with their columns.
+     * The rows come in the order of the partitioner, which is not the key
+     * order with the random partitioner, so the whole ring is scanned, and the
+     * rows outside of theRows are filtered out.
+     * 
+     * @param theRows
+     *        the range of row keys
+     * @param theColumns
+     *        the range of column Ids; null to read the keys only
+     * @return the scanner */
+    private AbstractRowScanner<CassandraTable> scanner(final Range theRows,
+            @Nullable final Range theColumns) {
+        return new AbstractRowScanner<CassandraTable>(this, theColumns) {
+            /** The last key of the previous page, if any. */
+            private Long lastKey;
+
+            @Override
+            protected boolean nextPage(final LongArrayList theKeys,
+                    final LongObjectOpenHashMap<Columns> theResult) {
+                final RangeSlicesQuery<Long, Long, byte[]> query = HFactory
+                        .createRangeSlicesQuery(getKeySpace(),
+                                LongSerializer.get(), LongSerializer.get(),
+                                BytesArraySerializer.get());
+                query.setColumnFamily(cfDef.getName()).setKeys(lastKey, null);
+                query.setRowCount(ROW_SLICE_COUNT);
+                if (columns == null)
+                    query.setReturnKeysOnly();
+                else if (checkRange(columns)) {
+                    if (checkReverse(columns))
+                        query.setRange(columns.start(), columns.end(), false,
+                                Integer.MAX_VALUE);
+                    else
+                        query.setRange(columns.end(), columns.start(), false,
+                                Integer.MAX_VALUE);
+                } else
+                    query.setRange(null, null, false, Integer.MAX_VALUE);
+                final OrderedRows<Long, Long, byte[]> rows = query.execute()
+                        .get();
+                // Key ranges are inclusive, so the first row of the next
+                // pages was the last row of the previous page.
+                boolean skip = (lastKey != null);
+                for (final Row<Long, Long, byte[]> row : rows) {
+                    if (skip) {
+                        skip = false;
+                        continue;
+                    }
+                    final long key = row.getKey();
+                    if (!theRows.contains(key))
+                        continue;
+                    theKeys.add(key);
+                    final ColumnSlice<Long, byte[]> colS = row
+                            .getColumnSlice();
+                    if (columns == null || (colS == null)
+                            || colS.getColumns().isEmpty())
+                        continue;
+                    final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
+                    for (final HColumn<Long, byte[]> col : colS.getColumns()) {
+                        map.put(col.getName(), new Bytes(col.getValue()));
+                    }
+                    theResult.put(key, new Columns(map, reverse));
+                }
+                if (rows.getCount() < ROW_SLICE_COUNT)
+                    return false;
+                lastKey = rows.peekLast().getKey();
+                return true;
+            }
+        };
+    }
+
     /** Called when the table is closed. */
     @Override
     protected void closeInternal() {
@@ -284,7 +513,10 @@ public class CassandraTable extends
         return null;
     }
 
-    /** Returns Columns Id Iterator.
+    /** Returns Columns Id Iterator. The columns are sliced one page at a
+     * time, so a wide row is never loaded at once. Thrift slices always
+     * return the values with the names, so the values of a page are read, but
+     * dropped.
      * 
      * @param theKey
      *        the key
@@ -292,10 +524,42 @@ public class CassandraTable extends
     @Override
     @CheckForNull
     protected Iterator<LongHolder> columnsIteratorInternal(final long theKey) {
-        final Columns cols = getInternal(theKey, FULL_RANGE);
-        if (cols != null)
-            return cols.iterator();
-        return null;
+        return new AbstractColumnScanner<CassandraTable>(this, theKey) {
+            @Override
+            protected boolean nextPage(final boolean isFirst,
+                    final long theLast, final LongArrayList theIds) {
+                final Range range = remaining(isFirst, theLast);
+                if (range == null)
+                    return false;
+                // The slice range is given in table order.
+                final OrderedRows<Long, Long, byte[]> rows = executeColumnQuery(
+                        key, reverse ? new Range(range.end(), range.start())
+                                : range, PAGE_SIZE, null);
+                if (rows == null)
+                    return false;
+                final ColumnSlice<Long, byte[]> colS = rows.iterator().next()
+                        .getColumnSlice();
+                for (final HColumn<Long, byte[]> col : colS.getColumns()) {
+                    theIds.add(col.getName());
+                }
+                return colS.getColumns().size() == PAGE_SIZE;
+            }
+        }.orNull();
+    }
+
+    /** Checks if a row exists, counting at most one column.
+     * 
+     * @param theKey
+     *        the key
+     * @return true, if the row exists */
+    @Override
+    protected boolean existsInternal(final long theKey) {
+        final Keyspace keyspace = getKeySpace();
+        final QueryResult<Integer> qr = HFactory
+                .createCountQuery(keyspace, LongSerializer.get(),
+                        LongSerializer.get()).setColumnFamily(cfDef.getName())
+                .setKey(theKey).setRange(null, null, 1).execute();
+        return qr.get() > 0;
     }
 
     /*
@@ -333,6 +597,35 @@ public class CassandraTable extends
         return constructColumns(cols, reverse);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#getInternal(long,
+     * com.blockwithme.longdb.Range, com.blockwithme.longdb.ColumnVisitor)
+     */
+    @Override
+    protected int getInternal(final long theKey, final Range theRange,
+            final ColumnVisitor theVisitor) {
+        if (theRange.empty())
+            return 0;
+        final OrderedRows<Long, Long, byte[]> rows = executeColumnQuery(theKey,
+                theRange, Integer.MAX_VALUE, null);
+        if (rows == null)
+            return 0;
+        final ColumnSlice<Long, byte[]> colS = rows.iterator().next()
+                .getColumnSlice();
+        if (colS == null)
+            return 0;
+        int count = 0;
+        for (final HColumn<Long, byte[]> col : colS.getColumns()) {
+            final byte[] value = col.getValue();
+            count++;
+            if (!theVisitor.visit(col.getName(), value, 0, value.length))
+                break;
+        }
+        return count;
+    }
+
     /** Returns rowId Iterator.
      * 
      * @return the iterator */
@@ -341,6 +634,42 @@ public class CassandraTable extends
         return new CassandraKeyIterator(this);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#keysInternal(com.blockwithme
+     * .longdb.Range)
+     */
+    @Override
+    protected Iterator<LongHolder> keysInternal(final Range theRows) {
+        return scanner(theRows, null).keys();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#multiGetInternal(long[],
+     * com.carrotsearch.hppc.LongArrayList)
+     */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final LongArrayList theColumns) {
+        return executeMultigetQuery(theKeys, null, theColumns);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#multiGetInternal(long[],
+     * com.blockwithme.longdb.Range)
+     */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final Range theRange) {
+        return executeMultigetQuery(theKeys, theRange, null);
+    }
+
     /** Called when the table is opened. */
     @Override
     protected void openInternal() {
@@ -356,21 +685,7 @@ public class CassandraTable extends
     @Override
     protected void removeInternal(final long theKey,
             final LongArrayList theRemoveCols) {
-        final LongSerializer bytSerializer = new LongSerializer();
-        final Keyspace keyspaceOperator = getKeySpace();
-        final Mutator<Long> mutator = HFactory.createMutator(keyspaceOperator,
-                bytSerializer);
-        final String cfName = table.toFixedString();
-        for (final LongCursor longCursor : theRemoveCols) {
-            mutator.addDeletion(theKey, cfName, longCursor.value,
-                    LongSerializer.get());
-        }
-        final MutationResult result = mutator.execute();
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Column Insertion Result > Execution Time >"
-                    + result.getExecutionTimeMicro() + " Host used >"
-                    + result.getHostUsed());
-        }
+        mutateRow(theKey, null, theRemoveCols);
     }
 
     /*
@@ -381,19 +696,22 @@ public class CassandraTable extends
      */
     @Override
     protected void removeInternal(final long theKey, final Range theRemoveCols) {
-        if (theRemoveCols.empty())
-            return;
-        final OrderedRows<Long, Long, byte[]> rows = executeColumnQuery(theKey,
-                theRemoveCols, Integer.MAX_VALUE, null);
-        if (rows == null)
-            return;
-        final LongArrayList cols = new LongArrayList();
-        final Row<Long, Long, byte[]> row = rows.iterator().next();
-        final ColumnSlice<Long, byte[]> colS = row.getColumnSlice();
-        for (final HColumn<Long, byte[]> col : colS.getColumns()) {
-            cols.add(col.getName());
-        }
-        removeInternal(theKey, cols);
+        final LongArrayList cols = columnsInRange(theKey, theRemoveCols);
+        if (cols != null)
+            mutateRow(theKey, null, cols);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#scanInternal(com.blockwithme
+     * .longdb.Range, com.blockwithme.longdb.Range)
+     */
+    @Override
+    protected Iterator<LongObjectCursor<Columns>> scanInternal(
+            final Range theRows, final Range theColumns) {
+        return scanner(theRows, theColumns);
     }
 
     /*
@@ -406,8 +724,7 @@ public class CassandraTable extends
     protected void setInternal(final long theKey,
             final Columns theInsertUpdateColumns,
             final LongArrayList theRemoveCols) {
-        removeInternal(theKey, theRemoveCols);
-        setInternal(theKey, theInsertUpdateColumns);
+        mutateRow(theKey, theInsertUpdateColumns, theRemoveCols);
     }
 
     /*
@@ -419,8 +736,37 @@ public class CassandraTable extends
     @Override
     protected void setInternal(final long theKey,
             final Columns theInsertUpdateColumns, final Range theRemoveCols) {
-        removeInternal(theKey, theRemoveCols);
-        setInternal(theKey, theInsertUpdateColumns);
+        mutateRow(theKey, theInsertUpdateColumns,
+                columnsInRange(theKey, theRemoveCols));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#setAllInternal(com.carrotsearch
+     * .hppc.LongObjectOpenHashMap)
+     */
+    @Override
+    protected void setAllInternal(final LongObjectOpenHashMap<Columns> theRows) {
+        final Mutator<Long> m = mutator();
+        final long clock = getKeySpace().createClock();
+        for (final LongObjectCursor<Columns> row : theRows) {
+            addInsertions(m, row.key, row.value, clock);
+        }
+        execute(m);
+    }
+
+    /** Returns a single range. With the random partitioner, the rows are
+     * stored in token order, so every key range scan has to walk the whole
+     * ring; splitting the key space would only multiply that work.
+     * 
+     * @param theParts
+     *        the wanted number of ranges
+     * @return the full range */
+    @Override
+    protected Range[] splitKeysInternal(final int theParts) {
+        return new Range[] { Range.fullRange() };
     }
 
     /** Returns approximate number of rows in this table.
@@ -436,11 +782,10 @@ public class CassandraTable extends
         /** Following while loop loads around ROW_SLICE_COUNT rows per iteration
          * using RangeSlicesQuery. The Last key found in the previous iteration
          * becomes 'start key' in the current iteration. */
+        final Keyspace ks = getKeySpace();
         while (true) { // $codepro.audit.disable constantConditionalExpression
-            final Keyspace keyspace = getKeySpace();
-
             final RangeSlicesQuery<Long, Long, byte[]> query = HFactory
-                    .createRangeSlicesQuery(keyspace, LongSerializer.get(),
+                    .createRangeSlicesQuery(ks, LongSerializer.get(),
                             LongSerializer.get(), BytesArraySerializer.get());
             query.setColumnFamily(cfDef.getName()).setKeys(startKey, null);
             query.setReturnKeysOnly().setRowCount(ROW_SLICE_COUNT);
@@ -468,6 +813,8 @@ public class CassandraTable extends
     public void dropped() {
         final String tbl = getcluster().dropColumnFamily(database.database(),
                 table.toFixedString());
+        keyspace = null;
+        mutator = null;
         LOG.debug("Table dropped >" + tbl);
     }
 
@@ -36,6 +36,8 @@ public enum CommandType {
     HELP,
     /** The import command. */
     IMPORT,
+    /** The row recount command. */
+    RECOUNT,
     /** The row count command. */
     ROWCOUNT,
     /** The show command */
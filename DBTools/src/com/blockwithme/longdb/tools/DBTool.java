@@ -408,7 +408,7 @@ public final class DBTool {
                 .addOption(
                         "",
                         true,
-                        "valid arguments - help, showtables, showdatabases, export, import, rowcount, "
+                        "valid arguments - help, showtables, showdatabases, export, import, rowcount, recount, "
                                 + "columncount, dropdatabase, droptable "
                                 + "createdatabase, createtable copy "
                                 + NEW_LINE
@@ -484,6 +484,9 @@ public final class DBTool {
         case SHOWTABLES:
             processShowTables();
             break;
+        case RECOUNT:
+            processTableRecount();
+            break;
         case ROWCOUNT:
             processTableRowCount();
             break;
@@ -680,6 +683,14 @@ public final class DBTool {
         }
     }
 
+    /** Count the rows of a table again, and repair its row count */
+    private static void processTableRecount() throws Exception {
+        final DBInfo info = dBInfo(FALSE);
+        final BackendClient client = getClient(info);
+        final long rowCount = client.tableRecount(optionVal(TABLE_OPT));
+        System.out.println(rowCount);
+    }
+
     /** Retrieve row count for a table */
     private static void processTableRowCount() throws Exception {
         final DBInfo info = dBInfo(FALSE);
@@ -15,16 +15,12 @@
  ******************************************************************************/
 package com.blockwithme.longdb.h2;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import com.blockwithme.longdb.base.AbstractBackend;
-import com.blockwithme.longdb.exception.DBException;
 import com.blockwithme.longdb.h2.config.SQLUtil;
 import com.google.inject.Inject;
 
@@ -36,8 +32,8 @@ public class H2Backend extends AbstractBackend<H2Backend, H2Database, H2Table> {
     /** The config. */
     private final H2Config config;
 
-    /** The connection object. */
-    private Connection conn;
+    /** The connection pool. */
+    private H2ConnectionPool pool;
 
     /** Creates a H2 backend instance with url and properties supplied as
      * parameters. Properties supplied as parameters will overwrite the
@@ -50,17 +46,19 @@ public class H2Backend extends AbstractBackend<H2Backend, H2Database, H2Table> {
         connect();
     }
 
-    /** Creates JDBC connection */
-    @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "DMI_EMPTY_DB_PASSWORD")
+    /** Creates the JDBC connection pool. */
     private void connect() {
+        pool = new H2ConnectionPool("jdbc:h2:" + config.dbFile(),
+                config.poolSize(), config.statementCacheSize());
+    }
+
+    /** Executes a statement where response is not expected. */
+    private void executeStatement(final String theStatement) {
+        final H2Connection conn = pool.acquire();
         try {
-            Class.forName("org.h2.Driver");
-            conn = DriverManager.getConnection("jdbc:h2:" + config.dbFile(),
-                    "", ""); // $codepro.audit.disable
-                             // com.instantiations.assist.eclipse.analysis.hardcodedPassword
-        } catch (final Exception e) {
-            throw new DBException("Error creating connection: "
-                    + config.dbFile(), e);
+            SQLUtil.executeStatement(theStatement, conn.connection());
+        } finally {
+            pool.release(conn);
         }
     }
 
@@ -70,7 +68,7 @@ public class H2Backend extends AbstractBackend<H2Backend, H2Database, H2Table> {
      * lang.String) */
     @Override
     protected H2Database createDatabaseInternal(final String theDBName) {
-        SQLUtil.executeStatement("CREATE SCHEMA " + theDBName, conn);
+        executeStatement("CREATE SCHEMA " + theDBName);
         return new H2Database(this, theDBName);
     }
 
@@ -80,7 +78,7 @@ public class H2Backend extends AbstractBackend<H2Backend, H2Database, H2Table> {
      * .longdb.base.AbstractDatabase) */
     @Override
     protected void dropInternal(final H2Database theDB) {
-        SQLUtil.executeStatement("DROP SCHEMA " + theDB.database(), conn);
+        executeStatement("DROP SCHEMA " + theDB.database());
     }
 
     /* (non-Javadoc)
@@ -89,9 +87,15 @@ public class H2Backend extends AbstractBackend<H2Backend, H2Database, H2Table> {
     @Override
     protected void openInternal(final Map<String, H2Database> theDatabase) {
         theDatabase.clear();
-        final List<String> results = SQLUtil.getResultsAsList(
-                "SELECT * FROM INFORMATION_SCHEMA.SCHEMATA", conn,
-                "SCHEMA_NAME");
+        final List<String> results;
+        final H2Connection conn = pool.acquire();
+        try {
+            results = SQLUtil.getResultsAsList(
+                    "SELECT * FROM INFORMATION_SCHEMA.SCHEMATA",
+                    conn.connection(), "SCHEMA_NAME");
+        } finally {
+            pool.release(conn);
+        }
         if (results != null)
             for (String sName : results) {
                 sName = sName.toLowerCase();
@@ -106,18 +110,21 @@ public class H2Backend extends AbstractBackend<H2Backend, H2Database, H2Table> {
      * @see com.blockwithme.longdb.base.AbstractBackend#shutdownInternal() */
     @Override
     protected void shutdownInternal() {
-        try {
-            conn.close(); // $codepro.audit.disable closeInFinally
-        } catch (final SQLException e) {
-            throw new DBException("Error closing client connection.", e);
-        }
+        pool.close();
+    }
+
+    /** Config.
+     * 
+     * @return the config */
+    public H2Config config() {
+        return config;
     }
 
-    /** Connection.
+    /** Connection pool.
      * 
-     * @return the connection */
-    public Connection connection() {
-        return conn;
+     * @return the connection pool */
+    public H2ConnectionPool pool() {
+        return pool;
     }
 
 }
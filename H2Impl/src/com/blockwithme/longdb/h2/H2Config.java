@@ -27,6 +27,15 @@ public class H2Config {
     /** The db file. */
     private String dbFile;
 
+    /** The key iterator page size. */
+    private int keyPageSize;
+
+    /** The connection pool size. */
+    private int poolSize;
+
+    /** The prepared statement cache size, per connection. */
+    private int statementCacheSize;
+
     /** Db file.
      * 
      * @param theDBFile
@@ -36,6 +45,34 @@ public class H2Config {
         this.dbFile = theDBFile;
     }
 
+    /** Key iterator page size.
+     * 
+     * @param theKeyPageSize
+     *        the number of keys read per query by the key iterator */
+    @Inject
+    void keyPageSize(@Named("keyPageSize") final int theKeyPageSize) {
+        this.keyPageSize = theKeyPageSize;
+    }
+
+    /** Connection pool size.
+     * 
+     * @param thePoolSize
+     *        the maximum number of connections */
+    @Inject
+    void poolSize(@Named("poolSize") final int thePoolSize) {
+        this.poolSize = thePoolSize;
+    }
+
+    /** Prepared statement cache size.
+     * 
+     * @param theStatementCacheSize
+     *        the maximum number of cached statements per connection */
+    @Inject
+    void statementCacheSize(
+            @Named("statementCacheSize") final int theStatementCacheSize) {
+        this.statementCacheSize = theStatementCacheSize;
+    }
+
     /** DB file name.
      * 
      * @return the DB file name */
@@ -43,4 +80,26 @@ public class H2Config {
         return dbFile;
     }
 
+    /** Key iterator page size.
+     * 
+     * @return the number of keys read per query by the key iterator, or 0
+     *         for the default */
+    public int keyPageSize() {
+        return keyPageSize;
+    }
+
+    /** Connection pool size.
+     * 
+     * @return the maximum number of connections */
+    public int poolSize() {
+        return poolSize;
+    }
+
+    /** Prepared statement cache size.
+     * 
+     * @return the maximum number of cached statements per connection */
+    public int statementCacheSize() {
+        return statementCacheSize;
+    }
+
 }
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.h2;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.exception.DBException;
+
+/** A pooled JDBC connection, with its cache of prepared statements. An
+ * instance is only used by one thread at a time: the one that acquired it
+ * from the H2ConnectionPool. The statements are cached by SQL string, so each
+ * table gets its own statements for each of its fixed query shapes. */
+@ParametersAreNonnullByDefault
+public class H2Connection {
+
+    /** The JDBC connection. */
+    private final Connection connection;
+
+    /** The prepared statements, least recently used first. */
+    private final Map<String, PreparedStatement> statements;
+
+    /** Closes a statement, ignoring any exception. */
+    private static void closeStatement(final PreparedStatement theStatement) {
+        try {
+            theStatement.close();
+        } catch (final SQLException e) {
+            // ignore.
+        }
+    }
+
+    /** Instantiates a new H2 connection.
+     * 
+     * @param theConnection
+     *        the JDBC connection
+     * @param theCacheSize
+     *        the maximum number of cached prepared statements */
+    @SuppressWarnings("serial")
+    protected H2Connection(final Connection theConnection,
+            final int theCacheSize) {
+        connection = theConnection;
+        statements = new LinkedHashMap<String, PreparedStatement>(
+                theCacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, PreparedStatement> theEldest) {
+                if (size() > theCacheSize) {
+                    closeStatement(theEldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Closes the cached statements, and the connection. */
+    protected void close() {
+        for (final PreparedStatement stmt : statements.values()) {
+            closeStatement(stmt);
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (final SQLException e) {
+            throw new DBException("Error closing connection.", e);
+        }
+    }
+
+    /** Returns the JDBC connection.
+     * 
+     * @return the connection */
+    public Connection connection() {
+        return connection;
+    }
+
+    /** Returns the cached prepared statement for a SQL string, preparing it
+     * on first use, with the given long parameters already set.
+     * 
+     * @param theSql
+     *        the SQL string
+     * @param theParams
+     *        the parameters
+     * @return the prepared statement */
+    public PreparedStatement prepare(final String theSql,
+            final long... theParams) {
+        try {
+            PreparedStatement stmt = statements.get(theSql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(theSql);
+                statements.put(theSql, stmt);
+            } else {
+                stmt.clearBatch();
+            }
+            for (int i = 0; i < theParams.length; i++) {
+                stmt.setLong(i + 1, theParams[i]);
+            }
+            return stmt;
+        } catch (final SQLException e) {
+            throw new DBException("Error preparing statement: " + theSql, e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.h2;
+
+import java.sql.DriverManager;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.blockwithme.longdb.exception.DBException;
+
+/** A bounded pool of H2 connections. Connections are opened lazily, up to the
+ * pool size; when they are all in use, acquire() waits for one to be
+ * released. */
+@ParametersAreNonnullByDefault
+public class H2ConnectionPool {
+
+    /** The maximum number of cached prepared statements per connection. */
+    private final int cacheSize;
+
+    /** The closed flag. */
+    private volatile boolean closed;
+
+    /** The number of connections opened so far. */
+    private final AtomicInteger created = new AtomicInteger();
+
+    /** The connections not currently in use. */
+    private final BlockingQueue<H2Connection> idle;
+
+    /** The maximum number of connections. */
+    private final int size;
+
+    /** The JDBC URL. */
+    private final String url;
+
+    /** Instantiates a new H2 connection pool.
+     * 
+     * @param theURL
+     *        the JDBC URL
+     * @param theSize
+     *        the maximum number of connections
+     * @param theCacheSize
+     *        the maximum number of cached prepared statements per connection */
+    public H2ConnectionPool(final String theURL, final int theSize,
+            final int theCacheSize) {
+        if (theSize <= 0)
+            throw new IllegalArgumentException("Invalid pool size: " + theSize);
+        url = theURL;
+        size = theSize;
+        cacheSize = theCacheSize;
+        idle = new ArrayBlockingQueue<H2Connection>(theSize);
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (final ClassNotFoundException e) {
+            throw new DBException("H2 driver not found.", e);
+        }
+    }
+
+    /** Opens a new connection. */
+    @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "DMI_EMPTY_DB_PASSWORD")
+    private H2Connection open() {
+        try {
+            return new H2Connection(DriverManager.getConnection(url, "", ""), // $codepro.audit.disable
+                    // com.instantiations.assist.eclipse.analysis.hardcodedPassword
+                    cacheSize);
+        } catch (final Exception e) {
+            throw new DBException("Error creating connection: " + url, e);
+        }
+    }
+
+    /** Acquires a connection. It must be given back with release(), once the
+     * current operation is done.
+     * 
+     * @return the connection */
+    public H2Connection acquire() {
+        if (closed)
+            throw new DBException("Connection pool is closed: " + url);
+        final H2Connection conn = idle.poll();
+        if (conn != null)
+            return conn;
+        if (created.incrementAndGet() <= size) {
+            try {
+                return open();
+            } catch (final RuntimeException e) {
+                created.decrementAndGet();
+                throw e;
+            }
+        }
+        created.decrementAndGet();
+        try {
+            return idle.take();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException("Interrupted while waiting for a connection.",
+                    e);
+        }
+    }
+
+    /** Closes all the connections. Connections currently in use are closed
+     * when they are released. */
+    public void close() {
+        closed = true;
+        H2Connection conn;
+        while ((conn = idle.poll()) != null) {
+            conn.close();
+        }
+    }
+
+    /** Gives back a connection acquired with acquire().
+     * 
+     * @param theConnection
+     *        the connection */
+    public void release(final H2Connection theConnection) {
+        if (closed || !idle.offer(theConnection))
+            theConnection.close();
+    }
+}
@@ -18,12 +18,20 @@ package com.blockwithme.longdb.h2;
 /** The Interface H2Constants. */
 public interface H2Constants {
 
-    /** The iterator limit used by key iterator */
+    /** The default page size of the key iterator */
     int ITERATOR_LIMIT = 500;
 
     /** The project home, used for resolving configuration file path */
     String PROJECT_NAME = "H2Impl";
 
+    /** The comment of the reverse tables */
+    String REVERSE_REMARK = "REVERSE";
+
+    /** The suffix of the table of the row keys of a table. A Base36 table
+     * name never contains '$', so the table of the row keys can neither be
+     * taken for a table, nor collide with one. */
+    String ROWS_SUFFIX = "$ROWS";
+
     /** The column size used for blob data */
     long VBINARY_MAX_SIZE = 512000;
 
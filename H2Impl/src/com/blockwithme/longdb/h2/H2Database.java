@@ -16,9 +16,10 @@
 // $codepro.audit.disable methodChainLength
 package com.blockwithme.longdb.h2;
 
+import static com.blockwithme.longdb.h2.H2Constants.REVERSE_REMARK;
+import static com.blockwithme.longdb.h2.H2Constants.ROWS_SUFFIX;
 import static com.blockwithme.longdb.h2.H2Constants.VBINARY_MAX_SIZE;
 
-import java.sql.Connection;
 import java.util.List;
 import java.util.Map;
 
@@ -44,11 +45,15 @@ public class H2Database extends
         super(theBackend, theDBName);
     }
 
-    /** Connection.
-     * 
-     * @return the connection */
-    private Connection connection() {
-        return backend().connection();
+    /** Executes a statement where response is not expected. */
+    private void executeStatement(final String theStatement) {
+        final H2ConnectionPool pool = backend().pool();
+        final H2Connection conn = pool.acquire();
+        try {
+            SQLUtil.executeStatement(theStatement, conn.connection());
+        } finally {
+            pool.release(conn);
+        }
     }
 
     /* (non-Javadoc)
@@ -78,8 +83,13 @@ public class H2Database extends
                 .append(" CONSTRAINT PK_").append(theTable.toString())
                 .append(" PRIMARY KEY (ROW_KEY, COLUMN_KEY)").append(')')
                 .toString();
-        SQLUtil.executeStatement(createTable, connection());
-        return new H2Table(this, theTable);
+        executeStatement(createTable);
+        // The column order is kept as the table comment, so that it is
+        // known when the database is opened again.
+        if (theProfile.reverseColumnsOrder())
+            executeStatement("COMMENT ON TABLE " + this.database() + '.'
+                    + theTable.toString() + " IS '" + REVERSE_REMARK + "'");
+        return new H2Table(this, theTable, theProfile.reverseColumnsOrder());
     }
 
     /* (non-Javadoc)
@@ -93,7 +103,8 @@ public class H2Database extends
         final String createTable = strBuf.append("DROP TABLE ")
                 .append(this.database()).append('.')
                 .append(theTable.table().toString()).toString();
-        SQLUtil.executeStatement(createTable, connection());
+        executeStatement(createTable);
+        executeStatement("DROP TABLE IF EXISTS " + theTable.rowsName());
     }
 
     /* (non-Javadoc)
@@ -103,13 +114,28 @@ public class H2Database extends
     protected void openInternal(final Map<Base36, H2Table> theTables) {
         theTables.clear();
 
-        final List<String> results = SQLUtil.getResultsAsList(
-                "SELECT * FROM INFORMATION_SCHEMA.TABLES WHERE UPPER(TABLE_SCHEMA)=UPPER(\'"
-                        + this.database() + "\') ", connection(), "TABLE_NAME");
+        final List<String> results;
+        final List<String> reversed;
+        final H2ConnectionPool pool = backend().pool();
+        final H2Connection conn = pool.acquire();
+        try {
+            final String tablesQuery = "SELECT * FROM INFORMATION_SCHEMA.TABLES WHERE UPPER(TABLE_SCHEMA)=UPPER(\'"
+                    + this.database() + "\') ";
+            results = SQLUtil.getResultsAsList(tablesQuery, conn.connection(),
+                    "TABLE_NAME");
+            reversed = SQLUtil.getResultsAsList(tablesQuery
+                    + "AND REMARKS=\'" + REVERSE_REMARK + "\'",
+                    conn.connection(), "TABLE_NAME");
+        } finally {
+            pool.release(conn);
+        }
         if (results != null)
             for (final String sName : results) {
+                if (sName.endsWith(ROWS_SUFFIX))
+                    continue;
                 final Base36 b36 = Base36.get(sName);
-                theTables.put(b36, new H2Table(this, b36));
+                theTables.put(b36,
+                        new H2Table(this, b36, reversed.contains(sName)));
             }
     }
 }
@@ -17,7 +17,6 @@ package com.blockwithme.longdb.h2;
 
 import static com.blockwithme.longdb.h2.H2Constants.ITERATOR_LIMIT;
 
-import java.sql.Connection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -30,7 +29,9 @@ import com.blockwithme.longdb.h2.config.SQLUtil;
 import com.carrotsearch.hppc.LongArrayList;
 import com.carrotsearch.hppc.cursors.LongCursor;
 
-/** Iterator for all the keys in a table. */
+/** Iterator for all the keys in a table. The keys are read page by page, in
+ * key order; each page starts after the last key of the previous one, so
+ * reading a page costs the same wherever it is in the table. */
 @ParametersAreNonnullByDefault
 @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "CD_CIRCULAR_DEPENDENCY", justification = "This is our base class design")
 public class H2KeyIterator extends AbstractKeyIterator<H2Table> {
@@ -39,12 +40,23 @@ public class H2KeyIterator extends AbstractKeyIterator<H2Table> {
     @SuppressWarnings("unchecked")
     private Iterator<LongCursor> iter = Collections.EMPTY_LIST.iterator();
 
-    /** The offset. */
-    private long offset;
+    /** The first page query, with parameter LIMIT. */
+    private final String firstQuery;
 
-    // stores the query string.
-    /** The query buff. */
-    private final StringBuilder queryBuff;
+    /** The last key read, if any. */
+    private long lastKey;
+
+    /** The next page query, with parameters last key and LIMIT. */
+    private final String nextQuery;
+
+    /** Indicates that more pages may be available. */
+    private boolean findMore = true;
+
+    /** The page size. */
+    private final int pageSize;
+
+    /** Indicates that at least one page was read. */
+    private boolean started;
 
     /** Instantiates a new h2 key iterator.
      * 
@@ -52,12 +64,13 @@ public class H2KeyIterator extends AbstractKeyIterator<H2Table> {
      *        the table object */
     protected H2KeyIterator(final H2Table theTable) {
         super(theTable);
-        queryBuff = new StringBuilder();
-        queryBuff.append("SELECT DISTINCT ROW_KEY FROM ")
-                .append(this.table.database().database()).append('.')
-                .append(this.table.table().toString())
-                .append(" ORDER BY ROW_KEY LIMIT ").append(ITERATOR_LIMIT)
-                .append(" OFFSET ");
+        firstQuery = "SELECT DISTINCT ROW_KEY FROM "
+                + theTable.qualifiedName() + " ORDER BY ROW_KEY LIMIT ?";
+        nextQuery = "SELECT DISTINCT ROW_KEY FROM " + theTable.qualifiedName()
+                + " WHERE ROW_KEY > ? ORDER BY ROW_KEY LIMIT ?";
+        final int size = ((H2Backend) theTable.database().backend()).config()
+                .keyPageSize();
+        pageSize = (size > 0) ? size : ITERATOR_LIMIT;
         getMore();
     }
 
@@ -65,26 +78,31 @@ public class H2KeyIterator extends AbstractKeyIterator<H2Table> {
      * 
      * @return the more */
     private boolean getMore() {
+        if (!findMore)
+            return false;
+        final H2ConnectionPool pool = ((H2Backend) table.database().backend())
+                .pool();
+        final H2Connection conn = pool.acquire();
         try {
             final LongArrayList res = SQLUtil.getResultsLongList(
-                    queryBuff.toString() + offset, connection(), "ROW_KEY");
+                    started ? conn.prepare(nextQuery, lastKey, pageSize)
+                            : conn.prepare(firstQuery, pageSize), "ROW_KEY");
+            started = true;
+            if (res == null || res.size() < pageSize)
+                findMore = false;
             if (res != null) {
+                lastKey = res.get(res.size() - 1);
                 iter = res.iterator();
                 return iter.hasNext();
             }
         } catch (final Exception e) {
             throw new DBException("Error performing Iterator Query.", e);
+        } finally {
+            pool.release(conn);
         }
         return false;
     }
 
-    /** Connection.
-     * 
-     * @return the connection */
-    protected Connection connection() {
-        return ((H2Backend) table.database().backend()).connection();
-    }
-
     /*
      * (non-Javadoc)
      * 
@@ -94,7 +112,6 @@ public class H2KeyIterator extends AbstractKeyIterator<H2Table> {
     protected long nextKey() {
         if (!hasNext())
             throw new NoSuchElementException("No more values");
-        offset++;
         return iter.next().value;
     }
 
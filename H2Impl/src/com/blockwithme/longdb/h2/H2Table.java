@@ -17,21 +17,22 @@
 //CHECKSTYLE stop magic number check
 package com.blockwithme.longdb.h2;
 
-import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Locale;
 
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
-import javax.sql.rowset.serial.SerialBlob;
 
+import com.blockwithme.longdb.ColumnVisitor;
 import com.blockwithme.longdb.Columns;
 import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.base.AbstractColumnScanner;
+import com.blockwithme.longdb.base.AbstractRowScanner;
 import com.blockwithme.longdb.base.AbstractTable;
 import com.blockwithme.longdb.entities.Base36;
 import com.blockwithme.longdb.entities.Bytes;
@@ -39,194 +40,420 @@ import com.blockwithme.longdb.entities.LongHolder;
 import com.blockwithme.longdb.exception.DBException;
 import com.blockwithme.longdb.h2.config.SQLUtil;
 import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
 import com.carrotsearch.hppc.cursors.LongCursor;
-
-/** BETable implementation for H2 database. */
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+
+/** BETable implementation for H2 database. Every operation borrows a
+ * connection from the backend's pool, so a table can be used by many threads
+ * at once. All the fixed query shapes are prepared once per connection, and
+ * reused. The keys of the rows are also kept in a second table, with one
+ * record per row, updated in the transaction of every mutation, so that the
+ * rows are counted in constant time: H2 reads the count of an unfiltered
+ * COUNT(*) from the primary key index. */
 @ParametersAreNonnullByDefault
 public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
     /** The Constant FULL_RANGE. */
     private static final Range FULL_RANGE = Range.fullRange();
 
+    /** Count the columns of a row, with parameter ROW_KEY. */
+    private final String countSql;
+
+    /** Select the column keys of a row, in table order, with parameter
+     * ROW_KEY. */
+    private final String columnsSql;
+
+    /** Select a page of the column keys of a row in a range, in table order,
+     * with parameters ROW_KEY, the first and last COLUMN_KEY, and LIMIT. Only
+     * the primary key index is read, never the blobs. */
+    private final String columnPageSql;
+
+    /** Select at most one column key of a row, with parameter ROW_KEY. */
+    private final String existsSql;
+
+    /** Delete one column, with parameters ROW_KEY and COLUMN_KEY. */
+    private final String deleteSql;
+
+    /** Delete a range of columns, with parameters ROW_KEY, and the first and
+     * last COLUMN_KEY. */
+    private final String deleteRangeSql;
+
+    /** Select the first columns of a row, in table order, with parameters
+     * ROW_KEY and the number of columns. The primary key index gives the
+     * columns in order, so only the selected columns are read. */
+    private final String limitedSql;
+
+    /** Insert or update one column, with parameters ROW_KEY, COLUMN_KEY,
+     * DATA_BLOB and LAST_MODIFIED. */
+    private final String mergeSql;
+
+    /** The schema qualified table name. */
+    private final String qualifiedName;
+
+    /** Delete the key of a row that has no column left, with parameter
+     * ROW_KEY, twice. */
+    private final String rowDeleteSql;
+
+    /** Insert the key of a row, if missing, with parameter ROW_KEY. */
+    private final String rowMergeSql;
+
+    /** The schema qualified name of the table of the row keys. The name is
+     * quoted, since it contains a character that no table name has. */
+    private final String rowsName;
+
+    /** Select a page of the row keys in a range, in key order, with
+     * parameters first and last ROW_KEY, and LIMIT. */
+    private final String keyRangeSql;
+
+    /** Select a range of columns of a range of rows, in key order, with
+     * parameters first and last ROW_KEY, and first and last COLUMN_KEY. */
+    private final String scanRangeSql;
+
+    /** Select a range of columns, in table order, with parameters ROW_KEY,
+     * and the first and last COLUMN_KEY. */
+    private final String selectRangeSql;
+
+    /** Count the rows, in the table of the row keys. */
+    private final String sizeSql;
+
+    /** Select the highest row key. */
+    private final String maxKeySql;
+
+    /** Select the lowest row key. */
+    private final String minKeySql;
+
     /** Instantiates a new h2 table.
      * 
      * @param theDB
      *        the database instance
      * @param theTableName
-     *        the table name */
-    protected H2Table(final H2Database theDB, final Base36 theTableName) {
-        super(theDB, theTableName, false, false);
+     *        the table name
+     * @param isReverse
+     *        the reverse column sorting flag */
+    protected H2Table(final H2Database theDB, final Base36 theTableName,
+            final boolean isReverse) {
+        super(theDB, theTableName, isReverse, false);
+        qualifiedName = theDB.database() + '.' + theTableName.toString();
+        rowsName = theDB.database() + ".\""
+                + theTableName.toString().toUpperCase(Locale.ENGLISH)
+                + H2Constants.ROWS_SUFFIX + '"';
+        final String order = isReverse ? " ORDER BY COLUMN_KEY DESC"
+                : " ORDER BY COLUMN_KEY";
+        countSql = "SELECT COUNT(*) AS C_COUNT FROM " + qualifiedName
+                + " WHERE ROW_KEY=?";
+        columnsSql = "SELECT COLUMN_KEY FROM " + qualifiedName
+                + " WHERE ROW_KEY=?" + order;
+        columnPageSql = "SELECT COLUMN_KEY FROM " + qualifiedName
+                + " WHERE ROW_KEY=? AND COLUMN_KEY >= ? AND COLUMN_KEY <= ?"
+                + order + " LIMIT ?";
+        existsSql = "SELECT COLUMN_KEY FROM " + qualifiedName
+                + " WHERE ROW_KEY=? LIMIT 1";
+        deleteSql = "DELETE FROM " + qualifiedName
+                + " WHERE ROW_KEY=? AND COLUMN_KEY=?";
+        deleteRangeSql = "DELETE FROM " + qualifiedName
+                + " WHERE ROW_KEY=? AND COLUMN_KEY >= ? AND COLUMN_KEY <= ?";
+        keyRangeSql = "SELECT DISTINCT ROW_KEY FROM " + qualifiedName
+                + " WHERE ROW_KEY >= ? AND ROW_KEY <= ? ORDER BY ROW_KEY LIMIT ?";
+        limitedSql = "SELECT COLUMN_KEY, DATA_BLOB FROM " + qualifiedName
+                + " WHERE ROW_KEY=?" + order + " LIMIT ?";
+        mergeSql = "MERGE INTO " + qualifiedName
+                + " (ROW_KEY, COLUMN_KEY, DATA_BLOB, LAST_MODIFIED)"
+                + " KEY (ROW_KEY, COLUMN_KEY) VALUES (?, ?, ?, ?)";
+        scanRangeSql = "SELECT ROW_KEY, COLUMN_KEY, DATA_BLOB FROM "
+                + qualifiedName + " WHERE ROW_KEY >= ? AND ROW_KEY <= ?"
+                + " AND COLUMN_KEY >= ? AND COLUMN_KEY <= ?"
+                + " ORDER BY ROW_KEY, COLUMN_KEY";
+        selectRangeSql = "SELECT COLUMN_KEY, DATA_BLOB FROM " + qualifiedName
+                + " WHERE ROW_KEY=? AND COLUMN_KEY >= ? AND COLUMN_KEY <= ?"
+                + order;
+        rowDeleteSql = "DELETE FROM " + rowsName + " WHERE ROW_KEY=?"
+                + " AND NOT EXISTS (SELECT ROW_KEY FROM " + qualifiedName
+                + " WHERE ROW_KEY=?)";
+        rowMergeSql = "MERGE INTO " + rowsName + " KEY (ROW_KEY) VALUES (?)";
+        sizeSql = "SELECT COUNT(*) AS R_COUNT FROM " + rowsName;
+        maxKeySql = "SELECT MAX(ROW_KEY) AS R_KEY FROM " + qualifiedName;
+        minKeySql = "SELECT MIN(ROW_KEY) AS R_KEY FROM " + qualifiedName;
     }
 
-    /** Check existing columns.
+    /** Adds the upsert of the columns of one row to the merge batch.
      * 
+     * @param thePStmt
+     *        the merge statement
      * @param theKey
      *        the key
      * @param theInsertUpdateColumns
      *        the insert or update
-     * @param theInsertList
-     *        the insert list
-     * @return the long array list */
-    // TODO: Purpose of method, and it's parameters, is not obvious.
-    // Would need improved comments in description.
-    @CheckForNull
-    private LongArrayList checkExistingColumns(final long theKey,
-            final Columns theInsertUpdateColumns, final List<Long> theInsertList) {
-        final LongArrayList existingColIds;
-        final StringBuilder s1 = new StringBuilder();
-        s1.append("SELECT COLUMN_KEY FROM ").append(this.database().database())
-                .append('.').append(this.table().toString())
-                .append(" WHERE ROW_KEY= ").append(theKey)
-                .append(" AND COLUMN_KEY IN (");
-
-        boolean prepend = false;
-        final long[] modifiedCols = theInsertUpdateColumns.columns();
-        for (final long longCursor : modifiedCols) {
-            if (prepend)
-                s1.append(',');
-            s1.append(longCursor);
-            prepend = true;
+     * @param theTime
+     *        the timestamp */
+    private static void addMerge(final PreparedStatement thePStmt,
+            final long theKey, final Columns theInsertUpdateColumns,
+            final Timestamp theTime) throws SQLException {
+        final int size = theInsertUpdateColumns.size();
+        for (int i = 0; i < size; i++) {
+            final long colId = theInsertUpdateColumns.columnAt(i);
+            final Bytes byts = theInsertUpdateColumns.getBytes(colId);
+            assert (byts != null);
+            thePStmt.setLong(1, theKey);
+            thePStmt.setLong(2, colId);
+            thePStmt.setBytes(3, byts.toArray(false));
+            thePStmt.setTimestamp(4, theTime);
+            thePStmt.addBatch();
         }
-        s1.append(')');
-        existingColIds = SQLUtil.getResultsLongList(s1.toString(),
-                connection(), "COLUMN_KEY");
-        for (final long longCursor : modifiedCols) {
-            if (existingColIds == null || !existingColIds.contains(longCursor))
-                theInsertList.add(longCursor);
+    }
+
+    /** Inserts or updates the columns of many rows, as a single batched MERGE.
+     * 
+     * @param theConnection
+     *        the connection
+     * @param theRows
+     *        the columns to be inserted or updated, mapped by row ID */
+    private void insertUpdateAll(final H2Connection theConnection,
+            final LongObjectOpenHashMap<Columns> theRows) {
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        try {
+            final PreparedStatement pStmt = theConnection.prepare(mergeSql);
+            for (final LongObjectCursor<Columns> row : theRows) {
+                addMerge(pStmt, row.key, row.value, now);
+            }
+            pStmt.executeBatch();
+            final PreparedStatement rowStmt = theConnection
+                    .prepare(rowMergeSql);
+            for (final LongObjectCursor<Columns> row : theRows) {
+                if (row.value.size() > 0) {
+                    rowStmt.setLong(1, row.key);
+                    rowStmt.addBatch();
+                }
+            }
+            rowStmt.executeBatch();
+        } catch (final SQLException e) {
+            throw new DBException(
+                    "Error while executing batch merge statement("
+                            + "LongObjectOpenHashMap<Columns> rows=" + theRows
+                            + ")", e);
         }
-        return existingColIds;
     }
 
-    /** Connection.
+    /** Appends a comma separated list of values to a statement.
      * 
-     * @return the connection */
-    private Connection connection() {
-        return database.backend().connection();
+     * @param theBuffer
+     *        the statement buffer
+     * @param theValues
+     *        the values */
+    private static void appendList(final StringBuilder theBuffer,
+            final long[] theValues) {
+        boolean prepend = false;
+        for (final long value : theValues) {
+            if (prepend)
+                theBuffer.append(',');
+            theBuffer.append(value);
+            prepend = true;
+        }
     }
 
-    /** Execute insert.
+    /** Insert update. The columns are upserted with a single batched MERGE,
+     * so a row write is one statement, whether the columns exist or not.
      * 
+     * @param theConnection
+     *        the connection
      * @param theKey
      *        the key
      * @param theInsertUpdateColumns
-     *        the insert or update
-     * @param theTime
-     *        the timestamp
-     * @param theInsertList
-     *        the insert list */
-    private void executeInsert(final long theKey,
-            final Columns theInsertUpdateColumns, final Timestamp theTime,
-            final List<Long> theInsertList) {
-        PreparedStatement pStmt = null;
-        try {
+     *        the insert or update */
+    private void insertUpdate(final H2Connection theConnection,
+            final long theKey, final Columns theInsertUpdateColumns) {
 
-            final StringBuilder s2 = new StringBuilder(); // $codepro.audit.disable
-                                                          // unusedStringBuilder
-            final String insertSql = s2.append("INSERT INTO ")
-                    .append(this.database().database()).append('.')
-                    .append(this.table().toString())
-                    .append(" VALUES (?, ?, ?, ?)").toString();
+        if (theInsertUpdateColumns == null
+                || theInsertUpdateColumns.size() == 0)
+            return;
 
-            pStmt = connection().prepareStatement(insertSql);
-            for (final Long insertId : theInsertList) {
-                pStmt.setLong(1, theKey);
-                pStmt.setLong(2, insertId);
-                final Bytes byts = theInsertUpdateColumns.getBytes(insertId);
-                assert (byts != null);
-                final Blob blob = new SerialBlob(byts.toArray(false));
-                pStmt.setBlob(3, blob);
-                pStmt.setTimestamp(4, theTime);
-                pStmt.addBatch();
-            }
+        // TODO : discuss and fix below should we use
+        // System.currentTimeMillis() ?
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        try {
+            final PreparedStatement pStmt = theConnection.prepare(mergeSql);
+            addMerge(pStmt, theKey, theInsertUpdateColumns, now);
             pStmt.executeBatch();
-
         } catch (final SQLException e) {
             throw new DBException(
-                    "Error while executing insert statement(long key=" + theKey
+                    "Error while executing merge statement(long key=" + theKey
                             + ", Columns insertOrUpdate="
                             + theInsertUpdateColumns + ", Timestamp now="
-                            + theTime + ", List<Long> insertList="
-                            + theInsertList + ")", e);
+                            + now + ")", e);
+        }
+    }
+
+    /** Connection pool.
+     * 
+     * @return the connection pool */
+    private H2ConnectionPool pool() {
+        return database.backend().pool();
+    }
+
+    /** Reads a page of the rows in a range, in key order. The keys of the page
+     * are read first, and then the columns of all the rows of the page, with
+     * a single range query over the primary key.
+     * 
+     * @param theRows
+     *        the range of row keys
+     * @param theColumns
+     *        the range of column Ids; null to read the keys only
+     * @param theKeys
+     *        receives the keys of the rows
+     * @param theResult
+     *        receives the columns, mapped by row key
+     * @param theLimit
+     *        the maximum number of rows
+     * @return true, if the range may contain more rows than theLimit */
+    private boolean readRange(final Range theRows,
+            @Nullable final Range theColumns, final LongArrayList theKeys,
+            final LongObjectOpenHashMap<Columns> theResult, final int theLimit) {
+        final H2Connection conn = pool().acquire();
+        try {
+            final LongArrayList keys = SQLUtil.getResultsLongList(conn.prepare(
+                    keyRangeSql, theRows.start(), theRows.end(), theLimit),
+                    "ROW_KEY");
+            if (keys == null)
+                return false;
+            theKeys.addAll(keys);
+            if (theColumns != null)
+                theResult.putAll(SQLUtil.getResultsAsRows(conn.prepare(
+                        scanRangeSql, keys.get(0), keys.get(keys.size() - 1),
+                        theColumns.start(), theColumns.end()), reverse));
+            return keys.size() == theLimit;
+        } catch (final Exception e) {
+            throw new DBException("Error performing Range Scan.", e);
         } finally {
-            if (pStmt != null) { // $codepro.audit.disable unnecessaryNullCheck
-                try {
-                    pStmt.close();
-                } catch (final SQLException e) {
-                    // ignore.
-                }
-            }
+            pool().release(conn);
         }
     }
 
-    /** Execute update. */
-    private void executeUpdate(final long theKey,
-            final Columns theInsertUpdateColumns, final Timestamp theTime,
-            final LongArrayList theUpdateList) {
-        PreparedStatement pStmt = null;
+    /** Creates a scanner over a range of rows, reading one page at a time
+     * with readRange(). Only the keys are read when theColumns is null.
+     * 
+     * @param theRows
+     *        the range of row keys
+     * @param theColumns
+     *        the range of column Ids, or null
+     * @return the scanner */
+    private AbstractRowScanner<H2Table> scanner(final Range theRows,
+            @Nullable final Range theColumns) {
+        final Range rows = new Range(theRows.start(), theRows.end());
+        final int size = database.backend().config().keyPageSize();
+        final int pageSize = (size > 0) ? size : H2Constants.ITERATOR_LIMIT;
+        return new AbstractRowScanner<H2Table>(this, theColumns) {
+            @Override
+            protected boolean nextPage(final LongArrayList theKeys,
+                    final LongObjectOpenHashMap<Columns> theResult) {
+                return readRange(rows, columns, theKeys, theResult, pageSize)
+                        && advance(rows, theKeys);
+            }
+        };
+    }
+
+    /** Removes some columns, using the given connection.
+     * 
+     * @param theConnection
+     *        the connection
+     * @param theKey
+     *        the key
+     * @param theRemoveCols
+     *        the columns to be removed */
+    private void remove(final H2Connection theConnection, final long theKey,
+            final LongArrayList theRemoveCols) {
+        if (theRemoveCols.isEmpty())
+            return;
         try {
-            final StringBuilder s3 = new StringBuilder();
-            final String updateSql = s3.append("UPDATE ")
-                    .append(this.database().database()).append('.')
-                    .append(this.table().toString())
-                    .append(" SET DATA_BLOB=?, LAST_MODIFIED=? ")
-                    .append("WHERE ROW_KEY=? AND COLUMN_KEY=? ").toString();
-
-            pStmt = connection().prepareStatement(updateSql);
-            for (final LongCursor insertId : theUpdateList) {
-                final Bytes byts = theInsertUpdateColumns
-                        .getBytes(insertId.value);
-                assert (byts != null);
-                final Blob blob = new SerialBlob(byts.toArray(false));
-                pStmt.setBlob(1, blob);
-                pStmt.setTimestamp(2, theTime);
-                pStmt.setLong(3, theKey);
-                pStmt.setLong(4, insertId.value);
+            final PreparedStatement pStmt = theConnection.prepare(deleteSql);
+            for (final LongCursor longCursor : theRemoveCols) {
+                pStmt.setLong(1, theKey);
+                pStmt.setLong(2, longCursor.value);
                 pStmt.addBatch();
             }
             pStmt.executeBatch();
-
         } catch (final SQLException e) {
             throw new DBException(
-                    "Error while executing update statement(long key=" + theKey
-                            + ", Columns insertOrUpdate="
-                            + theInsertUpdateColumns + ", Timestamp now="
-                            + theTime + ", LongArrayList updateList="
-                            + theUpdateList + ")", e);
-        } finally {
-            if (pStmt != null) { // $codepro.audit.disable unnecessaryNullCheck
-                try {
-                    pStmt.close();
-                } catch (final SQLException e) {
-                    // ignore.
-                }
-            }
+                    "Error while executing delete statement(long key=" + theKey
+                            + ", LongArrayList remove=" + theRemoveCols + ")",
+                    e);
         }
     }
 
-    /** Insert update.
+    /** Removes a range of columns, using the given connection.
      * 
+     * @param theConnection
+     *        the connection
      * @param theKey
      *        the key
-     * @param theInsertUpdateColumns
-     *        the insert or update */
-    private void insertUpdate(final long theKey,
-            final Columns theInsertUpdateColumns) {
-
-        if (theInsertUpdateColumns == null
-                || theInsertUpdateColumns.size() == 0)
+     * @param theRemoveCols
+     *        the range of columns to be removed */
+    private void remove(final H2Connection theConnection, final long theKey,
+            final Range theRemoveCols) {
+        if (theRemoveCols.empty())
             return;
+        final long start = (theRemoveCols.start() < theRemoveCols.end()) ? theRemoveCols
+                .start() : theRemoveCols.end();
+        final long end = (theRemoveCols.start() < theRemoveCols.end()) ? theRemoveCols
+                .end() : theRemoveCols.start();
+        try {
+            theConnection.prepare(deleteRangeSql, theKey, start, end)
+                    .executeUpdate();
+        } catch (final SQLException e) {
+            throw new DBException(
+                    "Error while executing delete statement(long key=" + theKey
+                            + ", Range remove=" + theRemoveCols + ")", e);
+        }
+    }
 
-        // TODO : discuss and fix below should we use
-        // System.currentTimeMillis() ?
-        final Timestamp now = new Timestamp(System.currentTimeMillis());
-        final List<Long> insertList = new ArrayList<Long>();
-        final LongArrayList existingColIds = checkExistingColumns(theKey,
-                theInsertUpdateColumns, insertList);
-
-        if (!insertList.isEmpty())
-            executeInsert(theKey, theInsertUpdateColumns, now, insertList);
-
-        if (existingColIds != null && existingColIds.size() > 0)
-            executeUpdate(theKey, theInsertUpdateColumns, now, existingColIds);
+    /** Writes one row, in a single transaction: removes the columns in
+     * theRemoveCols and in theRemoveRange, inserts or updates the columns in
+     * theInsertUpdateColumns, and then inserts the key of the row, if it has
+     * new columns, or deletes it, if it has no column left.
+     * 
+     * @param theKey
+     *        the key
+     * @param theInsertUpdateColumns
+     *        the insert or update, or null
+     * @param theRemoveCols
+     *        the columns to be removed, or null
+     * @param theRemoveRange
+     *        the range of columns to be removed, or null */
+    private void write(final long theKey,
+            @Nullable final Columns theInsertUpdateColumns,
+            @Nullable final LongArrayList theRemoveCols,
+            @Nullable final Range theRemoveRange) {
+        final H2Connection h2Conn = pool().acquire();
+        try {
+            final Connection conn = h2Conn.connection();
+            final boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                if (theRemoveCols != null)
+                    remove(h2Conn, theKey, theRemoveCols);
+                if (theRemoveRange != null)
+                    remove(h2Conn, theKey, theRemoveRange);
+                if (theInsertUpdateColumns != null
+                        && theInsertUpdateColumns.size() > 0) {
+                    insertUpdate(h2Conn, theKey, theInsertUpdateColumns);
+                    h2Conn.prepare(rowMergeSql, theKey).executeUpdate();
+                } else
+                    h2Conn.prepare(rowDeleteSql, theKey, theKey)
+                            .executeUpdate();
+                conn.commit();
+            } catch (final RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (final SQLException e) {
+            throw new DBException("Error while executing write transaction("
+                    + "long key=" + theKey + ", Columns insertOrUpdate="
+                    + theInsertUpdateColumns + ", LongArrayList remove="
+                    + theRemoveCols + ", Range remove=" + theRemoveRange
+                    + ")", e);
+        } finally {
+            pool().release(h2Conn);
+        }
     }
 
     /*
@@ -246,14 +473,13 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
      */
     @Override
     protected long columnsCountInternal(final long theKey) {
-        final StringBuilder strbuf = new StringBuilder();
-        strbuf.append("SELECT COUNT(*) AS C_COUNT FROM  ")
-                .append(this.database().database()).append('.')
-                .append(this.table().toString()).append(" WHERE ROW_KEY=")
-                .append(theKey);
-        final long size = (Long) SQLUtil.getSingleResult(strbuf.toString(),
-                connection(), "C_COUNT");
-        return size;
+        final H2Connection conn = pool().acquire();
+        try {
+            return (Long) SQLUtil.getSingleResult(
+                    conn.prepare(countSql, theKey), "C_COUNT");
+        } finally {
+            pool().release(conn);
+        }
     }
 
     /*
@@ -264,14 +490,13 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
     @Override
     @CheckForNull
     protected LongArrayList columnsInternal(final long theKey) {
-        final StringBuilder strbuf = new StringBuilder();
-        strbuf.append("SELECT COLUMN_KEY FROM ")
-                .append(this.database().database()).append('.')
-                .append(this.table().toString())
-                .append(" WHERE ROW_KEY=" + theKey);
-        final LongArrayList result = SQLUtil.getResultsLongList(
-                strbuf.toString(), connection(), "COLUMN_KEY");
-        return result;
+        final H2Connection conn = pool().acquire();
+        try {
+            return SQLUtil.getResultsLongList(conn.prepare(columnsSql, theKey),
+                    "COLUMN_KEY");
+        } finally {
+            pool().release(conn);
+        }
     }
 
     /*
@@ -282,29 +507,42 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
     @Override
     @CheckForNull
     protected Iterator<LongHolder> columnsIteratorInternal(final long theKey) {
-        final LongArrayList cols = columnsInternal(theKey);
-        if ((cols != null) && !cols.isEmpty()) {
-            final Iterator<LongCursor> iter = cols.iterator();
-            final LongHolder holder = new LongHolder();
-            return new Iterator<LongHolder>() {
-                @Override
-                public boolean hasNext() {
-                    return iter.hasNext();
-                }
-
-                @Override
-                public LongHolder next() {
-                    holder.setRaw(iter.next().value);
-                    return holder;
+        return new AbstractColumnScanner<H2Table>(this, theKey) {
+            @Override
+            protected boolean nextPage(final boolean isFirst,
+                    final long theLast, final LongArrayList theIds) {
+                final Range range = remaining(isFirst, theLast);
+                if (range == null)
+                    return false;
+                final H2Connection conn = pool().acquire();
+                try {
+                    final LongArrayList cols = SQLUtil.getResultsLongList(
+                            conn.prepare(columnPageSql, key, range.start(),
+                                    range.end(), PAGE_SIZE), "COLUMN_KEY");
+                    if (cols == null)
+                        return false;
+                    theIds.addAll(cols);
+                    return cols.size() == PAGE_SIZE;
+                } finally {
+                    pool().release(conn);
                 }
+            }
+        }.orNull();
+    }
 
-                @Override
-                public void remove() {
-                    throw new UnsupportedOperationException();
-                }
-            };
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#existsInternal(long)
+     */
+    @Override
+    protected boolean existsInternal(final long theKey) {
+        final H2Connection conn = pool().acquire();
+        try {
+            return SQLUtil.hasResult(conn.prepare(existsSql, theKey));
+        } finally {
+            pool().release(conn);
         }
-        return null;
     }
 
     /*
@@ -321,22 +559,18 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
             return null;
         }
         final StringBuilder strbuf = new StringBuilder();
-        // TODO: Why are we returning the row key, when we already know what it
-        // is?!?
-        strbuf.append(
-                "SELECT ROW_KEY, COLUMN_KEY, DATA_BLOB, LAST_MODIFIED FROM ")
-                .append(this.database().database()).append('.')
-                .append(this.table().toString()).append(" WHERE ROW_KEY=")
+        strbuf.append("SELECT COLUMN_KEY, DATA_BLOB FROM ")
+                .append(qualifiedName).append(" WHERE ROW_KEY=")
                 .append(theKey).append(" AND COLUMN_KEY IN (");
-        boolean prepend = false;
-        for (final LongCursor longCursor : theColumns) {
-            if (prepend)
-                strbuf.append(',');
-            strbuf.append(longCursor.value);
-            prepend = true;
+        appendList(strbuf, theColumns.toArray());
+        strbuf.append(") ORDER BY COLUMN_KEY");
+        final H2Connection conn = pool().acquire();
+        try {
+            return SQLUtil.getResultsAsColumns(strbuf.toString(),
+                    conn.connection(), reverse);
+        } finally {
+            pool().release(conn);
         }
-        strbuf.append(") ORDER BY ROW_KEY, COLUMN_KEY");
-        return SQLUtil.getResultsAsColumns(strbuf.toString(), connection());
     }
 
     /*
@@ -353,7 +587,7 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
 
         long start;
         long end;
-        if (theRange.equals(Range.fullRange())) {
+        if (theRange.equals(FULL_RANGE)) {
             start = Long.MIN_VALUE;
             end = Long.MAX_VALUE;
         } else {
@@ -362,18 +596,33 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
             end = (theRange.start() < theRange.end()) ? theRange.end()
                     : theRange.start();
         }
+        final H2Connection conn = pool().acquire();
+        try {
+            return SQLUtil.getResultsAsColumns(conn.prepare(selectRangeSql,
+                    theKey, start, end), reverse);
+        } finally {
+            pool().release(conn);
+        }
+    }
 
-        final StringBuilder strbuf = new StringBuilder();
-        // TODO: Why are we returning the row key, when we already know what it
-        // is?!?
-        strbuf.append(
-                "SELECT ROW_KEY, COLUMN_KEY, DATA_BLOB, LAST_MODIFIED FROM ")
-                .append(this.database().database()).append('.')
-                .append(this.table().toString()).append(" WHERE ROW_KEY=")
-                .append(theKey).append(" AND COLUMN_KEY >=").append(start)
-                .append(" AND COLUMN_KEY <=").append(end);
-        strbuf.append(" ORDER BY ROW_KEY, COLUMN_KEY");
-        return SQLUtil.getResultsAsColumns(strbuf.toString(), connection());
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#getInternal(long,
+     * com.blockwithme.longdb.Range, com.blockwithme.longdb.ColumnVisitor)
+     */
+    @Override
+    protected int getInternal(final long theKey, final Range theRange,
+            final ColumnVisitor theVisitor) {
+        if (theRange.empty())
+            return 0;
+        final H2Connection conn = pool().acquire();
+        try {
+            return SQLUtil.visitResults(conn.prepare(selectRangeSql, theKey,
+                    theRange.start(), theRange.end()), theVisitor);
+        } finally {
+            pool().release(conn);
+        }
     }
 
     /*
@@ -386,6 +635,68 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
         return new H2KeyIterator(this);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#keysInternal(com.blockwithme
+     * .longdb.Range)
+     */
+    @Override
+    protected Iterator<LongHolder> keysInternal(final Range theRows) {
+        return scanner(theRows, null).keys();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#multiGetInternal(long[],
+     * com.carrotsearch.hppc.LongArrayList)
+     */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final LongArrayList theColumns) {
+        final StringBuilder strbuf = new StringBuilder();
+        strbuf.append("SELECT ROW_KEY, COLUMN_KEY, DATA_BLOB FROM ")
+                .append(qualifiedName).append(" WHERE ROW_KEY IN (");
+        appendList(strbuf, theKeys);
+        strbuf.append(") AND COLUMN_KEY IN (");
+        appendList(strbuf, theColumns.toArray());
+        strbuf.append(") ORDER BY ROW_KEY, COLUMN_KEY");
+        final H2Connection conn = pool().acquire();
+        try {
+            return SQLUtil.getResultsAsRows(strbuf.toString(),
+                    conn.connection(), reverse);
+        } finally {
+            pool().release(conn);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#multiGetInternal(long[],
+     * com.blockwithme.longdb.Range)
+     */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final Range theRange) {
+        final StringBuilder strbuf = new StringBuilder();
+        strbuf.append("SELECT ROW_KEY, COLUMN_KEY, DATA_BLOB FROM ")
+                .append(qualifiedName).append(" WHERE ROW_KEY IN (");
+        appendList(strbuf, theKeys);
+        strbuf.append(") AND COLUMN_KEY >=").append(theRange.start())
+                .append(" AND COLUMN_KEY <=").append(theRange.end())
+                .append(" ORDER BY ROW_KEY, COLUMN_KEY");
+        final H2Connection conn = pool().acquire();
+        try {
+            return SQLUtil.getResultsAsRows(strbuf.toString(),
+                    conn.connection(), reverse);
+        } finally {
+            pool().release(conn);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -393,9 +704,59 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
      */
     @Override
     protected void openInternal() {
+        final boolean missing;
+        final H2Connection conn = pool().acquire();
+        try {
+            SQLUtil.executeStatement("CREATE TABLE IF NOT EXISTS " + rowsName
+                    + " (ROW_KEY BIGINT NOT NULL PRIMARY KEY)",
+                    conn.connection());
+            // Older databases have no table of the row keys; it is filled
+            // once.
+            missing = !SQLUtil.hasResult(conn.prepare("SELECT ROW_KEY FROM "
+                    + rowsName + " LIMIT 1"))
+                    && SQLUtil.hasResult(conn.prepare("SELECT ROW_KEY FROM "
+                            + qualifiedName + " LIMIT 1"));
+        } finally {
+            pool().release(conn);
+        }
+        if (missing)
+            recountInternal();
         closed = false;
     }
 
+    /** Fills the table of the row keys again, from the rows of the table, and
+     * counts them.
+     * 
+     * @return the number of rows */
+    @Override
+    protected long recountInternal() {
+        final H2Connection h2Conn = pool().acquire();
+        try {
+            final Connection conn = h2Conn.connection();
+            final boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                SQLUtil.executeStatement("DELETE FROM " + rowsName, conn);
+                SQLUtil.executeStatement("INSERT INTO " + rowsName
+                        + " SELECT DISTINCT ROW_KEY FROM " + qualifiedName,
+                        conn);
+                conn.commit();
+            } catch (final RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+            return (Long) SQLUtil.getSingleResult(h2Conn.prepare(sizeSql),
+                    "R_COUNT");
+        } catch (final SQLException e) {
+            throw new DBException("Error while counting the rows of "
+                    + qualifiedName, e);
+        } finally {
+            pool().release(h2Conn);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -405,21 +766,7 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
     @Override
     protected void removeInternal(final long theKey,
             final LongArrayList theRemoveCols) {
-
-        final StringBuilder strBuf = new StringBuilder();
-        strBuf.append("DELETE FROM ").append(this.database().database())
-                .append('.').append(this.table().toString())
-                .append(" WHERE ROW_KEY=").append(theKey)
-                .append(" AND COLUMN_KEY IN (");
-        boolean prepend = false;
-        for (final LongCursor longCursor : theRemoveCols) {
-            if (prepend)
-                strBuf.append(',');
-            strBuf.append(longCursor.value);
-            prepend = true;
-        }
-        strBuf.append(')');
-        SQLUtil.executeStatement(strBuf.toString(), connection());
+        write(theKey, null, theRemoveCols, null);
     }
 
     /*
@@ -430,28 +777,20 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
      */
     @Override
     protected void removeInternal(final long theKey, final Range theRemoveCols) {
+        write(theKey, null, null, theRemoveCols);
+    }
 
-        if (theRemoveCols.empty())
-            return;
-        long start;
-        long end;
-        if (theRemoveCols.equals(Range.fullRange())) {
-            start = Long.MIN_VALUE;
-            end = Long.MAX_VALUE;
-        } else {
-            start = (theRemoveCols.start() < theRemoveCols.end()) ? theRemoveCols
-                    .start() : theRemoveCols.end();
-            end = (theRemoveCols.start() < theRemoveCols.end()) ? theRemoveCols
-                    .end() : theRemoveCols.start();
-        }
-
-        final StringBuilder strBuf = new StringBuilder();
-        strBuf.append("DELETE FROM ").append(this.database().database())
-                .append('.').append(this.table().toString())
-                .append(" WHERE ROW_KEY=").append(theKey)
-                .append(" AND COLUMN_KEY >= ").append(start)
-                .append(" AND COLUMN_KEY <= ").append(end);
-        SQLUtil.executeStatement(strBuf.toString(), connection());
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#scanInternal(com.blockwithme
+     * .longdb.Range, com.blockwithme.longdb.Range)
+     */
+    @Override
+    protected Iterator<LongObjectCursor<Columns>> scanInternal(
+            final Range theRows, final Range theColumns) {
+        return scanner(theRows, theColumns);
     }
 
     /*
@@ -464,8 +803,7 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
     protected void setInternal(final long theKey,
             final Columns theInsertUpdateColumns,
             final LongArrayList theRemoveCols) {
-        removeInternal(theKey, theRemoveCols);
-        insertUpdate(theKey, theInsertUpdateColumns);
+        write(theKey, theInsertUpdateColumns, theRemoveCols, null);
     }
 
     /*
@@ -477,8 +815,38 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
     @Override
     protected void setInternal(final long theKey,
             final Columns theInsertUpdateColumns, final Range theRemoveCols) {
-        removeInternal(theKey, theRemoveCols);
-        insertUpdate(theKey, theInsertUpdateColumns);
+        write(theKey, theInsertUpdateColumns, null, theRemoveCols);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#setAllInternal(com.carrotsearch
+     * .hppc.LongObjectOpenHashMap)
+     */
+    @Override
+    protected void setAllInternal(final LongObjectOpenHashMap<Columns> theRows) {
+        final H2Connection h2Conn = pool().acquire();
+        try {
+            final Connection conn = h2Conn.connection();
+            final boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                insertUpdateAll(h2Conn, theRows);
+                conn.commit();
+            } catch (final RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (final SQLException e) {
+            throw new DBException("Error while executing batch transaction("
+                    + "LongObjectOpenHashMap<Columns> rows=" + theRows + ")", e);
+        } finally {
+            pool().release(h2Conn);
+        }
     }
 
     /*
@@ -488,13 +856,36 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
      */
     @Override
     protected long sizeInternal() {
-        final StringBuilder strbuf = new StringBuilder();
-        strbuf.append("SELECT COUNT(DISTINCT ROW_KEY) AS R_COUNT FROM ")
-                .append(this.database().database()).append('.')
-                .append(this.table().toString());
-        final long size = (Long) SQLUtil.getSingleResult(strbuf.toString(),
-                connection(), "R_COUNT");
-        return size;
+        final H2Connection conn = pool().acquire();
+        try {
+            return (Long) SQLUtil.getSingleResult(conn.prepare(sizeSql),
+                    "R_COUNT");
+        } finally {
+            pool().release(conn);
+        }
+    }
+
+    /** Splits the keys between the lowest and the highest row key, which are
+     * both read from the primary key index. The keys are assumed to be evenly
+     * distributed between the two.
+     * 
+     * @param theParts
+     *        the wanted number of ranges
+     * @return the ranges */
+    @Override
+    protected Range[] splitKeysInternal(final int theParts) {
+        final H2Connection conn = pool().acquire();
+        try {
+            final Long min = (Long) SQLUtil.getSingleResult(
+                    conn.prepare(minKeySql), "R_KEY");
+            final Long max = (Long) SQLUtil.getSingleResult(
+                    conn.prepare(maxKeySql), "R_KEY");
+            if (min == null || max == null)
+                return new Range[] { Range.fullRange() };
+            return split(min, max, theParts);
+        } finally {
+            pool().release(conn);
+        }
     }
 
     /** Called when the table was dropped. */
@@ -512,18 +903,27 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
 
         if (theCount == 0)
             return null;
-        final StringBuilder strBuf = new StringBuilder(); // $codepro.audit.disable
-                                                          // unusedStringBuilder
-        final String query = strBuf
-                .append("SELECT ROW_KEY, COLUMN_KEY, DATA_BLOB, ")
-                .append(" LAST_MODIFIED FROM ")
-                .append(this.database().database()).append('.')
-                .append(this.table().toString()).append(" WHERE ROW_KEY=")
-                .append(theKey).append(" ORDER BY ROW_KEY, ")
-                .append(" COLUMN_KEY LIMIT ").append(theCount).toString();
+        final H2Connection conn = pool().acquire();
+        try {
+            return SQLUtil.getResultsAsColumns(conn.prepare(limitedSql,
+                    theKey, theCount), reverse);
+        } finally {
+            pool().release(conn);
+        }
+    }
 
-        return SQLUtil.getResultsAsColumns(query, connection());
+    /** Returns the schema qualified name of the table of the row keys.
+     * 
+     * @return the qualified name */
+    protected String rowsName() {
+        return rowsName;
+    }
 
+    /** Returns the schema qualified name of the table.
+     * 
+     * @return the qualified name */
+    protected String qualifiedName() {
+        return qualifiedName;
     }
 
     /*
@@ -533,7 +933,17 @@ public class H2Table extends AbstractTable<H2Backend, H2Database, H2Table> {
      */
     @Override
     public boolean reverseSupported() {
-        return false;
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#threadSafe()
+     */
+    @Override
+    public boolean threadSafe() {
+        return true;
     }
 
 }
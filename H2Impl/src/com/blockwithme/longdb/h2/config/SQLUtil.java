@@ -15,8 +15,8 @@
  ******************************************************************************/
 package com.blockwithme.longdb.h2.config;
 
-import java.sql.Blob;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -25,11 +25,13 @@ import java.util.List;
 
 import javax.annotation.CheckForNull;
 
+import com.blockwithme.longdb.ColumnVisitor;
 import com.blockwithme.longdb.Columns;
 import com.blockwithme.longdb.entities.Bytes;
 import com.blockwithme.longdb.exception.DBException;
 import com.carrotsearch.hppc.LongArrayList;
 import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 
 /** SQL Util class */
 // TODO: For the whole file: if you have multiple resources to close(),
@@ -68,22 +70,23 @@ public final class SQLUtil {
      *        statement to be executed
      * @param theConnection
      *        the connection
+     * @param isReverse
+     *        if reverse sorting is applicable
      * @return the results as columns */
     @CheckForNull
     public static Columns getResultsAsColumns(final String theStatement,
-            final Connection theConnection) {
+            final Connection theConnection, final boolean isReverse) {
         try {
             final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
             final Statement stmt = theConnection.createStatement();
             final ResultSet rs = stmt.executeQuery(theStatement);
             try {
                 while (rs.next()) {
-                    final Blob blob = rs.getBlob("DATA_BLOB");
                     map.put(rs.getLong("COLUMN_KEY"),
-                            new Bytes(blob.getBytes(0, (int) blob.length())));
+                            new Bytes(rs.getBytes("DATA_BLOB")));
                 }
                 if (map.size() > 0)
-                    return new Columns(map, false);
+                    return new Columns(map, isReverse);
             } finally {
                 rs.close();
                 stmt.close();
@@ -96,6 +99,154 @@ public final class SQLUtil {
         return null;
     }
 
+    /** Visits the results of a prepared statement, one column at a time,
+     * without building a Columns. The statement is not closed, so that it can
+     * be reused.
+     * 
+     * @param theStatement
+     *        prepared statement to be executed, must select COLUMN_KEY and
+     *        DATA_BLOB, in that order
+     * @param theVisitor
+     *        the visitor
+     * @return the number of columns visited */
+    public static int visitResults(final PreparedStatement theStatement,
+            final ColumnVisitor theVisitor) {
+        try {
+            final ResultSet rs = theStatement.executeQuery();
+            try {
+                int count = 0;
+                while (rs.next()) {
+                    count++;
+                    final byte[] data = rs.getBytes(2);
+                    if (!theVisitor.visit(rs.getLong(1), data, 0, data.length))
+                        break;
+                }
+                return count;
+            } finally {
+                rs.close();
+            }
+        } catch (final SQLException e) {
+            throw new DBException("Error executing prepared statement: "
+                    + theStatement, e);
+        }
+    }
+
+    /** Gets the results of a prepared statement as columns. The statement is
+     * not closed, so that it can be reused.
+     * 
+     * @param theStatement
+     *        prepared statement to be executed, must select COLUMN_KEY and
+     *        DATA_BLOB
+     * @param isReverse
+     *        if reverse sorting is applicable
+     * @return the results as columns */
+    @CheckForNull
+    public static Columns getResultsAsColumns(
+            final PreparedStatement theStatement, final boolean isReverse) {
+        try {
+            final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
+            final ResultSet rs = theStatement.executeQuery();
+            try {
+                while (rs.next()) {
+                    map.put(rs.getLong("COLUMN_KEY"),
+                            new Bytes(rs.getBytes("DATA_BLOB")));
+                }
+                if (map.size() > 0)
+                    return new Columns(map, isReverse);
+            } finally {
+                rs.close();
+            }
+        } catch (final SQLException e) {
+            throw new DBException("Error executing prepared statement: "
+                    + theStatement, e);
+        }
+        return null;
+    }
+
+    /** Gets the results as columns, grouped by row.
+     * 
+     * @param theStatement
+     *        statement to be executed, must select ROW_KEY, COLUMN_KEY and
+     *        DATA_BLOB
+     * @param theConnection
+     *        the connection
+     * @param isReverse
+     *        if reverse sorting is applicable
+     * @return the columns of each row found */
+    public static LongObjectOpenHashMap<Columns> getResultsAsRows(
+            final String theStatement, final Connection theConnection,
+            final boolean isReverse) {
+        try {
+            final LongObjectOpenHashMap<LongObjectOpenHashMap<Bytes>> maps = new LongObjectOpenHashMap<LongObjectOpenHashMap<Bytes>>();
+            final Statement stmt = theConnection.createStatement();
+            final ResultSet rs = stmt.executeQuery(theStatement);
+            try {
+                while (rs.next()) {
+                    final long rowKey = rs.getLong("ROW_KEY");
+                    LongObjectOpenHashMap<Bytes> map = maps.get(rowKey);
+                    if (map == null) {
+                        map = new LongObjectOpenHashMap<Bytes>();
+                        maps.put(rowKey, map);
+                    }
+                    map.put(rs.getLong("COLUMN_KEY"),
+                            new Bytes(rs.getBytes("DATA_BLOB")));
+                }
+            } finally {
+                rs.close();
+                stmt.close();
+            }
+            final LongObjectOpenHashMap<Columns> res = new LongObjectOpenHashMap<Columns>(
+                    maps.size());
+            for (final LongObjectCursor<LongObjectOpenHashMap<Bytes>> row : maps) {
+                res.put(row.key, new Columns(row.value, isReverse));
+            }
+            return res;
+        } catch (final SQLException e) {
+            throw new DBException("Error executing statement: " + theStatement
+                    + ", Connection conn=" + theConnection, e);
+        }
+    }
+
+    /** Gets the results of a prepared statement as columns, grouped by row.
+     * The statement is not closed, so that it can be reused.
+     * 
+     * @param theStatement
+     *        prepared statement to be executed, must select ROW_KEY,
+     *        COLUMN_KEY and DATA_BLOB
+     * @param isReverse
+     *        if reverse sorting is applicable
+     * @return the columns of each row found */
+    public static LongObjectOpenHashMap<Columns> getResultsAsRows(
+            final PreparedStatement theStatement, final boolean isReverse) {
+        try {
+            final LongObjectOpenHashMap<LongObjectOpenHashMap<Bytes>> maps = new LongObjectOpenHashMap<LongObjectOpenHashMap<Bytes>>();
+            final ResultSet rs = theStatement.executeQuery();
+            try {
+                while (rs.next()) {
+                    final long rowKey = rs.getLong("ROW_KEY");
+                    LongObjectOpenHashMap<Bytes> map = maps.get(rowKey);
+                    if (map == null) {
+                        map = new LongObjectOpenHashMap<Bytes>();
+                        maps.put(rowKey, map);
+                    }
+                    map.put(rs.getLong("COLUMN_KEY"),
+                            new Bytes(rs.getBytes("DATA_BLOB")));
+                }
+            } finally {
+                rs.close();
+            }
+            final LongObjectOpenHashMap<Columns> res = new LongObjectOpenHashMap<Columns>(
+                    maps.size());
+            for (final LongObjectCursor<LongObjectOpenHashMap<Bytes>> row : maps) {
+                res.put(row.key, new Columns(row.value, isReverse));
+            }
+            return res;
+        } catch (final SQLException e) {
+            throw new DBException("Error executing prepared statement: "
+                    + theStatement, e);
+        }
+    }
+
     /** Gets the results as list.
      * 
      * @param theStatement
@@ -163,6 +314,36 @@ public final class SQLUtil {
         }
     }
 
+    /** Gets the results of a prepared statement as a long list. The statement
+     * is not closed, so that it can be reused.
+     * 
+     * @param theStatement
+     *        prepared statement to be executed
+     * @param theColumnName
+     *        the column name for the data to be extracted.
+     * @return the results as LongArrayList */
+    @CheckForNull
+    public static LongArrayList getResultsLongList(
+            final PreparedStatement theStatement, final String theColumnName) {
+        try {
+            final ResultSet rs = theStatement.executeQuery();
+            try {
+                LongArrayList res = null;
+                while (rs.next()) {
+                    if (res == null)
+                        res = new LongArrayList();
+                    res.add(rs.getLong(theColumnName));
+                }
+                return res;
+            } finally {
+                rs.close();
+            }
+        } catch (final SQLException e) {
+            throw new DBException("Error executing prepared statement: "
+                    + theStatement + ", String colName=" + theColumnName, e);
+        }
+    }
+
     /** Gets the single result.
      * 
      * @param theStatement
@@ -191,6 +372,50 @@ public final class SQLUtil {
         }
     }
 
+    /** Checks if a prepared statement returns at least one row. The statement
+     * is not closed, so that it can be reused.
+     * 
+     * @param theStatement
+     *        prepared statement to be executed
+     * @return true, if there is a result */
+    public static boolean hasResult(final PreparedStatement theStatement) {
+        try {
+            final ResultSet rs = theStatement.executeQuery();
+            try {
+                return rs.next();
+            } finally {
+                rs.close();
+            }
+        } catch (final SQLException e) {
+            throw new DBException("Error executing prepared statement: "
+                    + theStatement, e);
+        }
+    }
+
+    /** Gets the single result of a prepared statement. The statement is not
+     * closed, so that it can be reused.
+     * 
+     * @param theStatement
+     *        prepared statement to be executed
+     * @param theColumnName
+     *        the column name for the data to be extracted
+     * @return the single result */
+    public static Object getSingleResult(final PreparedStatement theStatement,
+            final String theColumnName) {
+        try {
+            final ResultSet rs = theStatement.executeQuery();
+            try {
+                rs.next();
+                return rs.getObject(theColumnName);
+            } finally {
+                rs.close();
+            }
+        } catch (final SQLException e) {
+            throw new DBException("Error executing prepared statement: "
+                    + theStatement + ", String colName=" + theColumnName, e);
+        }
+    }
+
     /** Hide utility class constructor. */
     private SQLUtil() {
     }
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.jmh;
+
+import static com.blockwithme.longdb.jmh.JMHConstants.BATCH_SIZE;
+import static com.blockwithme.longdb.jmh.JMHConstants.DB_NAME;
+import static com.blockwithme.longdb.jmh.JMHConstants.SEED;
+import static com.blockwithme.longdb.jmh.JMHConstants.TEST_TABLE_NAME;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.blockwithme.longdb.BEDatabase;
+import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.BETableProfile;
+import com.blockwithme.longdb.Backend;
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.discovery.BackendServiceLoader;
+import com.blockwithme.longdb.entities.Base36;
+import com.blockwithme.longdb.entities.Bytes;
+import com.blockwithme.longdb.entities.LongHolder;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.carrotsearch.hppc.cursors.LongCursor;
+
+/** The shared benchmark state: one populated table, per combination of
+ * parameters. The table contains the rows 0 to rowCount-1, each with the
+ * columns 0 to columnCount-1, each with a random value of valueSize bytes.
+ * The backend type is the project name under which the backend is registered
+ * for service discovery, optionally followed by ':' and the name of a backend
+ * instance; the "default" instance is used otherwise. The "uncounted" LevelDB
+ * instance does not keep a row count, which shows what the row count costs
+ * to the writes. */
+@State(Scope.Benchmark)
+public class BackendState {
+
+    /** The backend type. */
+    @Param({ "MemoryImpl", "H2Impl", "BerkeleyDBImpl", "LevelDBJavaImpl",
+            "LevelDBJavaImpl:uncounted", "CassandraEmbedded" })
+    public String backendType;
+
+    /** The number of columns per row. */
+    @Param({ "1", "10", "100" })
+    public int columnCount;
+
+    /** The number of rows. */
+    @Param({ "1000", "10000" })
+    public int rowCount;
+
+    /** The size of each column value, in bytes. */
+    @Param({ "100", "1000", "10000" })
+    public int valueSize;
+
+    /** The backend. */
+    private Backend backend;
+
+    /** The database. */
+    private BEDatabase database;
+
+    /** The table. */
+    private BETable table;
+
+    /** Creates a row, with all the columns, and random values.
+     * 
+     * @param theRandom
+     *        the random generator
+     * @return the row */
+    public Columns newRow(final Random theRandom) {
+        final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>(
+                columnCount);
+        for (int c = 0; c < columnCount; c++) {
+            final byte[] value = new byte[valueSize];
+            theRandom.nextBytes(value);
+            map.put(c, new Bytes(value));
+        }
+        return new Columns(map, false);
+    }
+
+    /** Opens the backend, and creates and populates the table. */
+    @Setup(Level.Trial)
+    public void setUp() {
+        final int colon = backendType.indexOf(':');
+        final String type = (colon < 0) ? backendType : backendType.substring(
+                0, colon);
+        final String instance = (colon < 0) ? "default" : backendType
+                .substring(colon + 1);
+        backend = BackendServiceLoader.getInstance().loadInstance(type,
+                instance);
+        database = backend.openDatabase(DB_NAME);
+        if (database == null)
+            database = backend.createDatabase(DB_NAME);
+        final Base36 tbl = Base36.get(TEST_TABLE_NAME);
+        try {
+            if (database.get(tbl) != null)
+                database.drop(tbl);
+            database.create(tbl, new BETableProfile());
+            table = database.get(tbl);
+        } catch (final UnsupportedOperationException e) {
+            // Tables cannot be dropped; reuse the existing one, emptied.
+            table = database.get(tbl);
+            final Iterator<LongHolder> itr = table.keys();
+            final LongArrayList keys = new LongArrayList();
+            while (itr.hasNext())
+                keys.add(itr.next().value());
+            for (final LongCursor key : keys)
+                table.remove(key.value);
+        }
+
+        final Random rnd = new Random(SEED);
+        final LongObjectOpenHashMap<Columns> batch = new LongObjectOpenHashMap<Columns>(
+                BATCH_SIZE);
+        for (int key = 0; key < rowCount; key++) {
+            batch.put(key, newRow(rnd));
+            if (batch.size() == BATCH_SIZE) {
+                table.setAll(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty())
+            table.setAll(batch);
+    }
+
+    /** Returns the table.
+     * 
+     * @return the table */
+    public BETable table() {
+        return table;
+    }
+
+    /** Drops the table, and shuts the backend down. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        try {
+            database.drop(table.table());
+        } catch (final UnsupportedOperationException e) {
+            // ignore
+        } finally {
+            database.close();
+            backend.shutdown();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.jmh;
+
+/** The Interface JMHConstants. */
+public interface JMHConstants {
+
+    /** The number of rows written per setAll() call, when populating. */
+    int BATCH_SIZE = 1000;
+
+    /** database name used for all the operations */
+    String DB_NAME = "default";
+
+    /** The number of keys read per multiGet() call. */
+    int MULTI_GET_KEYS = 16;
+
+    /** The seed of the random data, so that all backends get the same data. */
+    long SEED = 42;
+
+    /** table name used for all the operations */
+    String TEST_TABLE_NAME = "JMHTable";
+
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.jmh;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.blockwithme.longdb.BETable;
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.entities.LongHolder;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+
+/** Single-threaded benchmarks of every BETable operation. Both the throughput
+ * and the latency distribution are measured. Results that are only valid
+ * until the next call are consumed before releasing the lock. */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@Threads(1)
+public class TableBenchmark {
+
+    /** The full range, of rows and of columns. */
+    private static final Range FULL_RANGE = Range.fullRange();
+
+    /** Consumes all the column IDs returned by an iterator.
+     * 
+     * @param theIterator
+     *        the iterator, possibly null
+     * @param theHole
+     *        the black hole
+     * @return the number of column IDs */
+    private static int consume(final Iterator<LongHolder> theIterator,
+            final Blackhole theHole) {
+        int count = 0;
+        if (theIterator != null) {
+            while (theIterator.hasNext()) {
+                theHole.consume(theIterator.next().value());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Reads the column IDs of a row. */
+    @Benchmark
+    public void columns(final BackendState theBackend,
+            final ThreadState theThread, final Blackhole theHole) {
+        synchronized (theThread.lock) {
+            theHole.consume(theBackend.table().columns(theThread.nextKey()));
+        }
+    }
+
+    /** Iterates over the column IDs of a row. */
+    @Benchmark
+    public int columnsIterator(final BackendState theBackend,
+            final ThreadState theThread, final Blackhole theHole) {
+        synchronized (theThread.lock) {
+            return consume(
+                    theBackend.table().columnsIterator(theThread.nextKey()),
+                    theHole);
+        }
+    }
+
+    /** Checks if a row exists. */
+    @Benchmark
+    public boolean exists(final BackendState theBackend,
+            final ThreadState theThread) {
+        synchronized (theThread.lock) {
+            return theBackend.table().exists(theThread.nextKey());
+        }
+    }
+
+    /** Reads a whole row. */
+    @Benchmark
+    public void get(final BackendState theBackend, final ThreadState theThread,
+            final Blackhole theHole) {
+        synchronized (theThread.lock) {
+            theHole.consume(theBackend.table().get(theThread.nextKey()));
+        }
+    }
+
+    /** Reads one column of a row. */
+    @Benchmark
+    public void getColumn(final BackendState theBackend,
+            final ThreadState theThread, final Blackhole theHole) {
+        synchronized (theThread.lock) {
+            theHole.consume(theBackend.table().get(theThread.nextKey(),
+                    theThread.nextColumn()));
+        }
+    }
+
+    /** Reads every other column of a row. */
+    @Benchmark
+    public void getColumns(final BackendState theBackend,
+            final ThreadState theThread, final Blackhole theHole) {
+        synchronized (theThread.lock) {
+            theHole.consume(theBackend.table().get(theThread.nextKey(),
+                    theThread.someColumns));
+        }
+    }
+
+    /** Reads the first column of a row. */
+    @Benchmark
+    public void getLimited(final BackendState theBackend,
+            final ThreadState theThread, final Blackhole theHole) {
+        synchronized (theThread.lock) {
+            theHole.consume(theBackend.table().getLimited(theThread.nextKey(),
+                    1));
+        }
+    }
+
+    /** Reads half of the columns of a row, as a range. */
+    @Benchmark
+    public void getRange(final BackendState theBackend,
+            final ThreadState theThread, final Blackhole theHole) {
+        synchronized (theThread.lock) {
+            theHole.consume(theBackend.table().get(theThread.nextKey(),
+                    theThread.range));
+        }
+    }
+
+    /** Iterates over all the keys of the table. */
+    @Benchmark
+    public int keys(final BackendState theBackend, final ThreadState theThread,
+            final Blackhole theHole) {
+        synchronized (theThread.lock) {
+            return consume(theBackend.table().keys(), theHole);
+        }
+    }
+
+    /** Reads half of the columns of many rows at once. */
+    @Benchmark
+    public void multiGet(final BackendState theBackend,
+            final ThreadState theThread, final Blackhole theHole) {
+        synchronized (theThread.lock) {
+            theHole.consume(theBackend.table().multiGet(
+                    theThread.nextMultiKeys(), theThread.range));
+        }
+    }
+
+    /** Removes one column of a row, and writes the row back, so that the
+     * table content stays the same. */
+    @Benchmark
+    public void removeAndSet(final BackendState theBackend,
+            final ThreadState theThread) {
+        final long key = theThread.nextKey();
+        synchronized (theThread.lock) {
+            final BETable table = theBackend.table();
+            table.remove(key, theThread.nextColumn());
+            table.set(key, theThread.row);
+        }
+    }
+
+    /** Reads all the rows of the table, with all their columns, in one scan. */
+    @Benchmark
+    public int scan(final BackendState theBackend, final ThreadState theThread,
+            final Blackhole theHole) {
+        int count = 0;
+        synchronized (theThread.lock) {
+            final Iterator<LongObjectCursor<Columns>> rows = theBackend.table()
+                    .scan(FULL_RANGE, FULL_RANGE);
+            while (rows.hasNext()) {
+                theHole.consume(rows.next().value);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Overwrites all the columns of a row. */
+    @Benchmark
+    public void set(final BackendState theBackend, final ThreadState theThread) {
+        final Columns row = theThread.row;
+        synchronized (theThread.lock) {
+            theBackend.table().set(theThread.nextKey(), row);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.jmh;
+
+import static com.blockwithme.longdb.jmh.JMHConstants.MULTI_GET_KEYS;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.Range;
+import com.carrotsearch.hppc.LongArrayList;
+
+/** The per-thread benchmark state. Tables that are not thread-safe are
+ * accessed under a lock shared by all threads, as an application would have
+ * to do; thread-safe tables get a private, uncontended, lock, so that both
+ * cases pay the same locking overhead in the single-threaded benchmarks. */
+@State(Scope.Thread)
+public class ThreadState {
+
+    /** The lock to hold while accessing the table. */
+    public Object lock;
+
+    /** The keys read by multiGet(). */
+    public long[] multiKeys;
+
+    /** The column range, covering half of the columns. */
+    public Range range;
+
+    /** The row written by set(). */
+    public Columns row;
+
+    /** The columns read by get(long, LongArrayList). */
+    public LongArrayList someColumns;
+
+    /** The number of columns. */
+    private int columnCount;
+
+    /** The random generator. */
+    private Random rnd;
+
+    /** The number of rows. */
+    private int rowCount;
+
+    /** Returns a random existing column ID.
+     * 
+     * @return the column ID */
+    public long nextColumn() {
+        return rnd.nextInt(columnCount);
+    }
+
+    /** Returns a random existing row ID.
+     * 
+     * @return the row ID */
+    public long nextKey() {
+        return rnd.nextInt(rowCount);
+    }
+
+    /** Picks new random keys for multiGet().
+     * 
+     * @return the keys */
+    public long[] nextMultiKeys() {
+        for (int i = 0; i < multiKeys.length; i++)
+            multiKeys[i] = nextKey();
+        return multiKeys;
+    }
+
+    /** Creates the per-thread data.
+     * 
+     * @param theBackend
+     *        the shared state */
+    @Setup(Level.Trial)
+    public void setUp(final BackendState theBackend) {
+        rnd = new Random(System.identityHashCode(this));
+        rowCount = theBackend.rowCount;
+        columnCount = theBackend.columnCount;
+        lock = theBackend.table().threadSafe() ? new Object() : theBackend
+                .table();
+        row = theBackend.newRow(rnd);
+        range = new Range(0, Math.max(0, columnCount / 2 - 1));
+        someColumns = new LongArrayList();
+        for (int c = 0; c < columnCount; c += 2)
+            someColumns.add(c);
+        multiKeys = new long[MULTI_GET_KEYS];
+    }
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.mem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+
+/** Tests LongSortedMap against java.util.TreeMap. Random puts, removals,
+ * range removals, lookups and slices, in both orders, are applied to both
+ * maps, which must always agree. The keys are drawn around 0 and around
+ * Long.MIN_VALUE and Long.MAX_VALUE, so that the signed order and the
+ * extreme keys are covered, and from ranges of various widths, so that the
+ * blocks are split and merged. */
+public class LongSortedMapJUnit {
+
+    /** The number of operations per round. */
+    private static final int OPERATIONS = 20000;
+
+    /** The number of rounds. */
+    private static final int ROUNDS = 50;
+
+    /** The random seed, so that failures can be reproduced. */
+    private static final long SEED = 42;
+
+    /** Checks that a slice of the map is the same as a slice of the
+     * TreeMap. */
+    private static void assertSlice(final LongSortedMap<Long> theMap,
+            final TreeMap<Long, Long> theExpected, final long theFrom,
+            final long theTo, final boolean isDescending) {
+        final Iterator<LongObjectCursor<Long>> slice = theMap.iterator(
+                theFrom, theTo, isDescending);
+        if (theFrom <= theTo) {
+            NavigableMap<Long, Long> expected = theExpected.subMap(theFrom,
+                    true, theTo, true);
+            if (isDescending)
+                expected = expected.descendingMap();
+            for (final Entry<Long, Long> entry : expected.entrySet()) {
+                assertTrue("Missing key " + entry.getKey(), slice.hasNext());
+                final LongObjectCursor<Long> cursor = slice.next();
+                assertEquals("Key mismatch ", entry.getKey().longValue(),
+                        cursor.key);
+                assertEquals("Value mismatch ", entry.getValue(),
+                        cursor.value);
+            }
+        }
+        assertFalse("Extra key in [" + theFrom + "," + theTo + "]",
+                slice.hasNext());
+    }
+
+    /** Returns a random key, around 0 or one of the extremes, within the
+     * given span. */
+    private static long key(final Random theRandom, final int theSpan) {
+        final long offset = theRandom.nextInt(theSpan);
+        switch (theRandom.nextInt(4)) {
+        case 0:
+            return Long.MIN_VALUE + offset;
+        case 1:
+            return Long.MAX_VALUE - offset;
+        default:
+            return offset - theSpan / 2;
+        }
+    }
+
+    /** Returns the end of a random range starting at theFrom, without
+     * overflowing. */
+    private static long rangeEnd(final Random theRandom, final long theFrom,
+            final int theSpan) {
+        final long width = theRandom.nextInt(theSpan);
+        return (theFrom > Long.MAX_VALUE - width) ? Long.MAX_VALUE : theFrom
+                + width;
+    }
+
+    /** Test the extreme keys, and the full range, on a small map. */
+    @Test
+    public void testExtremes() {
+        final LongSortedMap<Long> map = new LongSortedMap<Long>();
+        final TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+        for (final long key : new long[] { Long.MAX_VALUE, 0, Long.MIN_VALUE,
+                -1, 1, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1 }) {
+            assertNull("New key has a value", map.put(key, key));
+            expected.put(key, key);
+        }
+        assertEquals("Size mismatch ", expected.size(), map.size());
+        assertSlice(map, expected, Long.MIN_VALUE, Long.MAX_VALUE, false);
+        assertSlice(map, expected, Long.MIN_VALUE, Long.MAX_VALUE, true);
+        assertSlice(map, expected, -1, 1, false);
+        assertSlice(map, expected, Long.MIN_VALUE, Long.MIN_VALUE, true);
+        assertSlice(map, expected, Long.MAX_VALUE, Long.MAX_VALUE, false);
+        assertSlice(map, expected, 1, -1, false);
+        assertEquals("Range removal mismatch ", 2,
+                map.remove(Long.MIN_VALUE, Long.MIN_VALUE + 1));
+        assertEquals("Range removal mismatch ", 2,
+                map.remove(Long.MAX_VALUE - 1, Long.MAX_VALUE));
+        expected.headMap(Long.MIN_VALUE + 1, true).clear();
+        expected.tailMap(Long.MAX_VALUE - 1, true).clear();
+        assertSlice(map, expected, Long.MIN_VALUE, Long.MAX_VALUE, false);
+        assertEquals("Range removal mismatch ", 3,
+                map.remove(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertTrue("Map not empty", map.isEmpty());
+        assertSlice(map, new TreeMap<Long, Long>(), Long.MIN_VALUE,
+                Long.MAX_VALUE, true);
+    }
+
+    /** Test random operations against a TreeMap. */
+    @Test
+    public void testRandomOperations() {
+        final Random random = new Random(SEED);
+        for (int round = 0; round < ROUNDS; round++) {
+            final LongSortedMap<Long> map = new LongSortedMap<Long>();
+            final TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+            final int span = 1 + random.nextInt(5000);
+            for (int op = 0; op < OPERATIONS; op++) {
+                final long key = key(random, span);
+                final int choice = random.nextInt(100);
+                if (choice < 50) {
+                    final Long value = Long.valueOf(op);
+                    assertEquals("Previous value mismatch ",
+                            expected.put(key, value), map.put(key, value));
+                } else if (choice < 80) {
+                    assertEquals("Removed value mismatch ",
+                            expected.remove(key), map.remove(key));
+                } else if (choice < 83) {
+                    final long end = rangeEnd(random, key, span / 3 + 1);
+                    final NavigableMap<Long, Long> removed = expected.subMap(
+                            key, true, end, true);
+                    assertEquals("Range removal mismatch ", removed.size(),
+                            map.remove(key, end));
+                    removed.clear();
+                } else if (choice < 90) {
+                    assertEquals("Value mismatch ", expected.get(key),
+                            map.get(key));
+                } else {
+                    assertSlice(map, expected, key,
+                            rangeEnd(random, key, span), random.nextBoolean());
+                }
+                assertEquals("Size mismatch ", expected.size(), map.size());
+            }
+            assertSlice(map, expected, Long.MIN_VALUE, Long.MAX_VALUE, false);
+            assertSlice(map, expected, Long.MIN_VALUE, Long.MAX_VALUE, true);
+            map.clear();
+            assertTrue("Map not empty", map.isEmpty());
+        }
+    }
+}
@@ -21,12 +21,13 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import com.blockwithme.longdb.mem.LongSortedMapJUnit;
 import com.blockwithme.longdb.test.util.Util;
 
 /** The Class AllFunctionalTestSuite. */
 // CHECKSTYLE IGNORE FOR NEXT 1 LINES
 @RunWith(Suite.class)
-@SuiteClasses({ MemoryJUnit.class, HectorJUnit.class,
+@SuiteClasses({ LongSortedMapJUnit.class, MemoryJUnit.class, HectorJUnit.class,
         EmbeddedCassandraJUnit.class, VoltDBJUnit.class, H2JUnit.class,
         BDBJUnit.class, LevelDBJUnit.class })
 public class AllFunctionalTestSuite {
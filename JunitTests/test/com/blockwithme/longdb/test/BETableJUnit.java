@@ -24,13 +24,18 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Future;
+
+import javax.management.ObjectName;
 
 import org.json.JSONException;
 import org.junit.After;
@@ -41,12 +46,24 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
 
+import com.blockwithme.longdb.AsyncBETable;
 import com.blockwithme.longdb.BEDatabase;
 import com.blockwithme.longdb.BETable;
 import com.blockwithme.longdb.BETableProfile;
+import com.blockwithme.longdb.BETableProfile.Eviction;
 import com.blockwithme.longdb.Backend;
+import com.blockwithme.longdb.ColumnVisitor;
 import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.PackedColumns;
 import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.base.AbstractColumnScanner;
+import com.blockwithme.longdb.base.AbstractTable;
+import com.blockwithme.longdb.base.BloomFilterBETable;
+import com.blockwithme.longdb.base.CachingBETable;
+import com.blockwithme.longdb.base.OperationMetrics;
+import com.blockwithme.longdb.base.TableMetrics;
+import com.blockwithme.longdb.base.TableMetrics.Operation;
+import com.blockwithme.longdb.base.WriteBehindBETable;
 import com.blockwithme.longdb.entities.Base36;
 import com.blockwithme.longdb.entities.Bytes;
 import com.blockwithme.longdb.entities.LongHolder;
@@ -56,6 +73,7 @@ import com.blockwithme.longdb.voltdb.VoltDBBackend;
 import com.carrotsearch.hppc.LongArrayList;
 import com.carrotsearch.hppc.LongObjectOpenHashMap;
 import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 
 /** JUunitTest class for all the public methods in BETable Test Data is loaded
  * from an external JSON file. */
@@ -225,6 +243,49 @@ public abstract class BETableJUnit {
         return colIds;
     }
 
+    /** Returns a row id above all the given rows and 0. */
+    private long missingRowID(final LongArrayList theRowIDs) {
+        return missingRowID(theRowIDs, true);
+    }
+
+    /** Returns a row id above, or below, all the given rows and 0. The test
+     * rows are far from the extremes, so this cannot overflow, and the next
+     * row ids in the same direction are missing as well. */
+    private long missingRowID(final LongArrayList theRowIDs,
+            final boolean isAbove) {
+        long row = 0;
+        for (final LongCursor rowCursor : theRowIDs) {
+            row = isAbove ? Math.max(row, rowCursor.value) : Math.min(row,
+                    rowCursor.value);
+        }
+        return isAbove ? row + 1 : row - 1;
+    }
+
+    /** Compares the result of a multiGet() with the Test data. */
+    private void validateMultiGet(final LongArrayList theRowIDs,
+            final long theMissingRowID,
+            final LongObjectOpenHashMap<Columns> theResult) throws Exception {
+        assertFalse("Missing row should not be returned",
+                theResult.containsKey(theMissingRowID));
+        assertEquals("Number of rows mismatch ", theRowIDs.size(),
+                theResult.size());
+        for (final LongCursor rowCursor : theRowIDs) {
+            final LongObjectOpenHashMap<Bytes> jColumnsData = J_UTIL
+                    .getColumnData(rowCursor.value);
+            final Columns dbColumns = theResult.get(rowCursor.value);
+            assertNotNull("No Columns found for row ID:" + rowCursor.value,
+                    dbColumns);
+            assertEquals("Incorrect size of columns returned row ID:"
+                    + rowCursor.value, jColumnsData.size(), dbColumns.size());
+            for (final LongHolder longHolder : dbColumns) {
+                final long colkey = longHolder.value();
+                assertEquals("Column Values do not match for row ID:"
+                        + rowCursor.value + " column ID:" + colkey,
+                        jColumnsData.get(colkey), dbColumns.getBytes(colkey));
+            }
+        }
+    }
+
     /* This method validated all the test data rows and compares the column
      * values with the Test data encapsulated in JSONUtil class. */
     /** Validate all test rows. */
@@ -278,6 +339,157 @@ public abstract class BETableJUnit {
         cleanUp();
     }
 
+    /** Test BETable.async(int maxOutstanding). New columns are added to the
+     * Test-rows with many requests in flight at once, then all the Test-rows
+     * are read back asynchronously, and compared with the Test data. */
+    @Test
+    public void testAsync() throws Exception {
+        final LongObjectOpenHashMap<Columns> newColumns = new LongObjectOpenHashMap<Columns>();
+        J_UTIL.columnsAdded("addColumns", newColumns, null, null);
+        if (newColumns.keys() == null)
+            fail("New data to be inserted not present.");
+        final AsyncBETable async = table.async(4);
+        try {
+            final List<Future<Void>> sets = new ArrayList<Future<Void>>();
+            for (final LongObjectCursor<Columns> row : newColumns) {
+                sets.add(async.set(row.key, row.value));
+                assertTrue("Too many outstanding requests ",
+                        async.outstanding() <= async.maxOutstanding());
+            }
+            for (final Future<Void> set : sets) {
+                set.get();
+            }
+            final LongArrayList rowIDs = J_UTIL.getRowIDs();
+            final List<Future<Columns>> gets = new ArrayList<Future<Columns>>();
+            for (final LongCursor rowCursor : rowIDs) {
+                gets.add(async.get(rowCursor.value));
+            }
+            for (int i = 0; i < gets.size(); i++) {
+                final long rowID = rowIDs.get(i);
+                final LongObjectOpenHashMap<Bytes> jColumnsData = J_UTIL
+                        .getColumnData(rowID);
+                final Columns dbColumns = gets.get(i).get();
+                assertNotNull("No Columns found for row ID:" + rowID,
+                        dbColumns);
+                assertEquals("Incorrect size of columns returned row ID:"
+                        + rowID, jColumnsData.size(), dbColumns.size());
+                for (final LongHolder longHolder : dbColumns) {
+                    final long colkey = longHolder.value();
+                    assertEquals("Column Values do not match for row ID:"
+                            + rowID + " column ID:" + colkey,
+                            jColumnsData.get(colkey),
+                            dbColumns.getBytes(colkey));
+                }
+            }
+            assertEquals("Row size mismatch ", rowIDs.size(), async.size()
+                    .get().longValue());
+        } finally {
+            async.close();
+        }
+        assertEquals("Outstanding requests after close ", 0,
+                async.outstanding());
+    }
+
+    /** Tests the Bloom filter table. All the Test-rows must be found, and
+     * missing rows must be answered by the filter, also after it was saved
+     * and loaded again. */
+    @Test
+    public void testBloomFilter() throws Exception {
+        final File file = File.createTempFile("bloom", ".bin");
+        assertTrue("Could not delete " + file, file.delete());
+        final long missing = missingRowID(J_UTIL.getRowIDs());
+        try {
+            BloomFilterBETable bloom = new BloomFilterBETable(table, 0,
+                    BloomFilterBETable.DEFAULT_FALSE_POSITIVE_RATE, file);
+            for (final LongCursor rowCursor : J_UTIL.getRowIDs()) {
+                assertTrue("Row not found " + rowCursor.value,
+                        bloom.exists(rowCursor.value));
+            }
+            assertFalse("Missing row found ", bloom.exists(missing));
+            assertNull("Missing row read ", bloom.get(missing));
+            final Columns cols = new Columns(table.reverse());
+            cols.putBytes(1, new Bytes(missing));
+            bloom.set(missing, cols);
+            assertTrue("New row not found ", bloom.exists(missing));
+            bloom.remove(missing);
+            assertFalse("Removed row found ", bloom.exists(missing));
+            bloom.save();
+            assertTrue("Bloom filter not saved ", file.isFile());
+            bloom = new BloomFilterBETable(table, 0,
+                    BloomFilterBETable.DEFAULT_FALSE_POSITIVE_RATE, file);
+            assertFalse("Bloom filter not deleted when loaded ", file.exists());
+            for (final LongCursor rowCursor : J_UTIL.getRowIDs()) {
+                assertTrue("Row not found after load " + rowCursor.value,
+                        bloom.exists(rowCursor.value));
+            }
+            final long skipped = bloom.skipped();
+            for (long key = missing + 1; key < missing + 1000; key++) {
+                bloom.exists(key);
+            }
+            assertTrue("Too many false positives ",
+                    bloom.skipped() - skipped > 900);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Test CachingBETable. All the Test-rows are read twice through the
+     * cache, then new columns are added and some rows removed through it; the
+     * rows read afterwards must reflect the modifications. */
+    @Test
+    public void testCaching() throws Exception {
+        for (final Eviction eviction : Eviction.values()) {
+            final CachingBETable cached = new CachingBETable(table, 1 << 20,
+                    eviction);
+            final LongArrayList rowIDs = J_UTIL.getRowIDs();
+            for (int i = 0; i < 2; i++) {
+                for (final LongCursor rowCursor : rowIDs) {
+                    assertEquals("Incorrect size of columns returned row ID:"
+                            + rowCursor.value,
+                            J_UTIL.getColumnCount(rowCursor.value), cached
+                                    .get(rowCursor.value).size());
+                }
+            }
+            assertEquals("Hit count mismatch ", rowIDs.size(), cached.stats()
+                    .hitCount());
+            assertEquals("Cached rows mismatch ", rowIDs.size(),
+                    cached.cachedRows());
+        }
+        final CachingBETable cached = new CachingBETable(table, 1 << 20,
+                Eviction.LRU);
+        for (final LongCursor rowCursor : J_UTIL.getRowIDs()) {
+            cached.get(rowCursor.value);
+        }
+        final LongObjectOpenHashMap<Columns> newColumns = new LongObjectOpenHashMap<Columns>();
+        J_UTIL.columnsAdded("addColumns", newColumns, null, null);
+        for (final LongObjectCursor<Columns> row : newColumns) {
+            cached.set(row.key, row.value);
+        }
+        final LongArrayList removeRowIDs = J_UTIL.removeRows("removeRows");
+        for (final LongCursor longCursor : removeRowIDs) {
+            cached.remove(longCursor.value);
+            assertNull("Removed row still cached ",
+                    cached.get(longCursor.value));
+            assertFalse("Removed row still exists ",
+                    cached.exists(longCursor.value));
+        }
+        for (final LongCursor rowCursor : J_UTIL.getRowIDs()) {
+            final LongObjectOpenHashMap<Bytes> jColumnsData = J_UTIL
+                    .getColumnData(rowCursor.value);
+            final Columns dbColumns = cached.get(rowCursor.value);
+            assertNotNull("No Columns found for row ID:" + rowCursor.value,
+                    dbColumns);
+            assertEquals("Incorrect size of columns returned row ID:"
+                    + rowCursor.value, jColumnsData.size(), dbColumns.size());
+            for (final LongHolder longHolder : dbColumns) {
+                final long colkey = longHolder.value();
+                assertEquals("Column Values do not match for row ID:"
+                        + rowCursor.value + " column ID:" + colkey,
+                        jColumnsData.get(colkey), dbColumns.getBytes(colkey));
+            }
+        }
+    }
+
     /** Testing BETable.columns(long key) Test is performed by retrieving all
      * Test-rows-ids from test data file. Calling the columns() method for each
      * test row and comparing result with column IDs for corresponding rows in
@@ -339,6 +551,50 @@ public abstract class BETableJUnit {
         }
     }
 
+    /** Testing BETable.columnsIterator(long key) on a row wider than a page
+     * of column Ids. All the column Ids must be returned once, in table
+     * order, and the columns removed through the iterator must be removed
+     * from the row. */
+    @Test
+    public void testColumnsIteratorPages() throws Exception {
+        final long key = missingRowID(J_UTIL.getRowIDs());
+        final int width = 2 * AbstractColumnScanner.PAGE_SIZE + 100;
+        final Columns cols = new Columns(table.reverse());
+        for (int col = 0; col < width; col++) {
+            cols.putBytes(col, new Bytes(new byte[] { (byte) col }));
+        }
+        table.set(key, cols);
+        try {
+            Iterator<LongHolder> iter = table.columnsIterator(key);
+            assertNotNull("No columns present for row id " + key, iter);
+            int count = 0;
+            long previous = table.reverse() ? width : -1;
+            while (iter.hasNext()) {
+                final long col = iter.next().value();
+                assertTrue("Column ID out of order " + col,
+                        table.reverse() ? col < previous : col > previous);
+                previous = col;
+                if (col % 2 == 0)
+                    iter.remove();
+                count++;
+            }
+            assertEquals("Column count mismatch ", width, count);
+            assertEquals("Columns not removed ", width / 2,
+                    table.columnsCount(key));
+            iter = table.columnsIterator(key);
+            count = 0;
+            while (iter.hasNext()) {
+                assertTrue("Removed column returned ",
+                        iter.next().value() % 2 == 1);
+                count++;
+            }
+            assertEquals("Column count mismatch ", width / 2, count);
+        } finally {
+            table.remove(key);
+        }
+        assertNull("Iterator of a missing row ", table.columnsIterator(key));
+    }
+
     /** Test database drop create database. */
     @Test
     public void testDBDropCreateDB() {
@@ -459,9 +715,21 @@ public abstract class BETableJUnit {
                 final Columns dbColumns3 = table.getLimited(rowCursor.value, 0);
                 assertNull("Setting Limit to zero should return null ",
                         dbColumns3);
-                // TODO: The "normal case" is more like:
-                // table.getLimited(key, jColumnsData.size()/2)
-                // and it should be tested too!
+            }
+            // the normal case: the first half of the columns, in table order.
+            final long[] jColumns = jColumnsData.keys().toArray();
+            Arrays.sort(jColumns);
+            final int half = Math.max(1, jColumns.length / 2);
+            final Columns dbColumns4 = table.getLimited(rowCursor.value, half);
+            assertNotNull("No Columns found for row ID:" + rowCursor.value,
+                    dbColumns4);
+            assertEquals("Wrong number of columns for row ID:"
+                    + rowCursor.value, half, dbColumns4.size());
+            for (int i = 0; i < half; i++) {
+                assertTrue("Column ID:" + jColumns[i]
+                        + " is not one of the first columns of row ID:"
+                        + rowCursor.value,
+                        dbColumns4.containsColumn(jColumns[i]));
             }
         }
     }
@@ -763,6 +1031,65 @@ public abstract class BETableJUnit {
         assertNull("Passing zero as rowId should return null", dbColumns5);
     }
 
+    /** Testing BETable.get(long key, Range range, ColumnVisitor visitor). All
+     * the columns of each Test-row are streamed to a visitor, and compared
+     * with the Test data. Then the visitor stops after the first column. */
+    @Test
+    public void testGetLongRangeVisitor() throws Exception {
+        final LongArrayList rowIDs = J_UTIL.getRowIDs();
+        for (final LongCursor rowCursor : rowIDs) {
+            final long rowId = rowCursor.value;
+            final LongObjectOpenHashMap<Bytes> jColumnsData = J_UTIL
+                    .getColumnData(rowId);
+            final LongArrayList visited = new LongArrayList();
+            final int count = table.get(rowId, Range.fullRange(),
+                    new ColumnVisitor() {
+                        @Override
+                        public boolean visit(final long theColumn,
+                                final byte[] theData, final int theOffset,
+                                final int theLength) {
+                            assertTrue("Unexpected column ID:" + theColumn
+                                    + " row ID:" + rowId,
+                                    jColumnsData.containsKey(theColumn));
+                            assertEquals("Column Values do not match for row ID:"
+                                    + rowId + " column ID:" + theColumn,
+                                    jColumnsData.get(theColumn), new Bytes(
+                                            Arrays.copyOfRange(theData,
+                                                    theOffset, theOffset
+                                                            + theLength)));
+                            visited.add(theColumn);
+                            return true;
+                        }
+                    });
+            assertEquals("Visited wrong number of columns ",
+                    jColumnsData.size(), count);
+            assertEquals("Visited wrong number of columns ",
+                    jColumnsData.size(), visited.size());
+
+            final int first = table.get(rowId, Range.fullRange(),
+                    new ColumnVisitor() {
+                        @Override
+                        public boolean visit(final long theColumn,
+                                final byte[] theData, final int theOffset,
+                                final int theLength) {
+                            return false;
+                        }
+                    });
+            assertEquals("Visitor did not stop after first column ", 1, first);
+        }
+        // pass empty range.
+        assertEquals("Empty range should not visit any column", 0, table.get(
+                0, new Range(0, 0), new ColumnVisitor() {
+                    @Override
+                    public boolean visit(final long theColumn,
+                            final byte[] theData, final int theOffset,
+                            final int theLength) {
+                        fail("Empty range should not visit any column");
+                        return true;
+                    }
+                }));
+    }
+
     /** Test key iterator. */
     @Test
     public void testKeyIterator() throws Exception {
@@ -777,6 +1104,183 @@ public abstract class BETableJUnit {
         assertEquals("Number of rows mismatch ", jrowIds.size(), count);
     }
 
+    /** Test BETable.keys(Range rows). The keys of the full range must be all
+     * the Test-rows; the keys of a smaller range must be the Test-rows within
+     * that range. */
+    @Test
+    public void testKeysRange() throws Exception {
+        final LongArrayList jrowIds = J_UTIL.getRowIDs();
+        final long[] sorted = jrowIds.toArray();
+        Arrays.sort(sorted);
+        final Range range = new Range(sorted[sorted.length / 4],
+                sorted[(sorted.length * 3) / 4]);
+        int expected = 0;
+        for (final long key : sorted) {
+            if (range.contains(key))
+                expected++;
+        }
+        int count = 0;
+        Iterator<LongHolder> keys = table.keys(range);
+        while (keys.hasNext()) {
+            final long key = keys.next().value();
+            assertTrue("Row id out of range ", range.contains(key));
+            assertTrue("Row id mismatch ", jrowIds.contains(key));
+            count++;
+        }
+        assertEquals("Number of rows mismatch ", expected, count);
+        count = 0;
+        keys = table.keys(Range.fullRange());
+        while (keys.hasNext()) {
+            assertTrue("Row id mismatch ",
+                    jrowIds.contains(keys.next().value()));
+            count++;
+        }
+        assertEquals("Number of rows mismatch ", jrowIds.size(), count);
+        assertFalse("Empty range should return no key",
+                table.keys(new Range(0, -1)).hasNext());
+    }
+
+    /** Tests the table metrics. Reads all the Test-rows, and checks that the
+     * calls and rows were counted, and that the MBeans are registered.
+     * Skipped if the metrics are switched off. */
+    @Test
+    public void testMetrics() throws Exception {
+        if (!(table instanceof AbstractTable))
+            return;
+        final TableMetrics metrics = ((AbstractTable<?, ?, ?>) table)
+                .metrics();
+        if (metrics == null)
+            return;
+        final OperationMetrics get = metrics.operation(Operation.GET);
+        final long calls = get.getCount();
+        final long rowsRead = metrics.getRowsRead();
+        final LongArrayList rowIDs = J_UTIL.getRowIDs();
+        for (final LongCursor rowCursor : rowIDs) {
+            table.get(rowCursor.value);
+        }
+        assertEquals("Call count mismatch ", calls + rowIDs.size(),
+                get.getCount());
+        assertEquals("Rows read mismatch ", rowsRead + rowIDs.size(),
+                metrics.getRowsRead());
+        assertTrue("Percentile above maximum ",
+                get.getP99Micros() <= get.getMaxMicros());
+        assertFalse("MBeans not registered ", ManagementFactory
+                .getPlatformMBeanServer()
+                .queryNames(
+                        new ObjectName("com.blockwithme.longdb:type=Table,*"),
+                        null).isEmpty());
+    }
+
+    /** Tests the data volume metrics with PackedColumns. A copy of a Test-row
+     * is written as PackedColumns, and read back with get() and multiGet();
+     * the bytes must be counted on both sides. Skipped if the metrics are
+     * switched off. */
+    @Test
+    public void testMetricsPackedColumns() throws Exception {
+        if (!(table instanceof AbstractTable))
+            return;
+        final TableMetrics metrics = ((AbstractTable<?, ?, ?>) table)
+                .metrics();
+        if (metrics == null)
+            return;
+        final LongArrayList rowIDs = J_UTIL.getRowIDs();
+        final Columns source = table.get(rowIDs.get(0));
+        assertNotNull("Missing row " + rowIDs.get(0), source);
+        final PackedColumns packed = new PackedColumns(source);
+        final long length = packed.bytesLength();
+        assertEquals("Packed length mismatch ", source.bytesLength(), length);
+        final long key = missingRowID(rowIDs);
+        final long written = metrics.getBytesWritten();
+        table.set(key, packed);
+        try {
+            assertEquals("Bytes written mismatch ", written + length,
+                    metrics.getBytesWritten());
+            final long read = metrics.getBytesRead();
+            assertNotNull("Missing row " + key, table.get(key));
+            assertEquals("Bytes read mismatch ", read + length,
+                    metrics.getBytesRead());
+            assertEquals("Number of rows mismatch ", 1,
+                    table.multiGet(new long[] { key }, Range.fullRange())
+                            .size());
+            assertEquals("Bytes read mismatch ", read + 2 * length,
+                    metrics.getBytesRead());
+        } finally {
+            table.remove(key);
+        }
+    }
+
+    /** Testing BETable.multiGet(long[] keys, LongArrayList columns). All the
+     * Test-rows, plus one missing row, are retrieved with the column ids of
+     * all test rows, in one call. Comparing result with the Test data. */
+    @Test
+    public void testMultiGetLongArrayList() throws Exception {
+        final LongArrayList rowIDs = J_UTIL.getRowIDs();
+        final LongArrayList colIDList = new LongArrayList();
+        for (final LongCursor rowCursor : rowIDs) {
+            for (final LongCursor colCursor : J_UTIL.getColumnIDs(
+                    rowCursor.value)) {
+                if (!colIDList.contains(colCursor.value))
+                    colIDList.add(colCursor.value);
+            }
+        }
+        final long missing = missingRowID(rowIDs);
+        final LongArrayList keys = new LongArrayList(rowIDs);
+        keys.add(missing);
+        final LongObjectOpenHashMap<Columns> result = table.multiGet(
+                keys.toArray(), colIDList);
+        validateMultiGet(rowIDs, missing, result);
+        assertTrue("Empty column list should return no row", table
+                .multiGet(keys.toArray(), new LongArrayList()).isEmpty());
+    }
+
+    /** Testing BETable.multiGet(long[] keys, Range columns). All the
+     * Test-rows, plus one missing row, are retrieved with the full range, in
+     * one call. Comparing result with the Test data. */
+    @Test
+    public void testMultiGetRange() throws Exception {
+        final LongArrayList rowIDs = J_UTIL.getRowIDs();
+        final long missing = missingRowID(rowIDs);
+        final LongArrayList keys = new LongArrayList(rowIDs);
+        keys.add(missing);
+        final LongObjectOpenHashMap<Columns> result = table.multiGet(
+                keys.toArray(), Range.fullRange());
+        validateMultiGet(rowIDs, missing, result);
+        assertTrue("No key should return no row",
+                table.multiGet(ZERO_LONG_ARRAY, Range.fullRange()).isEmpty());
+    }
+
+    /** Test AbstractTable.recount(). The row count must follow the rows that
+     * are created, updated, partially removed and emptied, one at a time and
+     * in a batch, and match a full count of the keys. */
+    @Test
+    public void testRecount() throws Exception {
+        final long size = table.size();
+        final long missing = missingRowID(J_UTIL.getRowIDs());
+        final Columns cols = new Columns(table.reverse());
+        cols.putBytes(1, new Bytes(missing));
+        cols.putBytes(2, new Bytes(missing));
+        table.set(missing, cols);
+        assertEquals("New row not counted ", size + 1, table.size());
+        table.set(missing, cols);
+        assertEquals("Updated row counted twice ", size + 1, table.size());
+        table.remove(missing, 1);
+        assertEquals("Row with columns left not counted ", size + 1,
+                table.size());
+        table.remove(missing, new Range(2, 2));
+        assertEquals("Empty row counted ", size, table.size());
+        final LongObjectOpenHashMap<Columns> rows = new LongObjectOpenHashMap<Columns>();
+        rows.put(missing, cols);
+        rows.put(missing + 1, cols);
+        table.setAll(rows);
+        assertEquals("New rows not counted ", size + 2, table.size());
+        table.remove(missing);
+        table.remove(missing + 1);
+        assertEquals("Removed rows counted ", size, table.size());
+        if (table instanceof AbstractTable)
+            assertEquals("Recount mismatch ", size,
+                    ((AbstractTable<?, ?, ?>) table).recount());
+    }
+
     /** Test BETable.remove(long row) Test data contains row ids to be removed to
      * remove the entire row. */
     @Test
@@ -924,6 +1428,118 @@ public abstract class BETableJUnit {
         }
     }
 
+    /** Test BETable.getLimited(long key, int count) on a reverse table: the
+     * last columns must be returned, in descending order. */
+    @Test
+    public void testReverseGetLimited() throws Exception {
+
+        final Base36 tbl2 = Base36.get("TRev");
+
+        try {
+            if (database.get(tbl2) != null)
+                database.drop(tbl2);
+
+            final BETableProfile profile2 = new BETableProfile();
+            profile2.reverseColumnsOrder(true);
+            database.create(tbl2, profile2);
+            final BETable tb22 = database.get(tbl2);
+            assertNotNull("Could not load table: " + tbl2, tb22);
+            J_UTIL.loadTableFromJSONFile(tb22);
+            if (tb22.reverseSupported()) {
+                final LongArrayList rowIDs = J_UTIL.getRowIDs();
+                for (final LongCursor rowCursor : rowIDs) {
+                    final long[] jColumns = sortDesending(J_UTIL.getColumnIDs(
+                            rowCursor.value).toArray());
+                    final int half = Math.max(1, jColumns.length / 2);
+                    final Columns dbColumns = tb22.getLimited(rowCursor.value,
+                            half);
+                    assertNotNull("No Columns found for row ID:"
+                            + rowCursor.value, dbColumns);
+                    final long[] dbIds = dbColumns.columns();
+                    assertEquals("Wrong number of columns for row ID:"
+                            + rowCursor.value, half, dbIds.length);
+                    for (int i = 0; i < half; i++) {
+                        assertEquals("Column ID mismatch for row ID:"
+                                + rowCursor.value, jColumns[i], dbIds[i]);
+                    }
+                }
+            }
+        } catch (final IllegalArgumentException exp) {
+            // ignore this.
+        } catch (final UnsupportedOperationException exp) {
+            // ignore this.
+        } finally {
+            database.drop(tbl2);
+        }
+    }
+
+    /** Testing BETable.scan(Range rows, Range columns). All the Test-rows are
+     * scanned with the full ranges, and compared with the Test data. A smaller
+     * range of rows must return the Test-rows within that range only. */
+    @Test
+    public void testScan() throws Exception {
+        final LongArrayList rowIDs = J_UTIL.getRowIDs();
+        final LongObjectOpenHashMap<Columns> result = new LongObjectOpenHashMap<Columns>();
+        Iterator<LongObjectCursor<Columns>> rows = table.scan(
+                Range.fullRange(), Range.fullRange());
+        while (rows.hasNext()) {
+            final LongObjectCursor<Columns> row = rows.next();
+            assertFalse("Row returned twice: " + row.key,
+                    result.containsKey(row.key));
+            result.put(row.key, row.value);
+        }
+        validateMultiGet(rowIDs, missingRowID(rowIDs), result);
+
+        final long[] sorted = rowIDs.toArray();
+        Arrays.sort(sorted);
+        final Range range = new Range(sorted[sorted.length / 4],
+                sorted[(sorted.length * 3) / 4]);
+        int expected = 0;
+        for (final long key : sorted) {
+            if (range.contains(key))
+                expected++;
+        }
+        int count = 0;
+        rows = table.scan(range, Range.fullRange());
+        while (rows.hasNext()) {
+            final LongObjectCursor<Columns> row = rows.next();
+            assertTrue("Row id out of range ", range.contains(row.key));
+            assertEquals("Incorrect size of columns returned row ID:"
+                    + row.key, J_UTIL.getColumnCount(row.key),
+                    row.value.size());
+            count++;
+        }
+        assertEquals("Number of rows mismatch ", expected, count);
+        assertFalse("Empty column range should return no row",
+                table.scan(Range.fullRange(), new Range(0, -1)).hasNext());
+    }
+
+    /** Test BETable.setAll(LongObjectOpenHashMap<Columns> rows) by adding new
+     * columns to multiple existing rows in a single call. */
+    @Test
+    public void testSetAll1() throws Exception {
+
+        final LongObjectOpenHashMap<Columns> newColumns = new LongObjectOpenHashMap<Columns>();
+        J_UTIL.columnsAdded("addColumns", newColumns, null, null);
+        if (newColumns.keys() == null)
+            fail("New data to be inserted not present.");
+        table.setAll(newColumns);
+        validateAllTestRows();
+    }
+
+    /** Test BETable.setAll(LongObjectOpenHashMap<Columns> rows) by modifying
+     * the values of existing columns of multiple rows in a single call. */
+    @Test
+    public void testSetAll2() throws Exception {
+
+        final LongObjectOpenHashMap<Columns> newColumns = new LongObjectOpenHashMap<Columns>();
+        J_UTIL.columnsModified("updateColumns", newColumns, null, null);
+        if (newColumns.keys() == null)
+            fail("New data to be inserted not present.");
+        table.setAll(newColumns);
+        validateAllTestRows();
+    }
+
     /** Test BETable.set(long row, Columns cols) by adding new columns to
      * existing rows. */
     @Test
@@ -1080,6 +1696,89 @@ public abstract class BETableJUnit {
         validateAllTestRows();
     }
 
+    /** Test BETable.set(long row, Columns cols) with a PackedColumns, built by
+     * copying, appending out of order, overwriting and removing columns. The
+     * rows read back must match the same operations on a plain Columns. */
+    @Test
+    public void testSetPackedColumns() throws Exception {
+        long key = missingRowID(J_UTIL.getRowIDs());
+        for (final LongCursor rowCursor : J_UTIL.getRowIDs()) {
+            final Columns source = table.get(rowCursor.value);
+            if (source == null)
+                continue;
+            final Columns expected = new Columns(source);
+            final PackedColumns packed = new PackedColumns(source);
+            final long[] cols = source.columns();
+            packed.append(Long.MIN_VALUE, new byte[] { 1, 2, 3 });
+            expected.putBytes(Long.MIN_VALUE, new Bytes(new byte[] { 1, 2, 3 }));
+            packed.putBytes(cols[0], new Bytes(key));
+            expected.putBytes(cols[0], new Bytes(key));
+            packed.remove(cols[cols.length - 1]);
+            expected.remove(cols[cols.length - 1]);
+            assertEquals("Size mismatch ", expected.size(), packed.size());
+            table.set(key, packed);
+            final Columns read = table.get(key);
+            assertNotNull("Missing row " + key, read);
+            assertEquals("Size mismatch ", expected.size(), read.size());
+            for (final long col : expected.columns()) {
+                assertTrue("Value mismatch ", Arrays.equals(expected
+                        .getBytes(col).toArray(false), read.getBytes(col)
+                        .toArray(false)));
+            }
+            table.remove(key);
+            key++;
+        }
+    }
+
+    /** Test the row and column Ids on both sides of 0. A range of rows, or of
+     * columns, that crosses 0 must return the negative and the positive Ids
+     * within the range, and the first columns of a row must be the smallest
+     * ones, or the greatest ones in a reverse table. */
+    @Test
+    public void testSignedOrder() throws Exception {
+        final LongArrayList rowIDs = J_UTIL.getRowIDs();
+        final long below = missingRowID(rowIDs, false);
+        final long above = missingRowID(rowIDs, true);
+        final Columns cols = new Columns(table.reverse());
+        for (long col = -2; col <= 2; col++) {
+            cols.putBytes(col, new Bytes(col));
+        }
+        table.set(below, cols);
+        table.set(above, cols);
+        try {
+            final Iterator<LongHolder> keys = table.keys(new Range(below,
+                    above));
+            int count = 0;
+            while (keys.hasNext()) {
+                final long key = keys.next().value();
+                assertTrue("Row id mismatch ", key == below || key == above
+                        || rowIDs.contains(key));
+                count++;
+            }
+            assertEquals("Number of rows mismatch ", rowIDs.size() + 2, count);
+            final Columns read = table.get(below, new Range(-1, 1));
+            assertNotNull("Missing row " + below, read);
+            assertEquals("Column range across 0 mismatch ", 3, read.size());
+            for (long col = -1; col <= 1; col++) {
+                assertTrue("Missing column " + col, read.containsColumn(col));
+            }
+            final Columns first = table.getLimited(below, 2);
+            assertNotNull("Missing row " + below, first);
+            assertEquals("Limited columns mismatch ", 2, first.size());
+            final long firstCol = table.reverse() ? 2 : -2;
+            assertTrue("Missing first column ", first.containsColumn(firstCol));
+            table.remove(below, new Range(-1, 1));
+            final Columns left = table.get(below);
+            assertNotNull("Missing row " + below, left);
+            assertEquals("Columns left mismatch ", 2, left.size());
+            assertTrue("Missing column -2 ", left.containsColumn(-2));
+            assertTrue("Missing column 2 ", left.containsColumn(2));
+        } finally {
+            table.remove(below);
+            table.remove(above);
+        }
+    }
+
     /** Test size. */
     @Test
     public void testSize() throws Exception {
@@ -1087,5 +1786,176 @@ public abstract class BETableJUnit {
                 table.size());
     }
 
+    /** Test size() of a new, empty, table. It must be 0, the table must have
+     * no key, and the first row written must be counted. */
+    @Test
+    public void testSizeEmptyTable() throws Exception {
+        final Base36 tbl = Base36.get("TEmpty");
+        try {
+            if (database.get(tbl) != null)
+                database.drop(tbl);
+            final BETable empty = database.create(tbl, new BETableProfile());
+            assertEquals("Empty table size mismatch ", 0, empty.size());
+            assertFalse("Empty table should have no key", empty.keys()
+                    .hasNext());
+            final Columns cols = new Columns(empty.reverse());
+            cols.putBytes(1, new Bytes(1L));
+            empty.set(1, cols);
+            assertEquals("Row size mismatch ", 1, empty.size());
+        } catch (final UnsupportedOperationException e) {
+            // ignore.
+        } finally {
+            database.drop(tbl);
+        }
+    }
+
+    /** Test BETable.splitKeys(int parts). The ranges must be ascending and
+     * contiguous, cover the whole key space, and together contain every
+     * Test-row exactly once. */
+    @Test
+    public void testSplitKeys() throws Exception {
+        final LongArrayList jrowIds = J_UTIL.getRowIDs();
+        final Range[] ranges = table.splitKeys(4);
+        assertTrue("Too many ranges ", ranges.length >= 1
+                && ranges.length <= 4);
+        assertEquals("First range start mismatch ", Long.MIN_VALUE,
+                ranges[0].start());
+        assertEquals("Last range end mismatch ", Long.MAX_VALUE,
+                ranges[ranges.length - 1].end());
+        int count = 0;
+        for (int i = 0; i < ranges.length; i++) {
+            if (i > 0)
+                assertEquals("Ranges are not contiguous ",
+                        ranges[i - 1].end() + 1, ranges[i].start());
+            final Iterator<LongHolder> keys = table.keys(ranges[i]);
+            while (keys.hasNext()) {
+                final long key = keys.next().value();
+                assertTrue("Row id out of range ", ranges[i].contains(key));
+                assertTrue("Row id mismatch ", jrowIds.contains(key));
+                count++;
+            }
+        }
+        assertEquals("Number of rows mismatch ", jrowIds.size(), count);
+        assertEquals("Single range expected ", 1, table.splitKeys(1).length);
+    }
+
+    /** Tests concurrent access to a thread-safe table. Many threads write and
+     * read back their own rows at the same time, through the same table
+     * instance. Skipped for tables that are not thread-safe. */
+    @Test
+    public void testThreadSafe() throws Exception {
+        if (!table.threadSafe())
+            return;
+        final int threadCount = 8;
+        final int rowsPerThread = 200;
+        final long firstRow = missingRowID(J_UTIL.getRowIDs());
+        final Thread[] threads = new Thread[threadCount];
+        final Throwable[] errors = new Throwable[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int index = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < rowsPerThread; i++) {
+                            final long key = firstRow + index * rowsPerThread
+                                    + i;
+                            final Columns cols = new Columns(table.reverse());
+                            cols.putBytes(i, new Bytes(key));
+                            table.set(key, cols);
+                            final Columns read = table.get(key, (long) i);
+                            assertNotNull("Missing row " + key, read);
+                            assertEquals("Value mismatch ", key, read
+                                    .getBytes(i).getLong());
+                        }
+                    } catch (final Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        for (final Throwable error : errors) {
+            if (error != null)
+                throw new AssertionError(error);
+        }
+        assertEquals("Row size mismatch ", J_UTIL.getRowIDs().size()
+                + threadCount * rowsPerThread, table.size());
+        for (int i = 0; i < threadCount * rowsPerThread; i++) {
+            table.remove(firstRow + i);
+        }
+    }
+
+    /** Tests the write-behind buffer. The modifications must be visible
+     * through the buffer before they are flushed, and in the table after. */
+    @Test
+    public void testWriteBehind() throws Exception {
+        final WriteBehindBETable buffered = new WriteBehindBETable(table, 1000,
+                0);
+        final LongObjectOpenHashMap<Columns> newColumns = new LongObjectOpenHashMap<Columns>();
+        J_UTIL.columnsAdded("addColumns", newColumns, null, null);
+        for (int i = 0; i < 2; i++) {
+            for (final LongObjectCursor<Columns> row : newColumns) {
+                buffered.set(row.key, row.value);
+            }
+        }
+        assertEquals("Pending rows mismatch ", newColumns.size(),
+                buffered.pendingRows());
+        for (final LongObjectCursor<Columns> row : newColumns) {
+            final Columns dbColumns = buffered.get(row.key);
+            assertNotNull("No Columns found for row ID:" + row.key, dbColumns);
+            for (final LongHolder longHolder : row.value) {
+                final long colkey = longHolder.value();
+                assertEquals("Column Values do not match for row ID:"
+                        + row.key + " column ID:" + colkey,
+                        row.value.getBytes(colkey), dbColumns.getBytes(colkey));
+            }
+        }
+        final LongArrayList removeRowIDs = J_UTIL.removeRows("removeRows");
+        for (final LongCursor longCursor : removeRowIDs) {
+            buffered.remove(longCursor.value);
+            assertNull("Removed row still visible ",
+                    buffered.get(longCursor.value));
+        }
+        buffered.flush();
+        assertEquals("Pending rows mismatch ", 0, buffered.pendingRows());
+        validateAllTestRows();
+    }
+
+    /** Test WriteBehindBETable removing columns of a removed row. The columns
+     * set after the row was removed, and removed again, must neither be read
+     * nor written by flush(). */
+    @Test
+    public void testWriteBehindRemovedRow() throws Exception {
+        final WriteBehindBETable buffered = new WriteBehindBETable(table, 1000,
+                0);
+        final long key = missingRowID(J_UTIL.getRowIDs());
+        final Columns cols = new Columns(table.reverse());
+        for (final long col : new long[] { 1, 5, 20, 30 }) {
+            cols.putBytes(col, new Bytes(col));
+        }
+        table.set(key, cols);
+        try {
+            buffered.remove(key);
+            buffered.set(key, cols);
+            buffered.remove(key, new Range(0, 10));
+            buffered.remove(key, 30);
+            Columns read = buffered.get(key);
+            assertNotNull("Missing row " + key, read);
+            assertEquals("Removed columns visible ", 1, read.size());
+            assertTrue("Missing column 20 ", read.containsColumn(20));
+            buffered.flush();
+            read = table.get(key);
+            assertNotNull("Missing row " + key, read);
+            assertEquals("Removed columns written ", 1, read.size());
+            assertTrue("Missing column 20 ", read.containsColumn(20));
+        } finally {
+            table.remove(key);
+        }
+    }
+
 }
 // CHECKSTYLE resume magic number check
@@ -21,6 +21,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import com.blockwithme.longdb.mem.LongSortedMapJUnit;
 import com.blockwithme.longdb.test.util.Util;
 
 /** Combines test cases for embedded database implementations only, includes : <br>
@@ -28,10 +29,11 @@ import com.blockwithme.longdb.test.util.Util;
  * 2. H2 JUnit.<br>
  * 3. BerkeleyDB JUnit<br>
  * 4. Level DB Java JUnit<br>
- * 5. Memory DB. */
+ * 5. Memory DB, and its LongSortedMap. */
 // CHECKSTYLE IGNORE FOR NEXT 1 LINES
 @RunWith(Suite.class)
-@SuiteClasses({ MemoryJUnit.class, EmbeddedCassandraJUnit.class, H2JUnit.class,
+@SuiteClasses({ LongSortedMapJUnit.class, MemoryJUnit.class,
+        EmbeddedCassandraJUnit.class, H2JUnit.class,
         BDBJUnit.class, LevelDBJUnit.class })
 public class EmbeddedDBTestSuite {
 
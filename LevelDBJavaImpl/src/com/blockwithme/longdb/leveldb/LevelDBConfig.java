@@ -30,6 +30,9 @@ public class LevelDBConfig {
     /** The compression on. */
     private boolean compressionOn;
 
+    /** The row count flag. */
+    private boolean countRows;
+
     /** The file path. */
     private String filePath;
 
@@ -60,6 +63,15 @@ public class LevelDBConfig {
         this.compressionOn = theCompressionOn;
     }
 
+    /** Count rows.
+     * 
+     * @param theCountRows
+     *        the row count flag */
+    @Inject
+    void countRows(@Named("countRows") final boolean theCountRows) {
+        this.countRows = theCountRows;
+    }
+
     /** File path.
      * 
      * @param theFilePath
@@ -111,6 +123,16 @@ public class LevelDBConfig {
         return compressionOn;
     }
 
+    /** Count rows. When on, the number of rows is stored and kept up to date
+     * by every write, so that size() does not scan the table; each write then
+     * first reads the start of its row, to know if it creates or empties it.
+     * When off, writes do not read anything, and size() counts the keys.
+     * 
+     * @return is the row count kept */
+    public boolean countRows() {
+        return countRows;
+    }
+
     /** File path.
      * 
      * @return the data File path */
@@ -21,6 +21,17 @@ public interface LevelDBConstants {
     /** The iterator limit. */
     int ITERATOR_LIMIT = 500;
 
+    /** The number of slices of the key space measured per wanted range, when
+     * splitting the keys. */
+    int SPLIT_SLICES = 16;
+
+    /** The maximum number of slices of the key space measured when splitting
+     * the keys. Must be a power of two. */
+    int MAX_SPLIT_SLICES = 4096;
+
     /** The project home. */
     String PROJECT_NAME = "LevelDBJavaImpl";
+
+    /** The file marking the folder of a reverse table. */
+    String REVERSE_MARKER = "REVERSE";
 }
@@ -16,6 +16,8 @@
 // $codepro.audit.disable com.instantiations.eclipse.analysis.audit.security.incompatibleTypesStoredInACollection
 package com.blockwithme.longdb.leveldb;
 
+import static com.blockwithme.longdb.leveldb.LevelDBConstants.REVERSE_MARKER;
+
 import java.io.File;
 import java.util.Map;
 
@@ -85,8 +87,10 @@ public class LevelDBDatabase extends
         try {
             final File databaseDir = getDir(theTable.toFixedString());
             FileUtils.forceMkdir(databaseDir);
+            if (theProfile.reverseColumnsOrder())
+                FileUtils.touch(new File(databaseDir, REVERSE_MARKER));
             final LevelDBTable tableInstance = new LevelDBTable(this,
-                    databaseDir, theTable, false);
+                    databaseDir, theTable, theProfile.reverseColumnsOrder());
             return tableInstance;
         } catch (final Exception e) {
             LOG.error(
@@ -143,7 +147,8 @@ public class LevelDBDatabase extends
             for (final String dir : dataDirs) {
                 final File path = getDir(dir);
                 final LevelDBTable table = new LevelDBTable(this, path,
-                        Base36.get(dir), false);
+                        Base36.get(dir),
+                        new File(path, REVERSE_MARKER).exists());
                 theTables.put(Base36.get(dir.toLowerCase()), table);
             }
         }
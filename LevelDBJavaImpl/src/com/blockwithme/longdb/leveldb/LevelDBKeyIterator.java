@@ -15,6 +15,9 @@
  ******************************************************************************/
 package com.blockwithme.longdb.leveldb;
 
+import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES_X_2;
+
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -34,8 +37,8 @@ public class LevelDBKeyIterator extends AbstractKeyIterator<LevelDBTable> {
     /** The current key. */
     private Long currentKey;
 
-    /** Keeps a buffer */
-    private Iterator<LongCursor> itr;
+    /** Keeps a buffer. Empty until a page of keys is found. */
+    private Iterator<LongCursor> itr = Collections.<LongCursor> emptyIterator();
 
     /** indicates that last row is reached. */
     boolean findMore = true;
@@ -55,7 +58,7 @@ public class LevelDBKeyIterator extends AbstractKeyIterator<LevelDBTable> {
         DBIterator cur = null;
         try {
             final LongArrayList list = new LongArrayList();
-            cur = table.dbInstance().iterator();
+            cur = table.dbInstance().iterator(table.readOpts());
             int i = 0;
             while (i++ < LevelDBConstants.ITERATOR_LIMIT && newKey(cur)) {
                 list.add(currentKey);
@@ -73,19 +76,24 @@ public class LevelDBKeyIterator extends AbstractKeyIterator<LevelDBTable> {
         }
     }
 
-    /** New key. */
+    /** New key. The keys are stored in signed order, so the next key is the
+     * first one after the current key. */
     private boolean newKey(final DBIterator theCursor) {
 
         if (currentKey == null) {
             theCursor.seekToFirst();
+        } else if (currentKey == Long.MAX_VALUE) {
+            return false;
         } else {
-            final byte[] keys = Util.toByta(++currentKey);
-            theCursor.seek(keys);
+            theCursor.seek(Util.toByta((currentKey + 1) ^ Util.SIGN_MASK));
         }
-        if (theCursor.hasNext()) {
-            final java.util.Map.Entry<byte[], byte[]> entry = theCursor.next();
-            currentKey = Util.splitRow(entry.getKey());
-            return true;
+        while (theCursor.hasNext()) {
+            final byte[] key = theCursor.next().getKey();
+            // Skips the keys that are not row-column pairs.
+            if (key.length == LONG_BYTES_X_2) {
+                currentKey = Util.splitRow(key) ^ Util.SIGN_MASK;
+                return true;
+            }
         }
         return false;
     }
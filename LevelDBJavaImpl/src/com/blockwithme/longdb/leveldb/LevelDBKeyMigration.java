@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.leveldb;
+
+import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES;
+import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES_X_2;
+import static com.blockwithme.longdb.leveldb.LevelDBConstants.REVERSE_MARKER;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map.Entry;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.commons.io.FileUtils;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBFactory;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.blockwithme.longdb.exception.DBException;
+
+/** Migrates the stores of LevelDB tables to the current key encoding. The
+ * first encoding stored the row and column Ids as they are, so that the
+ * negative Ids came after the others in storage order. The current encoding
+ * flips their sign bit (except for the column Ids of a reverse table, which
+ * were already stored in descending order), and marks the store with its
+ * format under a special key.
+ *
+ * The store is copied to a "migrating" sub-folder, which is renamed to
+ * "migrated" once complete. Only then are the old files replaced, so an
+ * interrupted migration is either restarted or completed the next time the
+ * table is opened. The column Id lists of the oldest databases are dropped.
+ *
+ * Tables are migrated when they are opened. The main() method migrates the
+ * given table folders offline. */
+@ParametersAreNonnullByDefault
+public final class LevelDBKeyMigration {
+
+    /** The number of entries written per batch. */
+    private static final int BATCH_SIZE = 10000;
+
+    /** The leveldb factory */
+    private static final DBFactory FCTRY = Iq80DBFactory.factory;
+
+    /** The current key format. */
+    static final int FORMAT = 2;
+
+    /** The key of the key format. It is shorter than a row key, so it is
+     * skipped by the scans. */
+    static final byte[] FORMAT_KEY = { 'k', 'e', 'y', 's' };
+
+    /** Logger for this class */
+    private static final Logger LOG = LoggerFactory
+            .getLogger(LevelDBKeyMigration.class);
+
+    /** The sub-folder of a migration in progress. */
+    private static final String MIGRATING = "migrating";
+
+    /** The sub-folder of a complete migration. */
+    private static final String MIGRATED = "migrated";
+
+    /** The sub-folder of a migration whose files are being moved in place. */
+    private static final String MOVING = "moving";
+
+    /** Completes or cleans up an interrupted migration of a table folder.
+     * Must be called before the store is opened.
+     *
+     * @param theFolder
+     *        the table folder
+     * @throws IOException
+     *         Signals that an I/O exception has occurred. */
+    static void finish(final File theFolder) throws IOException {
+        final File migrated = new File(theFolder, MIGRATED);
+        final File moving = new File(theFolder, MOVING);
+        if (migrated.isDirectory()) {
+            final File[] files = theFolder.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    if (file.isFile() && !REVERSE_MARKER.equals(file.getName()))
+                        FileUtils.forceDelete(file);
+                }
+            }
+            FileUtils.moveDirectory(migrated, moving);
+        }
+        if (moving.isDirectory()) {
+            final File[] files = moving.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    FileUtils.moveFileToDirectory(file, theFolder, false);
+                }
+            }
+            FileUtils.deleteDirectory(moving);
+            LOG.info("Migrated the keys of " + theFolder);
+        }
+        FileUtils.deleteDirectory(new File(theFolder, MIGRATING));
+    }
+
+    /** Checks if a store uses the current key format. A store without
+     * row-column pairs is marked with the current format.
+     *
+     * @param theDB
+     *        the store
+     * @return true, if the store needs no migration
+     * @throws IOException
+     *         Signals that an I/O exception has occurred. */
+    static boolean isCurrent(final DB theDB) throws IOException {
+        final byte[] format = theDB.get(FORMAT_KEY);
+        if (format != null) {
+            final long version = Util.toLong(format);
+            if (version > FORMAT)
+                throw new DBException("Unknown key format: " + version);
+            return version == FORMAT;
+        }
+        final DBIterator itr = theDB.iterator();
+        try {
+            itr.seekToFirst();
+            while (itr.hasNext()) {
+                if (itr.next().getKey().length == LONG_BYTES_X_2)
+                    return false;
+            }
+        } finally {
+            itr.close();
+        }
+        theDB.put(FORMAT_KEY, Util.toByta(FORMAT));
+        return true;
+    }
+
+    /** Migrates the store of a table folder to the current key format. The
+     * store must not be open.
+     *
+     * @param theFolder
+     *        the table folder
+     * @param isReverse
+     *        the reverse column sorting flag of the table
+     * @param theOptions
+     *        the options used to open the stores
+     * @throws IOException
+     *         Signals that an I/O exception has occurred. */
+    public static void migrate(final File theFolder, final boolean isReverse,
+            final Options theOptions) throws IOException {
+        final File target = new File(theFolder, MIGRATING);
+        FileUtils.deleteDirectory(target);
+        final long columnMask = isReverse ? 0L : Util.SIGN_MASK;
+        LOG.info("Migrating the keys of " + theFolder);
+        final DB source = FCTRY.open(theFolder, theOptions);
+        try {
+            final DB dest = FCTRY.open(target, theOptions);
+            try {
+                final DBIterator itr = source.iterator();
+                try {
+                    itr.seekToFirst();
+                    WriteBatch batch = dest.createWriteBatch();
+                    int count = 0;
+                    while (itr.hasNext()) {
+                        final Entry<byte[], byte[]> entry = itr.next();
+                        final byte[] key = entry.getKey();
+                        if (key.length == LONG_BYTES_X_2) {
+                            batch.put(Util.combine(Util.splitRow(key)
+                                    ^ Util.SIGN_MASK, Util.splitColumn(key)
+                                    ^ columnMask), entry.getValue());
+                        } else if (key.length != LONG_BYTES) {
+                            batch.put(key, entry.getValue());
+                        }
+                        if (++count == BATCH_SIZE) {
+                            dest.write(batch);
+                            batch.close();
+                            batch = dest.createWriteBatch();
+                            count = 0;
+                        }
+                    }
+                    batch.put(FORMAT_KEY, Util.toByta(FORMAT));
+                    dest.write(batch);
+                    batch.close();
+                } finally {
+                    itr.close();
+                }
+            } finally {
+                dest.close();
+            }
+        } finally {
+            source.close();
+        }
+        FileUtils.moveDirectory(target, new File(theFolder, MIGRATED));
+        finish(theFolder);
+    }
+
+    /** Migrates the given table folders, if they use an older key format.
+     * The tables must not be open.
+     *
+     * @param theArgs
+     *        the table folders
+     * @throws IOException
+     *         Signals that an I/O exception has occurred. */
+    public static void main(final String[] theArgs) throws IOException {
+        if (theArgs.length == 0) {
+            System.err.println("Usage: LevelDBKeyMigration <table folder>...");
+            return;
+        }
+        for (final String arg : theArgs) {
+            final File folder = new File(arg);
+            if (!folder.isDirectory()) {
+                System.err.println("Not a table folder: " + folder);
+                continue;
+            }
+            final Options options = new Options();
+            finish(folder);
+            final DB db = FCTRY.open(folder, options);
+            final boolean current;
+            try {
+                current = isCurrent(db);
+            } finally {
+                db.close();
+            }
+            if (current)
+                System.out.println("Up to date: " + folder);
+            else {
+                migrate(folder, new File(folder, REVERSE_MARKER).exists(),
+                        options);
+                System.out.println("Migrated: " + folder);
+            }
+        }
+    }
+
+    /** Instantiates a new migration. */
+    private LevelDBKeyMigration() {
+    }
+}
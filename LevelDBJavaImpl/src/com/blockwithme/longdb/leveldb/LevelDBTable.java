@@ -16,31 +16,38 @@
 // $codepro.audit.disable methodInvocationInLoopCondition
 package com.blockwithme.longdb.leveldb;
 
-import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES;
+import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES_X_2;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.iq80.leveldb.CompressionType;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBFactory;
 import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.Options;
 import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.WriteBatch;
 import org.iq80.leveldb.WriteOptions;
 import org.iq80.leveldb.impl.Iq80DBFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.blockwithme.longdb.ColumnVisitor;
 import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.PackedColumns;
 import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.base.AbstractColumnScanner;
+import com.blockwithme.longdb.base.AbstractRowScanner;
 import com.blockwithme.longdb.base.AbstractTable;
 import com.blockwithme.longdb.entities.Base36;
 import com.blockwithme.longdb.entities.Bytes;
@@ -49,8 +56,28 @@ import com.blockwithme.longdb.exception.DBException;
 import com.carrotsearch.hppc.LongArrayList;
 import com.carrotsearch.hppc.LongObjectOpenHashMap;
 import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 
-/** The Class LevelDBTable. */
+/** The Class LevelDBTable. Each column is stored under a (row, column)
+ * composite key, so the columns of a row are contiguous, and the column set of
+ * a row is obtained with a prefix scan. There is no separate column index to
+ * maintain, so writing a column costs the same whatever the width of the row.
+ * Each row mutation is applied as a single WriteBatch, so it is atomic, and
+ * synced only once when writes are synchronous. The row Ids, and the column
+ * Ids of a normal table, are stored with their sign bit flipped, so that the
+ * byte wise order of the keys is the signed order of the Ids, and a range of
+ * rows or columns is always read with a single seek and a forward scan. In a
+ * reverse table, the column Ids are stored XOR-ed with Long.MAX_VALUE, so
+ * that the storage order is the descending column order. Stores written with
+ * the older, unsigned, encoding are migrated when they are opened, see
+ * LevelDBKeyMigration. The number of
+ * rows is maintained under a special key, shorter than the row keys, so that
+ * it is skipped by the scans. Every mutation that creates or empties a row
+ * updates it in the same WriteBatch, so size() needs no scan. The cost is one
+ * read before each write: a short scan of the start of the row, to know if
+ * the write creates or empties it. Tables configured without a row count
+ * (see LevelDBConfig.countRows()) skip that read, and count the keys in
+ * size() instead. */
 @ParametersAreNonnullByDefault
 public class LevelDBTable extends
         AbstractTable<LevelDBBackend, LevelDBDatabase, LevelDBTable> {
@@ -58,25 +85,35 @@ public class LevelDBTable extends
     /** The leveldb factory */
     private static final DBFactory FCTRY = Iq80DBFactory.factory;
 
-    /** The range object with full range of long numbers. */
-    private static final Range FULL_RANGE = Range.fullRange();
-
     /** Logger for this class */
     private static final Logger LOG = LoggerFactory
             .getLogger(LevelDBTable.class);
 
-    /** The bit wise max value (all bits on). */
-    private static final long MAX_COLUMN = -1L;
+    /** The file that LevelDB writes when it creates a store. */
+    private static final String CURRENT_FILE = "CURRENT";
 
     /** The bin wise min value (all bits off). */
     private static final long MIN_COLUMN = 0L;
 
+    /** The mask XOR-ed with the column Ids of a reverse table. */
+    private static final long REVERSE_MASK = Long.MAX_VALUE;
+
+    /** The key of the row count. It is shorter than a row key, so it never
+     * falls within the columns of a row. */
+    private static final byte[] ROW_COUNT_KEY = { 'r', 'o', 'w', 's' };
+
+    /** The mask XOR-ed with the column Ids when they are stored. */
+    private final long columnMask;
+
     /** The byte wise comparator. */
     private BytewiseComparator comparator;
 
     /** The connected flag */
     private boolean connected;
 
+    /** Is the number of rows stored, and kept up to date by the writes? */
+    private boolean countRows;
+
     /** The folder of database files */
     private final File dbFolder;
 
@@ -89,14 +126,12 @@ public class LevelDBTable extends
     /** The read opts. */
     private ReadOptions readOpts;
 
+    /** The number of rows, as stored under ROW_COUNT_KEY. */
+    private long rowCount;
+
     /** The write opts. */
     private WriteOptions writeOpts;
 
-    /** Internal method: To bytes array */
-    private static byte[] toArray(final Bytes theBytes) {
-        return theBytes.toArray(false);
-    }
-
     /** Instantiates a new level db table.
      * 
      * @param theDB
@@ -109,25 +144,40 @@ public class LevelDBTable extends
      *        the reverse column sorting flag */
     protected LevelDBTable(final LevelDBDatabase theDB, final File theDBfolder,
             final Base36 theName, final boolean isReverse) {
-        super(theDB, theName, false, false);
+        super(theDB, theName, isReverse, false);
         init();
         dbFolder = theDBfolder;
+        columnMask = isReverse ? REVERSE_MASK : Util.SIGN_MASK;
+    }
+
+    /** Returns the column Id of a stored row-column pair. */
+    private long column(final byte[] theRowColumnPair) {
+        return Util.splitColumn(theRowColumnPair) ^ columnMask;
+    }
+
+    /** Returns the stored row-column pair of a column. */
+    private byte[] key(final long theKey, final long theColumn) {
+        return Util.combine(theKey ^ Util.SIGN_MASK, theColumn ^ columnMask);
+    }
+
+    /** Returns the row Id of a stored row-column pair. */
+    private static long row(final byte[] theRowColumnPair) {
+        return Util.splitRow(theRowColumnPair) ^ Util.SIGN_MASK;
+    }
+
+    /** Returns the stored prefix of the row-column pairs of a row. */
+    private static byte[] rowKey(final long theKey) {
+        return Util.toByta(theKey ^ Util.SIGN_MASK);
     }
 
-    /** Internal method : Checks range. */
+    /** Internal method : Checks range. Returns the entry, unless it is after
+     * the last stored row-column pair of the range. */
     private Entry<byte[], byte[]> checkRange(
-            final Entry<byte[], byte[]> theEntry, final long theLimit,
-            final long theRowKey, final boolean isLastInclude) {
-        if (theEntry == null)
+            final Entry<byte[], byte[]> theEntry, final byte[] theLastKey) {
+        if (theEntry == null
+                || comparator.compare(theEntry.getKey(), theLastKey) > 0)
             return null;
-        if (isLastInclude
-                && comparator.compare(theEntry.getKey(),
-                        Util.combine(theRowKey, theLimit)) <= 0)
-            return theEntry;
-        else if (comparator.compare(theEntry.getKey(),
-                Util.combine(theRowKey, theLimit)) < 0)
-            return theEntry;
-        return null;
+        return theEntry;
     }
 
     /** Internal method: resolves the config object */
@@ -141,44 +191,36 @@ public class LevelDBTable extends
             return;
         try {
             defaultOptions.createIfMissing(true);
+            LevelDBKeyMigration.finish(dbFolder);
+            final boolean created = !new File(dbFolder, CURRENT_FILE).exists();
             dbInstance = FCTRY.open(dbFolder, defaultOptions);
+            if (!LevelDBKeyMigration.isCurrent(dbInstance)) {
+                dbInstance.close();
+                LevelDBKeyMigration.migrate(dbFolder, reverse, defaultOptions);
+                dbInstance = FCTRY.open(dbFolder, defaultOptions);
+            }
             connected = true;
+            final byte[] count = dbInstance.get(ROW_COUNT_KEY, readOpts);
+            if (!countRows) {
+                // A count left by an earlier configuration would get stale.
+                if (count != null)
+                    dbInstance.delete(ROW_COUNT_KEY, writeOpts);
+            } else if (count != null) {
+                rowCount = Util.toLong(count);
+            } else if (created) {
+                // A new table starts with no rows.
+                dbInstance.put(ROW_COUNT_KEY, Util.toByta(0L), writeOpts);
+                rowCount = 0;
+            } else {
+                // Older databases have no row count; it is counted once.
+                rowCount = recountInternal();
+            }
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - connect()", e);
             throw new DBException("Error creating connection.", e);
         }
     }
 
-    /** Gets the results in specified range and list. */
-    @CheckForNull
-    private void getInRangeAndList(final long theKey, final long theStart,
-            final long theEnd, final LongArrayList theColumns,
-            final LongObjectOpenHashMap<Bytes> theMap) {
-
-        // final LongObjectOpenHashMap<Bytes> map = new
-        // LongObjectOpenHashMap<Bytes>();
-        DBIterator itr = null;
-        try {
-            itr = iteratorAtPosition(theKey, theStart);
-            java.util.Map.Entry<byte[], byte[]> entry = null;
-            while (itr.hasNext()
-                    && (entry = checkRange(itr.next(), theEnd, theKey, true)) != null) {
-                final long colId = Util.splitColumn(entry.getKey());
-                if (theColumns.contains(colId))
-                    theMap.put(colId, new Bytes(entry.getValue()));
-            }
-        } catch (final Exception e) {
-            LOG.error("Exception Occurred in - getInRangeAndList(long key="
-                    + theKey + ", long start=" + theStart + ", long end="
-                    + theEnd + ", LongArrayList cols=" + theColumns
-                    + ", LongObjectOpenHashMap<Bytes> map=" + theMap + ")", e);
-            throw new DBException("Error Select In List Search.", e);
-        } finally {
-            if (itr != null) // $codepro.audit.disable unnecessaryNullCheck
-                itr.close();
-        }
-    }
-
     /** Initializes read_opts, write_opts, defaultOptions */
     private void init() {
 
@@ -193,56 +235,187 @@ public class LevelDBTable extends
         readOpts.verifyChecksums(false);
         writeOpts = new WriteOptions();
         writeOpts.sync(config().writeSynchronously());
+        countRows = config().countRows();
         comparator = new BytewiseComparator();
     }
 
     /** Creates an Iterator and sets the position. */
     private DBIterator iteratorAtPosition(final long theKey,
             final long theColumnId) {
-        final DBIterator itr = dbInstance.iterator();
-        final byte[] combinedKeys = Util.combine(theKey, theColumnId);
+        final DBIterator itr = dbInstance.iterator(readOpts);
+        final byte[] combinedKeys = key(theKey, theColumnId);
         itr.seek(combinedKeys);
         return itr;
     }
 
-    /** Removes the column ids. */
-    private void removeColIds(final long theKey, final long theColumnId) {
-        final Bytes rowIdBytes = new Bytes(Util.toByta(theKey));
-        if (dbInstance.get(toArray(rowIdBytes), readOpts) != null) {
-            final byte[] allColIds = dbInstance.get(toArray(rowIdBytes),
-                    readOpts);
-            final long position = Util.indexOf(allColIds, theColumnId);
-            if (position == -1)
-                return;
-            final byte[] part1Bytes = Arrays.copyOfRange(allColIds, 0,
-                    (int) position);
-            final byte[] part2Bytes = Arrays.copyOfRange(allColIds,
-                    (int) (position + LONG_BYTES), allColIds.length);
-            // TODO try to use dbInstance.write() instead of delete()/put().
-            // write() uses WriteBatch to 'batch' all the db updates
-            // belonging to a single transaction.
-            if (part1Bytes.length == 0 && part2Bytes.length == 0) {
-                dbInstance.delete(toArray(rowIdBytes), writeOpts);
-            } else {
-                final byte[] newColIds = ArrayUtils.addAll(part1Bytes,
-                        part2Bytes);
-                dbInstance.put(toArray(rowIdBytes), newColIds, writeOpts);
+    /** Reads the columns of one row, between theStart and theEnd (inclusive),
+     * using an already opened iterator. Only the columns in theColumns are
+     * kept, unless it is null, and at most theLimit of them, in table order.
+     * The stored columns of the range are contiguous, so they are read with a
+     * single seek. The columns of a reverse table come in descending order,
+     * so they are appended once the range was read, to keep the appends in
+     * increasing order. */
+    private void readColumns(final DBIterator theIterator, final long theKey,
+            final long theStart, final long theEnd,
+            @Nullable final LongArrayList theColumns, final int theLimit,
+            final PackedColumns theCols) {
+        theIterator.seek(key(theKey, reverse ? theEnd : theStart));
+        final byte[] lastKey = key(theKey, reverse ? theStart : theEnd);
+        final List<Entry<byte[], byte[]>> descending = reverse ? new ArrayList<Entry<byte[], byte[]>>()
+                : null;
+        int count = 0;
+        Entry<byte[], byte[]> entry = null;
+        while (count < theLimit
+                && theIterator.hasNext()
+                && (entry = checkRange(theIterator.next(), lastKey)) != null) {
+            final long colId = column(entry.getKey());
+            if (theColumns == null || theColumns.contains(colId)) {
+                count++;
+                if (descending == null)
+                    theCols.append(colId, entry.getValue());
+                else
+                    descending.add(entry);
+            }
+        }
+        if (descending != null) {
+            for (int i = descending.size() - 1; i >= 0; i--) {
+                entry = descending.get(i);
+                theCols.append(column(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    /** Reads the Ids of the columns of one row in a range, in table order,
+     * without keeping the values. Stops after theLimit columns.
+     * 
+     * @return true, if the range may contain more columns than theLimit */
+    private boolean readColumnIds(final long theKey, final Range theRange,
+            final LongArrayList theColIds, final int theLimit) {
+        final byte[] lastKey = key(theKey, reverse ? theRange.start()
+                : theRange.end());
+        DBIterator itr = null;
+        try {
+            itr = iteratorAtPosition(theKey, reverse ? theRange.end()
+                    : theRange.start());
+            int count = 0;
+            Entry<byte[], byte[]> entry = null;
+            while (count < theLimit && itr.hasNext()
+                    && (entry = checkRange(itr.next(), lastKey)) != null) {
+                theColIds.add(column(entry.getKey()));
+                count++;
+            }
+            return count == theLimit;
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - readColumnIds(long key="
+                    + theKey + ", Range range=" + theRange + ")", e);
+            throw new DBException("Error Performaing Column Id Search.", e);
+        } finally {
+            if (itr != null) // $codepro.audit.disable unnecessaryNullCheck
+                itr.close();
+        }
+    }
+
+    /** Reads a page of the rows in a range, with a single iterator, in
+     * ascending key order, which is the storage order. The keys of the rows
+     * are added to theKeys, and their columns in theColumns, unless it is
+     * null, to theResult.
+     * 
+     * @return true, if the range may contain more rows than theLimit */
+    private boolean readRange(final Range theRows,
+            @Nullable final Range theColumns, final LongArrayList theKeys,
+            final LongObjectOpenHashMap<Columns> theResult, final int theLimit) {
+        final long last = theRows.end();
+        // The seek key is rewritten for each row.
+        final byte[] seek = rowKey(theRows.start());
+        DBIterator itr = null;
+        try {
+            itr = dbInstance.iterator(readOpts);
+            itr.seek(seek);
+            while (itr.hasNext()) {
+                final byte[] key = itr.next().getKey();
+                // Skips the keys that are not row-column pairs.
+                if (key.length != LONG_BYTES_X_2)
+                    continue;
+                final long row = row(key);
+                if (row > last)
+                    break;
+                if (theKeys.size() == theLimit)
+                    return true;
+                theKeys.add(row);
+                if (theColumns != null) {
+                    final PackedColumns cols = new PackedColumns(reverse);
+                    readColumns(itr, row, theColumns.start(),
+                            theColumns.end(), null, Integer.MAX_VALUE, cols);
+                    if (cols.size() > 0)
+                        theResult.put(row, cols);
+                }
+                if (row == last)
+                    break;
+                itr.seek(Util.putLong(seek, 0, (row + 1) ^ Util.SIGN_MASK));
+            }
+            return false;
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - readRange(Range rows=" + theRows
+                    + ", Range cols=" + theColumns + ", int limit=" + theLimit
+                    + ")", e);
+            throw new DBException("Error Performaing Range Scan.", e);
+        } finally {
+            if (itr != null) // $codepro.audit.disable unnecessaryNullCheck
+                itr.close();
+        }
+    }
+
+    /** Reads the columns of many rows, with a single iterator. The rows are
+     * visited in the order in which they are stored, so that the iterator
+     * only moves forward. Only the columns in theColumns are kept, unless it
+     * is null. */
+    private LongObjectOpenHashMap<Columns> readRows(final long[] theKeys,
+            final long theStart, final long theEnd,
+            @Nullable final LongArrayList theColumns) {
+        // The storage order is the signed order of the keys.
+        final long[] keys = theKeys.clone();
+        Arrays.sort(keys);
+        final LongObjectOpenHashMap<Columns> result = new LongObjectOpenHashMap<Columns>();
+        DBIterator itr = null;
+        try {
+            itr = dbInstance.iterator(readOpts);
+            for (final long key : keys) {
+                if (result.containsKey(key))
+                    continue;
+                final PackedColumns cols = new PackedColumns(reverse);
+                readColumns(itr, key, theStart, theEnd, theColumns,
+                        Integer.MAX_VALUE, cols);
+                if (cols.size() > 0)
+                    result.put(key, cols);
             }
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - readRows(long[] keys="
+                    + Arrays.toString(theKeys) + ", long start=" + theStart
+                    + ", long end=" + theEnd + ", LongArrayList cols="
+                    + theColumns + ")", e);
+            throw new DBException("Error Performaing Multi Get Operation.", e);
+        } finally {
+            if (itr != null) // $codepro.audit.disable unnecessaryNullCheck
+                itr.close();
         }
+        return result;
     }
 
-    /** Removes entries in range. */
-    private void removeInRange(final long theKey, final long theStart,
-            final long theEnd) throws Exception {
+    /** Adds the removal of the columns in range to a write batch. */
+    private void removeInRange(final long theKey, final Range theRemoveCols,
+            final WriteBatch theBatch) {
+        final long start = (theRemoveCols.start() < theRemoveCols.end()) ? theRemoveCols
+                .start() : theRemoveCols.end();
+        final long end = (theRemoveCols.start() < theRemoveCols.end()) ? theRemoveCols
+                .end() : theRemoveCols.start();
+        final byte[] lastKey = key(theKey, reverse ? start : end);
         DBIterator itr = null;
         try {
-            itr = iteratorAtPosition(theKey, theStart);
+            itr = iteratorAtPosition(theKey, reverse ? end : start);
             Entry<byte[], byte[]> entry = null;
             while (itr.hasNext()
-                    && (entry = checkRange(itr.next(), theEnd, theKey, true)) != null) {
-                dbInstance.delete(entry.getKey());
-                final long colId = Util.splitColumn(entry.getKey());
-                removeColIds(theKey, colId);
+                    && (entry = checkRange(itr.next(), lastKey)) != null) {
+                theBatch.delete(entry.getKey());
             }
         } finally {
             if (itr != null)
@@ -250,23 +423,50 @@ public class LevelDBTable extends
         }
     }
 
-    /** Searches entries in range. */
-    @CheckForNull
-    private void serchInRange(final long theKey, final long theStart,
-            final long theEnd, final LongObjectOpenHashMap<Bytes> theMap) {
+    /** Scans the columns of a row, in storage order, which is the table
+     * order, without reading the values. The column Ids are added to
+     * theColIds, unless it is null. Stops after theLimit columns.
+     * 
+     * @return the number of columns found */
+    private long scanColumns(final long theKey,
+            @Nullable final LongArrayList theColIds, final long theLimit) {
+        final byte[] rowId = rowKey(theKey);
         DBIterator itr = null;
         try {
-            itr = iteratorAtPosition(theKey, theStart);
-            java.util.Map.Entry<byte[], byte[]> entry = null;
-            while (itr.hasNext()
-                    && (entry = checkRange(itr.next(), theEnd, theKey, true)) != null) {
-                final long colId = Util.splitColumn(entry.getKey());
-                theMap.put(colId, new Bytes(entry.getValue()));
+            itr = dbInstance.iterator(readOpts);
+            // The first stored column, whatever the column mask.
+            itr.seek(Util.combine(theKey ^ Util.SIGN_MASK, MIN_COLUMN));
+            long count = 0;
+            while (count < theLimit && itr.hasNext()) {
+                final byte[] key = itr.next().getKey();
+                if (!Util.sameRow(key, rowId))
+                    break;
+                if (theColIds != null)
+                    theColIds.add(column(key));
+                count++;
             }
+            return count;
+        } finally {
+            if (itr != null) // $codepro.audit.disable unnecessaryNullCheck
+                itr.close();
+        }
+    }
+
+    /** Searches entries in range. Only the columns in theColumns are kept,
+     * unless it is null, and at most theLimit of them, in table order. */
+    private void serchInRange(final long theKey, final long theStart,
+            final long theEnd, @Nullable final LongArrayList theColumns,
+            final int theLimit, final PackedColumns theCols) {
+        DBIterator itr = null;
+        try {
+            itr = dbInstance.iterator(readOpts);
+            readColumns(itr, theKey, theStart, theEnd, theColumns, theLimit,
+                    theCols);
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - serchInRange(long key=" + theKey
                     + ", long start=" + theStart + ", long end=" + theEnd
-                    + ", LongObjectOpenHashMap<Bytes> map=" + theMap + ")", e);
+                    + ", LongArrayList cols=" + theColumns + ", int limit="
+                    + theLimit + ", PackedColumns cols=" + theCols + ")", e);
             throw new DBException("Error Performaing Select In Range Search.",
                     e);
         } finally {
@@ -275,58 +475,100 @@ public class LevelDBTable extends
         }
     }
 
-    /** method for update/insert row-column combination */
-    private void setOnly(final long theKey, final Columns theInsertUpdateColumns) {
+    /** Returns the change of the number of rows caused by a row mutation,
+     * that must not be applied yet: 1 if it creates the row, -1 if it removes
+     * all its columns, and 0 otherwise. The columns of the row are read with
+     * a single iterator, until one is kept, so usually only the first one is
+     * read. Nothing is read when the rows are not counted. */
+    private int rowDelta(final long theKey,
+            @Nullable final Columns theInsertUpdateColumns,
+            @Nullable final LongArrayList theRemoveCols,
+            @Nullable final Range theRemoveRange) {
+        if (!countRows)
+            return 0;
+        final boolean inserts = (theInsertUpdateColumns != null)
+                && (theInsertUpdateColumns.size() > 0);
+        final byte[] rowId = rowKey(theKey);
+        DBIterator itr = null;
         try {
-            for (final LongHolder longCursor : theInsertUpdateColumns) {
-                // update blob with the combined key
-                final byte[] rowColumnPair = Util.combine(theKey,
-                        longCursor.value());
-                final Bytes byts = theInsertUpdateColumns.getBytes(longCursor
-                        .value());
-                assert (byts != null);
-                final byte[] valueBytes = byts.toArray(false);
-                dbInstance.put(rowColumnPair, valueBytes, writeOpts);
-                // update column Id list.
-                final Bytes rowIdBytes = new Bytes(Util.toByta(theKey));
-                final Bytes colIdBytes = new Bytes(Util.toByta(longCursor
-                        .value()));
-                // TODO use dbInstance.write() instead of delete()/put().
-                // write() uses WriteBatch to 'batch' all the db updates
-                // belonging to a single transaction.
-                if (dbInstance.get(toArray(rowIdBytes), readOpts) == null) {
-                    dbInstance.put(toArray(rowIdBytes), toArray(colIdBytes),
-                            writeOpts);
-                } else {
-                    final ReadOptions readOptsNoCache = new ReadOptions();
-                    readOptsNoCache.fillCache(false);
-
-                    final byte[] allColIds = dbInstance.get(
-                            toArray(rowIdBytes), readOptsNoCache);
-                    if (allColIds == null || allColIds.length == 0) {
-                        dbInstance.put(toArray(rowIdBytes),
-                                toArray(colIdBytes), writeOpts);
-                    } else {
-                        final long position = Util.indexOf(allColIds,
-                                longCursor.value());
-                        if (position < 0) {
-                            final byte[] newColIds = ArrayUtils.addAll(
-                                    allColIds, toArray(colIdBytes));
-                            dbInstance.put(toArray(rowIdBytes), newColIds,
-                                    writeOpts);
-                        }
-                    }
-                }
+            itr = dbInstance.iterator(readOpts);
+            itr.seek(Util.combine(theKey ^ Util.SIGN_MASK, MIN_COLUMN));
+            boolean existed = false;
+            while (itr.hasNext()) {
+                final byte[] key = itr.next().getKey();
+                if (!Util.sameRow(key, rowId))
+                    break;
+                existed = true;
+                if (inserts)
+                    return 0;
+                final long colId = column(key);
+                final boolean removed = (theRemoveCols != null && theRemoveCols
+                        .contains(colId))
+                        || (theRemoveRange != null && theRemoveRange
+                                .contains(colId));
+                if (!removed)
+                    return 0;
             }
-        } catch (final Exception e) {
-            LOG.error("Exception Occurred in - setOnly(long key=" + theKey
-                    + ", Columns insertOrUpdate=" + theInsertUpdateColumns
-                    + ")", e);
-            throw new DBException("Error Performaing Insert Update Operation.",
-                    e);
+            if (existed)
+                return -1;
+            return inserts ? 1 : 0;
+        } finally {
+            if (itr != null) // $codepro.audit.disable unnecessaryNullCheck
+                itr.close();
+        }
+    }
+
+    /** Creates a scanner over a range of rows, reading one page at a time
+     * with readRange(). Only the keys are read when theColumns is null. */
+    private AbstractRowScanner<LevelDBTable> scanner(final Range theRows,
+            @Nullable final Range theColumns) {
+        final Range rows = new Range(theRows.start(), theRows.end());
+        return new AbstractRowScanner<LevelDBTable>(this, theColumns) {
+            @Override
+            protected boolean nextPage(final LongArrayList theKeys,
+                    final LongObjectOpenHashMap<Columns> theResult) {
+                return readRange(rows, columns, theKeys, theResult,
+                        LevelDBConstants.ITERATOR_LIMIT)
+                        && advance(rows, theKeys);
+            }
+        };
+    }
+
+    /** Adds the update/insert of one row to a write batch. */
+    private void setOnly(final long theKey,
+            final Columns theInsertUpdateColumns, final WriteBatch theBatch) {
+        final int size = theInsertUpdateColumns.size();
+        for (int i = 0; i < size; i++) {
+            final long colId = theInsertUpdateColumns.columnAt(i);
+            final Bytes byts = theInsertUpdateColumns.getBytes(colId);
+            assert (byts != null);
+            theBatch.put(key(theKey, colId), byts.toArray(false));
         }
     }
 
+    /** Applies a write batch, as one atomic write (and one sync, if writes are
+     * synchronous), and closes it. */
+    private void write(final WriteBatch theBatch) {
+        try {
+            dbInstance.write(theBatch, writeOpts);
+        } finally {
+            try {
+                theBatch.close();
+            } catch (final IOException e) {
+                LOG.warn("exception ignored - write(WriteBatch)", e);
+            }
+        }
+    }
+
+    /** Applies a write batch, like write(WriteBatch), with the update of the
+     * row count, if the batch changes the number of rows. */
+    private void write(final WriteBatch theBatch, final long theRowDelta) {
+        if (theRowDelta != 0)
+            theBatch.put(ROW_COUNT_KEY, Util.toByta(rowCount + theRowDelta));
+        write(theBatch);
+        rowCount += theRowDelta;
+    }
+
     /** Called when table was closed. */
     @Override
     protected void closeInternal() {
@@ -343,8 +585,13 @@ public class LevelDBTable extends
     @Override
     protected long columnsCountInternal(final long theKey) {
         connect();
-        final LongArrayList cols = columnsInternal(theKey);
-        return (cols != null) ? cols.size() : 0;
+        try {
+            return scanColumns(theKey, null, Long.MAX_VALUE);
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - columnsCountInternal(long key="
+                    + theKey + ")", e);
+            throw new DBException("Error Performaing Column Count Search.", e);
+        }
     }
 
     /*
@@ -356,11 +603,10 @@ public class LevelDBTable extends
     @CheckForNull
     protected LongArrayList columnsInternal(final long theKey) {
         connect();
-        LongArrayList colIds = null;
+        final LongArrayList colIds = new LongArrayList();
         try {
-            final byte[] allColumns = dbInstance.get(Util.toByta(theKey),
-                    readOpts);
-            colIds = Util.splitColumnIds(allColumns);
+            if (scanColumns(theKey, colIds, Long.MAX_VALUE) == 0)
+                return null;
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - columnsInternal(long key="
                     + theKey + ")", e);
@@ -377,10 +623,32 @@ public class LevelDBTable extends
     @Override
     protected Iterator<LongHolder> columnsIteratorInternal(final long theKey) {
         connect();
-        final Columns cols = getInternal(theKey, FULL_RANGE);
-        if (cols != null)
-            return cols.iterator();
-        return null;
+        return new AbstractColumnScanner<LevelDBTable>(this, theKey) {
+            @Override
+            protected boolean nextPage(final boolean isFirst,
+                    final long theLast, final LongArrayList theIds) {
+                final Range range = remaining(isFirst, theLast);
+                return range != null
+                        && readColumnIds(key, range, theIds, PAGE_SIZE);
+            }
+        }.orNull();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#existsInternal(long)
+     */
+    @Override
+    protected boolean existsInternal(final long theKey) {
+        connect();
+        try {
+            return scanColumns(theKey, null, 1) > 0;
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - existsInternal(long key="
+                    + theKey + ")", e);
+            throw new DBException("Error Performaing Exists Search.", e);
+        }
     }
 
     /*
@@ -401,15 +669,10 @@ public class LevelDBTable extends
         Arrays.sort(sortedColIds);
         final long start = sortedColIds[0];
         final long end = sortedColIds[sortedColIds.length - 1];
-        final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
-        if (start < 0) {
-            getInRangeAndList(theKey, start, -1L, theColumns, map);
-            getInRangeAndList(theKey, 0, end, theColumns, map);
-        } else {
-            getInRangeAndList(theKey, start, end, theColumns, map);
-        }
-        if (map.size() > 0) {
-            return new Columns(map, false);
+        final PackedColumns cols = new PackedColumns(reverse);
+        serchInRange(theKey, start, end, theColumns, Integer.MAX_VALUE, cols);
+        if (cols.size() > 0) {
+            return cols;
         }
         return null;
     }
@@ -432,18 +695,54 @@ public class LevelDBTable extends
                 : theRange.end();
         end = (theRange.start() < theRange.end()) ? theRange.end() : theRange
                 .start();
-        final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
-        if (start < 0) {
-            serchInRange(theKey, start, -1L, map);
-            serchInRange(theKey, 0, end, map);
-        } else {
-            serchInRange(theKey, start, end, map);
-        }
-        if (map.size() > 0)
-            return new Columns(map, false);
+        final PackedColumns cols = new PackedColumns(reverse);
+        serchInRange(theKey, start, end, null, Integer.MAX_VALUE, cols);
+        if (cols.size() > 0)
+            return cols;
         return null;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#getInternal(long,
+     * com.blockwithme.longdb.Range, com.blockwithme.longdb.ColumnVisitor)
+     */
+    @Override
+    protected int getInternal(final long theKey, final Range theRange,
+            final ColumnVisitor theVisitor) {
+        connect();
+        if (theRange.empty())
+            return 0;
+        final long first = reverse ? theRange.end() : theRange.start();
+        final byte[] lastKey = key(theKey, reverse ? theRange.start()
+                : theRange.end());
+        DBIterator itr = null;
+        int count = 0;
+        try {
+            itr = iteratorAtPosition(theKey, first);
+            Entry<byte[], byte[]> entry = null;
+            while (itr.hasNext()
+                    && (entry = checkRange(itr.next(), lastKey)) != null) {
+                count++;
+                final byte[] value = entry.getValue();
+                if (!theVisitor.visit(column(entry.getKey()), value, 0,
+                        value.length))
+                    return count;
+            }
+            return count;
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - getInternal(long key=" + theKey
+                    + ", Range range=" + theRange + ", ColumnVisitor visitor="
+                    + theVisitor + ")", e);
+            throw new DBException("Error Performaing Select In Range Search.",
+                    e);
+        } finally {
+            if (itr != null) // $codepro.audit.disable unnecessaryNullCheck
+                itr.close();
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -455,6 +754,52 @@ public class LevelDBTable extends
         return new LevelDBKeyIterator(this);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#keysInternal(com.blockwithme
+     * .longdb.Range)
+     */
+    @Override
+    protected Iterator<LongHolder> keysInternal(final Range theRows) {
+        connect();
+        return scanner(theRows, null).keys();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#multiGetInternal(long[],
+     * com.carrotsearch.hppc.LongArrayList)
+     */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final LongArrayList theColumns) {
+        connect();
+        final long[] sortedColIds = theColumns.toArray();
+        Arrays.sort(sortedColIds);
+        return readRows(theKeys, sortedColIds[0],
+                sortedColIds[sortedColIds.length - 1], theColumns);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#multiGetInternal(long[],
+     * com.blockwithme.longdb.Range)
+     */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final Range theRange) {
+        connect();
+        final long start = (theRange.start() < theRange.end()) ? theRange
+                .start() : theRange.end();
+        final long end = (theRange.start() < theRange.end()) ? theRange.end()
+                : theRange.start();
+        return readRows(theKeys, start, end, null);
+    }
+
     /** Called when table is opened. */
     @Override
     protected void openInternal() {
@@ -473,14 +818,12 @@ public class LevelDBTable extends
             final LongArrayList theRemoveCols) {
         connect();
         try {
+            final int delta = rowDelta(theKey, null, theRemoveCols, null);
+            final WriteBatch batch = dbInstance.createWriteBatch();
             for (final LongCursor longCursor : theRemoveCols) {
-                // remove blob entry.
-                final byte[] rowColumnPair = Util.combine(theKey,
-                        longCursor.value);
-                dbInstance.delete(rowColumnPair, writeOpts);
-                // update columnIds list.
-                removeColIds(theKey, longCursor.value);
+                batch.delete(key(theKey, longCursor.value));
             }
+            write(batch, delta);
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - removeInternal(long key="
                     + theKey + ", LongArrayList remove=" + theRemoveCols + ")",
@@ -500,25 +843,11 @@ public class LevelDBTable extends
         if (theRemoveCols.empty())
             return;
         connect();
-        if (theRemoveCols.empty())
-            return;
         try {
-            if (!theRemoveCols.equals(FULL_RANGE)) {
-                final long start;
-                final long end;
-                start = (theRemoveCols.start() < theRemoveCols.end()) ? theRemoveCols
-                        .start() : theRemoveCols.end();
-                end = (theRemoveCols.start() < theRemoveCols.end()) ? theRemoveCols
-                        .end() : theRemoveCols.start();
-                if (start < 0) {
-                    removeInRange(theKey, start, -1L);
-                    removeInRange(theKey, 0, end);
-                } else
-                    removeInRange(theKey, start, end);
-            } else {
-                removeInRange(theKey, theRemoveCols.start(),
-                        theRemoveCols.end());
-            }
+            final int delta = rowDelta(theKey, null, null, theRemoveCols);
+            final WriteBatch batch = dbInstance.createWriteBatch();
+            removeInRange(theKey, theRemoveCols, batch);
+            write(batch, delta);
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - removeInternal(long key="
                     + theKey + ", Range remove=" + theRemoveCols + ")", e);
@@ -527,6 +856,20 @@ public class LevelDBTable extends
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#scanInternal(com.blockwithme
+     * .longdb.Range, com.blockwithme.longdb.Range)
+     */
+    @Override
+    protected Iterator<LongObjectCursor<Columns>> scanInternal(
+            final Range theRows, final Range theColumns) {
+        connect();
+        return scanner(theRows, theColumns);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -538,8 +881,22 @@ public class LevelDBTable extends
             final Columns theInsertUpdateColumns,
             final LongArrayList theRemoveCols) {
         connect();
-        removeInternal(theKey, theRemoveCols);
-        setOnly(theKey, theInsertUpdateColumns);
+        try {
+            final int delta = rowDelta(theKey, theInsertUpdateColumns,
+                    theRemoveCols, null);
+            final WriteBatch batch = dbInstance.createWriteBatch();
+            for (final LongCursor longCursor : theRemoveCols) {
+                batch.delete(key(theKey, longCursor.value));
+            }
+            setOnly(theKey, theInsertUpdateColumns, batch);
+            write(batch, delta);
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - setInternal(long key=" + theKey
+                    + ", Columns insertOrUpdate=" + theInsertUpdateColumns
+                    + ", LongArrayList remove=" + theRemoveCols + ")", e);
+            throw new DBException("Error Performaing Insert Update Operation.",
+                    e);
+        }
     }
 
     /*
@@ -552,35 +909,151 @@ public class LevelDBTable extends
     protected void setInternal(final long theKey,
             final Columns theInsertUpdateColumns, final Range theRemoveCols) {
         connect();
-        removeInternal(theKey, theRemoveCols);
-        setOnly(theKey, theInsertUpdateColumns);
+        try {
+            final Range removed = theRemoveCols.empty() ? null : theRemoveCols;
+            final int delta = rowDelta(theKey, theInsertUpdateColumns, null,
+                    removed);
+            final WriteBatch batch = dbInstance.createWriteBatch();
+            if (removed != null)
+                removeInRange(theKey, removed, batch);
+            setOnly(theKey, theInsertUpdateColumns, batch);
+            write(batch, delta);
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - setInternal(long key=" + theKey
+                    + ", Columns insertOrUpdate=" + theInsertUpdateColumns
+                    + ", Range remove=" + theRemoveCols + ")", e);
+            throw new DBException("Error Performaing Insert Update Operation.",
+                    e);
+        }
     }
 
-    /** Returns number rows in this table.
+    /*
+     * (non-Javadoc)
      * 
-     * @return the long */
+     * @see
+     * com.blockwithme.longdb.base.AbstractTable#setAllInternal(com.carrotsearch
+     * .hppc.LongObjectOpenHashMap)
+     */
     @Override
-    protected long sizeInternal() {
+    protected void setAllInternal(final LongObjectOpenHashMap<Columns> theRows) {
         connect();
         try {
-            long count = 0;
-            final Iterator<LongHolder> itr = this.keys();
-            while (itr.hasNext()) {
-                itr.next();
-                count++;
+            long delta = 0;
+            final WriteBatch batch = dbInstance.createWriteBatch();
+            for (final LongObjectCursor<Columns> row : theRows) {
+                delta += rowDelta(row.key, row.value, null, null);
+                setOnly(row.key, row.value, batch);
             }
+            write(batch, delta);
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - setAllInternal("
+                    + "LongObjectOpenHashMap<Columns> rows=" + theRows + ")", e);
+            throw new DBException("Error Performaing Batch Insert Update "
+                    + "Operation.", e);
+        }
+    }
+
+    /** Counts the keys, and stores the row count.
+     * 
+     * @return the number of rows */
+    @Override
+    protected long recountInternal() {
+        connect();
+        try {
+            final long count = super.recountInternal();
+            if (!countRows)
+                return count;
+            dbInstance.put(ROW_COUNT_KEY, Util.toByta(count), writeOpts);
+            rowCount = count;
             return count;
         } catch (final Exception e) {
-            LOG.error("Exception Occurred in - sizeInternal()", e);
-            throw new DBException("Error obtaining row count", e);
+            LOG.error("Exception Occurred in - recountInternal()", e);
+            throw new DBException("Error counting rows", e);
         }
     }
 
+    /** Returns number rows in this table, as maintained by the writes, or
+     * counted, if the rows are not counted by the writes.
+     * 
+     * @return the long */
+    @Override
+    protected long sizeInternal() {
+        connect();
+        return countRows ? rowCount : recountInternal();
+    }
+
+    /** Splits the keys using the approximate sizes of LevelDB. The signed key
+     * space is cut in slices of the same width (a power of two, each one
+     * contiguous in storage order), and the
+     * approximate size on disk of each slice is used to place the split
+     * points. Recent writes, still in the memory table, are not counted; if
+     * nothing was written to disk yet, the key space is split evenly.
+     * 
+     * @param theParts the wanted number of ranges
+     * @return the ranges */
+    @Override
+    protected Range[] splitKeysInternal(final int theParts) {
+        connect();
+        // Clamped, so that the slice count cannot overflow, and that no more
+        // than MAX_SPLIT_SLICES ranges are measured; more parts are then
+        // answered with fewer ranges.
+        final int parts = Math.min(theParts, LevelDBConstants.MAX_SPLIT_SLICES
+                / (2 * LevelDBConstants.SPLIT_SLICES));
+        final int slices = Integer.highestOneBit(parts
+                * LevelDBConstants.SPLIT_SLICES) * 2;
+        final long width = 1L << (Long.SIZE - Integer
+                .numberOfTrailingZeros(slices));
+        final org.iq80.leveldb.Range[] ranges = new org.iq80.leveldb.Range[slices];
+        for (int i = 0; i < slices; i++) {
+            final long first = Long.MIN_VALUE + i * width;
+            final long last = first + width - 1;
+            // The last slice ends after the greatest row-column pair.
+            final byte[] limit = (last == Long.MAX_VALUE) ? Util.combine(-1L,
+                    -1L) : rowKey(last + 1);
+            ranges[i] = new org.iq80.leveldb.Range(rowKey(first), limit);
+        }
+        final long[] sizes;
+        try {
+            sizes = dbInstance.getApproximateSizes(ranges);
+        } catch (final Exception e) {
+            LOG.error("Exception Occurred in - splitKeysInternal(int parts="
+                    + theParts + ")", e);
+            throw new DBException("Error estimating the key distribution", e);
+        }
+        long total = 0;
+        for (final long size : sizes) {
+            total += size;
+        }
+        if (total == 0)
+            return super.splitKeysInternal(theParts);
+        final List<Range> result = new ArrayList<Range>(parts);
+        long start = Long.MIN_VALUE;
+        long sum = 0;
+        int part = 1;
+        for (int i = 0; i < slices - 1 && part < parts; i++) {
+            sum += sizes[i];
+            if (sum * parts >= total * part) {
+                final long end = Long.MIN_VALUE + (i + 1) * width - 1;
+                result.add(new Range(start, end));
+                start = end + 1;
+                while (part < parts && sum * parts >= total * part)
+                    part++;
+            }
+        }
+        result.add(new Range(start, Long.MAX_VALUE));
+        return result.toArray(new Range[result.size()]);
+    }
+
     /** Db instance. */
     public DB dbInstance() {
         return dbInstance;
     }
 
+    /** The read options of this table, for the iterators over its rows. */
+    ReadOptions readOpts() {
+        return readOpts;
+    }
+
     /** Called when the table was dropped. */
     public void dropped() {
         connect();
@@ -606,17 +1079,13 @@ public class LevelDBTable extends
             return null;
         }
         DBIterator itr = null;
-        final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
+        final PackedColumns cols = new PackedColumns(reverse);
         try {
-            itr = iteratorAtPosition(theKey, MIN_COLUMN);
-            java.util.Map.Entry<byte[], byte[]> entry = null;
-            int i = 0;
-            while (itr.hasNext()
-                    && (entry = checkRange(itr.next(), MAX_COLUMN, theKey, true)) != null
-                    && i++ < theCount) {
-                final long colId = Util.splitColumn(entry.getKey());
-                map.put(colId, new Bytes(entry.getValue()));
-            }
+            // Stops after theCount columns, so only the first columns of a
+            // wide row are read.
+            itr = dbInstance.iterator(readOpts);
+            readColumns(itr, theKey, Long.MIN_VALUE, Long.MAX_VALUE, null,
+                    theCount, cols);
         } catch (final Exception e) {
             LOG.error("Exception Occurred in - getLimited(long key=" + theKey
                     + ", int count=" + theCount + ")", e);
@@ -625,7 +1094,9 @@ public class LevelDBTable extends
             if (itr != null) // $codepro.audit.disable unnecessaryNullCheck
                 itr.close();
         }
-        return new Columns(map, false);
+        if (cols.size() > 0)
+            return cols;
+        return null;
     }
 
     /*
@@ -635,7 +1106,7 @@ public class LevelDBTable extends
      */
     @Override
     public boolean reverseSupported() {
-        return false;
+        return true;
     }
 
 }
@@ -28,21 +28,22 @@ import static com.blockwithme.longdb.common.constants.ByteConstants.LONG_BYTES_X
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
 
-import javax.annotation.CheckForNull;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.carrotsearch.hppc.LongArrayList;
-
 /** The Class Util. */
 @ParametersAreNonnullByDefault
 public final class Util {
 
+    /** The mask XOR-ed with the row Ids, and with the column Ids of normal
+     * tables, when they are stored. Flipping the sign bit makes the byte wise
+     * order of the big-endian Ids their signed order. */
+    public static final long SIGN_MASK = Long.MIN_VALUE;
+
     /** Logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger(Util.class);
 
@@ -75,14 +76,9 @@ public final class Util {
      *        the column id
      * @return the resultant byte[] */
     public static byte[] combine(final long theRowId, final long theColumnId) {
-
         final byte[] keyBytes = new byte[LONG_BYTES_X_2];
-        final byte[] rbytes = toByta(theRowId);
-        final byte[] cbytes = toByta(theColumnId);
-        System.arraycopy(rbytes, 0, keyBytes, (LONG_BYTES - rbytes.length),
-                rbytes.length);
-        System.arraycopy(cbytes, 0, keyBytes, (LONG_BYTES_X_2 - cbytes.length),
-                cbytes.length);
+        putLong(keyBytes, 0, theRowId);
+        putLong(keyBytes, LONG_BYTES, theColumnId);
         return keyBytes;
     }
 
@@ -105,22 +101,43 @@ public final class Util {
         }
     }
 
-    /** Index of.
+    /** Writes a long in a byte array, big-endian, without allocating.
      * 
-     * @param theColIds
-     *        the all column ids
-     * @param theId
-     *        the id
-     * @return the long */
-    public static long indexOf(final byte[] theColIds, final long theId) {
-        int offset = 0;
-        while (offset + LONG_BYTES < theColIds.length) {
-            if (toLong(Arrays.copyOfRange(theColIds, offset,
-                    (offset + LONG_BYTES))) == theId)
-                return offset;
-            offset += LONG_BYTES;
+     * @param theBuffer
+     *        the byte array
+     * @param theOffset
+     *        the offset of the first byte of the long
+     * @param theData
+     *        the long
+     * @return the byte array */
+    public static byte[] putLong(final byte[] theBuffer, final int theOffset,
+            final long theData) {
+        theBuffer[theOffset] = (byte) (theData >> B_SEVEN_BYTES);
+        theBuffer[theOffset + INDX1] = (byte) (theData >> B_SIX_BYTES);
+        theBuffer[theOffset + INDX2] = (byte) (theData >> B_FIVE_BYTES);
+        theBuffer[theOffset + INDX3] = (byte) (theData >> B_FOUR_BYTES);
+        theBuffer[theOffset + INDX4] = (byte) (theData >> B_THREE_BYTES);
+        theBuffer[theOffset + INDX5] = (byte) (theData >> B_TWO_BYTES);
+        theBuffer[theOffset + INDX6] = (byte) (theData >> B_ONE_BYTE);
+        theBuffer[theOffset + INDX7] = (byte) theData;
+        return theBuffer;
+    }
+
+    /** Checks if a key is a row-column pair of the given row.
+     * 
+     * @param theKey
+     *        the key, as stored in the database
+     * @param theRowId
+     *        the row id, as returned by toByta()
+     * @return true, if the key is a column of that row */
+    public static boolean sameRow(final byte[] theKey, final byte[] theRowId) {
+        if (theKey.length != LONG_BYTES_X_2)
+            return false;
+        for (int i = 0; i < LONG_BYTES; i++) {
+            if (theKey[i] != theRowId[i])
+                return false;
         }
-        return -1L;
+        return true;
     }
 
     /** Split column.
@@ -129,28 +146,7 @@ public final class Util {
      *        the combined row column pair
      * @return the column id */
     public static long splitColumn(final byte[] theRowColumnPair) {
-        return toLong(Arrays.copyOfRange(theRowColumnPair, LONG_BYTES,
-                LONG_BYTES_X_2));
-    }
-
-    /** Split column ids.
-     * 
-     * @param theColumns
-     *        the all columns
-     * @return the long array list */
-    @CheckForNull
-    public static LongArrayList splitColumnIds(final byte[] theColumns) {
-        if (theColumns == null || theColumns.length == 0)
-            return null;
-        long offset = 0;
-        final LongArrayList colIds = new LongArrayList();
-        while (offset + LONG_BYTES <= theColumns.length) {
-            final long colId = Util.toLong(Arrays.copyOfRange(theColumns,
-                    (int) offset, (int) (offset + LONG_BYTES)));
-            colIds.add(colId);
-            offset += LONG_BYTES;
-        }
-        return colIds;
+        return toLong(theRowColumnPair, LONG_BYTES);
     }
 
     /** Split row.
@@ -159,7 +155,7 @@ public final class Util {
      *        the combined row and column pair
      * @return the long row ID */
     public static long splitRow(final byte[] theRowColumnPair) {
-        return toLong(Arrays.copyOfRange(theRowColumnPair, 0, LONG_BYTES));
+        return toLong(theRowColumnPair, 0);
     }
 
     /** long to byte array.
@@ -199,6 +195,26 @@ public final class Util {
                 | (long) (BYTE_MASK & theData[INDX7]) << 0;
     }
 
+    /** Reads a long from a byte array, without copying it.
+     * 
+     * @param theData
+     *        the data
+     * @param theOffset
+     *        the offset of the first byte of the long
+     * @return the long */
+    public static long toLong(final byte[] theData, final int theOffset) {
+        if (theData.length < theOffset + LONG_BYTES)
+            return 0x0;
+        return (long) (BYTE_MASK & theData[theOffset]) << B_SEVEN_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX1]) << B_SIX_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX2]) << B_FIVE_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX3]) << B_FOUR_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX4]) << B_THREE_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX5]) << B_TWO_BYTES
+                | (long) (BYTE_MASK & theData[theOffset + INDX6]) << B_ONE_BYTE
+                | (long) (BYTE_MASK & theData[theOffset + INDX7]) << 0;
+    }
+
     /** Instantiates a new util. */
     private Util() {
     }
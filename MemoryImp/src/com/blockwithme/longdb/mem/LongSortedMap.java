@@ -0,0 +1,459 @@
+/*******************************************************************************
+ * Copyright 2013 Sebastien Diot
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.blockwithme.longdb.mem;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+
+/** A map of long keys, kept in ascending order. The keys are stored in sorted
+ * blocks of at most BLOCK_SIZE primitive keys, and the first key of every
+ * block in a sorted directory, so that a key is found with two binary
+ * searches, and a slice of k keys is read in O(log n + k), in either order.
+ * Inserting or removing a key only shifts the keys of its block; full blocks
+ * are split, and small neighbour blocks merged.
+ *
+ * The map is not thread-safe, and its iterators fail if it is modified.
+ *
+ * @param <V>
+ *        the type of the values */
+@ParametersAreNonnullByDefault
+final class LongSortedMap<V> {
+
+    /** The maximum number of keys per block. */
+    static final int BLOCK_SIZE = 128;
+
+    /** Blocks that get smaller are merged with a neighbour, if both fit in
+     * this many keys. */
+    private static final int MERGE_SIZE = (BLOCK_SIZE * 3) / 4;
+
+    /** Blocks that get smaller than this are merged, if possible. */
+    private static final int SMALL_SIZE = BLOCK_SIZE / 4;
+
+    /** Iterates over the keys within a range. */
+    private final class Slice implements Iterator<LongObjectCursor<V>> {
+
+        /** The block of the next key. */
+        private int block;
+
+        /** The cursor. */
+        private final LongObjectCursor<V> cursor = new LongObjectCursor<V>();
+
+        /** Iterate from the highest key down? */
+        private final boolean descending;
+
+        /** The expected number of modifications. */
+        private final int expected = modifications;
+
+        /** The lowest key, included. */
+        private final long from;
+
+        /** The position of the next key in its block. */
+        private int index;
+
+        /** Is there a next key? */
+        private boolean more;
+
+        /** The highest key, included. */
+        private final long to;
+
+        /** Positions the slice on its first key.
+         *
+         * @param theFrom
+         *        the lowest key, included
+         * @param theTo
+         *        the highest key, included
+         * @param isDescending
+         *        true, to iterate from the highest key down */
+        Slice(final long theFrom, final long theTo, final boolean isDescending) {
+            this.from = theFrom;
+            this.to = theTo;
+            this.descending = isDescending;
+            if ((blocks > 0) && (theFrom <= theTo)) {
+                final long start = isDescending ? theTo : theFrom;
+                block = block(start);
+                final int found = Arrays.binarySearch(keys[block], 0,
+                        sizes[block], start);
+                if (found >= 0)
+                    index = found;
+                else
+                    index = isDescending ? -found - 2 : -found - 1;
+                skip();
+            }
+        }
+
+        /** Moves to the next block, if the position is out of its block, and
+         * checks if the next key is within the range. */
+        private void skip() {
+            if (descending) {
+                if (index < 0) {
+                    block--;
+                    if (block < 0) {
+                        more = false;
+                        return;
+                    }
+                    index = sizes[block] - 1;
+                }
+                more = keys[block][index] >= from;
+            } else {
+                if (index == sizes[block]) {
+                    block++;
+                    if (block == blocks) {
+                        more = false;
+                        return;
+                    }
+                    index = 0;
+                }
+                more = keys[block][index] <= to;
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#hasNext() */
+        @Override
+        public boolean hasNext() {
+            return more;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#next() */
+        @Override
+        @SuppressWarnings("unchecked")
+        public LongObjectCursor<V> next() {
+            if (!more)
+                throw new NoSuchElementException("No more keys");
+            if (expected != modifications)
+                throw new IllegalStateException("Map modified");
+            cursor.index = index;
+            cursor.key = keys[block][index];
+            cursor.value = (V) values[block][index];
+            index += descending ? -1 : 1;
+            skip();
+            return cursor;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.Iterator#remove() */
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** The number of blocks. */
+    private int blocks;
+
+    /** The first key of every block. */
+    private long[] firsts = new long[1];
+
+    /** The keys of every block. */
+    private long[][] keys = new long[1][];
+
+    /** The number of modifications, to fail the iterators. Counts every
+     * change of the keys, and of the block layout. */
+    private int modifications;
+
+    /** The number of keys of every block. */
+    private int[] sizes = new int[1];
+
+    /** The total number of keys. */
+    private int size;
+
+    /** The values of every block. */
+    private Object[][] values = new Object[1][];
+
+    /** Returns the block that could contain a key: the last block whose first
+     * key is not greater than the key, or the first block. There must be at
+     * least one block.
+     *
+     * @param theKey
+     *        the key
+     * @return the block index */
+    private int block(final long theKey) {
+        final int found = Arrays.binarySearch(firsts, 0, blocks, theKey);
+        if (found >= 0)
+            return found;
+        return Math.max(0, -found - 2);
+    }
+
+    /** Inserts an empty block in the directory.
+     *
+     * @param theBlock
+     *        the index of the new block */
+    private void insertBlock(final int theBlock) {
+        if (blocks == firsts.length) {
+            final int capacity = blocks * 2;
+            firsts = Arrays.copyOf(firsts, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        final int moved = blocks - theBlock;
+        System.arraycopy(firsts, theBlock, firsts, theBlock + 1, moved);
+        System.arraycopy(keys, theBlock, keys, theBlock + 1, moved);
+        System.arraycopy(values, theBlock, values, theBlock + 1, moved);
+        System.arraycopy(sizes, theBlock, sizes, theBlock + 1, moved);
+        keys[theBlock] = new long[BLOCK_SIZE];
+        values[theBlock] = new Object[BLOCK_SIZE];
+        sizes[theBlock] = 0;
+        blocks++;
+        modifications++;
+    }
+
+    /** Merges a block with a neighbour, if it got small and both fit in one
+     * block, and drops it if it got empty. Merging changes the positions of
+     * the keys, and so fails the iterators, even if no key was removed.
+     *
+     * @param theBlock
+     *        the block index */
+    private void mergeIfSmall(final int theBlock) {
+        if (sizes[theBlock] == 0) {
+            removeBlock(theBlock);
+            return;
+        }
+        if (sizes[theBlock] >= SMALL_SIZE)
+            return;
+        int low = theBlock;
+        if ((theBlock + 1 == blocks)
+                || ((theBlock > 0) && (sizes[theBlock - 1] < sizes[theBlock + 1])))
+            low = theBlock - 1;
+        if ((low < 0) || (sizes[low] + sizes[low + 1] > MERGE_SIZE))
+            return;
+        final int count = sizes[low + 1];
+        System.arraycopy(keys[low + 1], 0, keys[low], sizes[low], count);
+        System.arraycopy(values[low + 1], 0, values[low], sizes[low], count);
+        sizes[low] += count;
+        removeBlock(low + 1);
+    }
+
+    /** Removes a block from the directory.
+     *
+     * @param theBlock
+     *        the block index */
+    private void removeBlock(final int theBlock) {
+        final int moved = blocks - theBlock - 1;
+        System.arraycopy(firsts, theBlock + 1, firsts, theBlock, moved);
+        System.arraycopy(keys, theBlock + 1, keys, theBlock, moved);
+        System.arraycopy(values, theBlock + 1, values, theBlock, moved);
+        System.arraycopy(sizes, theBlock + 1, sizes, theBlock, moved);
+        blocks--;
+        keys[blocks] = null;
+        values[blocks] = null;
+        modifications++;
+    }
+
+    /** Splits a full block in two halves.
+     *
+     * @param theBlock
+     *        the block index */
+    private void split(final int theBlock) {
+        insertBlock(theBlock + 1);
+        final int half = BLOCK_SIZE / 2;
+        final int moved = sizes[theBlock] - half;
+        System.arraycopy(keys[theBlock], half, keys[theBlock + 1], 0, moved);
+        System.arraycopy(values[theBlock], half, values[theBlock + 1], 0,
+                moved);
+        Arrays.fill(values[theBlock], half, sizes[theBlock], null);
+        sizes[theBlock] = half;
+        sizes[theBlock + 1] = moved;
+        firsts[theBlock + 1] = keys[theBlock + 1][0];
+    }
+
+    /** Removes all the keys. */
+    void clear() {
+        for (int i = 0; i < blocks; i++) {
+            keys[i] = null;
+            values[i] = null;
+        }
+        blocks = 0;
+        size = 0;
+        modifications++;
+    }
+
+    /** Returns the value of a key.
+     *
+     * @param theKey
+     *        the key
+     * @return the value; null if the key is missing */
+    @CheckForNull
+    @SuppressWarnings("unchecked")
+    V get(final long theKey) {
+        if (blocks == 0)
+            return null;
+        final int block = block(theKey);
+        final int index = Arrays.binarySearch(keys[block], 0, sizes[block],
+                theKey);
+        return (index < 0) ? null : (V) values[block][index];
+    }
+
+    /** Returns true if the map is empty.
+     *
+     * @return true, if empty */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Iterates over the keys within a range, in ascending or descending
+     * order. The returned cursor is reused by every call to next(). The
+     * cursor index is the position of the key in its block, and is
+     * meaningless.
+     *
+     * @param theFrom
+     *        the lowest key, included
+     * @param theTo
+     *        the highest key, included
+     * @param isDescending
+     *        true, to iterate from the highest key down
+     * @return the iterator */
+    Iterator<LongObjectCursor<V>> iterator(final long theFrom,
+            final long theTo, final boolean isDescending) {
+        return new Slice(theFrom, theTo, isDescending);
+    }
+
+    /** Maps a key to a value.
+     *
+     * @param theKey
+     *        the key
+     * @param theValue
+     *        the value
+     * @return the previous value; null if the key was missing */
+    @CheckForNull
+    @SuppressWarnings("unchecked")
+    V put(final long theKey, final V theValue) {
+        if (blocks == 0)
+            insertBlock(0);
+        int block = block(theKey);
+        int index = Arrays.binarySearch(keys[block], 0, sizes[block], theKey);
+        if (index >= 0) {
+            final V previous = (V) values[block][index];
+            values[block][index] = theValue;
+            return previous;
+        }
+        index = -index - 1;
+        if (sizes[block] == BLOCK_SIZE) {
+            split(block);
+            if (index > sizes[block]) {
+                index -= sizes[block];
+                block++;
+            }
+        }
+        final int moved = sizes[block] - index;
+        System.arraycopy(keys[block], index, keys[block], index + 1, moved);
+        System.arraycopy(values[block], index, values[block], index + 1,
+                moved);
+        keys[block][index] = theKey;
+        values[block][index] = theValue;
+        sizes[block]++;
+        firsts[block] = keys[block][0];
+        size++;
+        modifications++;
+        return null;
+    }
+
+    /** Removes a key.
+     *
+     * @param theKey
+     *        the key
+     * @return the previous value; null if the key was missing */
+    @CheckForNull
+    @SuppressWarnings("unchecked")
+    V remove(final long theKey) {
+        if (blocks == 0)
+            return null;
+        final int block = block(theKey);
+        final int index = Arrays.binarySearch(keys[block], 0, sizes[block],
+                theKey);
+        if (index < 0)
+            return null;
+        final V previous = (V) values[block][index];
+        final int moved = sizes[block] - index - 1;
+        System.arraycopy(keys[block], index + 1, keys[block], index, moved);
+        System.arraycopy(values[block], index + 1, values[block], index,
+                moved);
+        sizes[block]--;
+        values[block][sizes[block]] = null;
+        if (sizes[block] > 0)
+            firsts[block] = keys[block][0];
+        size--;
+        modifications++;
+        mergeIfSmall(block);
+        return previous;
+    }
+
+    /** Removes the keys within a range. The blocks entirely within the range
+     * are dropped without looking at their keys.
+     *
+     * @param theFrom
+     *        the lowest key, included
+     * @param theTo
+     *        the highest key, included
+     * @return the number of removed keys */
+    int remove(final long theFrom, final long theTo) {
+        if ((blocks == 0) || (theFrom > theTo))
+            return 0;
+        int block = block(theFrom);
+        int removed = 0;
+        while (block < blocks) {
+            final long[] blockKeys = keys[block];
+            final int count = sizes[block];
+            if (blockKeys[0] > theTo)
+                break;
+            int start = Arrays.binarySearch(blockKeys, 0, count, theFrom);
+            if (start < 0)
+                start = -start - 1;
+            int end = count;
+            if (blockKeys[count - 1] > theTo) {
+                end = Arrays.binarySearch(blockKeys, start, count, theTo);
+                end = (end < 0) ? -end - 1 : end + 1;
+            }
+            removed += end - start;
+            if ((start == 0) && (end == count)) {
+                removeBlock(block);
+                continue;
+            }
+            System.arraycopy(blockKeys, end, blockKeys, start, count - end);
+            System.arraycopy(values[block], end, values[block], start, count
+                    - end);
+            sizes[block] = count - (end - start);
+            Arrays.fill(values[block], sizes[block], count, null);
+            firsts[block] = blockKeys[0];
+            final boolean last = (end < count);
+            final int before = blocks;
+            mergeIfSmall(block);
+            if (last)
+                break;
+            if (blocks == before)
+                block++;
+        }
+        if (removed > 0) {
+            size -= removed;
+            modifications++;
+        }
+        return removed;
+    }
+
+    /** Returns the number of keys.
+     *
+     * @return the size */
+    int size() {
+        return size;
+    }
+}
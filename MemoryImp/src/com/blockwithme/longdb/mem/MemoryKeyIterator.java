@@ -15,31 +15,51 @@
  ******************************************************************************/
 package com.blockwithme.longdb.mem;
 
-import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
-import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.Range;
 import com.blockwithme.longdb.base.AbstractKeyIterator;
-import com.carrotsearch.hppc.LongObjectOpenHashMap;
-import com.carrotsearch.hppc.cursors.LongObjectCursor;
+import com.carrotsearch.hppc.LongArrayList;
 
-/** The KeyIterator class for MemoryDB implementation. */
+/** The KeyIterator class for MemoryDB implementation. The keys of a row range
+ * are read from the ordered row index of the table, one page at a time, so
+ * that the table can be modified while iterating. Each page starts after the
+ * last key of the previous page. */
 @ParametersAreNonnullByDefault
 public class MemoryKeyIterator extends AbstractKeyIterator<MemoryTable> {
-    /** The rows. */
-    private final Iterator<LongObjectCursor<Columns>> cursor;
+
+    /** The number of keys read per page. */
+    static final int PAGE_SIZE = 500;
+
+    /** The keys of the current page. */
+    private final LongArrayList keys = new LongArrayList();
+
+    /** The lowest key of the next page. */
+    private long from;
+
+    /** Are there more pages? */
+    private boolean more;
+
+    /** Position of the next key in the current page. */
+    private int position;
+
+    /** The highest key, included. */
+    private final long to;
 
     /** Instantiates a new memory key iterator.
      * 
      * @param theTable
      *        the table
      * @param theRows
-     *        the rows */
+     *        the range of row keys, not empty */
     protected MemoryKeyIterator(final MemoryTable theTable,
-            final LongObjectOpenHashMap<Columns> theRows) {
+            final Range theRows) {
         super(theTable);
-        cursor = theRows.iterator();
+        from = theRows.start();
+        to = theRows.end();
+        more = true;
     }
 
     /*
@@ -49,7 +69,9 @@ public class MemoryKeyIterator extends AbstractKeyIterator<MemoryTable> {
      */
     @Override
     protected long nextKey() {
-        return cursor.next().key;
+        if (!hasNext())
+            throw new NoSuchElementException("No more keys");
+        return keys.get(position++);
     }
 
     /*
@@ -59,7 +81,19 @@ public class MemoryKeyIterator extends AbstractKeyIterator<MemoryTable> {
      */
     @Override
     public boolean hasNext() {
-        return cursor.hasNext();
+        while (position >= keys.size()) {
+            if (!more)
+                return false;
+            keys.clear();
+            position = 0;
+            more = table.readKeys(from, to, keys, PAGE_SIZE);
+            if (more) {
+                final long last = keys.get(keys.size() - 1);
+                more = (last < to);
+                from = last + 1;
+            }
+        }
+        return true;
     }
 
 }
@@ -13,36 +13,55 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  ******************************************************************************/
-// $codepro.audit.disable hidingInheritedFields
 package com.blockwithme.longdb.mem;
 
 import java.util.Iterator;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.ParametersAreNonnullByDefault;
 
+import com.blockwithme.longdb.ColumnVisitor;
 import com.blockwithme.longdb.Columns;
 import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.base.AbstractColumnScanner;
 import com.blockwithme.longdb.base.AbstractTable;
 import com.blockwithme.longdb.entities.Base36;
+import com.blockwithme.longdb.entities.Bytes;
 import com.blockwithme.longdb.entities.LongHolder;
 import com.carrotsearch.hppc.LongArrayList;
-import com.carrotsearch.hppc.LongObjectOpenHashMap;
 import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 
-/** Implementation of a memory-backed BETable. Useful for testing. */
+/** Implementation of a memory-backed BETable. Useful for testing. The table is
+ * thread-safe: the rows are split in stripes, each guarded by its own
+ * read-write lock, so that operations on different rows rarely contend.
+ * 
+ * The rows of a stripe, and the columns of a row, are kept in ascending order
+ * in a LongSortedMap, so that column slices are read in O(log n + k), in
+ * either order. The keys of all the rows are also kept in one ordered index,
+ * guarded by its own lock, so that the keys of a row range are read in
+ * O(log n + k), one page at a time. The index only changes when a row is
+ * created or removed; a stripe lock is always taken before the index lock. */
 @ParametersAreNonnullByDefault
 public class MemoryTable extends
         AbstractTable<MemoryBackend, MemoryDatabase, MemoryTable> {
 
-    /** The full key range. */
-    private static final Range FULL_RANGE = Range.fullRange();
+    /** The number of stripes. Must be a power of two. */
+    private static final int STRIPES = 64;
+
+    /** The keys of all the rows, in ascending order. */
+    private final LongSortedMap<Boolean> index = new LongSortedMap<Boolean>();
 
-    /** Temporary array */
-    private LongArrayList array = new LongArrayList(); // NOPMD
+    /** The lock of the row index. */
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
 
-    /** The rows. */
-    private final LongObjectOpenHashMap<Columns> rows = new LongObjectOpenHashMap<Columns>();
+    /** The locks, one per stripe. */
+    private final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+
+    /** The rows, one map per stripe. Rows without columns are removed. */
+    private final LongSortedMap<LongSortedMap<Bytes>>[] rows;
 
     /** Instantiates a new memory table.
      * 
@@ -54,12 +73,135 @@ public class MemoryTable extends
      *        the reverse
      * @param theDetectCollisions
      *        the detect collisions */
+    @SuppressWarnings("unchecked")
     protected MemoryTable(final MemoryDatabase theDB, final Base36 theTable,
             final boolean isReverse, final boolean theDetectCollisions) {
         super(theDB, theTable, isReverse, theDetectCollisions);
+        rows = new LongSortedMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+            rows[i] = new LongSortedMap<LongSortedMap<Bytes>>();
+        }
+    }
+
+    /** Returns the stripe of a row.
+     * 
+     * @param theKey
+     *        the key
+     * @return the stripe index */
+    private static int stripe(final long theKey) {
+        final int hash = (int) (theKey ^ (theKey >>> 32));
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /** Reads the Ids of the columns of one row in a range, in table order.
+     * Stops after theLimit columns.
+     * 
+     * @return true, if the range may contain more columns than theLimit */
+    private boolean readColumnIds(final long theKey, final Range theRange,
+            final LongArrayList theColIds, final int theLimit) {
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.readLock().lock();
+        try {
+            final LongSortedMap<Bytes> row = row(theKey);
+            if (row == null)
+                return false;
+            final Iterator<LongObjectCursor<Bytes>> slice = slice(row,
+                    theRange);
+            int count = 0;
+            while (count < theLimit && slice.hasNext()) {
+                theColIds.add(slice.next().key);
+                count++;
+            }
+            return count == theLimit;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Adds a row to, or removes a row from, the row index. Must be called
+     * with the write lock of the row held.
+     * 
+     * @param theKey
+     *        the key
+     * @param isPresent
+     *        true, if the row was created; false, if it was removed */
+    private void index(final long theKey, final boolean isPresent) {
+        indexLock.writeLock().lock();
+        try {
+            if (isPresent)
+                index.put(theKey, Boolean.TRUE);
+            else
+                index.remove(theKey);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /** Reads the keys of the rows in a range, in ascending order. Stops after
+     * theLimit keys.
+     * 
+     * @param theFrom
+     *        the lowest key, included
+     * @param theTo
+     *        the highest key, included
+     * @param theKeys
+     *        receives the keys
+     * @param theLimit
+     *        the maximum number of keys read
+     * @return true, if the range may contain more keys than theLimit */
+    boolean readKeys(final long theFrom, final long theTo,
+            final LongArrayList theKeys, final int theLimit) {
+        indexLock.readLock().lock();
+        try {
+            final Iterator<LongObjectCursor<Boolean>> slice = index.iterator(
+                    theFrom, theTo, false);
+            int count = 0;
+            while (count < theLimit && slice.hasNext()) {
+                theKeys.add(slice.next().key);
+                count++;
+            }
+            return count == theLimit;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /** Removes some columns of a row. Must be called with the write lock of
+     * the row held.
+     * 
+     * @param theKey
+     *        the key
+     * @param theRemoveCols
+     *        the range of columns to be removed */
+    private void removeRange(final long theKey, final Range theRemoveCols) {
+        final LongSortedMap<LongSortedMap<Bytes>> stripe = rows[stripe(theKey)];
+        final LongSortedMap<Bytes> row = stripe.get(theKey);
+        if ((row != null) && !theRemoveCols.empty()) {
+            if (theRemoveCols.full()) {
+                stripe.remove(theKey);
+                index(theKey, false);
+            } else {
+                row.remove(theRemoveCols.start(), theRemoveCols.end());
+                if (row.isEmpty()) {
+                    stripe.remove(theKey);
+                    index(theKey, false);
+                }
+            }
+        }
+    }
+
+    /** Returns a row. Must be called with the lock of the row held.
+     * 
+     * @param theKey
+     *        the key
+     * @return the columns of the row; null if the row is missing */
+    @CheckForNull
+    private LongSortedMap<Bytes> row(final long theKey) {
+        return rows[stripe(theKey)].get(theKey);
     }
 
-    /** Sets the internal.
+    /** Sets the internal. Must be called with the write lock of the row held.
      * 
      * @param theKey
      *        the key
@@ -67,12 +209,35 @@ public class MemoryTable extends
      *        the insert or update */
     private void setInternal(final long theKey,
             final Columns theInsertUpdateColumns) {
-        Columns row = rows.get(theKey);
+        if (theInsertUpdateColumns.size() == 0)
+            return;
+        final LongSortedMap<LongSortedMap<Bytes>> stripe = rows[stripe(theKey)];
+        LongSortedMap<Bytes> row = stripe.get(theKey);
         if (row == null) {
-            row = new Columns(reverse);
-            rows.put(theKey, row);
+            row = new LongSortedMap<Bytes>();
+            stripe.put(theKey, row);
+            index(theKey, true);
+        }
+        final Iterator<LongObjectCursor<Bytes>> iter = theInsertUpdateColumns
+                .bytesIterator();
+        while (iter.hasNext()) {
+            final LongObjectCursor<Bytes> cursor = iter.next();
+            // Makes a safe copy, in case the caller changes the value later.
+            row.put(cursor.key, cursor.value.copy());
         }
-        row.putAll(theInsertUpdateColumns);
+    }
+
+    /** Iterates over the columns of a row in a range, in table order. Must be
+     * called with the lock of the row held.
+     * 
+     * @param theRow
+     *        the columns of the row
+     * @param theRange
+     *        the range of column Ids, not empty
+     * @return the iterator */
+    private Iterator<LongObjectCursor<Bytes>> slice(
+            final LongSortedMap<Bytes> theRow, final Range theRange) {
+        return theRow.iterator(theRange.start(), theRange.end(), reverse);
     }
 
     /*
@@ -92,8 +257,14 @@ public class MemoryTable extends
      */
     @Override
     protected long columnsCountInternal(final long theKey) {
-        final Columns row = rows.get(theKey);
-        return (row == null) ? 0 : row.size();
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.readLock().lock();
+        try {
+            final LongSortedMap<Bytes> row = row(theKey);
+            return (row == null) ? 0 : row.size();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /*
@@ -104,15 +275,23 @@ public class MemoryTable extends
     @Override
     @CheckForNull
     protected LongArrayList columnsInternal(final long theKey) {
-        final Columns row = rows.get(theKey);
-        if (row == null) {
-            return null;
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.readLock().lock();
+        try {
+            final LongSortedMap<Bytes> row = row(theKey);
+            if (row == null) {
+                return null;
+            }
+            final LongArrayList array = new LongArrayList(row.size());
+            final Iterator<LongObjectCursor<Bytes>> slice = slice(row,
+                    Range.fullRange());
+            while (slice.hasNext()) {
+                array.add(slice.next().key);
+            }
+            return array;
+        } finally {
+            lock.readLock().unlock();
         }
-        final long[] cols = row.columns();
-        array = new LongArrayList();
-        array.add(cols, 0, cols.length);
-        // array.elementsCount = rows.size();
-        return array;
     }
 
     /*
@@ -123,10 +302,32 @@ public class MemoryTable extends
     @Override
     @CheckForNull
     protected Iterator<LongHolder> columnsIteratorInternal(final long theKey) {
-        final Columns cols = getInternal(theKey, FULL_RANGE);
-        if (cols == null)
-            return null;
-        return cols.iterator();
+        return new AbstractColumnScanner<MemoryTable>(this, theKey) {
+            @Override
+            protected boolean nextPage(final boolean isFirst,
+                    final long theLast, final LongArrayList theIds) {
+                final Range range = remaining(isFirst, theLast);
+                return (range != null)
+                        && readColumnIds(key, range, theIds, PAGE_SIZE);
+            }
+        }.orNull();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#existsInternal(long)
+     */
+    @Override
+    protected boolean existsInternal(final long theKey) {
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.readLock().lock();
+        try {
+            final LongSortedMap<Bytes> row = row(theKey);
+            return (row != null) && !row.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /*
@@ -141,17 +342,22 @@ public class MemoryTable extends
             final LongArrayList theColumns) {
         if ((theColumns == null) || theColumns.isEmpty())
             return null;
-        final Columns row = rows.get(theKey);
-        if (row == null) {
-            return null;
-        }
-        final Columns result = row.copy();
-        for (final LongHolder holder : row) {
-            final long col = holder.value();
-            if (!theColumns.contains(col))
-                result.remove(col);
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.readLock().lock();
+        try {
+            final LongSortedMap<Bytes> row = row(theKey);
+            if (row == null)
+                return null;
+            final Columns result = new Columns(reverse, theColumns.size());
+            for (final LongCursor cursor : theColumns) {
+                final Bytes value = row.get(cursor.value);
+                if (value != null)
+                    result.putBytes(cursor.value, value.copy());
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
         }
-        return result;
     }
 
     /*
@@ -165,17 +371,56 @@ public class MemoryTable extends
     protected Columns getInternal(final long theKey, final Range theColumns) {
         if ((theColumns == null) || theColumns.empty())
             return null;
-        final Columns row = rows.get(theKey);
-        if (row == null) {
-            return null;
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.readLock().lock();
+        try {
+            final LongSortedMap<Bytes> row = row(theKey);
+            if (row == null)
+                return null;
+            final Columns result = new Columns(reverse);
+            final Iterator<LongObjectCursor<Bytes>> slice = slice(row,
+                    theColumns);
+            while (slice.hasNext()) {
+                final LongObjectCursor<Bytes> cursor = slice.next();
+                result.putBytes(cursor.key, cursor.value.copy());
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
         }
-        final Columns result = row.copy();
-        for (final LongHolder holder : row) {
-            final long col = holder.value();
-            if (!theColumns.contains(col))
-                result.remove(col);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#getInternal(long,
+     * com.blockwithme.longdb.Range, com.blockwithme.longdb.ColumnVisitor)
+     */
+    @Override
+    protected int getInternal(final long theKey, final Range theColumns,
+            final ColumnVisitor theVisitor) {
+        if (theColumns.empty())
+            return 0;
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.readLock().lock();
+        try {
+            final LongSortedMap<Bytes> row = row(theKey);
+            if (row == null)
+                return 0;
+            final Iterator<LongObjectCursor<Bytes>> slice = slice(row,
+                    theColumns);
+            int count = 0;
+            while (slice.hasNext()) {
+                final LongObjectCursor<Bytes> cursor = slice.next();
+                count++;
+                final byte[] data = cursor.value.toArray(false);
+                if (!theVisitor.visit(cursor.key, data, 0, data.length))
+                    break;
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
         }
-        return result;
     }
 
     /*
@@ -185,7 +430,18 @@ public class MemoryTable extends
      */
     @Override
     protected Iterator<LongHolder> keysInternal() {
-        return new MemoryKeyIterator(this, rows);
+        return keysInternal(Range.fullRange());
+    }
+
+    /** Returns the keys of a row range, in ascending order. The keys are read
+     * from the row index, one page at a time.
+     * 
+     * @param theRows
+     *        the range of row keys, not empty
+     * @return the iterator */
+    @Override
+    protected Iterator<LongHolder> keysInternal(final Range theRows) {
+        return new MemoryKeyIterator(this, theRows);
     }
 
     /*
@@ -207,11 +463,21 @@ public class MemoryTable extends
     @Override
     protected void removeInternal(final long theKey,
             final LongArrayList theRemoveCols) {
-        final Columns row = rows.get(theKey);
-        if (row != null) {
-            for (final LongCursor cursor : theRemoveCols) {
-                row.remove(cursor.value);
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.writeLock().lock();
+        try {
+            final LongSortedMap<Bytes> row = row(theKey);
+            if (row != null) {
+                for (final LongCursor cursor : theRemoveCols) {
+                    row.remove(cursor.value);
+                }
+                if (row.isEmpty()) {
+                    rows[stripe(theKey)].remove(theKey);
+                    index(theKey, false);
+                }
             }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -223,17 +489,12 @@ public class MemoryTable extends
      */
     @Override
     protected void removeInternal(final long theKey, final Range theRemoveCols) {
-        final Columns row = rows.get(theKey);
-        if ((row != null) && !theRemoveCols.empty()) {
-            if (theRemoveCols.full()) {
-                rows.remove(theKey);
-            } else {
-                for (final LongHolder holder : row) {
-                    final long col = holder.value();
-                    if (theRemoveCols.contains(col))
-                        row.remove(col);
-                }
-            }
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.writeLock().lock();
+        try {
+            removeRange(theKey, theRemoveCols);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -247,8 +508,14 @@ public class MemoryTable extends
     protected void setInternal(final long theKey,
             final Columns theInsertUpdateColumns,
             final LongArrayList theRemoveCols) {
-        removeInternal(theKey, theRemoveCols);
-        setInternal(theKey, theInsertUpdateColumns);
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.writeLock().lock();
+        try {
+            removeInternal(theKey, theRemoveCols);
+            setInternal(theKey, theInsertUpdateColumns);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /*
@@ -260,8 +527,14 @@ public class MemoryTable extends
     @Override
     protected void setInternal(final long theKey,
             final Columns theInsertUpdateColumns, final Range theRemoveCols) {
-        removeInternal(theKey, theRemoveCols);
-        setInternal(theKey, theInsertUpdateColumns);
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.writeLock().lock();
+        try {
+            removeRange(theKey, theRemoveCols);
+            setInternal(theKey, theInsertUpdateColumns);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /*
@@ -271,12 +544,34 @@ public class MemoryTable extends
      */
     @Override
     protected long sizeInternal() {
-        return rows.size();
+        long size = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i].readLock().lock();
+            try {
+                size += rows[i].size();
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+        return size;
     }
 
     /** Called when the table was dropped. */
     public void dropped() {
-        rows.clear();
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i].writeLock().lock();
+            try {
+                rows[i].clear();
+            } finally {
+                locks[i].writeLock().unlock();
+            }
+        }
+        indexLock.writeLock().lock();
+        try {
+            index.clear();
+        } finally {
+            indexLock.writeLock().unlock();
+        }
     }
 
     /*
@@ -289,17 +584,25 @@ public class MemoryTable extends
     public Columns getLimited(final long theKey, final int theCount) {
         if (theCount == 0)
             return null;
-        final Columns result = get(theKey);
-        if (result == null)
-            return null;
-        final long[] keys = result.columns();
-        final int total = keys.length;
-        if (total > theCount) {
-            for (int i = total - 1; i >= theCount; i--) {
-                result.remove(keys[i]);
+        final ReadWriteLock lock = locks[stripe(theKey)];
+        lock.readLock().lock();
+        try {
+            final LongSortedMap<Bytes> row = row(theKey);
+            if (row == null)
+                return null;
+            // The row is kept in order, so only the first columns are read.
+            final int count = Math.min(theCount, row.size());
+            final Columns result = new Columns(reverse, count);
+            final Iterator<LongObjectCursor<Bytes>> slice = slice(row,
+                    Range.fullRange());
+            for (int i = 0; i < count; i++) {
+                final LongObjectCursor<Bytes> cursor = slice.next();
+                result.putBytes(cursor.key, cursor.value.copy());
             }
+            return result;
+        } finally {
+            lock.readLock().unlock();
         }
-        return result;
     }
 
     /*
@@ -309,6 +612,16 @@ public class MemoryTable extends
      */
     @Override
     public boolean reverseSupported() {
-        return false;
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.blockwithme.longdb.base.AbstractTable#threadSafe()
+     */
+    @Override
+    public boolean threadSafe() {
+        return true;
     }
 }
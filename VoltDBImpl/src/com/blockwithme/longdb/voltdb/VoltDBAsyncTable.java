@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sebastien Diot..
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     Sebastien Diot. - initial API and implementation
+ ******************************************************************************/
+package com.blockwithme.longdb.voltdb;
+
+import java.util.Arrays;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+
+import com.blockwithme.longdb.Columns;
+import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.base.AbstractAsyncTable;
+import com.blockwithme.longdb.exception.DBException;
+import com.carrotsearch.hppc.ByteArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongObjectOpenHashMap;
+import com.google.common.util.concurrent.SettableFuture;
+
+/** The asynchronous view of a VoltDB table. Each request is a single
+ * asynchronous stored procedure call, so one thread can keep many requests in
+ * flight on the client connections. The futures are completed, and so their
+ * listeners run, on the network thread of the VoltDB client; listeners
+ * should therefore not block. */
+@ParametersAreNonnullByDefault
+public class VoltDBAsyncTable extends AbstractAsyncTable<VoltDBTable> {
+
+    /** Completes a future with the decoded response of a stored procedure.
+     *
+     * @param <V> the type of the result */
+    private abstract static class Call<V> implements ProcedureCallback {
+
+        /** The stored procedure. */
+        private final String procedure;
+
+        /** The future of the request. */
+        private final SettableFuture<V> result;
+
+        /** Instantiates a new call. */
+        Call(final String theProcedure, final SettableFuture<V> theResult) {
+            this.procedure = theProcedure;
+            this.result = theResult;
+        }
+
+        /** Decodes the results of the stored procedure. */
+        protected abstract V decode(VoltTable[] theResults);
+
+        /* (non-Javadoc)
+         * @see
+         * org.voltdb.client.ProcedureCallback#clientCallback(org.voltdb.client
+         * .ClientResponse) */
+        @Override
+        public void clientCallback(final ClientResponse theResponse) {
+            if (theResponse.getStatus() != ClientResponse.SUCCESS) {
+                result.setException(new DBException("Error performing "
+                        + procedure + " Query: "
+                        + theResponse.getStatusString()));
+                return;
+            }
+            try {
+                result.set(decode(theResponse.getResults()));
+            } catch (final Exception e) {
+                result.setException(new DBException("Error decoding "
+                        + procedure + " results", e));
+            }
+        }
+    }
+
+    /** A call returning the columns of a row. */
+    private static final class ColumnsCall extends Call<Columns> {
+
+        /** Instantiates a new call. */
+        ColumnsCall(final String theProcedure,
+                final SettableFuture<Columns> theResult) {
+            super(theProcedure, theResult);
+        }
+
+        /* (non-Javadoc)
+         * @see
+         * com.blockwithme.longdb.voltdb.VoltDBAsyncTable.Call#decode(org.voltdb
+         * .VoltTable[]) */
+        @Override
+        protected Columns decode(final VoltTable[] theResults) {
+            return VoltDBTable.constructColumns(theResults);
+        }
+    }
+
+    /** A call returning nothing. */
+    private static final class DoneCall extends Call<Void> {
+
+        /** Instantiates a new call. */
+        DoneCall(final String theProcedure, final SettableFuture<Void> theResult) {
+            super(theProcedure, theResult);
+        }
+
+        /* (non-Javadoc)
+         * @see
+         * com.blockwithme.longdb.voltdb.VoltDBAsyncTable.Call#decode(org.voltdb
+         * .VoltTable[]) */
+        @Override
+        protected Void decode(final VoltTable[] theResults) {
+            return null;
+        }
+    }
+
+    /** A call returning the columns of many rows. */
+    private static final class RowsCall extends
+            Call<LongObjectOpenHashMap<Columns>> {
+
+        /** Instantiates a new call. */
+        RowsCall(final String theProcedure,
+                final SettableFuture<LongObjectOpenHashMap<Columns>> theResult) {
+            super(theProcedure, theResult);
+        }
+
+        /* (non-Javadoc)
+         * @see
+         * com.blockwithme.longdb.voltdb.VoltDBAsyncTable.Call#decode(org.voltdb
+         * .VoltTable[]) */
+        @Override
+        protected LongObjectOpenHashMap<Columns> decode(
+                final VoltTable[] theResults) {
+            return VoltDBTable.constructRows(theResults);
+        }
+    }
+
+    /** Instantiates a new asynchronous VoltDB table.
+     *
+     * @param theTable the table
+     * @param theMaxOutstanding the maximum number of outstanding requests */
+    protected VoltDBAsyncTable(final VoltDBTable theTable,
+            final int theMaxOutstanding) {
+        super(theTable, theMaxOutstanding);
+    }
+
+    /** Queues an asynchronous stored procedure call. The client blocks while
+     * the server applies backpressure. */
+    private void call(final Call<?> theCall, final Object... theParameters)
+            throws Exception {
+        final String name = theCall.procedure + table.tableName();
+        if (!table.getClient().callProcedure(theCall, name, theParameters))
+            throw new DBException("Could not queue " + name
+                    + ": no connection");
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#closeInternal() */
+    @Override
+    protected void closeInternal() {
+        // NOP
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#getInternal(long,
+     * com.carrotsearch.hppc.LongArrayList,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void getInternal(final long theKey,
+            final LongArrayList theColumns,
+            final SettableFuture<Columns> theResult) throws Exception {
+        if (theColumns.isEmpty()) {
+            theResult.set(null);
+            return;
+        }
+        call(new ColumnsCall("SelectInList", theResult), theKey,
+                theColumns.toArray());
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#getInternal(long,
+     * com.blockwithme.longdb.Range,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void getInternal(final long theKey, final Range theColumns,
+            final SettableFuture<Columns> theResult) throws Exception {
+        if (theColumns.empty()) {
+            theResult.set(null);
+            return;
+        }
+        call(new ColumnsCall("SelectColumnInRange", theResult), theKey,
+                theColumns.start(), theColumns.end());
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.base.AbstractAsyncTable#multiGetInternal(long[],
+     * com.carrotsearch.hppc.LongArrayList,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void multiGetInternal(final long[] theKeys,
+            final LongArrayList theColumns,
+            final SettableFuture<LongObjectOpenHashMap<Columns>> theResult)
+            throws Exception {
+        final long[] colIds = theColumns.toArray();
+        Arrays.sort(colIds);
+        call(new RowsCall("SelectMultiRow", theResult), theKeys, colIds[0],
+                colIds[colIds.length - 1], colIds);
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.base.AbstractAsyncTable#multiGetInternal(long[],
+     * com.blockwithme.longdb.Range,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void multiGetInternal(final long[] theKeys,
+            final Range theColumns,
+            final SettableFuture<LongObjectOpenHashMap<Columns>> theResult)
+            throws Exception {
+        call(new RowsCall("SelectMultiRow", theResult), theKeys,
+                theColumns.start(), theColumns.end(), new long[0]);
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#removeInternal(long,
+     * com.carrotsearch.hppc.LongArrayList,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void removeInternal(final long theKey,
+            final LongArrayList theRemoveCols,
+            final SettableFuture<Void> theResult) throws Exception {
+        call(new DoneCall("InsertUpdateRemove", theResult), theKey,
+                new long[0], new byte[0], new int[0], theRemoveCols.toArray());
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#removeInternal(long,
+     * com.blockwithme.longdb.Range,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void removeInternal(final long theKey,
+            final Range theRemoveCols, final SettableFuture<Void> theResult)
+            throws Exception {
+        if (theRemoveCols.empty()) {
+            theResult.set(null);
+            return;
+        }
+        call(new DoneCall("InsertUpdateRemoveRange", theResult), theKey,
+                new long[0], new byte[0], new int[0], theRemoveCols.start(),
+                theRemoveCols.end());
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#setInternal(long,
+     * com.blockwithme.longdb.Columns, com.carrotsearch.hppc.LongArrayList,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void setInternal(final long theKey,
+            final Columns theInsertUpdateColumns,
+            final LongArrayList theRemoveCols,
+            final SettableFuture<Void> theResult) throws Exception {
+        final LongArrayList colIds = new LongArrayList(
+                theInsertUpdateColumns.size());
+        final ByteArrayList blobs = new ByteArrayList();
+        final IntArrayList indexArray = new IntArrayList();
+        VoltDBTable.constructParameters(theInsertUpdateColumns, colIds, blobs,
+                indexArray);
+        call(new DoneCall("InsertUpdateRemove", theResult), theKey,
+                colIds.toArray(), blobs.toArray(), indexArray.toArray(),
+                theRemoveCols.toArray());
+    }
+
+    /* (non-Javadoc)
+     * @see com.blockwithme.longdb.base.AbstractAsyncTable#setInternal(long,
+     * com.blockwithme.longdb.Columns, com.blockwithme.longdb.Range,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void setInternal(final long theKey,
+            final Columns theInsertUpdateColumns, final Range theRemoveCols,
+            final SettableFuture<Void> theResult) throws Exception {
+        if (theRemoveCols.empty()) {
+            setInternal(theKey, theInsertUpdateColumns, new LongArrayList(),
+                    theResult);
+            return;
+        }
+        final LongArrayList colIds = new LongArrayList(
+                theInsertUpdateColumns.size());
+        final ByteArrayList blobs = new ByteArrayList();
+        final IntArrayList indexArray = new IntArrayList();
+        VoltDBTable.constructParameters(theInsertUpdateColumns, colIds, blobs,
+                indexArray);
+        call(new DoneCall("InsertUpdateRemoveRange", theResult), theKey,
+                colIds.toArray(), blobs.toArray(), indexArray.toArray(),
+                theRemoveCols.start(), theRemoveCols.end());
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.base.AbstractAsyncTable#setAllInternal(com.carrotsearch
+     * .hppc.LongObjectOpenHashMap,
+     * com.google.common.util.concurrent.SettableFuture) */
+    @Override
+    protected void setAllInternal(final LongObjectOpenHashMap<Columns> theRows,
+            final SettableFuture<Void> theResult) throws Exception {
+        final long[] rowKeys = new long[theRows.size()];
+        final int[] columnCounts = new int[theRows.size()];
+        final LongArrayList colIds = new LongArrayList();
+        final ByteArrayList blobs = new ByteArrayList();
+        final IntArrayList indexArray = new IntArrayList();
+        VoltDBTable.constructBatchParameters(theRows, rowKeys, columnCounts,
+                colIds, blobs, indexArray);
+        call(new DoneCall("InsertUpdateBatch", theResult), rowKeys,
+                columnCounts, colIds.toArray(), blobs.toArray(),
+                indexArray.toArray());
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.base.AbstractAsyncTable#sizeInternal(com.google
+     * .common.util.concurrent.SettableFuture) */
+    @Override
+    protected void sizeInternal(final SettableFuture<Long> theResult)
+            throws Exception {
+        call(new Call<Long>("SelectRowCount", theResult) {
+            @Override
+            protected Long decode(final VoltTable[] theResults) {
+                return theResults[0].fetchRow(0).getLong(0);
+            }
+        });
+    }
+}
@@ -11,9 +11,11 @@
 // $codepro.audit.disable methodInvocationInLoopCondition
 package com.blockwithme.longdb.voltdb;
 
+import java.util.Arrays;
 import java.util.Iterator;
 
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import org.slf4j.Logger;
@@ -23,8 +25,11 @@ import org.voltdb.VoltTableRow;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientResponse;
 
+import com.blockwithme.longdb.AsyncBETable;
 import com.blockwithme.longdb.Columns;
 import com.blockwithme.longdb.Range;
+import com.blockwithme.longdb.base.AbstractColumnScanner;
+import com.blockwithme.longdb.base.AbstractRowScanner;
 import com.blockwithme.longdb.base.AbstractTable;
 import com.blockwithme.longdb.entities.Base36;
 import com.blockwithme.longdb.entities.Bytes;
@@ -34,7 +39,7 @@ import com.carrotsearch.hppc.ByteArrayList;
 import com.carrotsearch.hppc.IntArrayList;
 import com.carrotsearch.hppc.LongArrayList;
 import com.carrotsearch.hppc.LongObjectOpenHashMap;
-import com.carrotsearch.hppc.cursors.LongCursor;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
 
 /** The BETable implementation for VoltDB. */
 @ParametersAreNonnullByDefault
@@ -50,7 +55,7 @@ public class VoltDBTable extends
 
     /** Converts the 'results' (VoltTable[]) into Columns object */
     @CheckForNull
-    private static Columns constructColumns(final VoltTable[] theResults) {
+    static Columns constructColumns(final VoltTable[] theResults) {
         final LongObjectOpenHashMap<Bytes> map = new LongObjectOpenHashMap<Bytes>();
         if (theResults.length > 0) {
             final VoltTable table = theResults[0];
@@ -65,9 +70,36 @@ public class VoltDBTable extends
         return null;
     }
 
+    /** Converts the 'results' (VoltTable[]) of a multi-row query into Columns
+     * objects, mapped by row key. */
+    static LongObjectOpenHashMap<Columns> constructRows(
+            final VoltTable[] theResults) {
+        final LongObjectOpenHashMap<LongObjectOpenHashMap<Bytes>> maps = new LongObjectOpenHashMap<LongObjectOpenHashMap<Bytes>>();
+        if (theResults.length > 0) {
+            final VoltTable table = theResults[0];
+            int count = 0;
+            while (table.advanceRow()) {
+                final VoltTableRow row = table.fetchRow(count++);
+                final long rowKey = row.getLong(0);
+                LongObjectOpenHashMap<Bytes> map = maps.get(rowKey);
+                if (map == null) {
+                    map = new LongObjectOpenHashMap<Bytes>();
+                    maps.put(rowKey, map);
+                }
+                map.put(row.getLong(1), new Bytes(row.getVarbinary(2)));
+            }
+        }
+        final LongObjectOpenHashMap<Columns> result = new LongObjectOpenHashMap<Columns>(
+                maps.size());
+        for (final LongObjectCursor<LongObjectOpenHashMap<Bytes>> row : maps) {
+            result.put(row.key, new Columns(row.value, false));
+        }
+        return result;
+    }
+
     /** The method combines the blobs present in All the columns into a single
      * byte array, this is a work around for the issues mentioned in issue #4 */
-    private static void constructParameters(final Columns theColumns,
+    static void constructParameters(final Columns theColumns,
             final LongArrayList theColumnIds, final ByteArrayList theBlobs,
             final IntArrayList theIndexArray) {
         int currentIndex = 0;
@@ -84,6 +116,30 @@ public class VoltDBTable extends
         }
     }
 
+    /** Combines the columns of many rows into the parameters of the
+     * 'InsertUpdateBatch' stored procedure. The blobs of all rows are combined
+     * the same way as in constructParameters(). */
+    static void constructBatchParameters(
+            final LongObjectOpenHashMap<Columns> theRows, final long[] theRowKeys,
+            final int[] theColumnCounts, final LongArrayList theColumnIds,
+            final ByteArrayList theBlobs, final IntArrayList theIndexArray) {
+        int row = 0;
+        for (final LongObjectCursor<Columns> cursor : theRows) {
+            theRowKeys[row] = cursor.key;
+            theColumnCounts[row] = cursor.value.size();
+            row++;
+            for (final LongHolder colId : cursor.value) {
+                final Bytes byts = cursor.value.getBytes(colId.value());
+                assert (byts != null);
+                final byte[] blob = byts.toArray(false);
+                if (!theColumnIds.isEmpty())
+                    theIndexArray.add(theBlobs.size());
+                theColumnIds.add(colId.value());
+                theBlobs.add(blob, 0, blob.length);
+            }
+        }
+    }
+
     /** capitalizes the first char. */
     public static String capitalize(final String theLine) {
         return Character.toUpperCase(theLine.charAt(0)) + theLine.substring(1);
@@ -99,17 +155,76 @@ public class VoltDBTable extends
     }
 
     /** returns the Client object encapsulated in VoltDBBackend object. */
-    private Client getClient() {
+    Client getClient() {
         return database.backend().client();
     }
 
     /** Capitalize the first character of the table name to generate the stored
      * procedure names, Stored procedure names are case sensitive and contain
      * corresponding table names. */
-    private String tableName() {
+    String tableName() {
         return capitalize(table.toString());
     }
 
+    /** Reads a page of the rows in a range, in key order, with a single
+     * (multi-partition) stored procedure call.
+     * 
+     * @param theRows the range of row keys
+     * @param theColumns the range of column ids; null to read the keys only
+     * @param theKeys receives the keys of the rows
+     * @param theResult receives the columns, mapped by row key
+     * @param theLimit the maximum number of rows
+     * @return true, if the range may contain more rows than theLimit */
+    private boolean readRange(final Range theRows,
+            @Nullable final Range theColumns, final LongArrayList theKeys,
+            final LongObjectOpenHashMap<Columns> theResult, final int theLimit) {
+        try {
+            final ClientResponse res = getClient().callProcedure(
+                    "SelectRowRange" + tableName(), theRows.start(),
+                    theRows.end(), (theColumns == null) ? 0L : theColumns
+                            .start(), (theColumns == null) ? -1L : theColumns
+                            .end(), theLimit);
+            final VoltTable[] results = res.getResults();
+            theResult.putAll(constructRows(results));
+            final VoltTable keys = results[1];
+            int count = 0;
+            while (keys.advanceRow()) {
+                theKeys.add(keys.fetchRow(count++).getLong(0));
+            }
+            return count == theLimit;
+        } catch (final Exception e) {
+            throw new DBException(
+                    "Error performing SelectRowRange Query(Range rows="
+                            + theRows + ", Range cols=" + theColumns + ")", e);
+        }
+    }
+
+    /** Creates a scanner over a range of rows, reading one page at a time
+     * with readRange(). Only the keys are read when theColumns is null. */
+    private AbstractRowScanner<VoltDBTable> scanner(final Range theRows,
+            @Nullable final Range theColumns) {
+        final Range rows = new Range(theRows.start(), theRows.end());
+        return new AbstractRowScanner<VoltDBTable>(this, theColumns) {
+            @Override
+            protected boolean nextPage(final LongArrayList theKeys,
+                    final LongObjectOpenHashMap<Columns> theResult) {
+                return readRange(rows, columns, theKeys, theResult,
+                        VoltDBConstants.ITERATOR_LIMIT)
+                        && advance(rows, theKeys);
+            }
+        };
+    }
+
+    /** Returns a view that sends each request as an asynchronous stored
+     * procedure call.
+     * 
+     * @param theMaxOutstanding the maximum number of outstanding requests
+     * @return the asynchronous view */
+    @Override
+    protected AsyncBETable asyncInternal(final int theMaxOutstanding) {
+        return new VoltDBAsyncTable(this, theMaxOutstanding);
+    }
+
     /** Called when the table was closed. */
     @Override
     protected void closeInternal() {
@@ -162,36 +277,42 @@ public class VoltDBTable extends
         return null;
     }
 
-    /** Returns iterator of all columnIds for a row.
+    /** Returns iterator of all columnIds for a row. The column Ids are read
+     * in one page, by the same procedure as columnsInternal(), which selects
+     * no column value.
      * 
      * @param theKey the row key
      * @return the column id iterator */
     @Override
     @CheckForNull
     protected Iterator<LongHolder> columnsIteratorInternal(final long theKey) {
-        final LongArrayList cols = columnsInternal(theKey);
-        if ((cols != null) && !cols.isEmpty()) {
-            final Iterator<LongCursor> iter = cols.iterator();
-            final LongHolder holder = new LongHolder();
-            return new Iterator<LongHolder>() {
-                @Override
-                public boolean hasNext() {
-                    return iter.hasNext();
-                }
-
-                @Override
-                public LongHolder next() {
-                    holder.setRaw(iter.next().value);
-                    return holder;
-                }
+        return new AbstractColumnScanner<VoltDBTable>(this, theKey) {
+            @Override
+            protected boolean nextPage(final boolean isFirst,
+                    final long theLast, final LongArrayList theIds) {
+                final LongArrayList cols = isFirst ? columnsInternal(key)
+                        : null;
+                if (cols != null)
+                    theIds.addAll(cols);
+                return false;
+            }
+        }.orNull();
+    }
 
-                @Override
-                public void remove() {
-                    throw new UnsupportedOperationException();
-                }
-            };
+    /** Checks if a row exists, reading at most one column key.
+     * 
+     * @param theKey the row key
+     * @return true, if the row exists */
+    @Override
+    protected boolean existsInternal(final long theKey) {
+        try {
+            final ClientResponse res = getClient().callProcedure(
+                    "SelectRowExists" + tableName(), theKey);
+            return res.getResults()[0].getRowCount() > 0;
+        } catch (final Exception e) {
+            throw new DBException("Error performing SelectRowExists Query: "
+                    + theKey, e);
         }
-        return null;
     }
 
     /** Returns Column entries for a row, filtered by a set of columnIds.
@@ -253,6 +374,59 @@ public class VoltDBTable extends
         return new VoltDBKeyIterator(this);
     }
 
+    /** Returns the keys of a range of rows, in key order, one page per stored
+     * procedure call.
+     * 
+     * @param theRows the range of row keys
+     * @return the key iterator */
+    @Override
+    protected Iterator<LongHolder> keysInternal(final Range theRows) {
+        return scanner(theRows, null).keys();
+    }
+
+    /** Returns Column entries for many rows, filtered by a set of columnIds.
+     * All rows are read by a single (multi-partition) stored procedure call.
+     * 
+     * @param theKeys the row keys
+     * @param theColumns the list of column ids to be retrieved.
+     * @return the retrieved column data, mapped by row key. */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final LongArrayList theColumns) {
+        try {
+            final long[] colIds = theColumns.toArray();
+            Arrays.sort(colIds);
+            final ClientResponse res = getClient().callProcedure(
+                    "SelectMultiRow" + tableName(), theKeys, colIds[0],
+                    colIds[colIds.length - 1], colIds);
+            return constructRows(res.getResults());
+        } catch (final Exception e) {
+            throw new DBException("Error performing SelectMultiRow Query: "
+                    + theColumns, e);
+        }
+    }
+
+    /** Returns Column entries for many rows, filtered by a range of columnIds.
+     * All rows are read by a single (multi-partition) stored procedure call.
+     * 
+     * @param theKeys the row keys
+     * @param theRange the range of column ids to be retrieved.
+     * @return the retrieved column data, mapped by row key. */
+    @Override
+    protected LongObjectOpenHashMap<Columns> multiGetInternal(
+            final long[] theKeys, final Range theRange) {
+        try {
+            final ClientResponse res = getClient().callProcedure(
+                    "SelectMultiRow" + tableName(), theKeys, theRange.start(),
+                    theRange.end(), new long[0]);
+            return constructRows(res.getResults());
+        } catch (final Exception e) {
+            throw new DBException(
+                    "Error performing SelectMultiRow Query(Range rng="
+                            + theRange + ")", e);
+        }
+    }
+
     /** Called when the table is opened. */
     @Override
     protected void openInternal() {
@@ -320,6 +494,18 @@ public class VoltDBTable extends
         }
     }
 
+    /** Returns the rows of a range, with a range of their columns, in key
+     * order, one page per stored procedure call.
+     * 
+     * @param theRows the range of row keys
+     * @param theColumns the range of column ids to be retrieved.
+     * @return the row scanner */
+    @Override
+    protected Iterator<LongObjectCursor<Columns>> scanInternal(
+            final Range theRows, final Range theColumns) {
+        return scanner(theRows, theColumns);
+    }
+
     /** Updates row with columns specified by insertOrUpdate and removes columns
      * in 'remove' List. Remove operation is performed before update.
      * 
@@ -386,6 +572,29 @@ public class VoltDBTable extends
         }
     }
 
+    /** Inserts or updates the columns of many rows, with a single invocation of
+     * the (multi-partition) 'InsertUpdateBatch' stored procedure. The blobs of
+     * all rows are combined the same way as in setInternal(). */
+    @Override
+    protected void setAllInternal(final LongObjectOpenHashMap<Columns> theRows) {
+        final long[] rowKeys = new long[theRows.size()];
+        final int[] columnCounts = new int[theRows.size()];
+        final LongArrayList colIds = new LongArrayList();
+        final ByteArrayList blobs = new ByteArrayList();
+        final IntArrayList indexArray = new IntArrayList();
+        constructBatchParameters(theRows, rowKeys, columnCounts, colIds, blobs,
+                indexArray);
+        try {
+            getClient().callProcedure("InsertUpdateBatch" + tableName(),
+                    rowKeys, columnCounts, colIds.toArray(), blobs.toArray(),
+                    indexArray.toArray());
+        } catch (final Exception e) {
+            throw new DBException(
+                    "Error performing InsertUpdateBatch Query(LongObjectOpenHashMap<Columns> rows="
+                            + theRows + ")", e);
+        }
+    }
+
     /** Returns number of rows in this table. */
     @Override
     protected long sizeInternal() {
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sebastien Diot..
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sebastien Diot. - initial API and implementation
+ ******************************************************************************/
+package com.blockwithme.longdb.voltdb.server.base;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/** The Base class for 'InsertUpdateBatch' store procedure. Inserts or updates
+ * the columns of many rows in a single (multi-partition) invocation. */
+@ParametersAreNonnullByDefault
+public abstract class InsertUpdateBatch extends VoltProcedure implements
+        IBaseStoredProc {
+
+    /** The maximum number of statements queued before they are executed. */
+    private static final int MAX_BATCH = 200;
+
+    /** The insert sql. */
+    protected final SQLStmt insertSql = new SQLStmt("INSERT INTO "
+            + tableName() + " VALUES (?, ?, ?, ?);");
+
+    /** The select sql. */
+    protected final SQLStmt selectSql = new SQLStmt("SELECT COLUMN_KEY FROM "
+            + tableName() + " WHERE ROW_KEY=? ;");
+
+    /** The update sql. */
+    protected final SQLStmt updateSql = new SQLStmt("UPDATE " + tableName()
+            + " SET DATA_BLOB=?, LAST_MODIFIED=? "
+            + "WHERE ROW_KEY=? AND COLUMN_KEY=?;");
+
+    /** Splits the combined blob of all columns, using the index array. */
+    private static byte[][] splitBlobs(final int theCount,
+            final byte[] theCombinedBlob, final int[] theIndexArray) {
+        if (theCount - 1 != theIndexArray.length)
+            throw new IllegalArgumentException(
+                    "Number of column ids do not match with number of blobs");
+        final byte[][] blobs = new byte[theCount][];
+        int startIndex = 0;
+        for (int i = 0; i < theCount; i++) {
+            final int endIndex = (i < theIndexArray.length) ? theIndexArray[i]
+                    : theCombinedBlob.length;
+            blobs[i] = Arrays.copyOfRange(theCombinedBlob, startIndex,
+                    endIndex);
+            startIndex = endIndex;
+        }
+        return blobs;
+    }
+
+    /** Reads the existing column ids of every row. */
+    @SuppressWarnings("unchecked")
+    private Set<Long>[] existingColumns(final long[] theRowKeys) {
+        final Set<Long>[] existing = new Set[theRowKeys.length];
+        int queued = 0;
+        for (int i = 0; i < theRowKeys.length; i++) {
+            voltQueueSQL(selectSql, theRowKeys[i]);
+            queued++;
+            if (queued == MAX_BATCH || i == theRowKeys.length - 1) {
+                final VoltTable[] results = voltExecuteSQL();
+                for (int r = 0; r < results.length; r++) {
+                    final Set<Long> cols = new HashSet<Long>();
+                    final VoltTable table = results[r];
+                    while (table.advanceRow()) {
+                        cols.add(table.getLong(0));
+                    }
+                    existing[i - queued + 1 + r] = cols;
+                }
+                queued = 0;
+            }
+        }
+        return existing;
+    }
+
+    /** The 'run' method for this stored procedure.
+     * 
+     * @param theRowKeys
+     *        the row keys
+     * @param theColumnCounts
+     *        the number of columns of each row, in the same order as the row
+     *        keys
+     * @param theColIDs
+     *        the column ids of all rows, grouped by row
+     * @param theCombinedBlob
+     *        all the blobs combined into single byte array
+     * @param theIndexArray
+     *        the indexes to be used to break the 'blobsCombined'
+     * @return the resultant VoltTable[]
+     * @throws VoltAbortException
+     *         the volt abort exception */
+    public VoltTable[] run(final long[] theRowKeys,
+            final int[] theColumnCounts, final long[] theColIDs,
+            final byte[] theCombinedBlob, final int[] theIndexArray)
+            throws VoltAbortException {
+        if (theRowKeys.length != theColumnCounts.length)
+            throw new IllegalArgumentException(
+                    "Number of rows do not match with number of column counts");
+        if (theColIDs.length == 0)
+            return new VoltTable[0];
+        final long lastModified = System.currentTimeMillis();
+        final byte[][] blobs = splitBlobs(theColIDs.length, theCombinedBlob,
+                theIndexArray);
+        final Set<Long>[] existing = existingColumns(theRowKeys);
+        int column = 0;
+        int queued = 0;
+        for (int r = 0; r < theRowKeys.length; r++) {
+            final long rowKey = theRowKeys[r];
+            final int end = column + theColumnCounts[r];
+            for (; column < end; column++) {
+                final long colId = theColIDs[column];
+                if (existing[r].contains(colId)) {
+                    voltQueueSQL(updateSql, blobs[column], lastModified,
+                            rowKey, colId);
+                } else {
+                    voltQueueSQL(insertSql, rowKey, colId, blobs[column],
+                            lastModified);
+                }
+                if (++queued == MAX_BATCH) {
+                    voltExecuteSQL();
+                    queued = 0;
+                }
+            }
+        }
+        if (queued > 0)
+            return voltExecuteSQL();
+        return new VoltTable[0];
+    }
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sebastien Diot..
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sebastien Diot. - initial API and implementation
+ ******************************************************************************/
+package com.blockwithme.longdb.voltdb.server.base;
+
+import java.util.Arrays;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltTable.ColumnInfo;
+import org.voltdb.VoltTableRow;
+import org.voltdb.VoltType;
+
+/** The base class for 'SelectMultiRow' stored procedure. Reads the columns of
+ * many rows in a single (multi-partition) invocation. */
+@ParametersAreNonnullByDefault
+public abstract class SelectMultiRow extends VoltProcedure implements
+        IBaseStoredProc {
+
+    /** The maximum number of statements queued before they are executed. */
+    private static final int MAX_BATCH = 200;
+
+    /** The columns of the result table. */
+    private static final ColumnInfo[] COLUMNS = new ColumnInfo[] {
+            new ColumnInfo("ROW_KEY", VoltType.BIGINT),
+            new ColumnInfo("COLUMN_KEY", VoltType.BIGINT),
+            new ColumnInfo("DATA_BLOB", VoltType.VARBINARY),
+            new ColumnInfo("LAST_MODIFIED", VoltType.TIMESTAMP) };
+
+    /** The sql. */
+    protected final SQLStmt sql = new SQLStmt(
+            "SELECT ROW_KEY, COLUMN_KEY, DATA_BLOB, " + "LAST_MODIFIED FROM "
+                    + tableName() + " WHERE ROW_KEY = ? "
+                    + "AND COLUMN_KEY >= ? AND COLUMN_KEY <= "
+                    + "? ORDER BY ROW_KEY, COLUMN_KEY;");
+
+    /** Copies the rows of a query result, keeping only the selected columns.
+     * 
+     * @param theTable
+     *        the query result
+     * @param theSortedColumnIds
+     *        the selected column ids, sorted; empty to keep all columns
+     * @param theResult
+     *        the table receiving the rows */
+    private static void copyRows(final VoltTable theTable,
+            final long[] theSortedColumnIds, final VoltTable theResult) {
+        int count = 0;
+        while (theTable.advanceRow()) {
+            final VoltTableRow r = theTable.fetchRow(count++);
+            if (theSortedColumnIds.length == 0
+                    || Arrays.binarySearch(theSortedColumnIds, r.getLong(1)) >= 0) {
+                theResult.add(r);
+            }
+        }
+    }
+
+    /** The run method for this stored procedure.
+     * 
+     * @param theRows
+     *        the row keys
+     * @param theStart
+     *        the first column id (inclusive)
+     * @param theEnd
+     *        the last column id (inclusive)
+     * @param theColumnIds
+     *        the column ids to select, within the start and end; empty to
+     *        select all the columns between start and end
+     * @return the resultant VoltTable[], containing a single table
+     * @throws VoltAbortException
+     *         the volt abort exception */
+    public VoltTable[] run(final long[] theRows, final long theStart,
+            final long theEnd, final long[] theColumnIds)
+            throws VoltAbortException {
+        Arrays.sort(theColumnIds);
+        final VoltTable result = new VoltTable(COLUMNS);
+        int queued = 0;
+        for (int i = 0; i < theRows.length; i++) {
+            voltQueueSQL(sql, theRows[i], theStart, theEnd);
+            if (++queued == MAX_BATCH || i == theRows.length - 1) {
+                for (final VoltTable table : voltExecuteSQL()) {
+                    copyRows(table, theColumnIds, result);
+                }
+                queued = 0;
+            }
+        }
+        return new VoltTable[] { result };
+    }
+}
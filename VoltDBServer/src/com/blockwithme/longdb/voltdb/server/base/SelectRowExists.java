@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sebastien Diot..
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sebastien Diot. - initial API and implementation
+ ******************************************************************************/
+package com.blockwithme.longdb.voltdb.server.base;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/** The base class for 'SelectRowExists' store procedure. Selects at most one
+ * column key, so the cost does not depend on the size of the row. */
+@ParametersAreNonnullByDefault
+public abstract class SelectRowExists extends VoltProcedure implements
+        IBaseStoredProc {
+
+    /** The sql. */
+    protected final SQLStmt sql = new SQLStmt("SELECT COLUMN_KEY FROM "
+            + tableName() + " WHERE ROW_KEY = ? LIMIT 1;");
+
+    /** Run.
+     * 
+     * @param theRow
+     *        the row
+     * @return the volt table[], with one row if the row exists
+     * @throws VoltAbortException
+     *         the volt abort exception */
+    public VoltTable[] run(final long theRow) throws VoltAbortException {
+        voltQueueSQL(sql, theRow);
+        return voltExecuteSQL();
+    }
+
+}
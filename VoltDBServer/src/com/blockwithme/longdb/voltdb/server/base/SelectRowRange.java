@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sebastien Diot..
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sebastien Diot. - initial API and implementation
+ ******************************************************************************/
+package com.blockwithme.longdb.voltdb.server.base;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltTable.ColumnInfo;
+import org.voltdb.VoltType;
+
+/** The base class for 'SelectRowRange' stored procedure. Reads a page of the
+ * rows in a range of keys, with a range of their columns, in a single
+ * (multi-partition) invocation. */
+@ParametersAreNonnullByDefault
+public abstract class SelectRowRange extends VoltProcedure implements
+        IBaseStoredProc {
+
+    /** The columns of the result table, when no column is selected. */
+    private static final ColumnInfo[] COLUMNS = new ColumnInfo[] {
+            new ColumnInfo("ROW_KEY", VoltType.BIGINT),
+            new ColumnInfo("COLUMN_KEY", VoltType.BIGINT),
+            new ColumnInfo("DATA_BLOB", VoltType.VARBINARY),
+            new ColumnInfo("LAST_MODIFIED", VoltType.TIMESTAMP) };
+
+    /** The sql selecting the columns of the rows of the page. */
+    protected final SQLStmt columnsSql = new SQLStmt(
+            "SELECT ROW_KEY, COLUMN_KEY, DATA_BLOB, " + "LAST_MODIFIED FROM "
+                    + tableName() + " WHERE ROW_KEY >= ? AND ROW_KEY <= ? "
+                    + "AND COLUMN_KEY >= ? AND COLUMN_KEY <= "
+                    + "? ORDER BY ROW_KEY, COLUMN_KEY;");
+
+    /** The sql selecting the keys of the page. */
+    protected final SQLStmt keysSql = new SQLStmt(
+            "SELECT DISTINCT ROW_KEY FROM " + tableName()
+                    + " WHERE ROW_KEY >= ? AND ROW_KEY <= ? "
+                    + "ORDER BY ROW_KEY LIMIT ?;");
+
+    /** The run method for this stored procedure.
+     * 
+     * @param theFirstRow
+     *        the first row key (inclusive)
+     * @param theLastRow
+     *        the last row key (inclusive)
+     * @param theStart
+     *        the first column id (inclusive)
+     * @param theEnd
+     *        the last column id (inclusive); lower than theStart to select
+     *        the keys only
+     * @param theLimit
+     *        the maximum number of rows
+     * @return the resultant VoltTable[], containing the columns of the rows,
+     *         and then the keys of the rows, in key order
+     * @throws VoltAbortException
+     *         the volt abort exception */
+    public VoltTable[] run(final long theFirstRow, final long theLastRow,
+            final long theStart, final long theEnd, final int theLimit)
+            throws VoltAbortException {
+        voltQueueSQL(keysSql, theFirstRow, theLastRow, theLimit);
+        final VoltTable keys = voltExecuteSQL()[0];
+        final int count = keys.getRowCount();
+        if (count == 0 || theEnd < theStart)
+            return new VoltTable[] { new VoltTable(COLUMNS), keys };
+        voltQueueSQL(columnsSql, keys.fetchRow(0).getLong(0),
+                keys.fetchRow(count - 1).getLong(0), theStart, theEnd);
+        return new VoltTable[] { voltExecuteSQL()[0], keys };
+    }
+}
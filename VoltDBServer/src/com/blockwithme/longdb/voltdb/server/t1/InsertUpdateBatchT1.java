@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sebastien Diot..
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     Sebastien Diot. - initial API and implementation
+ ******************************************************************************/
+package com.blockwithme.longdb.voltdb.server.t1;
+
+import org.voltdb.VoltTable;
+
+/** The 'InsertUpdateBatch' stored procedure for table 'T1'. This
+ * procedure spans many rows, and is therefore multi-partition. */
+public class InsertUpdateBatchT1 extends
+        com.blockwithme.longdb.voltdb.server.base.InsertUpdateBatch {
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.voltdb.server.base.InsertUpdateBatch#run(long[],
+     * int[], long[], byte[], int[]) */
+    @Override
+    public VoltTable[] run(final long[] theRowKeys,
+            final int[] theColumnCounts, final long[] theColIDs,
+            final byte[] theCombinedBlob, final int[] theIndexArray) {
+        return super.run(theRowKeys, theColumnCounts, theColIDs,
+                theCombinedBlob, theIndexArray);
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.voltdb.server.base.IBaseStoredProc#tableName() */
+    @Override
+    public String tableName() {
+        return "T1";
+    }
+
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sebastien Diot..
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sebastien Diot. - initial API and implementation
+ ******************************************************************************/
+package com.blockwithme.longdb.voltdb.server.t1;
+
+import org.voltdb.VoltTable;
+
+/** The 'SelectRowRange' stored procedure for table 'T1'. This procedure
+ * spans many rows, and is therefore multi-partition. */
+public class SelectRowRangeT1 extends
+        com.blockwithme.longdb.voltdb.server.base.SelectRowRange {
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.voltdb.server.base.SelectRowRange#run(long,
+     * long, long, long, int) */
+    @Override
+    public VoltTable[] run(final long theFirstRow, final long theLastRow,
+            final long theStart, final long theEnd, final int theLimit)
+            throws VoltAbortException {
+        return super.run(theFirstRow, theLastRow, theStart, theEnd, theLimit);
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.voltdb.server.base.IBaseStoredProc#tableName() */
+    @Override
+    public String tableName() {
+        return "T1";
+    }
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Sebastien Diot..
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Sebastien Diot. - initial API and implementation
+ ******************************************************************************/
+package com.blockwithme.longdb.voltdb.server.t2;
+
+import org.voltdb.VoltTable;
+
+/** The 'SelectMultiRow' stored procedure for table 'T2'. This procedure
+ * spans many rows, and is therefore multi-partition. */
+public class SelectMultiRowT2 extends
+        com.blockwithme.longdb.voltdb.server.base.SelectMultiRow {
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.voltdb.server.base.SelectMultiRow#run(long[],
+     * long, long, long[]) */
+    @Override
+    public VoltTable[] run(final long[] theRows, final long theStart,
+            final long theEnd, final long[] theColumnIds)
+            throws VoltAbortException {
+        return super.run(theRows, theStart, theEnd, theColumnIds);
+    }
+
+    /* (non-Javadoc)
+     * @see
+     * com.blockwithme.longdb.voltdb.server.base.IBaseStoredProc#tableName() */
+    @Override
+    public String tableName() {
+        return "T2";
+    }
+}